@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import org.geotools.data.Query;
+import org.geotools.data.ows.HTTPClient;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -65,6 +66,7 @@ import org.polymap.rhei.batik.toolkit.SimpleDialog;
 import org.polymap.rhei.table.FeatureCollectionContentProvider;
 
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.HttpClientService;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -90,7 +92,13 @@ public class WfsImporter
 
     public static final Pattern    urlPattern = WmsImporter.urlPattern;
 
-    private static final WFSDataStoreFactory dsf  = new WFSDataStoreFactory();
+    /** Creates the data stores with clients of the {@link HttpClientService}. */
+    private static final WFSDataStoreFactory dsf  = new WFSDataStoreFactory() {
+        @Override
+        public HTTPClient getHttpClient( Map<String,Serializable> params ) throws IOException {
+            return HttpClientService.instance().newClient();
+        }
+    };
 
     private ImporterSite            site;
 
@@ -182,7 +190,8 @@ public class WfsImporter
                 log.info( "URL: " + getcap );
                 Map<String,Serializable> params = new HashMap();                
                 params.put( WFSDataStoreFactory.URL.key, getcap );
-                params.put( WFSDataStoreFactory.TIMEOUT.key, 30000 );
+                params.put( WFSDataStoreFactory.TIMEOUT.key, HttpClientService.instance().readTimeoutMillis() );
+                params.put( WFSDataStoreFactory.TRY_GZIP.key, true );
 
                 ds = (WFSDataStore)dsf.createDataStore( params );
 
@@ -20,6 +20,7 @@ import java.util.regex.Pattern;
 import java.net.URL;
 
 import org.geotools.data.ows.CRSEnvelope;
+import org.geotools.data.ows.HTTPClient;
 import org.geotools.data.ows.Layer;
 import org.geotools.data.ows.Service;
 import org.geotools.data.ows.WMSCapabilities;
@@ -60,6 +61,7 @@ import org.polymap.rhei.batik.toolkit.IPanelToolkit;
 import org.polymap.rhei.batik.toolkit.SimpleDialog;
 
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.HttpClientService;
 import org.polymap.p4.data.importer.Importer;
 import org.polymap.p4.data.importer.ImporterPlugin;
 import org.polymap.p4.data.importer.ImporterPrompt;
@@ -80,6 +82,9 @@ public class WmsImporter
 
     private static final IMessages i18n = Messages.forPrefix( "WMS" );
 
+    /** Read timeout of the capabilities request, in seconds. */
+    public static final int        CAPABILITIES_TIMEOUT = 10;
+
     public static final Pattern    urlPattern = Pattern.compile( "((https?):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?\\+-=\\\\\\.&]*)" );
 
     private ImporterSite           site;
@@ -154,7 +159,9 @@ public class WmsImporter
     public void verify( IProgressMonitor monitor ) {
         try {
             if (url != null) {
-                wms = new WebMapServer( new URL( url ), 10 );
+                HTTPClient client = HttpClientService.instance().newClient();
+                client.setReadTimeout( CAPABILITIES_TIMEOUT );
+                wms = new WebMapServer( new URL( url ), client );
                 WMSCapabilities capabilities = wms.getCapabilities();
                 String title = capabilities.getService().getTitle();
                 log.info( "Service title: " + title );
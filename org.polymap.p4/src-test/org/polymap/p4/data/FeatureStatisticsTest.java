@@ -0,0 +1,103 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import org.polymap.p4.data.FeatureStatistics.AttributeStatistics;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureStatisticsTest {
+
+    @Test
+    public void exactValues() {
+        AttributeStatistics stats = new FeatureStatistics().attribute( "type" );
+        for (int i=0; i<1000; i++) {
+            stats.add( i % 3 == 0 ? "a" : "b" );
+        }
+        stats.add( null );
+        assertEquals( 1000, stats.count );
+        assertEquals( 1, stats.nulls );
+        assertEquals( 2, stats.distinct() );
+        assertTrue( stats.isTopExact() );
+        assertEquals( "b", stats.topValues().get( 0 ).getKey() );
+        assertEquals( 666L, (long)stats.topValues().get( 0 ).getValue() );
+        assertEquals( "a", stats.min );
+        assertEquals( "b", stats.max );
+    }
+
+
+    @Test
+    public void estimatedValues() {
+        AttributeStatistics stats = new FeatureStatistics().attribute( "id" );
+        int n = 200000;
+        for (int i=0; i<n; i++) {
+            stats.add( i );
+        }
+        assertFalse( stats.isTopExact() );
+        // HyperLogLog with 2048 registers: about 2.3% standard error
+        assertEquals( n, stats.distinct(), n * 0.1 );
+        assertEquals( n / 2, stats.quantile( 0.5 ), n * 0.05 );
+
+        long[] histogram = stats.histogram( 4 );
+        assertEquals( 4, histogram.length );
+        for (long bin : histogram) {
+            assertEquals( n / 4, bin, n * 0.05 );
+        }
+    }
+
+
+    @Test
+    public void writeRead() throws Exception {
+        FeatureStatistics stats = new FeatureStatistics();
+        stats.sourceTypeName = "test";
+        for (int i=0; i<100; i++) {
+            stats.add();
+            stats.attribute( "value" ).add( (double)i );
+            stats.attribute( "name" ).add( i % 2 == 0 ? "even" : null );
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream( bytes )) {
+            stats.write( out );
+        }
+        try (DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) )) {
+            FeatureStatistics read = FeatureStatistics.read( in );
+            assertEquals( "test", read.sourceTypeName );
+            assertEquals( 100, read.count );
+            AttributeStatistics value = read.attributeIfPresent( "value" ).get();
+            assertEquals( 0d, value.min );
+            assertEquals( 99d, value.max );
+            assertEquals( 100, value.distinct() );
+            assertEquals( 25, value.histogram( 4 )[0] );
+            AttributeStatistics name = read.attributeIfPresent( "name" ).get();
+            assertEquals( 50, name.nulls );
+            assertEquals( 50L, (long)name.topValues().get( 0 ).getValue() );
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class PointCountIndexTest {
+
+    protected PointCountIndex index() {
+        PointCountIndex result = new PointCountIndex( new Envelope( 0, 100, 0, 100 ), 4 );
+        for (int x=0; x<100; x++) {
+            for (int y=0; y<100; y++) {
+                result.add( x + 0.5, y + 0.5 );
+            }
+        }
+        result.complete();
+        return result;
+    }
+
+
+    protected long count( PointCountIndex index, Envelope area, int level ) {
+        AtomicLong result = new AtomicLong();
+        index.query( area, level, cell -> result.addAndGet( cell.count ) );
+        return result.get();
+    }
+
+
+    @Test
+    public void levels() {
+        PointCountIndex index = index();
+        assertEquals( 10000, index.total() );
+        for (int level=0; level<index.levelCount(); level++) {
+            assertEquals( 10000, count( index, index.bounds(), level ) );
+        }
+        assertEquals( 0, index.level( 100 ) );
+        assertEquals( 2, index.level( 25 ) );
+        assertEquals( -1, index.level( 1 ) );
+    }
+
+
+    @Test
+    public void query() {
+        PointCountIndex index = index();
+        // one quarter on level 1
+        assertEquals( 2500, count( index, new Envelope( 0, 49, 0, 49 ), 1 ) );
+        assertEquals( 0, count( index, new Envelope( 200, 300, 200, 300 ), 3 ) );
+    }
+
+
+    @Test
+    public void writeRead() throws Exception {
+        PointCountIndex index = index();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write( new DataOutputStream( bytes ) );
+        PointCountIndex read = PointCountIndex.read( new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+        assertEquals( index.total(), read.total() );
+        assertEquals( 2500, count( read, new Envelope( 50, 100, 50, 100 ), 2 ) );
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Micro-benchmark of the {@link FidSet} selection of {@link FeatureLayer}:
+ * <ul>
+ * <li>many ADD selections: {@link FidSet#or(FidSet)} versus the former chaining
+ * of the selections via <code>ff.or( filter, selection )</code>, each evaluated
+ * against all features</li>
+ * <li>removing a few features from all features: the negated {@link FidSet}
+ * versus the difference of the set of all features</li>
+ * </ul>
+ * This is not a unit test; run it as Java application.
+ *
+ * @author Falko Bräutigam
+ */
+public class FidSetBenchmark {
+
+    public static final int     FEATURES = 100000;
+
+    /** The number of ADD selections. */
+    public static final int     SELECTIONS = 200;
+
+    /** The number of features per selection. */
+    public static final int     SELECTED = 50;
+
+    public static final int     ROUNDS = 10;
+
+    private static FilterFactory2   ff = CommonFactoryFinder.getFilterFactory2();
+
+
+    public static void main( String[] args ) throws Exception {
+        FidSetBenchmark benchmark = new FidSetBenchmark();
+        for (int i=0; i<3; i++) {
+            benchmark.addSelections();
+            benchmark.differenceOfAll();
+        }
+    }
+
+
+    // instance *******************************************
+
+    private FidIndex            index = new FidIndex();
+
+    private List<SimpleFeature> features = new ArrayList( FEATURES );
+
+    /** The feature ids of every selection. */
+    private List<List<String>>  selections = new ArrayList( SELECTIONS );
+
+
+    public FidSetBenchmark() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType( "Benchmark", "name:String" );
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder( schema );
+        List<String> all = new ArrayList( FEATURES );
+        for (int i=0; i<FEATURES; i++) {
+            builder.add( "name" + i );
+            features.add( builder.buildFeature( "fid." + i ) );
+            all.add( "fid." + i );
+        }
+        FidSet.of( index, all );  // assign the ordinals
+
+        for (int i=0; i<SELECTIONS; i++) {
+            List<String> selection = new ArrayList( SELECTED );
+            for (int j=0; j<SELECTED; j++) {
+                selection.add( "fid." + ((i * 7919 + j * 104729) % FEATURES) );
+            }
+            selections.add( selection );
+        }
+    }
+
+
+    protected Filter idFilter( List<String> fids ) {
+        return ff.id( fids.stream().map( fid -> ff.featureId( fid ) ).collect( Collectors.toSet() ) );
+    }
+
+
+    protected long count( Filter filter ) {
+        return features.stream().filter( feature -> filter.evaluate( feature ) ).count();
+    }
+
+
+    /**
+     * {@link #SELECTIONS} ADD selections, then the features of the selection are
+     * counted, like a table refresh or a render does.
+     */
+    public void addSelections() {
+        // chained: the former FeatureLayer.select()
+        long start = System.nanoTime();
+        long chainedCount = 0;
+        for (int round=0; round<ROUNDS; round++) {
+            Filter filter = idFilter( selections.get( 0 ) );
+            for (List<String> selection : selections.subList( 1, SELECTIONS )) {
+                filter = ff.or( filter, idFilter( selection ) );
+            }
+            chainedCount = count( filter );
+        }
+        long chainedNanos = (System.nanoTime() - start) / ROUNDS;
+
+        // FidSet: one flat Id filter
+        start = System.nanoTime();
+        long fidSetCount = 0;
+        for (int round=0; round<ROUNDS; round++) {
+            FidSet selected = FidSet.of( index, selections.get( 0 ) );
+            for (List<String> selection : selections.subList( 1, SELECTIONS )) {
+                selected = selected.or( FidSet.of( index, selection ) );
+            }
+            fidSetCount = count( selected.toFilter( ff ) );
+        }
+        long fidSetNanos = (System.nanoTime() - start) / ROUNDS;
+
+        check( chainedCount == fidSetCount, "Different results: " + chainedCount + " / " + fidSetCount );
+        System.out.println( SELECTIONS + " ADD selections of " + FEATURES + " features: chained filters "
+                + chainedNanos / 1000 + "µs, FidSet " + fidSetNanos / 1000 + "µs" );
+    }
+
+
+    /**
+     * Removing a few features from all features.
+     */
+    public void differenceOfAll() {
+        List<String> all = new ArrayList( FEATURES );
+        features.forEach( feature -> all.add( feature.getID() ) );
+        List<String> removed = selections.get( 0 );
+
+        // materialized: all features are read and stored
+        long start = System.nanoTime();
+        FidSet materialized = null;
+        for (int i=0; i<ROUNDS; i++) {
+            materialized = FidSet.of( index, all ).andNot( FidSet.of( index, removed ) );
+        }
+        long materializedNanos = (System.nanoTime() - start) / ROUNDS;
+
+        // negated: just the removed features
+        start = System.nanoTime();
+        FidSet negated = null;
+        for (int i=0; i<ROUNDS; i++) {
+            negated = FidSet.of( index, removed ).negate();
+        }
+        long negatedNanos = (System.nanoTime() - start) / ROUNDS;
+
+        check( materialized.size() == FEATURES - removed.size(), "Wrong size: " + materialized.size() );
+        for (String fid : all) {
+            check( materialized.contains( fid ) == negated.contains( fid ), "Different results: " + fid );
+        }
+        System.out.println( "Difference of " + FEATURES + " features: materialized " + materializedNanos / 1000
+                + "µs, negated " + negatedNanos / 1000 + "µs" );
+    }
+
+
+    protected static void check( boolean condition, String msg ) {
+        if (!condition) {
+            throw new IllegalStateException( msg );
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class FidSetTest {
+
+    private FidIndex        index = new FidIndex();
+
+
+    /**
+     * A set of the feature ids from..to (exclusive) with the given step.
+     */
+    protected FidSet range( int from, int to, int step ) {
+        List<String> fids = new ArrayList();
+        for (int i=from; i<to; i+=step) {
+            fids.add( "fid." + i );
+        }
+        return FidSet.of( index, fids );
+    }
+
+
+    protected Set<String> fids( FidSet set ) {
+        Set<String> result = new TreeSet();
+        set.forEach( fid -> result.add( fid ) );
+        assertEquals( set.size(), result.size() );
+        return result;
+    }
+
+
+    @Test
+    public void sparse() {
+        FidSet set = range( 0, 100, 3 );
+        assertEquals( 34, set.size() );
+        assertTrue( set.contains( "fid.99" ) );
+        assertFalse( set.contains( "fid.98" ) );
+        assertFalse( set.contains( "unknown" ) );
+    }
+
+
+    @Test
+    public void operations() {
+        // ordinals span several chunks; dense and sparse
+        FidSet all = range( 0, 200000, 1 );
+        FidSet even = range( 0, 200000, 2 );
+        FidSet some = range( 0, 200000, 1000 );
+
+        assertEquals( 200000, all.size() );
+        assertEquals( 100000, all.andNot( even ).size() );
+        assertEquals( 200, some.size() );
+        assertEquals( 200, even.and( some ).size() );
+        assertEquals( 100000, even.or( some ).size() );
+        assertEquals( 0, some.andNot( even ).size() );
+        assertEquals( fids( all ), fids( even.or( all.andNot( even ) ) ) );
+
+        FidSet odd = range( 1, 1000, 2 );
+        assertEquals( 100000 + 500, even.or( odd ).size() );
+        assertTrue( odd.and( even ).isEmpty() );
+    }
+
+
+    @Test
+    public void immutable() {
+        FidSet even = range( 0, 20000, 2 );
+        FidSet odd = range( 1, 20000, 2 );
+        even.or( odd );
+        even.andNot( range( 0, 20000, 1 ) );
+        assertEquals( 10000, even.size() );
+        assertEquals( 10000, fids( even ).size() );
+        assertFalse( even.contains( "fid.1" ) );
+    }
+
+
+    @Test
+    public void negated() {
+        FidSet even = range( 0, 20000, 2 );
+        FidSet some = range( 0, 20000, 1000 );
+        FidSet notSome = some.negate();
+        assertTrue( notSome.isNegated() );
+        assertEquals( 20, notSome.size() );
+        assertFalse( notSome.contains( "fid.1000" ) );
+        assertTrue( notSome.contains( "fid.1001" ) );
+        assertTrue( notSome.contains( "unknown" ) );
+
+        // positive results
+        assertEquals( fids( even.andNot( some ) ), fids( even.and( notSome ) ) );
+        assertEquals( fids( some ), fids( some.andNot( notSome ) ) );
+        assertEquals( 10000 - 20, notSome.and( even ).size() );
+        // negated results
+        assertTrue( notSome.or( even ).isNegated() );
+        assertEquals( 0, notSome.or( even ).size() );
+        assertTrue( notSome.or( even ).isAll() );
+        assertEquals( 20, notSome.and( notSome ).size() );
+        FidSet notSomeNotOdd = notSome.andNot( range( 1, 20000, 2 ) );
+        assertTrue( notSomeNotOdd.isNegated() );
+        assertEquals( 20 + 10000, notSomeNotOdd.size() );
+        assertTrue( notSome.negate().contains( "fid.1000" ) );
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class MvtEncoderTest {
+
+    private GeometryFactory     gf = new GeometryFactory();
+
+
+    @Test
+    public void commandsAndZigzag() {
+        assertEquals( 9, MvtEncoder.command( MvtEncoder.MOVE_TO, 1 ) );
+        assertEquals( 15, MvtEncoder.command( MvtEncoder.CLOSE_PATH, 1 ) );
+        assertEquals( 0, MvtEncoder.zigzag( 0 ) );
+        assertEquals( 1, MvtEncoder.zigzag( -1 ) );
+        assertEquals( 2, MvtEncoder.zigzag( 1 ) );
+        assertEquals( 3, MvtEncoder.zigzag( -2 ) );
+    }
+
+
+    @Test
+    public void point() {
+        MvtEncoder encoder = new MvtEncoder( new Envelope( 0, 4096, 0, 4096 ) );
+        assertTrue( encoder.addFeature( "points", 1L, Collections.EMPTY_MAP, gf.createPoint( new Coordinate( 25, 4096-17 ) ) ) );
+
+        // layer{ feature{ id=1, type=POINT, geometry=[9,50,34] } }
+        byte[] feature = { 0x08, 0x01, 0x18, 0x01, 0x22, 0x03, 0x09, 0x32, 0x22 };
+        byte[] tile = encoder.encode();
+        assertTrue( indexOf( tile, feature ) > 0 );
+    }
+
+
+    @Test
+    public void outsideIsSkipped() {
+        MvtEncoder encoder = new MvtEncoder( new Envelope( 0, 100, 0, 100 ) );
+        assertFalse( encoder.addFeature( "points", null, Collections.EMPTY_MAP, gf.createPoint( new Coordinate( 500, 500 ) ) ) );
+        assertTrue( encoder.isEmpty() );
+        assertArrayEquals( new byte[0], encoder.encode() );
+    }
+
+
+    @Test
+    public void collapsedPolygonIsSkipped() {
+        MvtEncoder encoder = new MvtEncoder( new Envelope( 0, 4096, 0, 4096 ) );
+        Coordinate[] shell = { new Coordinate( 10, 10 ), new Coordinate( 10.2, 10 ),
+                new Coordinate( 10.2, 10.2 ), new Coordinate( 10, 10 ) };
+        assertFalse( encoder.addFeature( "polygons", 1L, Collections.EMPTY_MAP, gf.createPolygon( shell ) ) );
+        assertTrue( encoder.isEmpty() );
+    }
+
+
+    @Test
+    public void exteriorRingIsClockwise() {
+        // counter-clockwise in tile coordinates (y down)
+        int[] xs = { 0, 0, 10 };
+        int[] ys = { 0, 10, 10 };
+        assertTrue( MvtEncoder.signedArea( xs, ys, 3 ) < 0 );
+        MvtEncoder.reverse( xs, 3 );
+        MvtEncoder.reverse( ys, 3 );
+        assertTrue( MvtEncoder.signedArea( xs, ys, 3 ) > 0 );
+    }
+
+
+    protected int indexOf( byte[] data, byte[] pattern ) {
+        outer: for (int i=0; i<=data.length-pattern.length; i++) {
+            for (int j=0; j<pattern.length; j++) {
+                if (data[i+j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class PaletteQuantizerTest {
+
+    @Test
+    public void exactPalette() {
+        BufferedImage image = new BufferedImage( 16, 16, BufferedImage.TYPE_INT_ARGB );
+        for (int x=0; x<16; x++) {
+            for (int y=0; y<16; y++) {
+                image.setRGB( x, y, x < 8 ? 0xff336699 : 0x00000000 );
+            }
+        }
+        BufferedImage result = PaletteQuantizer.quantize( image );
+        assertEquals( 2, ((IndexColorModel)result.getColorModel()).getMapSize() );
+        assertEquals( 0xff336699, result.getRGB( 0, 0 ) );
+        assertEquals( 0, result.getRGB( 15, 15 ) >>> 24 );
+    }
+
+
+    @Test
+    public void medianCut() {
+        BufferedImage image = new BufferedImage( 64, 64, BufferedImage.TYPE_INT_ARGB );
+        for (int x=0; x<64; x++) {
+            for (int y=0; y<64; y++) {
+                image.setRGB( x, y, 0xff000000 | (x * 4) << 16 | (y * 4) << 8 | 0x80 );
+            }
+        }
+        BufferedImage result = PaletteQuantizer.quantize( image );
+        assertTrue( ((IndexColorModel)result.getColorModel()).getMapSize() <= PaletteQuantizer.MAX_COLORS );
+        for (int x=0; x<64; x+=7) {
+            for (int y=0; y<64; y+=7) {
+                int rgb = result.getRGB( x, y );
+                assertTrue( Math.abs( ((rgb >> 16) & 0xff) - x * 4 ) <= 16 );
+                assertTrue( Math.abs( ((rgb >> 8) & 0xff) - y * 4 ) <= 16 );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.polymap.p4.map.RenderQueue.Ticket;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class RenderQueueTest {
+
+    protected TileRequest request( double span ) {
+        return new TileRequest( "layer", "", "EPSG:3857", "image/png", 256, 256, 0, 0, span, span );
+    }
+
+
+    @Test
+    public void otherZoomSupersedes() throws InterruptedException {
+        RenderQueue queue = new RenderQueue( 1 );
+        Ticket old = queue.enqueue( request( 1000 ) );
+        Ticket sameZoom = queue.enqueue( request( 1000 ) );
+        assertFalse( old.isSuperseded() );
+
+        Ticket newest = queue.enqueue( request( 500 ) );
+        assertTrue( old.isSuperseded() );
+        assertTrue( sameZoom.isSuperseded() );
+        assertFalse( newest.isSuperseded() );
+
+        assertFalse( queue.acquire( old ) );
+        assertFalse( queue.acquire( sameZoom ) );
+        assertTrue( queue.acquire( newest ) );
+        queue.release( newest );
+    }
+
+
+    @Test
+    public void newestFirst() throws InterruptedException {
+        RenderQueue queue = new RenderQueue( 1 );
+        Ticket first = queue.enqueue( request( 1000 ) );
+        Ticket second = queue.enqueue( request( 1000 ) );
+
+        // second is newer and starts first
+        assertTrue( queue.acquire( second ) );
+        queue.release( second );
+        assertTrue( queue.acquire( first ) );
+        queue.release( first );
+    }
+
+
+    @Test( timeout = 10000 )
+    public void interruptedTicketIsRemoved() throws Exception {
+        RenderQueue queue = new RenderQueue( 1 );
+        Ticket old = queue.enqueue( request( 1000 ) );
+        Ticket running = queue.enqueue( request( 1000 ) );
+        assertTrue( queue.acquire( running ) );
+
+        // newest ticket waits for the slot and is interrupted
+        Ticket interrupted = queue.enqueue( request( 1000 ) );
+        Thread thread = new Thread( () -> {
+            try {
+                queue.acquire( interrupted );
+            }
+            catch (InterruptedException e) {
+                // expected
+            }
+        });
+        thread.start();
+        thread.interrupt();
+        thread.join();
+
+        // the interrupted ticket does not block the queue
+        queue.release( running );
+        assertTrue( queue.acquire( old ) );
+        queue.release( old );
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class RenderSchedulerTest {
+
+    private RenderScheduler     scheduler = new RenderScheduler( 1 );
+
+    private List<String>        admitted = new CopyOnWriteArrayList();
+
+
+    protected Thread waiting( String user, String name ) throws InterruptedException {
+        int depth = scheduler.queueDepth( user );
+        Thread result = new Thread( () -> {
+            try {
+                scheduler.execute( user, () -> admitted.add( name ) );
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+        });
+        result.start();
+        while (scheduler.queueDepth( user ) == depth) {
+            Thread.sleep( 10 );
+        }
+        return result;
+    }
+
+
+    @Test
+    public void usersTakeTurns() throws Exception {
+        scheduler.acquire( "a" );
+
+        Thread a1 = waiting( "a", "a1" );
+        Thread a2 = waiting( "a", "a2" );
+        Thread b1 = waiting( "b", "b1" );
+        assertEquals( 3, scheduler.metrics().waiting );
+        assertEquals( 2, scheduler.metrics().waitingUsers );
+
+        scheduler.release();
+        a1.join(); a2.join(); b1.join();
+
+        // b1 does not wait for all renders of a
+        assertEquals( "[a1, b1, a2]", admitted.toString() );
+        assertEquals( 0, scheduler.metrics().running );
+        assertEquals( 4, scheduler.metrics().admitted );
+    }
+
+
+    @Test
+    public void idleOnlyIfFree() throws Exception {
+        RenderScheduler scheduler2 = new RenderScheduler( 3 );
+        assertTrue( scheduler2.tryAcquireIdle() );
+        assertTrue( scheduler2.tryAcquireIdle() );
+        // one slot is reserved for users
+        assertFalse( scheduler2.tryAcquireIdle() );
+        scheduler2.acquire( "a" );
+        scheduler2.release();
+        scheduler2.release();
+        assertTrue( scheduler2.executeIfIdle( () -> "prefetched" ).isPresent() );
+        assertEquals( 3, scheduler2.metrics().idleAdmitted );
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class SingleFlightTest {
+
+    private SingleFlight<String,byte[]> flight = new SingleFlight();
+
+    private List<byte[]>                results = new CopyOnWriteArrayList();
+
+
+    protected Thread waiting( String key ) throws InterruptedException {
+        long coalesced = flight.coalesced();
+        Thread result = new Thread( () -> {
+            try {
+                results.add( flight.execute( key, () -> new byte[] {2} ) );
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+        });
+        result.start();
+        while (flight.coalesced() == coalesced) {
+            Thread.sleep( 10 );
+        }
+        return result;
+    }
+
+
+    protected Thread first( String key, CountDownLatch started, CountDownLatch release, boolean cancel ) {
+        Thread result = new Thread( () -> {
+            try {
+                results.add( flight.execute( key, () -> {
+                    started.countDown();
+                    release.await();
+                    if (cancel) {
+                        throw new CancellationException();
+                    }
+                    return new byte[] {1};
+                }));
+            }
+            catch (CancellationException e) {
+            }
+            catch (Exception e) {
+                throw new RuntimeException( e );
+            }
+        });
+        result.start();
+        return result;
+    }
+
+
+    @Test
+    public void shareResult() throws Exception {
+        CountDownLatch started = new CountDownLatch( 1 ), release = new CountDownLatch( 1 );
+        Thread t1 = first( "tile", started, release, false );
+        started.await();
+        Thread t2 = waiting( "tile" );
+        Thread t3 = waiting( "tile" );
+
+        release.countDown();
+        t1.join(); t2.join(); t3.join();
+
+        assertEquals( 1, flight.executed() );
+        assertEquals( 3, results.size() );
+        assertSame( results.get( 0 ), results.get( 1 ) );
+        assertSame( results.get( 0 ), results.get( 2 ) );
+    }
+
+
+    @Test
+    public void retryIfCanceled() throws Exception {
+        CountDownLatch started = new CountDownLatch( 1 ), release = new CountDownLatch( 1 );
+        Thread t1 = first( "tile", started, release, true );
+        started.await();
+        Thread t2 = waiting( "tile" );
+
+        release.countDown();
+        t1.join(); t2.join();
+
+        // t2 did not get the cancellation of t1 but rendered itself
+        assertEquals( 2, flight.executed() );
+        assertEquals( 1, results.size() );
+        assertEquals( 2, results.get( 0 )[0] );
+    }
+
+
+
+    @Test
+    public void submitCoalesced() throws Exception {
+        // one thread, one queued task
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue( 1 ) );
+        try {
+            CountDownLatch release = new CountDownLatch( 1 );
+            CompletableFuture<byte[]> running = flight.submit( "running", () -> {
+                release.await();
+                return new byte[] {1};
+            }, executor );
+            CompletableFuture<byte[]> queued = flight.submit( "queued", () -> new byte[] {2}, executor );
+            // identical tasks do not occupy the queue
+            assertSame( queued, flight.submit( "queued", () -> new byte[] {3}, executor ) );
+            assertEquals( 1, flight.coalesced() );
+            try {
+                flight.submit( "rejected", () -> new byte[] {4}, executor );
+                throw new AssertionError( "Not rejected." );
+            }
+            catch (RejectedExecutionException e) {
+            }
+
+            release.countDown();
+            assertEquals( 1, running.get()[0] );
+            assertEquals( 2, queued.get()[0] );
+            assertEquals( 2, flight.executed() );
+            // not pending anymore
+            assertEquals( 4, flight.submit( "rejected", () -> new byte[] {4}, executor ).get()[0] );
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+}
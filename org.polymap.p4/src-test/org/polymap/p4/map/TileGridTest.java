@@ -0,0 +1,82 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Test;
+
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ *
+ *
+ * @author Falko Bräutigam
+ */
+public class TileGridTest {
+
+    private static final double HALF = TileGrid.WORLD_HALF;
+
+    private TileGrid            grid = new TileGrid( new ReferencedEnvelope( -HALF, HALF, -HALF, HALF, null ) );
+
+
+    @Test
+    public void indexOfTile() {
+        // zoom 2, second column, third row
+        double span = grid.span( 2 );
+        ReferencedEnvelope bounds = grid.bounds( new TileIndex( span, 1, 2 ) );
+        assertEquals( -HALF + span, bounds.getMinX(), 0.0001 );
+        assertEquals( HALF - 2 * span, bounds.getMaxY(), 0.0001 );
+
+        TileIndex index = grid.index( bounds ).get();
+        assertEquals( 1, index.col );
+        assertEquals( 2, index.row );
+        assertEquals( 2, grid.zoom( index.span ) );
+    }
+
+
+    @Test
+    public void notAligned() {
+        double span = grid.span( 3 );
+        assertFalse( grid.index( new ReferencedEnvelope( 10, 10 + span, 0, span, null ) ).isPresent() );
+        assertTrue( grid.index( new ReferencedEnvelope( 0, span, 0, span, null ) ).isPresent() );
+    }
+
+
+    @Test
+    public void range() {
+        TileIndex[] range = grid.range( new ReferencedEnvelope( -1, 1, -1, 1, null ), 1 );
+        assertEquals( 0, range[0].col );
+        assertEquals( 0, range[0].row );
+        assertEquals( 1, range[1].col );
+        assertEquals( 1, range[1].row );
+
+        // clamped to the extent
+        range = grid.range( new ReferencedEnvelope( -3 * HALF, 3 * HALF, -3 * HALF, 3 * HALF, null ), 2 );
+        assertEquals( 0, range[0].col );
+        assertEquals( 3, range[1].col );
+    }
+
+
+    @Test
+    public void zoomClamped() {
+        assertEquals( 0, grid.zoom( 4 * HALF ) );
+        assertEquals( TileGrid.MAX_ZOOM, grid.zoom( grid.span( TileGrid.MAX_ZOOM ) / 1024 ) );
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import org.geotools.data.ows.HTTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.polymap.p4.catalog.HttpClientService;
+
+/**
+ * Tests the upstream access of {@link WmsCascade} against a local stand-in
+ * server.
+ *
+ * @author Falko Bräutigam
+ */
+public class WmsCascadeTest {
+
+    private static final byte[] IMAGE = {1, 2, 3};
+
+    private HttpServer          server;
+
+    private String              base;
+
+    private HTTPClient          client = new HttpClientService().newClient();
+
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( "/fresh", exchange -> {
+            exchange.getResponseHeaders().add( "Content-Type", "image/png" );
+            exchange.getResponseHeaders().add( "Cache-Control", "public, max-age=600" );
+            respond( exchange, 200 );
+        });
+        server.createContext( "/nostore", exchange -> {
+            exchange.getResponseHeaders().add( "Content-Type", "image/png" );
+            exchange.getResponseHeaders().add( "Cache-Control", "no-store" );
+            respond( exchange, 200 );
+        });
+        server.createContext( "/error", exchange -> {
+            exchange.getResponseHeaders().add( "Content-Type", "application/vnd.ogc.se_xml" );
+            respond( exchange, 200 );
+        });
+        server.createContext( "/down", exchange -> {
+            respond( exchange, 503 );
+        });
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+
+    protected void respond( HttpExchange exchange, int status ) throws IOException {
+        exchange.sendResponseHeaders( status, IMAGE.length );
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write( IMAGE );
+        }
+    }
+
+
+    @After
+    public void tearDown() {
+        server.stop( 0 );
+    }
+
+
+    @Test
+    public void expires() {
+        long now = 1_000_000;
+        assertEquals( now + 60_000, WmsCascade.expires( "max-age=60", 0, 0, now ) );
+        assertEquals( now + 30_000, WmsCascade.expires( "public, s-maxage=30", 0, 0, now ) );
+        assertEquals( now, WmsCascade.expires( "no-cache", 0, 0, now ) );
+        // Expires relative to the Date of the server
+        assertEquals( now + 10_000, WmsCascade.expires( null, 50_000, 40_000, now ) );
+        assertEquals( now + WmsCascade.DEFAULT_MAX_AGE * 1000L, WmsCascade.expires( null, 0, 0, now ) );
+        assertEquals( 784111777000L, WmsCascade.httpDate( "Sun, 06 Nov 1994 08:49:37 GMT" ) );
+        assertEquals( 1, WmsCascade.httpDate( "0" ) );
+    }
+
+
+    @Test
+    public void fetchFresh() throws IOException {
+        long start = System.currentTimeMillis();
+        WmsCascade.Fetched fetched = WmsCascade.fetch( client, new URL( base + "/fresh" ) );
+        assertArrayEquals( IMAGE, fetched.data );
+        assertTrue( fetched.expires >= start + 600_000 );
+        assertTrue( new WmsCascade.Entry( fetched.data, fetched.expires ).isFresh() );
+    }
+
+
+    @Test
+    public void fetchNoStore() throws IOException {
+        WmsCascade.Fetched fetched = WmsCascade.fetch( client, new URL( base + "/nostore" ) );
+        assertFalse( new WmsCascade.Entry( fetched.data, fetched.expires ).isFresh() );
+    }
+
+
+    @Test(expected=IOException.class)
+    public void fetchServiceException() throws IOException {
+        WmsCascade.fetch( client, new URL( base + "/error" ) );
+    }
+
+
+    @Test(expected=IOException.class)
+    public void fetchDown() throws IOException {
+        WmsCascade.fetch( client, new URL( base + "/down" ) );
+    }
+
+}
@@ -53,8 +53,10 @@ import org.polymap.rhei.batik.contribution.IContributionProvider;
 import org.polymap.rhei.batik.toolkit.BatikDialogStatusAdapter;
 
 import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.catalog.HttpClientService;
 import org.polymap.p4.catalog.LocalCatalog;
 import org.polymap.p4.layer.NewLayerContribution;
+import org.polymap.p4.map.MapExportContrib;
 import org.polymap.p4.style.LayerStyleContrib;
 import org.polymap.p4.style.P4UIService;
 import org.polymap.recordstore.lucene.LuceneRecordStore;
@@ -117,6 +119,13 @@ public class P4Plugin
     public static StyleRepository styleRepo() {
         return instance().styleRepo;
     }
+
+    /**
+     * The HTTP client policy of all remote OWS access.
+     */
+    public static HttpClientService httpClients() {
+        return instance().httpClients;
+    }
     
     // instance *******************************************
 
@@ -128,6 +137,8 @@ public class P4Plugin
 
     private AllResolver             allResolver;
 
+    private HttpClientService       httpClients;
+
     private Optional<HttpService>   httpService = Optional.empty();
     
     private StyleRepository         styleRepo;
@@ -162,11 +173,18 @@ public class P4Plugin
             @Override
             public IContributionProvider createProvider() { return new LayerStyleContrib(); }
         });
+        ContributionManager.registerExtension( new ContributionProviderExtension() {
+            @Override
+            public IContributionProvider createProvider() { return new MapExportContrib(); }
+        });
         
         // handling errors in the UI
         StatusDispatcher.registerAdapter( new StatusDispatcher.LogAdapter() );
         StatusDispatcher.registerAdapter( new BatikDialogStatusAdapter() );
         
+        // remote OWS access; before the resolvers connect
+        httpClients = new HttpClientService();
+
         // catalogs / resolver
         catalogs = CatalogProviderExtension.createAllCatalogs();
         localCatalog = (LocalCatalog)catalogs.stream().filter( c -> c instanceof LocalCatalog ).findAny()
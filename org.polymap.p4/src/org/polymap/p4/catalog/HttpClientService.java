@@ -0,0 +1,239 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.catalog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+import org.geotools.data.ows.SimpleHttpClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * The HTTP client policy of all remote OWS access: timeouts, connection pooling,
+ * per-host limits and compression.
+ * <p/>
+ * {@link #newClient() Clients} are {@link HTTPClient}s that can be passed to the
+ * OWS classes of GeoTools. They are based on {@link java.net.HttpURLConnection},
+ * so connections (including TLS sessions) are kept alive and reused from the
+ * pool of the JVM. This pool is shared with the WMS/WFS clients that the catalog
+ * resolvers create on their own. It keeps <code>http.maxConnections</code> idle
+ * connections per host, 5 by default. The launch configuration and the product
+ * set it to {@link #MAX_PER_HOST}, so that every slot of a host can reuse a
+ * connection; a smaller value is logged at startup.
+ * <p/>
+ * At most {@link #MAX_PER_HOST} requests per host are running at the same time,
+ * from connecting until the response is disposed or its stream is closed; more
+ * requests wait up to the connect timeout for a free slot.
+ *
+ * @author Falko Bräutigam
+ */
+public class HttpClientService {
+
+    private static final Log log = LogFactory.getLog( HttpClientService.class );
+
+    /** Connect timeout in seconds. */
+    public static final int     CONNECT_TIMEOUT = Integer.getInteger( "org.polymap.p4.http.connectTimeout", 10 );
+
+    /** Read timeout in seconds. */
+    public static final int     READ_TIMEOUT = Integer.getInteger( "org.polymap.p4.http.readTimeout", 30 );
+
+    /** Max number of concurrent requests and of pooled connections per host. */
+    public static final int     MAX_PER_HOST = Integer.getInteger( "org.polymap.p4.http.maxPerHost", 8 );
+
+    /**
+     * Returns {@link P4Plugin#httpClients()}.
+     */
+    public static HttpClientService instance() {
+        return P4Plugin.httpClients();
+    }
+
+
+    // instance *******************************************
+
+    /** Slots of the hosts, by host:port. */
+    private ConcurrentMap<String,Semaphore> hosts = new ConcurrentHashMap();
+
+
+    public HttpClientService() {
+        log.info( "Timeouts: " + CONNECT_TIMEOUT + "s/" + READ_TIMEOUT + "s, max per host: " + MAX_PER_HOST );
+        int keepAlive = "false".equalsIgnoreCase( System.getProperty( "http.keepAlive" ) )
+                ? 0 : Integer.getInteger( "http.maxConnections", 5 );
+        if (keepAlive < MAX_PER_HOST) {
+            log.warn( "Just " + keepAlive + " pooled connections per host (http.keepAlive/http.maxConnections)"
+                    + " for " + MAX_PER_HOST + " concurrent requests." );
+        }
+    }
+
+
+    /**
+     * The read timeout in milliseconds, for the OWS classes of GeoTools that take
+     * a timeout instead of an {@link HTTPClient}.
+     */
+    public int readTimeoutMillis() {
+        return READ_TIMEOUT * 1000;
+    }
+
+
+    /**
+     * Creates a new client with the timeouts of this service that asks for
+     * compressed responses. The client may be used by several threads; user and
+     * password are per client.
+     */
+    public HTTPClient newClient() {
+        Client result = new Client();
+        result.setConnectTimeout( CONNECT_TIMEOUT );
+        result.setReadTimeout( READ_TIMEOUT );
+        result.setTryGzip( true );
+        return result;
+    }
+
+
+    /**
+     * Waits for a free slot of the host of the given URL.
+     */
+    protected Semaphore acquire( URL url ) throws IOException {
+        String host = url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+        Semaphore slots = hosts.computeIfAbsent( host, key -> new Semaphore( MAX_PER_HOST, true ) );
+        try {
+            if (!slots.tryAcquire( CONNECT_TIMEOUT, TimeUnit.SECONDS )) {
+                throw new IOException( "Too many concurrent requests to host: " + host );
+            }
+            return slots;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for host: " + host, e );
+        }
+    }
+
+
+    /**
+     * {@link HTTPClient} that holds a slot of the host until the response is
+     * disposed or its stream is closed.
+     */
+    protected class Client
+            extends SimpleHttpClient {
+
+        @Override
+        public HTTPResponse get( URL url ) throws IOException {
+            Semaphore slots = acquire( url );
+            try {
+                return new SlotResponse( super.get( url ), slots );
+            }
+            catch (IOException | RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public HTTPResponse post( URL url, InputStream postContent, String postContentType ) throws IOException {
+            Semaphore slots = acquire( url );
+            try {
+                return new SlotResponse( super.post( url, postContent, postContentType ), slots );
+            }
+            catch (IOException | RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * {@link HTTPResponse} that releases the slot of the host once, when it is
+     * disposed or when its stream is closed.
+     */
+    protected static class SlotResponse
+            implements HTTPResponse {
+
+        private HTTPResponse        delegate;
+
+        private Semaphore           slots;
+
+        private AtomicBoolean       released = new AtomicBoolean();
+
+        private InputStream         in;
+
+        public SlotResponse( HTTPResponse delegate, Semaphore slots ) {
+            this.delegate = delegate;
+            this.slots = slots;
+        }
+
+        protected void release() {
+            if (released.compareAndSet( false, true )) {
+                slots.release();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            try {
+                delegate.dispose();
+            }
+            finally {
+                release();
+            }
+        }
+
+        @Override
+        public synchronized InputStream getResponseStream() throws IOException {
+            if (in == null) {
+                in = new FilterInputStream( delegate.getResponseStream() ) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            release();
+                        }
+                    }
+                };
+            }
+            return in;
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getResponseHeader( String headerName ) {
+            return delegate.getResponseHeader( headerName );
+        }
+
+        @Override
+        public String getResponseCharset() {
+            return delegate.getResponseCharset();
+        }
+    }
+
+}
@@ -19,6 +19,18 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
 import org.geotools.data.DataAccess;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.wms.WebMapServer;
@@ -52,6 +64,7 @@ import org.polymap.core.runtime.UIJob;
 import org.polymap.core.runtime.UIThreadExecutor;
 import org.polymap.core.runtime.config.Config2;
 import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.security.SecurityContext;
 import org.polymap.core.ui.UIUtils;
 
 import org.polymap.rhei.batik.dashboard.DashletSite;
@@ -62,6 +75,7 @@ import org.polymap.rhei.batik.toolkit.MinWidthConstraint;
 import org.polymap.p4.P4Panel;
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.data.P4PipelineBuilder;
+import org.polymap.p4.map.RenderScheduler;
 import org.polymap.rap.openlayers.base.OlFeature;
 import org.polymap.rap.openlayers.control.MousePositionControl;
 import org.polymap.rap.openlayers.control.ScaleLineControl;
@@ -278,12 +292,31 @@ public class PreviewMapDashlet
         FeatureSource fs = ds.getFeatureSource( new NameImpl( resInfo.getName() ) );
         
         // WMS server
+        String user = SecurityContext.instance().getUser().getName();
         SimpleWmsServer wms = new SimpleWmsServer() {
             @Override
             protected String[] layerNames() {
                 return new String[] {resInfo.getName()};
             }
             @Override
+            protected void service( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+                try {
+                    // render into a buffer while holding the slot; a slow client must not hold it
+                    BufferedResponse buffered = RenderScheduler.instance().execute( user, () -> {
+                        BufferedResponse result = new BufferedResponse( resp );
+                        super.service( req, result );
+                        return result;
+                    });
+                    buffered.writeTo( resp );
+                }
+                catch (ServletException|IOException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new ServletException( e );
+                }
+            }
+            @Override
             protected Pipeline createPipeline( String layerName ) {
                 try {
                     DataSourceDescriptor dsd = new DataSourceDescriptor().service.put( ds ).resourceName.put( layerName );
@@ -321,4 +354,67 @@ public class PreviewMapDashlet
         return fs.getBounds();
     }    
 
+
+
+    /**
+     * Collects the body of a response in memory, so that it can be written after
+     * the render slot was released. Headers are set on the wrapped response.
+     */
+    protected static class BufferedResponse
+            extends HttpServletResponseWrapper {
+
+        private ByteArrayOutputStream   buf = new ByteArrayOutputStream( 32*1024 );
+
+        private PrintWriter             writer;
+
+        public BufferedResponse( HttpServletResponse resp ) {
+            super( resp );
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            return new ServletOutputStream() {
+                @Override
+                public void write( int b ) throws IOException {
+                    buf.write( b );
+                }
+                @Override
+                public void write( byte[] b, int off, int len ) throws IOException {
+                    buf.write( b, off, len );
+                }
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+                @Override
+                public void setWriteListener( WriteListener listener ) {
+                    throw new UnsupportedOperationException( "Buffered response is blocking." );
+                }
+            };
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter( new OutputStreamWriter( buf, getCharacterEncoding() ) );
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        public void writeTo( HttpServletResponse resp ) throws IOException {
+            flushBuffer();
+            if (!resp.isCommitted()) {
+                resp.setContentLength( buf.size() );
+                buf.writeTo( resp.getOutputStream() );
+            }
+        }
+    }
+
 }
@@ -0,0 +1,114 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.PropertyDescriptor;
+import org.opengis.filter.Filter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.AttributeIndexes.Indexed;
+
+/**
+ * Builds the fulltext index of the text properties of the resource of a layer in
+ * the background. Just the text properties of the features are read, once.
+ * Resources without features get no index.
+ *
+ * @author Falko Bräutigam
+ */
+public class AttributeIndexJob
+        extends ResourceCacheJob<Indexed> {
+
+    private static final Log log = LogFactory.getLog( AttributeIndexJob.class );
+
+
+    protected AttributeIndexJob( AttributeIndexes target, String layerId, String key ) {
+        super( "Indexing attributes", target, layerId, key );
+    }
+
+
+    @Override
+    protected Indexed build( ILayer layer, IProgressMonitor monitor ) throws Exception {
+        Timer timer = new Timer();
+        Indexed result = new Indexed();
+        DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor ).orElse( null );
+        if (dsd == null || !(dsd.service.get() instanceof DataAccess)) {
+            log.info( "No features: " + layer.label.get() );
+            return result;
+        }
+        FeatureSource fs = ((DataAccess)dsd.service.get()).getFeatureSource( new NameImpl( dsd.resourceName.get() ) );
+        sourceTypeName = fs.getSchema().getName().getLocalPart();
+        result.sourceTypeName = sourceTypeName;
+
+        List<String> propNames = new ArrayList();
+        for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
+            if (AttributeIndexes.isText( prop )) {
+                result.fields.add( prop.getName().getLocalPart() );
+                propNames.add( prop.getName().getLocalPart() );
+            }
+        }
+        ((AttributeIndexes)target).create( key, result );
+
+        Query query = new Query( sourceTypeName, Filter.INCLUDE, propNames.toArray( new String[propNames.size()] ) );
+        int total = fs.getCount( Query.ALL );
+        monitor.beginTask( getName() + ": " + layer.label.get(), total > 0 ? total : IProgressMonitor.UNKNOWN );
+        int count = 0;
+        try (
+            Updater updater = result.index.prepareUpdate();
+            FeatureIterator<Feature> it = fs.getFeatures( query ).features();
+        ){
+            for (; it.hasNext(); count++) {
+                if (monitor.isCanceled()) {
+                    break;
+                }
+                updater.store( AttributeIndexes.document( it.next() ), false );
+                if (count % 10000 == 0) {
+                    monitor.worked( 10000 );
+                }
+            }
+            updater.apply();
+        }
+        catch (Exception e) {
+            result.dispose();
+            throw e;
+        }
+        if (monitor.isCanceled()) {
+            result.dispose();
+            return null;
+        }
+        log.info( "Indexed " + count + " features of " + layer.label.get() + ": " + timer.elapsedTime() + "ms" );
+        return result;
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.polymap.core.data.DataPlugin.ff;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotools.data.BatchFeatureEvent;
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureIterator;
+import org.json.JSONObject;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.PropertyDescriptor;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.rhei.fulltext.FulltextIndex;
+import org.polymap.rhei.fulltext.store.lucene.LuceneFulltextIndex;
+import org.polymap.rhei.fulltext.update.UpdateableFulltextIndex.Updater;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * Fulltext indexes of the text properties of the features of the layers, used
+ * to search the features of a layer without scanning them all.
+ * <p/>
+ * An index is built by an {@link AttributeIndexJob} in the background the first
+ * time it is searched. Afterwards features that are committed are updated in the
+ * index, if the commit names the changed features; otherwise the index is
+ * rebuilt. Indexes are {@link LuceneFulltextIndex}es, stored next to the local
+ * features ({@link P4Plugin#featureStoreDir()}); see {@link ResourceCache}.
+ * <p/>
+ * Every build gets its own directory. An index that is outdated is closed and
+ * deleted when the last search or update that uses it is done.
+ *
+ * @author Falko Bräutigam
+ */
+public class AttributeIndexes
+        extends ResourceCache<AttributeIndexes.Indexed> {
+
+    private static final Log log = LogFactory.getLog( AttributeIndexes.class );
+
+    /**
+     * Set system property <code>org.polymap.p4.data.attributeIndex=false</code>
+     * to disable the indexes.
+     */
+    public static final boolean     ENABLED = !"false".equalsIgnoreCase( System.getProperty( "org.polymap.p4.data.attributeIndex" ) );
+
+    /**
+     * The max number of features found by {@link #search(ILayer, String)}. More
+     * results are not searched in the index.
+     */
+    public static final int         MAX_RESULTS = Integer.getInteger( "org.polymap.p4.data.attributeIndex.maxResults", 100000 );
+
+    private static AttributeIndexes instance;
+
+    /**
+     * The instance of this JVM.
+     */
+    public static synchronized AttributeIndexes instance() {
+        if (instance == null) {
+            instance = new AttributeIndexes( new File( P4Plugin.featureStoreDir().getParentFile(), "attribute-indexes" ) );
+        }
+        return instance;
+    }
+
+
+    /**
+     * The index of one resource. Counts the searches and updates that use the
+     * index, so that it is closed when the last one is done.
+     */
+    protected static class Indexed {
+
+        public String                   sourceTypeName;
+
+        /** The names of the indexed text properties. */
+        public List<String>             fields = new ArrayList();
+
+        /** The directory of the {@link #index}, or null if there is no index. */
+        public File                     dir;
+
+        /** The index, or null if the resource has no features. */
+        public LuceneFulltextIndex      index;
+
+        private int                     users;
+
+        private boolean                 disposed;
+
+        /**
+         * Starts using the index.
+         *
+         * @return False if the index is disposed and must not be used.
+         */
+        public synchronized boolean acquire() {
+            if (disposed || index == null) {
+                return false;
+            }
+            users ++;
+            return true;
+        }
+
+        public synchronized void release() {
+            if (--users == 0 && disposed) {
+                close();
+            }
+        }
+
+        /**
+         * Closes and deletes the index as soon as it is not used anymore.
+         */
+        public synchronized void dispose() {
+            disposed = true;
+            if (users == 0) {
+                close();
+            }
+        }
+
+        protected void close() {
+            if (index != null) {
+                index.close();
+            }
+            if (dir != null) {
+                FileUtils.deleteQuietly( dir );
+            }
+        }
+    }
+
+
+    // instance *******************************************
+
+    protected AttributeIndexes( File dir ) {
+        super( dir );
+    }
+
+
+    /**
+     * Searches the text properties of the features of the given layer. The
+     * words of the query must be found in any property; the wildcards * and ?
+     * are allowed. Starts building the index in the background if it is not yet
+     * built.
+     *
+     * @return The ids of the found features, or {@link Optional#empty()} if the
+     *         index is not yet built, or if more than {@link #MAX_RESULTS}
+     *         features are found. The caller has to query the features then.
+     */
+    public Optional<Set<String>> search( ILayer layer, String query ) throws Exception {
+        String key = key( layer );
+        Indexed indexed = entry( key, () -> new AttributeIndexJob( this, (String)layer.id(), key ) ).orElse( null );
+        if (indexed == null || !indexed.acquire()) {
+            return Optional.empty();
+        }
+        try {
+            Set<String> result = new HashSet( 256 );
+            String luceneQuery = luceneQuery( query, indexed.fields );
+            if (!luceneQuery.isEmpty()) {
+                for (JSONObject found : indexed.index.search( luceneQuery, MAX_RESULTS + 1 )) {
+                    result.add( found.getString( FulltextIndex.FIELD_ID ) );
+                }
+            }
+            if (result.size() > MAX_RESULTS) {
+                log.info( "More than " + MAX_RESULTS + " results: " + query );
+                return Optional.empty();
+            }
+            return Optional.of( result );
+        }
+        finally {
+            indexed.release();
+        }
+    }
+
+
+    /**
+     * Builds a Lucene query that requires all words of the given query, each in
+     * any of the given fields.
+     */
+    protected static String luceneQuery( String query, Iterable<String> fields ) {
+        StringBuilder result = new StringBuilder( 256 );
+        for (String word : StringUtils.split( query.toLowerCase() )) {
+            List<String> terms = new ArrayList();
+            for (String field : fields) {
+                terms.add( escape( field ) + ":" + escape( word ) );
+            }
+            if (!terms.isEmpty()) {
+                result.append( result.length() > 0 ? " " : "" )
+                        .append( "+(" ).append( String.join( " ", terms ) ).append( ")" );
+            }
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Escapes the special characters of the Lucene query syntax, except the
+     * wildcards.
+     */
+    protected static String escape( String s ) {
+        StringBuilder result = new StringBuilder( s.length() + 8 );
+        for (char c : s.toCharArray()) {
+            if ("\\+-!():^[]\"{}~/&| ".indexOf( c ) >= 0) {
+                result.append( '\\' );
+            }
+            result.append( c );
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Marks a completely built index. Names the source type, the directory of
+     * the index and the indexed fields, one per line.
+     */
+    protected File completeFile( String key ) {
+        return new File( dir, key + ".complete" );
+    }
+
+
+    /**
+     * Creates a new, empty index for the given key, in a new directory. Called
+     * by the {@link AttributeIndexJob} before building.
+     */
+    protected void create( String key, Indexed indexed ) throws Exception {
+        indexed.dir = new File( dir, key + "." + System.currentTimeMillis() );
+        indexed.index = new LuceneFulltextIndex( indexed.dir );
+    }
+
+
+    @Override
+    protected void store( String key, Indexed indexed ) throws IOException {
+        List<String> lines = new ArrayList();
+        lines.add( StringUtils.defaultString( indexed.sourceTypeName ) );
+        lines.add( indexed.dir != null ? indexed.dir.getName() : "" );
+        lines.addAll( indexed.fields );
+        FileUtils.writeLines( completeFile( key ), UTF_8.name(), lines );
+    }
+
+
+    @Override
+    protected Optional<Indexed> load( String key ) {
+        File f = completeFile( key );
+        if (!f.exists()) {
+            return Optional.empty();
+        }
+        try {
+            Indexed result = new Indexed();
+            List<String> lines = FileUtils.readLines( f, UTF_8 );
+            result.sourceTypeName = lines.get( 0 );
+            if (!lines.get( 1 ).isEmpty()) {
+                result.dir = new File( dir, lines.get( 1 ) );
+                result.index = new LuceneFulltextIndex( result.dir );
+            }
+            result.fields.addAll( lines.subList( 2, lines.size() ) );
+            return Optional.of( result );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to load index: " + f, e );
+            return Optional.empty();
+        }
+    }
+
+
+    @Override
+    protected void delete( String key, Indexed indexed ) {
+        File f = completeFile( key );
+        if (indexed != null) {
+            indexed.dispose();
+        }
+        else if (f.exists()) {
+            try {
+                List<String> lines = FileUtils.readLines( f, UTF_8 );
+                if (lines.size() > 1 && !lines.get( 1 ).isEmpty()) {
+                    FileUtils.deleteQuietly( new File( dir, lines.get( 1 ) ) );
+                }
+            }
+            catch (IOException e) {
+                log.warn( "Unable to read: " + f, e );
+            }
+        }
+        f.delete();
+    }
+
+
+    @Override
+    protected void discard( Indexed indexed ) {
+        indexed.dispose();
+    }
+
+
+    /**
+     * The JSON document of the text properties of the given feature.
+     */
+    protected static JSONObject document( Feature feature ) {
+        JSONObject result = new JSONObject();
+        result.put( FulltextIndex.FIELD_ID, feature.getIdentifier().getID() );
+        for (Property prop : feature.getProperties()) {
+            if (isText( prop.getDescriptor() ) && prop.getValue() != null) {
+                result.put( prop.getName().getLocalPart(), prop.getValue() );
+            }
+        }
+        return result;
+    }
+
+
+    protected static boolean isText( PropertyDescriptor descriptor ) {
+        return descriptor != null && String.class.isAssignableFrom( descriptor.getType().getBinding() );
+    }
+
+
+    /**
+     * Updates the changed features in the loaded index, if the event names them.
+     */
+    @Override
+    protected boolean update( String key, Indexed indexed, FeatureEvent ev ) {
+        Set<String> fids = new HashSet( 64 );
+        if (ev.getFilter() instanceof Id) {
+            ((Id)ev.getFilter()).getIdentifiers().forEach( id -> fids.add( id.getID().toString() ) );
+            if (ev instanceof BatchFeatureEvent) {
+                ((BatchFeatureEvent)ev).getCreatedFeatureIds().forEach( id -> fids.add( id.getID() ) );
+            }
+        }
+        if (fids.isEmpty() || !indexed.acquire()) {
+            return false;
+        }
+        new UpdateJob( key, indexed, ev.getFeatureSource(), fids ).schedule();
+        return true;
+    }
+
+
+    /**
+     * Updates the committed features in an index. The index is
+     * {@link Indexed#acquire() acquired} by the creator of the job.
+     */
+    protected class UpdateJob
+            extends Job {
+
+        private String          key;
+
+        private Indexed         indexed;
+
+        private FeatureSource   fs;
+
+        private Set<String>     fids;
+
+        public UpdateJob( String key, Indexed indexed, FeatureSource fs, Set<String> fids ) {
+            super( "Updating attribute index" );
+            this.key = key;
+            this.indexed = indexed;
+            this.fs = fs;
+            this.fids = fids;
+            setSystem( true );
+        }
+
+        @Override
+        protected IStatus run( IProgressMonitor monitor ) {
+            Set<String> removed = new HashSet( fids );
+            Set<FeatureId> ids = new HashSet( fids.size() * 2 );
+            fids.forEach( fid -> ids.add( ff.featureId( fid ) ) );
+            try (Updater updater = indexed.index.prepareUpdate()) {
+                try (FeatureIterator<Feature> it = fs.getFeatures( ff.id( ids ) ).features()) {
+                    while (it.hasNext()) {
+                        Feature feature = it.next();
+                        updater.store( document( feature ), true );
+                        removed.remove( feature.getIdentifier().getID() );
+                    }
+                }
+                for (String fid : removed) {
+                    updater.remove( fid );
+                }
+                updater.apply();
+                return Status.OK_STATUS;
+            }
+            catch (Exception e) {
+                log.warn( "Updating attribute index failed, dropping it.", e );
+                drop( key );
+                return Status.OK_STATUS;
+            }
+            finally {
+                indexed.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import java.io.IOException;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.store.ContentDataStore;
+import org.geotools.data.store.ContentEntry;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.GeometryClipper;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Read-only view of a {@link DataStore} that clips the geometries of the
+ * features to the bounding box of the query filter. A renderer asks for the
+ * features of the bounding box of a tile; clipping huge polygons and lines to
+ * this box before they are styled and rendered saves most of the work of the
+ * renderer for low-zoom tiles and for big geometries.
+ *
+ * @see GeneralizedLevels
+ * @author Falko Bräutigam
+ */
+public class ClippingDataStore
+        extends ContentDataStore {
+
+    /**
+     * The clip box is this fraction of its size bigger than the bounds of the
+     * query, so that the borders created by clipping are not visible.
+     */
+    public static final double  CLIP_BUFFER = 0.05;
+
+    private DataStore           delegate;
+
+
+    public ClippingDataStore( DataStore delegate ) {
+        this.delegate = delegate;
+    }
+
+
+    @Override
+    protected List<Name> createTypeNames() throws IOException {
+        return delegate.getNames();
+    }
+
+
+    @Override
+    protected ContentFeatureSource createFeatureSource( ContentEntry entry ) throws IOException {
+        return new ClippingFeatureSource( entry, delegate.getFeatureSource( entry.getName() ) );
+    }
+
+
+    /**
+     * The clip box of the given query, or null if the query does not restrict
+     * the bounds.
+     */
+    protected static Envelope clipBox( Query query ) {
+        Envelope result = (Envelope)query.getFilter().accept( ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null );
+        if (result == null || result.isNull() || Double.isInfinite( result.getWidth() )
+                || Double.isInfinite( result.getHeight() )) {
+            return null;
+        }
+        result = new Envelope( result );
+        result.expandBy( result.getWidth() * CLIP_BUFFER, result.getHeight() * CLIP_BUFFER );
+        return result;
+    }
+
+
+    /**
+     *
+     */
+    protected static class ClippingFeatureSource
+            extends ContentFeatureSource {
+
+        private SimpleFeatureSource     delegate;
+
+        public ClippingFeatureSource( ContentEntry entry, SimpleFeatureSource delegate ) {
+            super( entry, Query.ALL );
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected SimpleFeatureType buildFeatureType() throws IOException {
+            return delegate.getSchema();
+        }
+
+        @Override
+        protected ReferencedEnvelope getBoundsInternal( Query query ) throws IOException {
+            return delegate.getBounds( new Query( delegate.getSchema().getTypeName(), query.getFilter() ) );
+        }
+
+        @Override
+        protected int getCountInternal( Query query ) throws IOException {
+            return delegate.getCount( new Query( delegate.getSchema().getTypeName(), query.getFilter() ) );
+        }
+
+        @Override
+        protected boolean canFilter() {
+            return true;
+        }
+
+        @Override
+        protected FeatureReader<SimpleFeatureType,SimpleFeature> getReaderInternal( Query query ) throws IOException {
+            // sorting, paging and retyping are done by ContentFeatureSource
+            Query delegateQuery = new Query( delegate.getSchema().getTypeName(), query.getFilter() );
+            return new ClippingReader( getSchema(), delegate.getFeatures( delegateQuery ).features(), clipBox( query ) );
+        }
+    }
+
+
+    /**
+     * Clips the geometries of the features of the delegate; features that are
+     * completely outside the clip box are skipped.
+     */
+    protected static class ClippingReader
+            implements FeatureReader<SimpleFeatureType,SimpleFeature> {
+
+        private SimpleFeatureType       schema;
+
+        private SimpleFeatureIterator   delegate;
+
+        private Envelope                clipBox;
+
+        private GeometryClipper         clipper;
+
+        private SimpleFeature           next;
+
+        public ClippingReader( SimpleFeatureType schema, SimpleFeatureIterator delegate, Envelope clipBox ) {
+            this.schema = schema;
+            this.delegate = delegate;
+            this.clipBox = clipBox;
+            this.clipper = clipBox != null ? new GeometryClipper( clipBox ) : null;
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return schema;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            while (next == null && delegate.hasNext()) {
+                SimpleFeature feature = delegate.next();
+                Geometry geom = (Geometry)feature.getDefaultGeometry();
+                if (clipper == null || geom == null || clipBox.contains( geom.getEnvelopeInternal() )) {
+                    next = feature;
+                }
+                else {
+                    Geometry clipped = clipper.clip( geom, true );
+                    if (clipped != null && !clipped.isEmpty()) {
+                        // don't modify the feature of the delegate
+                        next = SimpleFeatureBuilder.build( schema, feature.getAttributes(), feature.getID() );
+                        next.setDefaultGeometry( clipped );
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public SimpleFeature next() throws IOException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+}
@@ -0,0 +1,546 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Statistics of the features of a resource: count, bounds and a summary of
+ * every attribute. The statistics are collected in one pass over the features
+ * via {@link #add()}, {@link #addBounds(Envelope)} and
+ * {@link AttributeStatistics#add(Object)}, in bounded memory no matter how many
+ * features there are. Distinct values and histograms are therefore estimated
+ * from sketches:
+ * <ul>
+ * <li>{@link AttributeStatistics#distinct()}: HyperLogLog, exact as long as
+ * there are no more than {@link #TOP_VALUES} distinct values</li>
+ * <li>{@link AttributeStatistics#topValues()}: the most frequent values
+ * (Misra-Gries)</li>
+ * <li>{@link AttributeStatistics#histogram(int)}: from a uniform sample of
+ * {@link #SAMPLE_SIZE} numbers</li>
+ * </ul>
+ * Statistics are stored via {@link #write(DataOutput)}. Values of attributes are
+ * written with their type if they are strings, numbers, booleans or dates;
+ * other values are written as strings.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureStatistics {
+
+    /** The version of the format of {@link #write(DataOutput)}. */
+    public static final int     FORMAT = 1;
+
+    /** The number of sampled values of numeric attributes. */
+    public static final int     SAMPLE_SIZE = 10000;
+
+    /** The number of most frequent values kept per attribute. */
+    public static final int     TOP_VALUES = 100;
+
+    /** The number of index bits of the HyperLogLog sketches. */
+    private static final int    HLL_BITS = 11;
+
+    public String               sourceTypeName;
+
+    /** The number of features. */
+    public long                 count;
+
+    /** The bounds of the geometries, or null. */
+    public Envelope             bounds;
+
+    /** The WKT of the CRS of the {@link #bounds}, or null. */
+    public String               crs;
+
+    private Map<String,AttributeStatistics> attributes = new LinkedHashMap();
+
+
+    /**
+     * Counts a feature.
+     */
+    public void add() {
+        count ++;
+    }
+
+
+    public void addBounds( Envelope envelope ) {
+        if (envelope != null && !envelope.isNull()) {
+            if (bounds == null) {
+                bounds = new Envelope( envelope );
+            }
+            else {
+                bounds.expandToInclude( envelope );
+            }
+        }
+    }
+
+
+    /**
+     * The statistics of the given attribute. Creates new statistics if the
+     * attribute was not seen before.
+     */
+    public AttributeStatistics attribute( String name ) {
+        return attributes.computeIfAbsent( name, key -> new AttributeStatistics( key ) );
+    }
+
+
+    public Optional<AttributeStatistics> attributeIfPresent( String name ) {
+        return Optional.ofNullable( attributes.get( name ) );
+    }
+
+
+    public Iterable<AttributeStatistics> attributes() {
+        return Collections.unmodifiableCollection( attributes.values() );
+    }
+
+
+    /**
+     * Writes these statistics in the format read by {@link #read(DataInput)}.
+     */
+    public void write( DataOutput out ) throws IOException {
+        out.writeInt( FORMAT );
+        writeString( out, sourceTypeName );
+        out.writeLong( count );
+        out.writeBoolean( bounds != null );
+        if (bounds != null) {
+            out.writeDouble( bounds.getMinX() );
+            out.writeDouble( bounds.getMaxX() );
+            out.writeDouble( bounds.getMinY() );
+            out.writeDouble( bounds.getMaxY() );
+        }
+        writeString( out, crs );
+        out.writeInt( attributes.size() );
+        for (AttributeStatistics attribute : attributes.values()) {
+            attribute.write( out );
+        }
+    }
+
+
+    /**
+     * Reads statistics written by {@link #write(DataOutput)}.
+     *
+     * @throws IOException If the statistics were written in another
+     *         {@link #FORMAT}.
+     */
+    public static FeatureStatistics read( DataInput in ) throws IOException {
+        int format = in.readInt();
+        if (format != FORMAT) {
+            throw new IOException( "Unknown format: " + format );
+        }
+        FeatureStatistics result = new FeatureStatistics();
+        result.sourceTypeName = readString( in );
+        result.count = in.readLong();
+        if (in.readBoolean()) {
+            result.bounds = new Envelope( in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble() );
+        }
+        result.crs = readString( in );
+        for (int i=in.readInt(); i>0; i--) {
+            AttributeStatistics attribute = AttributeStatistics.read( in );
+            result.attributes.put( attribute.name, attribute );
+        }
+        return result;
+    }
+
+
+    /**
+     * Writes a string of any length, or null.
+     */
+    protected static void writeString( DataOutput out, String s ) throws IOException {
+        if (s == null) {
+            out.writeInt( -1 );
+        }
+        else {
+            byte[] bytes = s.getBytes( UTF_8 );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+    }
+
+
+    protected static String readString( DataInput in ) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, UTF_8 );
+    }
+
+
+    /**
+     * Writes a value of an attribute, or null, with its type.
+     */
+    protected static void writeValue( DataOutput out, Object value ) throws IOException {
+        if (value == null) {
+            out.writeByte( 'N' );
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte( 'Z' );
+            out.writeBoolean( (Boolean)value );
+        }
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte( 'I' );
+            out.writeInt( ((Number)value).intValue() );
+        }
+        else if (value instanceof Long) {
+            out.writeByte( 'J' );
+            out.writeLong( (Long)value );
+        }
+        else if (value instanceof Float) {
+            out.writeByte( 'F' );
+            out.writeFloat( (Float)value );
+        }
+        else if (value instanceof Double) {
+            out.writeByte( 'D' );
+            out.writeDouble( (Double)value );
+        }
+        else if (value instanceof BigDecimal) {
+            out.writeByte( 'B' );
+            writeString( out, value.toString() );
+        }
+        else if (value instanceof BigInteger) {
+            out.writeByte( 'G' );
+            writeString( out, value.toString() );
+        }
+        else if (value instanceof Date) {
+            out.writeByte( 'T' );
+            out.writeLong( ((Date)value).getTime() );
+        }
+        else {
+            out.writeByte( 'S' );
+            writeString( out, value.toString() );
+        }
+    }
+
+
+    protected static Object readValue( DataInput in ) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 'N': return null;
+            case 'Z': return in.readBoolean();
+            case 'I': return in.readInt();
+            case 'J': return in.readLong();
+            case 'F': return in.readFloat();
+            case 'D': return in.readDouble();
+            case 'B': return new BigDecimal( readString( in ) );
+            case 'G': return new BigInteger( readString( in ) );
+            case 'T': return new Date( in.readLong() );
+            case 'S': return readString( in );
+            default: throw new IOException( "Unknown value type: " + type );
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "FeatureStatistics[" + sourceTypeName + ", count=" + count + ", bounds=" + bounds + "]";
+    }
+
+
+    /**
+     * The statistics of one attribute.
+     */
+    public static class AttributeStatistics {
+
+        public String           name;
+
+        /** The number of values, not counting nulls. */
+        public long             count;
+
+        public long             nulls;
+
+        /** The least value, or null if values are not {@link Comparable}. */
+        public Comparable       min;
+
+        /** The greatest value, or null if values are not {@link Comparable}. */
+        public Comparable       max;
+
+        private byte[]          registers = new byte[1 << HLL_BITS];
+
+        /** Misra-Gries counters of the most frequent values. */
+        private Map<Object,Long> top = new LinkedHashMap();
+
+        /** False as soon as a counter of {@link #top} was dropped. */
+        private boolean         topExact = true;
+
+        private double[]        sample = new double[0];
+
+        /** The number of numeric values seen by the sampler. */
+        private long            sampled;
+
+        private Random          random;
+
+
+        protected AttributeStatistics( String name ) {
+            this.name = name;
+        }
+
+
+        public void add( Object value ) {
+            if (value == null) {
+                nulls ++;
+                return;
+            }
+            count ++;
+            if (value instanceof Comparable) {
+                try {
+                    min = min == null || min.compareTo( value ) > 0 ? (Comparable)value : min;
+                    max = max == null || max.compareTo( value ) < 0 ? (Comparable)value : max;
+                }
+                catch (ClassCastException e) {
+                    // mixed types
+                }
+            }
+            addToSketch( value );
+            addToTop( value );
+            if (value instanceof Number) {
+                addToSample( ((Number)value).doubleValue() );
+            }
+        }
+
+
+        /**
+         * The estimated number of distinct values.
+         */
+        public long distinct() {
+            if (topExact) {
+                return top.size();
+            }
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1d / (1L << register);
+                zeros += register == 0 ? 1 : 0;
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                estimate = m * Math.log( (double)m / zeros );
+            }
+            return Math.round( estimate );
+        }
+
+
+        /**
+         * The most frequent values and their counts, most frequent first. The
+         * counts are exact if {@link #isTopExact()}, otherwise they are lower
+         * bounds and less frequent values may be missing.
+         */
+        public List<Map.Entry<Object,Long>> topValues() {
+            List<Map.Entry<Object,Long>> result = new ArrayList( top.entrySet() );
+            result.sort( (e1, e2) -> Long.compare( e2.getValue(), e1.getValue() ) );
+            return result;
+        }
+
+
+        /**
+         * True if {@link #topValues()} are all values with exact counts.
+         */
+        public boolean isTopExact() {
+            return topExact;
+        }
+
+
+        /**
+         * Histogram of the numeric values between {@link #min} and {@link #max}
+         * in bins of equal width. The counts are estimated from a sample and
+         * scaled to {@link #count}.
+         *
+         * @return The counts of the bins, or an empty array if the values are not
+         *         numeric.
+         */
+        public long[] histogram( int bins ) {
+            int size = (int)Math.min( sampled, sample.length );
+            if (size == 0 || !(min instanceof Number) || !(max instanceof Number)) {
+                return new long[0];
+            }
+            double low = ((Number)min).doubleValue();
+            double width = (((Number)max).doubleValue() - low) / bins;
+            double[] counts = new double[bins];
+            for (int i=0; i<size; i++) {
+                int bin = width > 0 ? (int)((sample[i] - low) / width) : 0;
+                counts[Math.max( 0, Math.min( bins - 1, bin ) )] ++;
+            }
+            long[] result = new long[bins];
+            for (int i=0; i<bins; i++) {
+                result[i] = Math.round( counts[i] * count / size );
+            }
+            return result;
+        }
+
+
+        /**
+         * The estimated quantile of the numeric values.
+         *
+         * @param q The quantile between 0 and 1.
+         * @return The value, or {@link Double#NaN} if the values are not numeric.
+         */
+        public double quantile( double q ) {
+            int size = (int)Math.min( sampled, sample.length );
+            if (size == 0) {
+                return Double.NaN;
+            }
+            double[] sorted = Arrays.copyOf( sample, size );
+            Arrays.sort( sorted );
+            return sorted[(int)Math.min( size - 1, Math.floor( q * size ) )];
+        }
+
+
+        protected void addToSketch( Object value ) {
+            long hash = hash( value.toString() );
+            int index = (int)(hash >>> (64 - HLL_BITS));
+            int rank = Math.min( Long.numberOfLeadingZeros( hash << HLL_BITS ) + 1, 64 - HLL_BITS + 1 );
+            if (registers[index] < rank) {
+                registers[index] = (byte)rank;
+            }
+        }
+
+
+        protected void addToTop( Object value ) {
+            Long counter = top.get( value );
+            if (counter != null) {
+                top.put( value, counter + 1 );
+            }
+            else if (top.size() < TOP_VALUES) {
+                top.put( value, 1L );
+            }
+            else {
+                topExact = false;
+                for (Iterator<Map.Entry<Object,Long>> it=top.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Object,Long> entry = it.next();
+                    if (entry.getValue() <= 1) {
+                        it.remove();
+                    }
+                    else {
+                        entry.setValue( entry.getValue() - 1 );
+                    }
+                }
+            }
+        }
+
+
+        /**
+         * Reservoir sampling.
+         */
+        protected void addToSample( double value ) {
+            if (sampled < SAMPLE_SIZE) {
+                if (sample.length <= sampled) {
+                    sample = Arrays.copyOf( sample, (int)Math.min( SAMPLE_SIZE, Math.max( 64, sampled * 2 ) ) );
+                }
+                sample[(int)sampled] = value;
+            }
+            else {
+                random = random != null ? random : new Random( 0 );
+                long index = (long)(random.nextDouble() * (sampled + 1));
+                if (index < SAMPLE_SIZE) {
+                    sample[(int)index] = value;
+                }
+            }
+            sampled ++;
+        }
+
+
+        /**
+         * 64 bit FNV-1a, finalized with the mixer of MurmurHash3.
+         */
+        protected static long hash( String s ) {
+            long h = 0xcbf29ce484222325L;
+            for (int i=0; i<s.length(); i++) {
+                h ^= s.charAt( i );
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+
+        /**
+         * Writes these statistics; part of {@link FeatureStatistics#write(DataOutput)}.
+         */
+        protected void write( DataOutput out ) throws IOException {
+            writeString( out, name );
+            out.writeLong( count );
+            out.writeLong( nulls );
+            writeValue( out, min );
+            writeValue( out, max );
+            out.write( registers );
+            out.writeBoolean( topExact );
+            out.writeInt( top.size() );
+            for (Map.Entry<Object,Long> entry : top.entrySet()) {
+                writeValue( out, entry.getKey() );
+                out.writeLong( entry.getValue() );
+            }
+            int size = (int)Math.min( sampled, sample.length );
+            out.writeLong( sampled );
+            out.writeInt( size );
+            for (int i=0; i<size; i++) {
+                out.writeDouble( sample[i] );
+            }
+        }
+
+
+        protected static AttributeStatistics read( DataInput in ) throws IOException {
+            AttributeStatistics result = new AttributeStatistics( readString( in ) );
+            result.count = in.readLong();
+            result.nulls = in.readLong();
+            Object min = readValue( in );
+            Object max = readValue( in );
+            result.min = min instanceof Comparable ? (Comparable)min : null;
+            result.max = max instanceof Comparable ? (Comparable)max : null;
+            in.readFully( result.registers );
+            result.topExact = in.readBoolean();
+            for (int i=in.readInt(); i>0; i--) {
+                Object value = readValue( in );
+                result.top.put( value, in.readLong() );
+            }
+            result.sampled = in.readLong();
+            result.sample = new double[in.readInt()];
+            for (int i=0; i<result.sample.length; i++) {
+                result.sample[i] = in.readDouble();
+            }
+            return result;
+        }
+
+
+        @Override
+        public String toString() {
+            return "AttributeStatistics[" + name + ", count=" + count + ", nulls=" + nulls
+                    + ", min=" + min + ", max=" + max + ", distinct=" + distinct() + "]";
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.io.IOException;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Puntal;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.GeneralizedLevels.Level;
+import org.polymap.p4.data.GeneralizedLevels.Levels;
+
+/**
+ * Builds the {@link GeneralizedLevels} of the resource of a layer in the
+ * background. The features of the resource are read once; every feature is
+ * simplified for all levels, each level starting from the result of the next
+ * finer one. Features are written in batches of {@link #BATCH_SIZE}.
+ *
+ * @author Falko Bräutigam
+ */
+public class GeneralizeJob
+        extends ResourceCacheJob<Levels> {
+
+    private static final Log log = LogFactory.getLog( GeneralizeJob.class );
+
+    public static final int     BATCH_SIZE = 5000;
+
+    private GeneralizedLevels   generalized;
+
+    private int                 count;
+
+
+    protected GeneralizeJob( GeneralizedLevels target, String layerId, String key, int count ) {
+        super( "Generalizing features", target, layerId, key );
+        this.generalized = target;
+        this.count = count;
+    }
+
+
+    @Override
+    protected Levels build( ILayer layer, IProgressMonitor monitor ) throws Exception {
+        Timer timer = new Timer();
+        Levels result = new Levels();
+
+        DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor ).orElse( null );
+        if (dsd == null || !(dsd.service.get() instanceof DataAccess)) {
+            log.info( "No features: " + layer.label.get() );
+            return result;
+        }
+        FeatureSource fs = ((DataAccess)dsd.service.get()).getFeatureSource( new NameImpl( dsd.resourceName.get() ) );
+        SimpleFeatureType schema = (SimpleFeatureType)fs.getSchema();
+        GeometryDescriptor geom = schema.getGeometryDescriptor();
+        sourceTypeName = schema.getTypeName();
+        result.sourceTypeName = sourceTypeName;
+        if (geom == null || Puntal.class.isAssignableFrom( geom.getType().getBinding() )) {
+            log.info( "No lines or polygons: " + layer.label.get() );
+            return result;
+        }
+        result.crs = geom.getCoordinateReferenceSystem();
+
+        // levels, in the slot that is not in use
+        result.slot = generalized.nextSlot( key );
+        ReferencedEnvelope bounds = fs.getBounds();
+        if (bounds == null) {
+            bounds = fs.getFeatures().getBounds();
+        }
+        List<Double> tolerances = GeneralizedLevels.tolerances( bounds, count );
+        List<FeatureStore> stores = new ArrayList();
+        List<SimpleFeatureType> types = new ArrayList();
+        for (int i=0; i<tolerances.size(); i++) {
+            String typeName = generalized.typeName( key, result.slot, i );
+            result.levels.add( new Level( tolerances.get( i ), typeName ) );
+            types.add( levelSchema( schema, typeName ) );
+            stores.add( (FeatureStore)generalized.store().getFeatureSource( typeName ) );
+        }
+
+        // features
+        int total = fs.getCount( Query.ALL );
+        monitor.beginTask( getName() + ": " + layer.label.get(), total > 0 ? total : IProgressMonitor.UNKNOWN );
+        List<List<SimpleFeature>> batches = new ArrayList();
+        stores.forEach( store -> batches.add( new ArrayList( BATCH_SIZE ) ) );
+        int featureCount = 0;
+        try (FeatureIterator<SimpleFeature> it = fs.getFeatures().features()) {
+            while (it.hasNext()) {
+                if (monitor.isCanceled()) {
+                    return null;
+                }
+                SimpleFeature feature = it.next();
+                Geometry simplified = (Geometry)feature.getDefaultGeometry();
+                for (int i=0; i<tolerances.size() && simplified != null; i++) {
+                    simplified = simplify( simplified, tolerances.get( i ) );
+                    if (simplified != null) {
+                        SimpleFeature copy = SimpleFeatureBuilder.build( types.get( i ), feature.getAttributes(), null );
+                        copy.setDefaultGeometry( simplified );
+                        batches.get( i ).add( copy );
+                    }
+                }
+                if (++featureCount % BATCH_SIZE == 0) {
+                    flush( stores, batches );
+                    monitor.worked( BATCH_SIZE );
+                }
+            }
+        }
+        flush( stores, batches );
+        log.info( "Generalized " + featureCount + " features of " + layer.label.get()
+                + " into " + result.levels.size() + " levels: " + timer.elapsedTime() + "ms" );
+        return result;
+    }
+
+
+    /**
+     * Simplifies the given geometry with the given tolerance.
+     *
+     * @return The simplified geometry, or null if the geometry is smaller than the
+     *         tolerance.
+     */
+    protected Geometry simplify( Geometry geom, double tolerance ) {
+        Envelope envelope = geom.getEnvelopeInternal();
+        if (envelope.getWidth() < tolerance && envelope.getHeight() < tolerance) {
+            return null;
+        }
+        Geometry result = TopologyPreservingSimplifier.simplify( geom, tolerance );
+        return result.isEmpty() ? null : result;
+    }
+
+
+    /**
+     * Creates the schema of a level. Existing features of the level are removed;
+     * the level is in the slot that is not in use, so no pipeline reads them.
+     */
+    protected SimpleFeatureType levelSchema( SimpleFeatureType schema, String typeName ) throws IOException {
+        if (Arrays.asList( generalized.store().getTypeNames() ).contains( typeName )) {
+            ((FeatureStore)generalized.store().getFeatureSource( typeName )).removeFeatures( Filter.INCLUDE );
+            return generalized.store().getSchema( typeName );
+        }
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.init( schema );
+        builder.setName( typeName );
+        builder.setNamespaceURI( (String)null );
+        SimpleFeatureType result = builder.buildFeatureType();
+        generalized.store().createSchema( result );
+        return generalized.store().getSchema( typeName );
+    }
+
+
+    protected void flush( List<FeatureStore> stores, List<List<SimpleFeature>> batches ) throws IOException {
+        for (int i=0; i<stores.size(); i++) {
+            if (!batches.get( i ).isEmpty()) {
+                stores.get( i ).addFeatures( DataUtilities.collection( batches.get( i ) ) );
+                batches.get( i ).clear();
+            }
+        }
+    }
+
+}
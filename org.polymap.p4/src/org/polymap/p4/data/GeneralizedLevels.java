@@ -0,0 +1,311 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.data.rs.RDataStore;
+import org.polymap.core.data.rs.lucene.LuceneQueryDialect;
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * Precomputed generalized (simplified) versions of the features of layers, used
+ * to render low-zoom tiles without reading and rendering the full resolution
+ * geometries.
+ * <p/>
+ * The geometries of every level are simplified with a tolerance that is
+ * {@link #LEVEL_FACTOR} times the tolerance of the next finer level. The coarsest
+ * level is good for rendering the entire data set into one tile of
+ * {@link #COARSEST_TILE_SIZE} pixels. Features smaller than the tolerance are
+ * dropped. The levels are stored in an {@link RDataStore} next to the local
+ * features ({@link P4Plugin#featureStoreDir()}), one feature type per level. They
+ * are built by a {@link GeneralizeJob} in the background the first time they are
+ * requested, and rebuilt after features of the resource have been committed; see
+ * {@link ResourceCache}.
+ * <p/>
+ * The levels of a resource have two slots of feature types. A rebuild writes
+ * into the slot that is not in use and switches over when it is complete, so
+ * pooled pipelines of the current levels are never read while features are
+ * written.
+ * <p/>
+ * {@link #level(ILayer, int, ReferencedEnvelope, int)} picks the coarsest level
+ * whose tolerance is below {@link #PIXEL_TOLERANCE} pixels at the scale of a
+ * request. The features of the level are read through a
+ * {@link ClippingDataStore}, which clips them to the bounds of the tile.
+ *
+ * @author Falko Bräutigam
+ */
+public class GeneralizedLevels
+        extends ResourceCache<GeneralizedLevels.Levels> {
+
+    private static final Log log = LogFactory.getLog( GeneralizedLevels.class );
+
+    /** The max generalization error that is acceptable, in pixels. */
+    public static final double      PIXEL_TOLERANCE = 0.5;
+
+    /** The tolerance of a level relative to the next finer level. */
+    public static final double      LEVEL_FACTOR = 4;
+
+    /** The size of the tile the coarsest level is made for. */
+    public static final int         COARSEST_TILE_SIZE = 256;
+
+    private static GeneralizedLevels instance;
+
+    /**
+     * The instance of this JVM. The store is opened on first access.
+     */
+    public static synchronized GeneralizedLevels instance() {
+        if (instance == null) {
+            instance = new GeneralizedLevels( new File( P4Plugin.featureStoreDir().getParentFile(), "features-generalized" ) );
+        }
+        return instance;
+    }
+
+
+    /**
+     * One generalization level of a resource.
+     */
+    public static class Level {
+
+        /** The tolerance of the simplification, in units of the data CRS. */
+        public final double         tolerance;
+
+        /** The name of the feature type of this level in the {@link GeneralizedLevels#store() store}. */
+        public final String         typeName;
+
+        protected Level( double tolerance, String typeName ) {
+            this.tolerance = tolerance;
+            this.typeName = typeName;
+        }
+
+        /**
+         * Connects a pipeline to the (clipped) features of this level.
+         */
+        public DataSourceDescriptor dsd() {
+            return new DataSourceDescriptor()
+                    .service.put( instance().clipping )
+                    .resourceName.put( typeName );
+        }
+
+        @Override
+        public String toString() {
+            return "Level[" + typeName + ", tolerance=" + tolerance + "]";
+        }
+    }
+
+
+    /**
+     * The levels of one resource, finest level first. Empty if the resource
+     * cannot be generalized (no features, points only).
+     */
+    protected static class Levels {
+
+        public String                       sourceTypeName;
+
+        public CoordinateReferenceSystem    crs;
+
+        /** The slot of the feature types of the levels, 0 or 1. */
+        public int                          slot;
+
+        public List<Level>                  levels = new ArrayList();
+    }
+
+
+    // instance *******************************************
+
+    private RDataStore              store;
+
+    private ClippingDataStore       clipping;
+
+    /** The slots of the last levels by {@link #key(ILayer, int)}. */
+    private Map<String,Integer>     slots = new ConcurrentHashMap();
+
+
+    protected GeneralizedLevels( File dir ) {
+        super( dir );
+        try {
+            LuceneRecordStore rs = new LuceneRecordStore( dir, false );
+            store = new RDataStore( rs, new LuceneQueryDialect() );
+            clipping = new ClippingDataStore( store );
+        }
+        catch (Exception e) {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    public RDataStore store() {
+        return store;
+    }
+
+
+    /**
+     * Returns the coarsest level of the given layer that can be used to render
+     * the given bounds into an image of the given width. Starts building the
+     * levels in the background if they are not yet built.
+     *
+     * @param layer
+     * @param count The number of levels.
+     * @param bounds The requested bounds.
+     * @param width The width of the requested image in pixels.
+     * @return The level, or {@link Optional#empty()} if the full resolution
+     *         features should be used.
+     */
+    public Optional<Level> level( ILayer layer, int count, ReferencedEnvelope bounds, int width ) {
+        String key = key( layer, count );
+        Levels levels = entry( key, () -> new GeneralizeJob( this, (String)layer.id(), key, count ) ).orElse( null );
+        if (levels == null || levels.levels.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            ReferencedEnvelope dataBounds = bounds.getCoordinateReferenceSystem() == null
+                    || CRS.equalsIgnoreMetadata( bounds.getCoordinateReferenceSystem(), levels.crs )
+                    ? bounds : bounds.transform( levels.crs, true );
+            double resolution = dataBounds.getWidth() / width;
+
+            Level result = null;
+            for (Level level : levels.levels) {
+                if (level.tolerance <= resolution * PIXEL_TOLERANCE) {
+                    result = level;
+                }
+            }
+            return Optional.ofNullable( result );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to transform bounds: " + e );
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * The key of the levels of the given layer. Layers of the same resource share
+     * their levels.
+     */
+    protected String key( ILayer layer, int count ) {
+        return Hashing.murmur3_128().newHasher()
+                .putString( StringUtils.defaultString( layer.resourceIdentifier.get() ), UTF_8 )
+                .putInt( count )
+                .hash().toString();
+    }
+
+
+    /**
+     * The name of the feature type of the given level in the given slot.
+     */
+    protected String typeName( String key, int slot, int level ) {
+        return "lod-" + key + "-" + slot + "-" + level;
+    }
+
+
+    /**
+     * The slot a new build of the levels is written to: the one that is not used
+     * by the last levels.
+     */
+    protected int nextSlot( String key ) {
+        return 1 - slots.getOrDefault( key, 1 );
+    }
+
+
+    protected File file( String key ) {
+        return new File( dir, key + ".properties" );
+    }
+
+
+    @Override
+    protected void store( String key, Levels levels ) throws IOException {
+        Properties props = new Properties();
+        props.setProperty( "sourceTypeName", StringUtils.defaultString( levels.sourceTypeName ) );
+        props.setProperty( "slot", String.valueOf( levels.slot ) );
+        if (levels.crs != null) {
+            props.setProperty( "crs", levels.crs.toWKT() );
+        }
+        props.setProperty( "tolerances", levels.levels.stream()
+                .map( level -> String.valueOf( level.tolerance ) )
+                .reduce( (s1, s2) -> s1 + "," + s2 ).orElse( "" ) );
+        try (OutputStream out = new FileOutputStream( file( key ) )) {
+            props.store( out, "Generalization levels" );
+        }
+        slots.put( key, levels.slot );
+    }
+
+
+    @Override
+    protected Optional<Levels> load( String key ) {
+        File f = file( key );
+        if (!f.exists()) {
+            return Optional.empty();
+        }
+        try (InputStream in = new FileInputStream( f )) {
+            Properties props = new Properties();
+            props.load( in );
+            Levels result = new Levels();
+            result.sourceTypeName = props.getProperty( "sourceTypeName" );
+            String wkt = props.getProperty( "crs" );
+            result.crs = wkt != null ? CRS.parseWKT( wkt ) : null;
+            result.slot = Integer.parseInt( props.getProperty( "slot", "0" ) );
+            String[] tolerances = StringUtils.split( props.getProperty( "tolerances", "" ), ',' );
+            for (int i=0; i<tolerances.length; i++) {
+                result.levels.add( new Level( Double.parseDouble( tolerances[i] ), typeName( key, result.slot, i ) ) );
+            }
+            slots.put( key, result.slot );
+            return Optional.of( result );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to load levels: " + f, e );
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * Deletes the properties of the levels. The feature types stay in the store
+     * and are overwritten by the next build of this slot.
+     */
+    @Override
+    protected void delete( String key, Levels levels ) {
+        file( key ).delete();
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * The {@link FeatureStatistics} of the resources of the layers, so that style
+ * editors, info panels and dashlets get counts, extents and value ranges
+ * without querying the features again.
+ * <p/>
+ * Statistics are computed by a {@link StatisticsJob} in one pass over the
+ * features, in the background the first time they are requested, and computed
+ * again after features of the resource have been committed. Statistics are
+ * stored in files next to the local features ({@link P4Plugin#featureStoreDir()})
+ * and kept in memory once loaded; see {@link ResourceCache}.
+ *
+ * @author Falko Bräutigam
+ */
+public class LayerStatistics
+        extends ResourceCache<FeatureStatistics> {
+
+    private static final Log log = LogFactory.getLog( LayerStatistics.class );
+
+    private static LayerStatistics instance;
+
+    /**
+     * The instance of this JVM.
+     */
+    public static synchronized LayerStatistics instance() {
+        if (instance == null) {
+            instance = new LayerStatistics( new File( P4Plugin.featureStoreDir().getParentFile(), "statistics" ) );
+        }
+        return instance;
+    }
+
+
+    // instance *******************************************
+
+    protected LayerStatistics( File dir ) {
+        super( dir );
+    }
+
+
+    /**
+     * Returns the statistics of the given layer. Starts computing the statistics
+     * in the background if they are not yet computed.
+     *
+     * @return The statistics, or {@link Optional#empty()} if the statistics are
+     *         not yet computed, or if the layer has no features.
+     */
+    public Optional<FeatureStatistics> statistics( ILayer layer ) {
+        String key = key( layer );
+        // no sourceTypeName: no features
+        return entry( key, () -> new StatisticsJob( this, (String)layer.id(), key ) )
+                .filter( stats -> stats.sourceTypeName != null );
+    }
+
+
+    /**
+     * True if the statistics of the given layer are being computed.
+     */
+    public boolean isComputing( ILayer layer ) {
+        return building.containsKey( key( layer ) );
+    }
+
+
+    protected File file( String key ) {
+        return new File( dir, key + ".stats" );
+    }
+
+
+    @Override
+    protected void store( String key, FeatureStatistics stats ) throws IOException {
+        try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                new GZIPOutputStream( new FileOutputStream( file( key ) ) ) ) )) {
+            stats.write( out );
+        }
+    }
+
+
+    @Override
+    protected Optional<FeatureStatistics> load( String key ) {
+        File f = file( key );
+        if (!f.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream(
+                new GZIPInputStream( new FileInputStream( f ) ) ) )) {
+            return Optional.of( FeatureStatistics.read( in ) );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to load statistics: " + f, e );
+            return Optional.empty();
+        }
+    }
+
+
+    @Override
+    protected void delete( String key, FeatureStatistics stats ) {
+        file( key ).delete();
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.data.pipeline.PipelineProcessor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.ILayer.ProcessorConfig;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+import org.polymap.core.style.model.FeatureStyleCommitedEvent;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * JVM wide pool of render/feature {@link Pipeline}s. Pipelines are keyed by layer
+ * id, usecase and the {@link #fingerprint(ILayer)} of the layer. A pipeline is
+ * created once per key and shared by all concurrent requests and users. It is
+ * re-created only if the fingerprint of the layer changes, that is, if its
+ * processor configs or its style have been modified.
+ *
+ * @author Falko Bräutigam
+ */
+public class PipelinePool {
+
+    private static final Log log = LogFactory.getLog( PipelinePool.class );
+
+    private static final PipelinePool   instance = new PipelinePool();
+
+    public static PipelinePool instance() {
+        return instance;
+    }
+
+
+    /**
+     * Creates a new {@link Pipeline} if the pool has no pipeline for the requested
+     * key.
+     */
+    @FunctionalInterface
+    public interface PipelineFactory {
+        public Pipeline newPipeline() throws Exception;
+    }
+
+
+    /**
+     * Computes the fingerprint of the given layer out of its resource, its
+     * {@link ILayer#processorConfigs} and the serialized style. The fingerprint
+     * changes whenever one of them is modified.
+     */
+    public static String fingerprint( ILayer layer ) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString( StringUtils.defaultString( layer.resourceIdentifier.get() ), UTF_8 );
+        for (ProcessorConfig config : layer.processorConfigs) {
+            hasher.putString( String.valueOf( config.type.get() ), UTF_8 );
+            config.params().entrySet().stream()
+                    .map( entry -> entry.getKey() + "=" + entry.getValue() )
+                    .sorted()
+                    .forEach( param -> hasher.putString( param, UTF_8 ) );
+        }
+        layer.styleIdentifier.opt()
+                .flatMap( styleId -> instance.styleHash( styleId ) )
+                .ifPresent( styleHash -> hasher.putString( styleHash, UTF_8 ) );
+        return hasher.hash().toString();
+    }
+
+
+    // instance *******************************************
+
+    /**
+     * Using {@link CompletableFuture} as value ensures that the (possibly long
+     * running) factory is executed at most once per key and outside the lock of
+     * the map.
+     */
+    private ConcurrentMap<String,CompletableFuture<Pipeline>> pipelines = new ConcurrentHashMap( 64 );
+
+    /** The versions of the styles, counting the commits since startup. */
+    private ConcurrentMap<String,Long>  styleVersions = new ConcurrentHashMap( 64 );
+
+    /**
+     * Hashes of the serialized styles by style id and version. Serializing a
+     * style is too expensive to be done for every tile.
+     */
+    private ConcurrentMap<String,String> styleHashes = new ConcurrentHashMap( 64 );
+
+
+    protected PipelinePool() {
+        EventManager.instance().subscribe( this, ifType( FeatureStyleCommitedEvent.class, ev -> true ) );
+    }
+
+
+    /**
+     * A style has been committed. Its hash is computed again on next
+     * {@link #fingerprint(ILayer)}.
+     */
+    @EventHandler
+    protected void onStyleCommit( FeatureStyleCommitedEvent ev ) {
+        String styleId = String.valueOf( ev.getSource().id() );
+        styleVersions.merge( styleId, 1L, Long::sum );
+        styleHashes.keySet().removeIf( key -> key.startsWith( styleId + "@" ) );
+    }
+
+
+    /**
+     * The hash of the current version of the serialized style.
+     *
+     * @return The hash, or {@link Optional#empty()} if there is no such style.
+     */
+    protected Optional<String> styleHash( String styleId ) {
+        String key = styleId + "@" + styleVersions.getOrDefault( styleId, 0L );
+        String result = styleHashes.computeIfAbsent( key, k -> {
+            try {
+                return P4Plugin.styleRepo().serializedFeatureStyle( styleId, String.class )
+                        .map( serialized -> Hashing.murmur3_128().hashString( serialized, UTF_8 ).toString() )
+                        .orElse( "" );
+            }
+            catch (Throwable e) {
+                log.warn( "Unable to serialize style: " + styleId, e );
+                return "";
+            }
+        });
+        return result.isEmpty() ? Optional.empty() : Optional.of( result );
+    }
+
+
+    /**
+     * Returns the pooled {@link Pipeline} for the given layer and usecase. A new
+     * pipeline is created, if there is no pipeline yet or if the
+     * {@link #fingerprint(ILayer)} of the layer has changed. Pipelines with another
+     * fingerprint for the same layer and usecase are removed from the pool.
+     *
+     * @param layer
+     * @param usecase
+     * @param factory Creates a new pipeline if necessary.
+     * @return The pooled pipeline.
+     */
+    public Pipeline get( ILayer layer, Class<? extends PipelineProcessor> usecase, PipelineFactory factory )
+            throws Exception {
+        return get( (String)layer.id(), usecase, fingerprint( layer ), factory );
+    }
+
+
+    /**
+     * Returns the pooled {@link Pipeline} for the given layer id, usecase and
+     * fingerprint.
+     */
+    public Pipeline get( String layerId, Class<? extends PipelineProcessor> usecase, String fingerprint,
+            PipelineFactory factory ) throws Exception {
+        String prefix = prefix( layerId, usecase );
+        String key = prefix + fingerprint;
+
+        CompletableFuture<Pipeline> created = new CompletableFuture();
+        CompletableFuture<Pipeline> pooled = pipelines.putIfAbsent( key, created );
+        if (pooled == null) {
+            pooled = created;
+            try {
+                log.info( "Creating pipeline: " + layerId + " (" + usecase.getSimpleName() + ")" );
+                created.complete( factory.newPipeline() );
+                // remove outdated pipelines of this layer/usecase
+                pipelines.keySet().removeIf( k -> k.startsWith( prefix ) && !k.equals( key ) );
+            }
+            catch (Exception e) {
+                pipelines.remove( key, created );
+                created.completeExceptionally( e );
+            }
+        }
+        try {
+            return pooled.get();
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible( e.getCause(), Exception.class );
+            throw e;
+        }
+    }
+
+
+    /**
+     * Removes all pipelines of the given layer from the pool. This includes the
+     * variants that are pooled under the layer id plus an "@" suffix, like the
+     * generalized level, pixel ratio and draft pipelines of the
+     * {@link org.polymap.p4.map.TileRenderer}.
+     */
+    public void invalidate( String layerId ) {
+        pipelines.keySet().removeIf( k -> k.startsWith( layerId + "|" ) || k.startsWith( layerId + "@" ) );
+    }
+
+
+    protected String prefix( String layerId, Class<? extends PipelineProcessor> usecase ) {
+        return layerId + "|" + usecase.getName() + "|";
+    }
+
+}
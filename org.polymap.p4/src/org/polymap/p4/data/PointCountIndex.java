@@ -0,0 +1,264 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Multi-resolution count index of points: a pyramid of square grids over the
+ * bounds of the data. Level 0 is one cell, every further level splits each cell
+ * into 2 x 2 cells. Every cell has the number of points in it and their centroid.
+ * <p/>
+ * Querying the cells of an area on a level that fits the resolution of a request
+ * costs the number of cells in the area, regardless of the number of points.
+ *
+ * @author Falko Bräutigam
+ */
+public class PointCountIndex {
+
+    /** The default number of levels; the finest level has 512 x 512 cells. */
+    public static final int     DEFAULT_LEVELS = 10;
+
+    /**
+     * One cell of the index.
+     */
+    public static class Cell {
+
+        /** The centroid of the points in the cell. */
+        public final double     x, y;
+
+        public final int        count;
+
+        public Cell( double x, double y, int count ) {
+            this.x = x;
+            this.y = y;
+            this.count = count;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private Envelope            bounds;
+
+    private double              side;
+
+    private int                 levelCount;
+
+    /** Count of points per cell, by level; rows bottom up. */
+    private int[][]             counts;
+
+    private double[][]          sumX, sumY;
+
+    private long                total;
+
+
+    /**
+     * Creates an empty index. Add points by {@link #add(double, double)} and then
+     * call {@link #complete()}.
+     *
+     * @param bounds The bounds of the points.
+     * @param levelCount The number of levels.
+     */
+    public PointCountIndex( Envelope bounds, int levelCount ) {
+        this.bounds = new Envelope( bounds );
+        this.side = Math.max( Math.max( bounds.getWidth(), bounds.getHeight() ), Double.MIN_NORMAL );
+        this.levelCount = levelCount;
+        this.counts = new int[levelCount][];
+        this.sumX = new double[levelCount][];
+        this.sumY = new double[levelCount][];
+        for (int level=0; level<levelCount; level++) {
+            int size = 1 << level;
+            counts[level] = new int[size * size];
+            sumX[level] = new double[size * size];
+            sumY[level] = new double[size * size];
+        }
+    }
+
+
+    public Envelope bounds() {
+        return bounds;
+    }
+
+    public int levelCount() {
+        return levelCount;
+    }
+
+    /**
+     * The total number of points.
+     */
+    public long total() {
+        return total;
+    }
+
+
+    /**
+     * The side of the cells of the given level, in units of the data.
+     */
+    public double cellSize( int level ) {
+        return side / (1 << level);
+    }
+
+
+    /**
+     * The coarsest level with cells not bigger than the given size.
+     *
+     * @return The level, or -1 if even the cells of the finest level are bigger.
+     */
+    public int level( double maxCellSize ) {
+        for (int level=0; level<levelCount; level++) {
+            if (cellSize( level ) <= maxCellSize) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Adds a point to the finest level. Points outside the bounds are added to
+     * the nearest cell.
+     */
+    public void add( double x, double y ) {
+        int finest = levelCount - 1;
+        int i = index( finest, column( finest, x ), row( finest, y ) );
+        counts[finest][i] ++;
+        sumX[finest][i] += x;
+        sumY[finest][i] += y;
+        total ++;
+    }
+
+
+    /**
+     * Computes the coarser levels out of the finest level.
+     */
+    public void complete() {
+        for (int level=levelCount-2; level>=0; level--) {
+            int size = 1 << level;
+            int[] c = counts[level], finer = counts[level + 1];
+            double[] sx = sumX[level], sy = sumY[level];
+            Arrays.fill( c, 0 );
+            Arrays.fill( sx, 0 );
+            Arrays.fill( sy, 0 );
+            for (int row=0; row<size*2; row++) {
+                for (int col=0; col<size*2; col++) {
+                    int fi = row * size * 2 + col;
+                    if (finer[fi] > 0) {
+                        int i = (row / 2) * size + col / 2;
+                        c[i] += finer[fi];
+                        sx[i] += sumX[level + 1][fi];
+                        sy[i] += sumY[level + 1][fi];
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Passes the non-empty cells of the given level that intersect the given
+     * area to the given consumer.
+     */
+    public void query( Envelope area, int level, Consumer<Cell> consumer ) {
+        int minCol = column( level, area.getMinX() ), maxCol = column( level, area.getMaxX() );
+        int minRow = row( level, area.getMinY() ), maxRow = row( level, area.getMaxY() );
+        if (area.getMaxX() < bounds.getMinX() || area.getMinX() > bounds.getMinX() + side
+                || area.getMaxY() < bounds.getMinY() || area.getMinY() > bounds.getMinY() + side) {
+            return;
+        }
+        int[] c = counts[level];
+        for (int row=minRow; row<=maxRow; row++) {
+            for (int col=minCol; col<=maxCol; col++) {
+                int i = index( level, col, row );
+                if (c[i] > 0) {
+                    consumer.accept( new Cell( sumX[level][i] / c[i], sumY[level][i] / c[i], c[i] ) );
+                }
+            }
+        }
+    }
+
+
+    protected int column( int level, double x ) {
+        int size = 1 << level;
+        return Math.max( 0, Math.min( size - 1, (int)Math.floor( (x - bounds.getMinX()) / side * size ) ) );
+    }
+
+
+    protected int row( int level, double y ) {
+        int size = 1 << level;
+        return Math.max( 0, Math.min( size - 1, (int)Math.floor( (y - bounds.getMinY()) / side * size ) ) );
+    }
+
+
+    protected int index( int level, int col, int row ) {
+        return row * (1 << level) + col;
+    }
+
+
+    /**
+     * Writes the non-empty cells of the finest level.
+     */
+    public void write( DataOutput out ) throws IOException {
+        out.writeDouble( bounds.getMinX() );
+        out.writeDouble( bounds.getMaxX() );
+        out.writeDouble( bounds.getMinY() );
+        out.writeDouble( bounds.getMaxY() );
+        out.writeInt( levelCount );
+        int finest = levelCount - 1;
+        int[] c = counts[finest];
+        int nonEmpty = 0;
+        for (int count : c) {
+            nonEmpty += count > 0 ? 1 : 0;
+        }
+        out.writeInt( nonEmpty );
+        for (int i=0; i<c.length; i++) {
+            if (c[i] > 0) {
+                out.writeInt( i );
+                out.writeInt( c[i] );
+                out.writeDouble( sumX[finest][i] );
+                out.writeDouble( sumY[finest][i] );
+            }
+        }
+    }
+
+
+    /**
+     * Reads an index written by {@link #write(DataOutput)}.
+     */
+    public static PointCountIndex read( DataInput in ) throws IOException {
+        double minX = in.readDouble(), maxX = in.readDouble();
+        double minY = in.readDouble(), maxY = in.readDouble();
+        PointCountIndex result = new PointCountIndex( new Envelope( minX, maxX, minY, maxY ), in.readInt() );
+        int finest = result.levelCount - 1;
+        int nonEmpty = in.readInt();
+        for (int n=0; n<nonEmpty; n++) {
+            int i = in.readInt();
+            result.counts[finest][i] = in.readInt();
+            result.sumX[finest][i] = in.readDouble();
+            result.sumY[finest][i] = in.readDouble();
+            result.total += result.counts[finest][i];
+        }
+        result.complete();
+        return result;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * The {@link PointCountIndex}es of the point layers, used to render aggregated
+ * points (clusters, hex bins, heatmap) at low zoom levels without reading the
+ * features.
+ * <p/>
+ * An index is built by a {@link PointIndexJob} in the background the first time
+ * it is requested, and rebuilt after features of the resource have been
+ * committed. Indexes are stored in files next to the local features
+ * ({@link P4Plugin#featureStoreDir()}); see {@link ResourceCache}.
+ *
+ * @author Falko Bräutigam
+ */
+public class PointCountIndexes
+        extends ResourceCache<PointCountIndexes.Indexed> {
+
+    private static final Log log = LogFactory.getLog( PointCountIndexes.class );
+
+    private static PointCountIndexes instance;
+
+    /**
+     * The instance of this JVM.
+     */
+    public static synchronized PointCountIndexes instance() {
+        if (instance == null) {
+            instance = new PointCountIndexes( new File( P4Plugin.featureStoreDir().getParentFile(), "point-indexes" ) );
+        }
+        return instance;
+    }
+
+
+    /**
+     * The index of one resource.
+     */
+    public static class Indexed {
+
+        public String                       sourceTypeName;
+
+        /** The CRS of the coordinates of the {@link #index}. */
+        public CoordinateReferenceSystem    crs;
+
+        /** The index, or null if the resource has no point features. */
+        public PointCountIndex              index;
+    }
+
+
+    // instance *******************************************
+
+    protected PointCountIndexes( File dir ) {
+        super( dir );
+    }
+
+
+    /**
+     * Returns the index of the given layer. Starts building the index in the
+     * background if it is not yet built.
+     *
+     * @return The index, or {@link Optional#empty()} if the index is not yet
+     *         built, or if the layer has no point features.
+     */
+    public Optional<Indexed> index( ILayer layer ) {
+        String key = key( layer );
+        return entry( key, () -> new PointIndexJob( this, (String)layer.id(), key ) )
+                .filter( indexed -> indexed.index != null );
+    }
+
+
+    protected File file( String key ) {
+        return new File( dir, key + ".idx" );
+    }
+
+
+    @Override
+    protected void store( String key, Indexed indexed ) throws IOException {
+        try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                new GZIPOutputStream( new FileOutputStream( file( key ) ) ) ) )) {
+            out.writeUTF( StringUtils.defaultString( indexed.sourceTypeName ) );
+            out.writeBoolean( indexed.index != null );
+            if (indexed.index != null) {
+                out.writeUTF( indexed.crs != null ? indexed.crs.toWKT() : "" );
+                indexed.index.write( out );
+            }
+        }
+    }
+
+
+    @Override
+    protected Optional<Indexed> load( String key ) {
+        File f = file( key );
+        if (!f.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream(
+                new GZIPInputStream( new FileInputStream( f ) ) ) )) {
+            Indexed result = new Indexed();
+            result.sourceTypeName = in.readUTF();
+            if (in.readBoolean()) {
+                String wkt = in.readUTF();
+                result.crs = !wkt.isEmpty() ? CRS.parseWKT( wkt ) : null;
+                result.index = PointCountIndex.read( in );
+            }
+            return Optional.of( result );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to load index: " + f, e );
+            return Optional.empty();
+        }
+    }
+
+
+    @Override
+    protected void delete( String key, Indexed indexed ) {
+        file( key ).delete();
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Puntal;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.PointCountIndexes.Indexed;
+
+/**
+ * Builds the {@link PointCountIndex} of the resource of a layer in the
+ * background. Just the geometries of the features are read, once; multi points
+ * count every point. Resources of other geometry types get no index.
+ *
+ * @author Falko Bräutigam
+ */
+public class PointIndexJob
+        extends ResourceCacheJob<Indexed> {
+
+    private static final Log log = LogFactory.getLog( PointIndexJob.class );
+
+
+    protected PointIndexJob( PointCountIndexes target, String layerId, String key ) {
+        super( "Indexing points", target, layerId, key );
+    }
+
+
+    @Override
+    protected Indexed build( ILayer layer, IProgressMonitor monitor ) throws Exception {
+        Timer timer = new Timer();
+        Indexed result = new Indexed();
+
+        DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor ).orElse( null );
+        if (dsd == null || !(dsd.service.get() instanceof DataAccess)) {
+            log.info( "No features: " + layer.label.get() );
+            return result;
+        }
+        FeatureSource fs = ((DataAccess)dsd.service.get()).getFeatureSource( new NameImpl( dsd.resourceName.get() ) );
+        GeometryDescriptor geom = fs.getSchema().getGeometryDescriptor();
+        sourceTypeName = fs.getSchema().getName().getLocalPart();
+        result.sourceTypeName = sourceTypeName;
+        if (geom == null || !Puntal.class.isAssignableFrom( geom.getType().getBinding() )) {
+            log.info( "No points: " + layer.label.get() );
+            return result;
+        }
+        result.crs = geom.getCoordinateReferenceSystem();
+
+        ReferencedEnvelope bounds = fs.getBounds();
+        if (bounds == null) {
+            bounds = fs.getFeatures().getBounds();
+        }
+        if (bounds == null || bounds.isEmpty()) {
+            return result;
+        }
+        PointCountIndex index = new PointCountIndex( bounds, PointCountIndex.DEFAULT_LEVELS );
+
+        Query query = new Query( fs.getSchema().getName().getLocalPart(), Filter.INCLUDE,
+                new String[] {geom.getLocalName()} );
+        int total = fs.getCount( Query.ALL );
+        monitor.beginTask( getName() + ": " + layer.label.get(), total > 0 ? total : IProgressMonitor.UNKNOWN );
+        try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+            for (int count=1; it.hasNext(); count++) {
+                if (monitor.isCanceled()) {
+                    return null;
+                }
+                Object value = it.next().getDefaultGeometryProperty().getValue();
+                if (value instanceof Geometry) {
+                    Geometry g = (Geometry)value;
+                    for (int i=0; i<g.getNumGeometries(); i++) {
+                        Point point = g.getGeometryN( i ).getCentroid();
+                        if (!point.isEmpty()) {
+                            index.add( point.getX(), point.getY() );
+                        }
+                    }
+                }
+                if (count % 10000 == 0) {
+                    monitor.worked( 10000 );
+                }
+            }
+        }
+        index.complete();
+        result.index = index;
+        log.info( "Indexed " + index.total() + " points of " + layer.label.get() + ": " + timer.elapsedTime() + "ms" );
+        return result;
+    }
+
+}
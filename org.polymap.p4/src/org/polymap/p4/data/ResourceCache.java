@@ -0,0 +1,251 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+/**
+ * Base class of the JVM wide caches of data that is derived from the features
+ * of the resource of a layer: indexes, statistics, generalized levels. Layers of
+ * the same resource share their entry.
+ * <p/>
+ * An entry is built by a {@link ResourceCacheJob} in the background the first
+ * time it is requested. Entries are stored in the directory of the cache and
+ * kept in memory once loaded. The source feature type of every stored entry is
+ * recorded in {@link #SOURCES_FILE}, so that committed features outdate the
+ * entries of their resource, whether they are loaded or not. Features that are
+ * committed while an entry is being built make the job start again.
+ *
+ * @param <T> The type of the entries.
+ * @author Falko Bräutigam
+ */
+public abstract class ResourceCache<T> {
+
+    private static final Log log = LogFactory.getLog( ResourceCache.class );
+
+    /** Maps the keys of the stored entries to the name of their source type. */
+    public static final String      SOURCES_FILE = "sources.properties";
+
+    protected File                  dir;
+
+    /** The loaded entries by key. */
+    protected Map<String,T>         loaded = new ConcurrentHashMap();
+
+    /** The currently running jobs by key. */
+    protected Map<String,ResourceCacheJob<T>> building = new ConcurrentHashMap();
+
+    /** The source types of the stored entries by key. */
+    private Properties              sources = new Properties();
+
+
+    protected ResourceCache( File dir ) {
+        this.dir = dir;
+        dir.mkdirs();
+        File f = new File( dir, SOURCES_FILE );
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream( f )) {
+                sources.load( in );
+            }
+            catch (IOException e) {
+                log.warn( "Unable to load: " + f, e );
+            }
+        }
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                ev.getType() == Type.COMMIT ) );
+    }
+
+
+    /**
+     * The key of the entry of the given layer: the hash of its resource.
+     */
+    protected String key( ILayer layer ) {
+        return Hashing.murmur3_128().newHasher()
+                .putString( StringUtils.defaultString( layer.resourceIdentifier.get() ), UTF_8 )
+                .hash().toString();
+    }
+
+
+    /**
+     * Returns the entry of the given key. Loads the entry if it is stored, or
+     * starts building it in the background.
+     *
+     * @param key The key of the entry.
+     * @param newJob Creates the job that builds the entry.
+     * @return The entry, or {@link Optional#empty()} if it is not yet built.
+     */
+    protected Optional<T> entry( String key, Supplier<ResourceCacheJob<T>> newJob ) {
+        T result = loaded.get( key );
+        if (result == null && !building.containsKey( key ) && sources.containsKey( key )) {
+            result = load( key ).orElse( null );
+            if (result != null) {
+                loaded.put( key, result );
+            }
+        }
+        if (result == null) {
+            building.computeIfAbsent( key, k -> {
+                ResourceCacheJob<T> job = newJob.get();
+                job.schedule();
+                return job;
+            });
+        }
+        return Optional.ofNullable( result );
+    }
+
+
+    /**
+     * Loads the stored entry of the given key.
+     *
+     * @return The entry, or {@link Optional#empty()} if there is no (valid) entry.
+     */
+    protected abstract Optional<T> load( String key );
+
+
+    /**
+     * Stores the given entry in the directory of this cache.
+     */
+    protected abstract void store( String key, T entry ) throws IOException;
+
+
+    /**
+     * Deletes the stored entry of the given key.
+     *
+     * @param entry The loaded entry, or null. Its resources are to be released.
+     */
+    protected abstract void delete( String key, T entry );
+
+
+    /**
+     * Releases the resources of an entry that was built but is outdated already.
+     * Does nothing by default.
+     */
+    protected void discard( T entry ) {
+    }
+
+
+    /**
+     * Updates the given loaded entry with the committed features instead of
+     * building it again. Not supported by default.
+     *
+     * @return True if the entry is updated.
+     */
+    protected boolean update( String key, T entry, FeatureEvent ev ) {
+        return false;
+    }
+
+
+    /**
+     * Called by the {@link ResourceCacheJob} when the entry has been built.
+     *
+     * @return False if features have been committed while building; the entry
+     *         is outdated and has to be built again.
+     */
+    protected synchronized boolean completed( String key, String sourceTypeName, T entry ) throws IOException {
+        ResourceCacheJob<T> job = building.get( key );
+        if (job != null && job.outdated) {
+            discard( entry );
+            return false;
+        }
+        sources.setProperty( key, StringUtils.defaultString( sourceTypeName ) );
+        storeSources();
+        store( key, entry );
+        loaded.put( key, entry );
+        building.remove( key );
+        return true;
+    }
+
+
+    /**
+     * Called by the {@link ResourceCacheJob} if it failed or was canceled. The
+     * entry is built again on next request.
+     */
+    protected void failed( String key ) {
+        building.remove( key );
+    }
+
+
+    /**
+     * Outdates the entry of the given key. It is built again on next request.
+     */
+    protected synchronized void drop( String key ) {
+        delete( key, loaded.remove( key ) );
+        if (sources.remove( key ) != null) {
+            storeSources();
+        }
+    }
+
+
+    protected void storeSources() {
+        File f = new File( dir, SOURCES_FILE );
+        try (OutputStream out = new FileOutputStream( f )) {
+            sources.store( out, "Source types of the entries" );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to store: " + f, e );
+        }
+    }
+
+
+    /**
+     * Features have been committed. The entries of the resource are outdated,
+     * loaded or not, unless a loaded entry can be {@link #update(String, Object, FeatureEvent)
+     * updated}. Running jobs of the resource start again.
+     */
+    @EventHandler
+    protected synchronized void onFeatureCommit( FeatureEvent ev ) {
+        String typeName = ev.getFeatureSource().getSchema().getName().getLocalPart();
+        for (ResourceCacheJob<T> job : building.values()) {
+            if (typeName.equals( job.sourceTypeName )) {
+                job.outdated = true;
+            }
+        }
+        for (String key : sources.stringPropertyNames()) {
+            if (typeName.equals( sources.getProperty( key ) )) {
+                T entry = loaded.get( key );
+                if (entry == null || !update( key, entry, ev )) {
+                    log.info( getClass().getSimpleName() + ": features committed, outdating: " + typeName );
+                    drop( key );
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.project.ProjectRepository;
+
+/**
+ * Builds an entry of a {@link ResourceCache} in the background. If features of
+ * the resource are committed while building, then the result is discarded and
+ * the job starts again.
+ *
+ * @param <T> The type of the entries.
+ * @author Falko Bräutigam
+ */
+public abstract class ResourceCacheJob<T>
+        extends Job {
+
+    private static final Log log = LogFactory.getLog( ResourceCacheJob.class );
+
+    protected ResourceCache<T>  target;
+
+    protected String            layerId;
+
+    protected String            key;
+
+    /** Set by {@link #build(ILayer, IProgressMonitor)} as soon as the source type is known. */
+    protected volatile String   sourceTypeName;
+
+    /** Features of the resource have been committed while building. */
+    protected volatile boolean  outdated;
+
+
+    protected ResourceCacheJob( String name, ResourceCache<T> target, String layerId, String key ) {
+        super( name );
+        this.target = target;
+        this.layerId = layerId;
+        this.key = key;
+        setPriority( Job.LONG );
+        setSystem( true );
+    }
+
+
+    /**
+     * Builds the entry of the given layer. Sets {@link #sourceTypeName} before
+     * the features are read.
+     *
+     * @return The entry, or null if canceled.
+     */
+    protected abstract T build( ILayer layer, IProgressMonitor monitor ) throws Exception;
+
+
+    @Override
+    protected IStatus run( IProgressMonitor monitor ) {
+        UnitOfWork uow = ProjectRepository.newUnitOfWork();
+        try {
+            T result = build( uow.entity( ILayer.class, layerId ), monitor );
+            if (result == null) {
+                target.failed( key );
+                return Status.CANCEL_STATUS;
+            }
+            if (!target.completed( key, sourceTypeName, result )) {
+                log.info( getName() + ": features committed while building, starting again: " + sourceTypeName );
+                outdated = false;
+                schedule();
+            }
+            return Status.OK_STATUS;
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            target.failed( key );
+            return new Status( IStatus.ERROR, P4Plugin.ID, getName() + " failed.", e );
+        }
+        finally {
+            monitor.done();
+            uow.close();
+        }
+    }
+
+}
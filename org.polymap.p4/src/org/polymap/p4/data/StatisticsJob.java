@@ -0,0 +1,103 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.data;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.catalog.AllResolver;
+
+/**
+ * Computes the {@link FeatureStatistics} of the resource of a layer in the
+ * background, in one pass over the features. Resources without features get
+ * empty statistics.
+ *
+ * @author Falko Bräutigam
+ */
+public class StatisticsJob
+        extends ResourceCacheJob<FeatureStatistics> {
+
+    private static final Log log = LogFactory.getLog( StatisticsJob.class );
+
+
+    protected StatisticsJob( LayerStatistics target, String layerId, String key ) {
+        super( "Computing statistics", target, layerId, key );
+    }
+
+
+    @Override
+    protected FeatureStatistics build( ILayer layer, IProgressMonitor monitor ) throws Exception {
+        Timer timer = new Timer();
+        FeatureStatistics result = new FeatureStatistics();
+        DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor ).orElse( null );
+        if (dsd == null || !(dsd.service.get() instanceof DataAccess)) {
+            log.info( "No features: " + layer.label.get() );
+            return result;
+        }
+        FeatureSource fs = ((DataAccess)dsd.service.get()).getFeatureSource( new NameImpl( dsd.resourceName.get() ) );
+        sourceTypeName = fs.getSchema().getName().getLocalPart();
+        result.sourceTypeName = sourceTypeName;
+        GeometryDescriptor geom = fs.getSchema().getGeometryDescriptor();
+        if (geom != null && geom.getCoordinateReferenceSystem() != null) {
+            result.crs = geom.getCoordinateReferenceSystem().toWKT();
+        }
+
+        int total = fs.getCount( Query.ALL );
+        monitor.beginTask( getName() + ": " + layer.label.get(), total > 0 ? total : IProgressMonitor.UNKNOWN );
+        try (FeatureIterator<Feature> it = fs.getFeatures().features()) {
+            for (int count=1; it.hasNext(); count++) {
+                if (monitor.isCanceled()) {
+                    return null;
+                }
+                Feature feature = it.next();
+                result.add();
+                for (Property prop : feature.getProperties()) {
+                    Object value = prop.getValue();
+                    if (prop.getDescriptor() instanceof GeometryDescriptor) {
+                        if (value instanceof Geometry) {
+                            result.addBounds( ((Geometry)value).getEnvelopeInternal() );
+                        }
+                    }
+                    else {
+                        result.attribute( prop.getName().getLocalPart() ).add( value );
+                    }
+                }
+                if (count % 10000 == 0) {
+                    monitor.worked( 10000 );
+                }
+            }
+        }
+        log.info( "Statistics of " + layer.label.get() + ": " + result.count + " features, " + timer.elapsedTime() + "ms" );
+        return result;
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.BatchFeatureEvent;
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+/**
+ * In-memory spatial index of the envelopes of the features of a
+ * layer, used to hit-test clicks in the map without querying the backend for
+ * every click. There is one index per layer, shared by the {@link FeatureLayer}s
+ * of all sessions.
+ * <p/>
+ * The envelopes are packed into an {@link STRtree} by an {@link UIJob} the first
+ * time the index is {@link #query(Envelope) queried}. Features that are
+ * committed afterwards are tracked in a small overlay of changed envelopes
+ * until the overlay grows beyond {@link #MAX_CHANGES} and the tree is re-built.
+ * Just committed changes are tracked; changes of a transaction are not visible
+ * to other sessions before. Events that do not name the changed features make
+ * the index re-build completely. While the index is building, {@link #query(Envelope)} returns
+ * {@link Optional#empty()} and callers have to query the backend.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeatureIndex {
+
+    private static final Log log = LogFactory.getLog( FeatureIndex.class );
+
+    /**
+     * Set system property <code>org.polymap.p4.layer.spatialIndex=false</code>
+     * to disable the index.
+     */
+    public static final boolean     ENABLED = !"false".equalsIgnoreCase( System.getProperty( "org.polymap.p4.layer.spatialIndex" ) );
+
+    /** The max number of changed features before the tree is re-built. */
+    public static final int         MAX_CHANGES = 1000;
+
+    /**
+     * Override of the entry of a feature in the tree, after the tree was built.
+     */
+    protected static class Change {
+        /** The modification this change was made in. */
+        public long         mod;
+        /** The new envelope, or null if the feature was removed. */
+        public Envelope     envelope;
+
+        public Change( long mod, Envelope envelope ) {
+            this.mod = mod;
+            this.envelope = envelope;
+        }
+    }
+
+    /** The indexes of the layers, by layer id. */
+    private static ConcurrentMap<String,FeatureIndex> instances = new ConcurrentHashMap();
+
+    /**
+     * The index of the given layer.
+     *
+     * @param layerId The id of the layer.
+     * @param fs The features of the layer. The index reads the features of the
+     *        last session that asked for the index.
+     */
+    public static FeatureIndex of( String layerId, FeatureSource fs ) {
+        FeatureIndex result = instances.computeIfAbsent( layerId, key -> new FeatureIndex( fs ) );
+        result.fs = fs;
+        return result;
+    }
+
+
+    /**
+     * The index of the given layer, if it was created.
+     */
+    public static Optional<FeatureIndex> ifPresent( String layerId ) {
+        return Optional.ofNullable( instances.get( layerId ) );
+    }
+
+
+    // instance *******************************************
+
+    private volatile FeatureSource  fs;
+
+    private String                  typeName;
+
+    /** The packed tree of feature ids, or null if not (yet) built. */
+    private volatile STRtree        tree;
+
+    private volatile UIJob          building;
+
+    /** Changes after the {@link #tree} was built, by feature id. */
+    private Map<String,Change>      changes = new ConcurrentHashMap();
+
+    private AtomicLong              mod = new AtomicLong();
+
+    /** The last modification that {@link #invalidate() invalidated} the tree. */
+    private volatile long           invalidated = -1;
+
+
+    protected FeatureIndex( FeatureSource fs ) {
+        this.fs = fs;
+        this.typeName = fs.getSchema().getName().getLocalPart();
+
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                ev.getType() == Type.COMMIT
+                && ev.getFeatureSource() != null
+                && typeName.equals( ev.getFeatureSource().getSchema().getName().getLocalPart() ) ) );
+    }
+
+
+    /**
+     * The ids of the features whose envelope intersects the given area. The
+     * envelopes might be larger than the geometries, so callers have to check
+     * the geometries of the result.
+     *
+     * @param area The area in the CRS of the features.
+     * @return The feature ids, or {@link Optional#empty()} if the index is not
+     *         ready yet.
+     */
+    public Optional<List<String>> query( Envelope area ) {
+        STRtree current = tree;
+        if (current == null) {
+            build();
+            return Optional.empty();
+        }
+        List<String> result = new ArrayList( 16 );
+        for (Object fid : current.query( area )) {
+            if (!changes.containsKey( fid )) {
+                result.add( (String)fid );
+            }
+        }
+        changes.forEach( (fid, change) -> {
+            if (change.envelope != null && change.envelope.intersects( area )) {
+                result.add( fid );
+            }
+        });
+        return Optional.of( result );
+    }
+
+
+    /**
+     * Discards the tree. It is re-built on next {@link #query(Envelope)}.
+     */
+    public void invalidate() {
+        tree = null;
+        invalidated = mod.incrementAndGet();
+    }
+
+
+    protected synchronized void build() {
+        if (building != null) {
+            return;
+        }
+        building = new UIJob( "Spatial index" ) {
+            @Override
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                try {
+                    long start = mod.get();
+                    Timer timer = new Timer();
+                    GeometryDescriptor geom = fs.getSchema().getGeometryDescriptor();
+                    if (geom == null) {
+                        tree = new STRtree();
+                        return;
+                    }
+                    STRtree result = new STRtree();
+                    Query query = new Query( typeName, Filter.INCLUDE, new String[] {geom.getLocalName()} );
+                    try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+                        while (it.hasNext()) {
+                            if (monitor.isCanceled()) {
+                                return;
+                            }
+                            Feature feature = it.next();
+                            envelope( feature ).ifPresent( envelope ->
+                                    result.insert( envelope, feature.getIdentifier().getID() ) );
+                        }
+                    }
+                    result.build();
+                    // changes that were made while building are kept
+                    if (invalidated > start) {
+                        log.info( "Features changed while indexing: " + typeName );
+                        return;
+                    }
+                    changes.values().removeIf( change -> change.mod < start );
+                    tree = result;
+                    log.info( "Indexed " + result.size() + " features of " + typeName + ": " + timer.elapsedTime() + "ms" );
+                }
+                finally {
+                    building = null;
+                }
+            }
+        };
+        building.schedule();
+    }
+
+
+    /**
+     * Features have been committed. If the event names the changed features, then
+     * their current envelopes are queried and put into the {@link #changes};
+     * otherwise the tree is re-built.
+     */
+    @EventHandler
+    protected void onFeatureEvent( FeatureEvent ev ) {
+        if ((tree == null && building == null) || ev.getFilter() == Filter.EXCLUDE) {
+            return;
+        }
+        Set<String> fids = new HashSet( 64 );
+        if (ev.getFilter() instanceof Id) {
+            ((Id)ev.getFilter()).getIdentifiers().forEach( id -> fids.add( id.getID().toString() ) );
+            if (ev instanceof BatchFeatureEvent) {
+                ((BatchFeatureEvent)ev).getCreatedFeatureIds().forEach( id -> fids.add( id.getID() ) );
+            }
+        }
+        if (fids.isEmpty() || changes.size() + fids.size() > MAX_CHANGES) {
+            log.info( "Features changed, re-building spatial index: " + typeName );
+            invalidate();
+            return;
+        }
+        new UIJob( "Update spatial index" ) {
+            @Override
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                long current = mod.incrementAndGet();
+                for (String fid : fids) {
+                    changes.put( fid, new Change( current, null ) );
+                }
+                GeometryDescriptor geom = fs.getSchema().getGeometryDescriptor();
+                Query query = new Query( typeName, fidFilter( fids ), new String[] {geom.getLocalName()} );
+                try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+                    while (it.hasNext()) {
+                        Feature feature = it.next();
+                        changes.put( feature.getIdentifier().getID(),
+                                new Change( current, envelope( feature ).orElse( null ) ) );
+                    }
+                }
+            }
+        }.schedule();
+    }
+
+
+    protected static Filter fidFilter( Set<String> fids ) {
+        Set ids = new HashSet( fids.size() * 2 );
+        fids.forEach( fid -> ids.add( FeatureLayer.ff.featureId( fid ) ) );
+        return FeatureLayer.ff.id( ids );
+    }
+
+
+    protected static Optional<Envelope> envelope( Feature feature ) {
+        Object value = feature.getDefaultGeometryProperty() != null
+                ? feature.getDefaultGeometryProperty().getValue() : null;
+        return value instanceof Geometry && !((Geometry)value).isEmpty()
+                ? Optional.of( ((Geometry)value).getEnvelopeInternal() )
+                : Optional.empty();
+    }
+
+}
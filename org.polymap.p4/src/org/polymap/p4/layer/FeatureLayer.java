@@ -16,6 +16,7 @@ package org.polymap.p4.layer;
 
 import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -27,9 +28,12 @@ import java.io.IOException;
 
 import org.geotools.data.DataStore;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.Id;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -146,6 +150,12 @@ public class FeatureLayer {
     private PipelineFeatureSource       fs;
     
     private Filter                      filter = Filter.INCLUDE;
+
+    /** The ordinals of the feature ids of {@link #selected}. */
+    private FidIndex                    fidIndex = new FidIndex();
+
+    /** The selected features, or null if all features are selected. */
+    private FidSet                      selected;
     
     private Optional<Feature>           clicked = Optional.empty();
     
@@ -173,6 +183,7 @@ public class FeatureLayer {
                     Pipeline newPipeline = P4PipelineBuilder.forLayer( layer ).createPipeline( FeaturesProducer.class, dsd )
                             .orElseThrow( () -> new PipelineBuilderException( "Unable to build pipeline for: " + layer  ) );
                     fs.setPipeline( newPipeline );
+                    FeatureIndex.ifPresent( (String)layer.id() ).ifPresent( index -> index.invalidate() );
                 }
             }.schedule();
         }
@@ -236,20 +247,102 @@ public class FeatureLayer {
     }
 
 
+    /**
+     * The currently selected features, or {@link Optional#empty()} if all
+     * features are selected.
+     */
+    public Optional<FidSet> selected() {
+        assert isValid();
+        return Optional.ofNullable( selected );
+    }
+
+
+    /**
+     * Changes the selection of this layer. The features of the given filter are
+     * queried and combined with the current selection as a {@link FidSet}, so
+     * the resulting {@link #filter()} is a flat {@link Id} filter, or a
+     * <code>Not(Id)</code> filter if features were removed from all features, no
+     * matter how many selections were made. {@link Filter#INCLUDE} selects all
+     * features.
+     *
+     * @param selection The features to select.
+     * @param mode How to combine the selection with the current selection.
+     */
     public void select( Filter selection, Mode mode ) {
         assert isValid();
         Filter old = filter;
-        switch (mode) {
-            case REPLACE: 
-                filter = selection; break;
-            case ADD: 
-                filter = ff.or( filter, selection ); break;
-            default: 
-                throw new RuntimeException( "Unhandled mode: " + mode );
+        try {
+            switch (mode) {
+                case REPLACE: 
+                    selected = selection.equals( Filter.INCLUDE ) ? null : fids( selection ); break;
+                case ADD: 
+                    selected = selected == null || selection.equals( Filter.INCLUDE ) ? null : selected.or( fids( selection ) ); break;
+                case DIFFERENCE:
+                    selected = selection.equals( Filter.INCLUDE ) ? new FidSet( fidIndex )
+                            : selected != null ? selected.andNot( fids( selection ) ) : fids( selection ).negate(); break;
+                case INTERSECT:
+                    selected = selection.equals( Filter.INCLUDE ) ? selected
+                            : selected == null ? fids( selection ) : selected.and( fids( selection ) ); break;
+                default: 
+                    throw new RuntimeException( "Unhandled mode: " + mode );
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+        if (selected != null && selected.isAll()) {
+            selected = null;
         }
+        filter = selected != null ? selected.toFilter( ff ) : Filter.INCLUDE;
+        log.debug( "select(): " + mode + " -> " + selected );
         // event
         EventManager.instance().publish( new FeatureSelectionEvent( this, filter, old ) );
     }
+
+
+    /**
+     * A {@link FidSet} of the given feature ids, that can be combined with the
+     * {@link #selected()} features.
+     */
+    public FidSet fidSet( Iterable<String> fids ) {
+        return FidSet.of( fidIndex, fids );
+    }
+
+
+    /**
+     * The features of the given filter. The ids of an {@link Id} filter are taken
+     * as they are; other filters are queried.
+     */
+    protected FidSet fids( Filter filter ) throws IOException {
+        if (filter.equals( Filter.EXCLUDE )) {
+            return new FidSet( fidIndex );
+        }
+        List<String> result = new ArrayList( 256 );
+        if (filter instanceof Id) {
+            ((Id)filter).getIdentifiers().forEach( id -> result.add( id.getID().toString() ) );
+        }
+        else {
+            Query query = new Query( fs.getSchema().getName().getLocalPart(), filter, Query.NO_NAMES );
+            try (FeatureIterator it = fs.getFeatures( query ).features()) {
+                while (it.hasNext()) {
+                    result.add( it.next().getIdentifier().getID() );
+                }
+            }
+        }
+        return FidSet.of( fidIndex, result );
+    }
+    
+    
+    /**
+     * The spatial index of the features of this layer, or
+     * {@link Optional#empty()} if the index is not {@link FeatureIndex#ENABLED}.
+     */
+    public Optional<FeatureIndex> spatialIndex() {
+        assert isValid();
+        return FeatureIndex.ENABLED
+                ? Optional.of( FeatureIndex.of( (String)layer.id(), fs ) )
+                : Optional.empty();
+    }
     
     
     /**
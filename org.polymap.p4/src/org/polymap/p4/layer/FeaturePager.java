@@ -0,0 +1,340 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import static org.polymap.p4.layer.FeatureLayer.ff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.io.IOException;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.filter.Filter;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.Timer;
+
+/**
+ * Pages through the features of a {@link FeatureSource} sorted by one property,
+ * without loading all features.
+ * <p/>
+ * Rows are the features with a value, sorted by the value and then by their
+ * natural order, followed by the features without value in natural order.
+ * Pages are fetched from the backend by <b>keyset</b>: for every page the value
+ * of its first row and the number of rows with this value on previous pages
+ * are kept as a checkpoint, so a page is queried as "value >= checkpoint" plus
+ * a small offset, which is cheap for an indexed column no matter how deep the
+ * page is. Checkpoints are learned from the pages that were fetched and from
+ * {@link #scanKeys(IProgressMonitor)}; pages without checkpoint fall back to a
+ * plain offset query.
+ * <p/>
+ * The row of a feature is found by {@link #rowOf(String)} in the index of rows
+ * that {@link #scanKeys(IProgressMonitor)} builds. Before the keys are scanned,
+ * the rows before its value are counted on the backend; the rows with the same
+ * value (or without value) are still scanned up to the feature, which is
+ * proportional to the length of that run.
+ *
+ * @author Falko Bräutigam
+ */
+public class FeaturePager {
+
+    private static final Log log = LogFactory.getLog( FeaturePager.class );
+
+    public static final int         PAGE_SIZE = 100;
+
+    /** The max number of pages kept in memory. */
+    public static final int         MAX_PAGES = 20;
+
+    private FeatureSource           fs;
+
+    private String                  typeName;
+
+    private Filter                  filter;
+
+    private PropertyName            sortProp;
+
+    private SortOrder               sortOrder;
+
+    /** The number of rows with value. */
+    private int                     valued;
+
+    /** The number of rows without value. */
+    private int                     unvalued;
+
+    /** The value of the first row of the valued pages, or null if unknown. */
+    private Object[]                checkpoints;
+
+    /** The number of rows with the value of the checkpoint on previous pages. */
+    private int[]                   skips;
+
+    /** The rows by feature id, or null if the keys are not yet scanned. */
+    private volatile Map<String,Integer> rows;
+
+    /** Pages by index; the pages of unvalued rows are negative, starting with -1. */
+    private Map<Integer,List<Feature>> pages = new LinkedHashMap<Integer,List<Feature>>( MAX_PAGES * 2, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Integer,List<Feature>> eldest ) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+
+    /**
+     * Creates a new pager and counts the rows.
+     *
+     * @param fs
+     * @param filter The features to page through.
+     * @param sortProp The name of the property to sort by.
+     * @param sortOrder
+     */
+    public FeaturePager( FeatureSource fs, Filter filter, String sortProp, SortOrder sortOrder ) throws IOException {
+        this.fs = fs;
+        this.typeName = fs.getSchema().getName().getLocalPart();
+        this.filter = filter;
+        this.sortProp = ff.property( sortProp );
+        this.sortOrder = sortOrder;
+
+        valued = count( valuedFilter() );
+        unvalued = count( and( filter, ff.isNull( this.sortProp ) ) );
+        int pageCount = (valued + PAGE_SIZE - 1) / PAGE_SIZE;
+        checkpoints = new Object[pageCount];
+        skips = new int[pageCount];
+        log.debug( "Rows: " + valued + " + " + unvalued + " (" + sortProp + " " + sortOrder + ")" );
+    }
+
+
+    public int size() {
+        return valued + unvalued;
+    }
+
+
+    /**
+     * The feature in the given row.
+     */
+    public Feature row( int row ) throws IOException {
+        List<Feature> page = row < valued
+                ? page( row / PAGE_SIZE )
+                : page( -((row - valued) / PAGE_SIZE) - 1 );
+        int index = (row < valued ? row : row - valued) % PAGE_SIZE;
+        if (index >= page.size()) {
+            throw new IOException( "Row " + row + " not found. Features changed?" );
+        }
+        return page.get( index );
+    }
+
+
+    /**
+     * The row of the feature with the given id.
+     *
+     * @return The row, or -1 if there is no such feature.
+     */
+    public int rowOf( String fid ) throws IOException {
+        Map<String,Integer> scanned = rows;
+        if (scanned != null) {
+            return scanned.getOrDefault( fid, -1 );
+        }
+        Query query = new Query( typeName, and( filter, ff.id( ff.featureId( fid ) ) ),
+                new String[] {sortProp.getPropertyName()} );
+        Object value = null;
+        try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+            if (!it.hasNext()) {
+                return -1;
+            }
+            Property prop = it.next().getProperty( sortProp.getPropertyName() );
+            value = prop != null ? prop.getValue() : null;
+        }
+        if (value == null) {
+            int index = indexOf( and( filter, ff.isNull( sortProp ) ), fid );
+            return index >= 0 ? valued + index : -1;
+        }
+        else {
+            Literal literal = ff.literal( value );
+            int before = count( and( filter, sortOrder == SortOrder.ASCENDING
+                    ? ff.less( sortProp, literal ) : ff.greater( sortProp, literal ) ) );
+            int index = indexOf( and( filter, ff.equals( sortProp, literal ) ), fid );
+            return index >= 0 ? before + index : -1;
+        }
+    }
+
+
+    /**
+     * Reads the values of all rows in order, sets the checkpoints of all pages
+     * and builds the index of the rows of the features for {@link #rowOf(String)}.
+     * Reads just the sort property, so this is much cheaper than fetching the
+     * pages.
+     */
+    public void scanKeys( IProgressMonitor monitor ) throws IOException {
+        Timer timer = new Timer();
+        Map<String,Integer> scanned = new HashMap( (int)(size() * 1.5) );
+        Query query = new Query( typeName, valuedFilter(), new String[] {sortProp.getPropertyName()} );
+        query.setSortBy( new SortBy[] {ff.sort( sortProp.getPropertyName(), sortOrder ), SortBy.NATURAL_ORDER} );
+        monitor.beginTask( "Scanning", size() );
+        try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+            Object previous = null;
+            int run = 0;
+            for (int row=0; it.hasNext() && row < valued; row++) {
+                if (monitor.isCanceled()) {
+                    return;
+                }
+                Feature feature = it.next();
+                scanned.put( feature.getIdentifier().getID(), row );
+                Object value = feature.getProperty( sortProp.getPropertyName() ).getValue();
+                int skip = Objects.equals( value, previous ) ? run : 0;
+                if (row % PAGE_SIZE == 0) {
+                    checkpoint( row / PAGE_SIZE, value, skip );
+                    monitor.worked( PAGE_SIZE );
+                }
+                run = skip + 1;
+                previous = value;
+            }
+        }
+        // rows without value
+        Query unvaluedQuery = new Query( typeName, and( filter, ff.isNull( sortProp ) ), Query.NO_NAMES );
+        unvaluedQuery.setSortBy( new SortBy[] {SortBy.NATURAL_ORDER} );
+        try (FeatureIterator<Feature> it = fs.getFeatures( unvaluedQuery ).features()) {
+            for (int index=0; it.hasNext() && index < unvalued; index++) {
+                if (monitor.isCanceled()) {
+                    return;
+                }
+                scanned.put( it.next().getIdentifier().getID(), valued + index );
+                if (index % PAGE_SIZE == 0) {
+                    monitor.worked( PAGE_SIZE );
+                }
+            }
+        }
+        rows = scanned;
+        monitor.done();
+        log.debug( "Keys scanned: " + valued + " rows, " + timer.elapsedTime() + "ms" );
+    }
+
+
+    protected synchronized void checkpoint( int page, Object value, int skip ) {
+        if (page < checkpoints.length) {
+            checkpoints[page] = value;
+            skips[page] = skip;
+        }
+    }
+
+
+    protected synchronized List<Feature> page( int index ) throws IOException {
+        List<Feature> result = pages.get( index );
+        if (result == null) {
+            Query query = new Query( typeName );
+            query.setMaxFeatures( PAGE_SIZE );
+            Object checkpoint = index >= 0 ? checkpoints[index] : null;
+            if (index < 0) {
+                query.setFilter( and( filter, ff.isNull( sortProp ) ) );
+                query.setStartIndex( (-index - 1) * PAGE_SIZE );
+            }
+            else if (checkpoint != null) {
+                Literal literal = ff.literal( checkpoint );
+                query.setFilter( and( filter, sortOrder == SortOrder.ASCENDING
+                        ? ff.greaterOrEqual( sortProp, literal ) : ff.lessOrEqual( sortProp, literal ) ) );
+                query.setStartIndex( skips[index] );
+            }
+            else {
+                query.setFilter( valuedFilter() );
+                query.setStartIndex( index * PAGE_SIZE );
+            }
+            query.setSortBy( index < 0
+                    ? new SortBy[] {SortBy.NATURAL_ORDER}
+                    : new SortBy[] {ff.sort( sortProp.getPropertyName(), sortOrder ), SortBy.NATURAL_ORDER} );
+
+            result = new ArrayList( PAGE_SIZE );
+            try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+                while (it.hasNext()) {
+                    result.add( it.next() );
+                }
+            }
+            pages.put( index, result );
+
+            // learn the checkpoint of the next page
+            if (index >= 0 && result.size() == PAGE_SIZE && index + 1 < checkpoints.length
+                    && checkpoints[index + 1] == null) {
+                Object last = value( result.get( PAGE_SIZE - 1 ) );
+                int run = 0;
+                while (run < PAGE_SIZE && Objects.equals( value( result.get( PAGE_SIZE - 1 - run ) ), last )) {
+                    run ++;
+                }
+                if (run < PAGE_SIZE) {
+                    checkpoint( index + 1, last, run );
+                }
+                else if (checkpoint != null && Objects.equals( checkpoint, last )) {
+                    checkpoint( index + 1, last, skips[index] + run );
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The position of the given feature in the natural order of the features of
+     * the given filter.
+     */
+    protected int indexOf( Filter runFilter, String fid ) throws IOException {
+        Query query = new Query( typeName, runFilter, Query.NO_NAMES );
+        query.setSortBy( new SortBy[] {SortBy.NATURAL_ORDER} );
+        try (FeatureIterator<Feature> it = fs.getFeatures( query ).features()) {
+            for (int index=0; it.hasNext(); index++) {
+                if (it.next().getIdentifier().getID().equals( fid )) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    protected int count( Filter countFilter ) throws IOException {
+        Query query = new Query( typeName, countFilter, Query.NO_NAMES );
+        int result = fs.getCount( query );
+        return result >= 0 ? result : fs.getFeatures( query ).size();
+    }
+
+
+    protected Filter valuedFilter() {
+        return and( filter, ff.not( ff.isNull( sortProp ) ) );
+    }
+
+
+    protected Object value( Feature feature ) {
+        Property prop = feature.getProperty( sortProp.getPropertyName() );
+        return prop != null ? prop.getValue() : null;
+    }
+
+
+    protected static Filter and( Filter filter, Filter other ) {
+        return filter == Filter.INCLUDE ? other : ff.and( filter, other );
+    }
+
+}
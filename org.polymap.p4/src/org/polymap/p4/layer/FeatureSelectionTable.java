@@ -32,6 +32,7 @@ import org.opengis.feature.Feature;
 import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.Filter;
 import org.opengis.filter.PropertyIsLike;
+import org.opengis.filter.sort.SortOrder;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
@@ -43,6 +44,8 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
 
 import org.eclipse.jface.viewers.StructuredSelection;
 
@@ -66,9 +69,9 @@ import org.polymap.rhei.batik.toolkit.md.MdToolkit;
 import org.polymap.rhei.table.DefaultFeatureTableColumn;
 import org.polymap.rhei.table.FeatureTableViewer;
 import org.polymap.rhei.table.IFeatureTableElement;
-import org.polymap.rhei.table.LazyFeatureContentProvider;
 
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.data.AttributeIndexes;
 
 /**
  * 
@@ -90,7 +93,7 @@ public abstract class FeatureSelectionTable {
     
     private FeatureTableViewer          viewer;
     
-    private LazyFeatureContentProvider  contentProvider;
+    private PagedFeatureContentProvider contentProvider;
 
     private ActionText                  searchText;
 
@@ -159,12 +162,14 @@ public abstract class FeatureSelectionTable {
     protected void createTableViewer( Composite parent ) {
         viewer = new FeatureTableViewer( parent, SWT.H_SCROLL | SWT.V_SCROLL | SWT.FULL_SELECTION | SWT.BORDER );
 
-        contentProvider = new LazyFeatureContentProvider();
+        // pages sorted by the backend; the columns do not sort themselves
+        contentProvider = new PagedFeatureContentProvider();
         contentProvider.filter( featureLayer.filter() );
         viewer.setContentProvider( contentProvider );
     
         // add columns
-        Optional<DefaultFeatureTableColumn> first = Optional.empty();
+        TableColumn firstColumn = null;
+        PropertyDescriptor firstProp = null;
         for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
             if (Geometry.class.isAssignableFrom( prop.getType().getBinding() )) {
                 // skip Geometry
@@ -172,26 +177,30 @@ public abstract class FeatureSelectionTable {
             else {
                 DefaultFeatureTableColumn column = new DefaultFeatureTableColumn( prop );
                 // disable default sorting behaviour
-                //column.setSortable( false );
+                column.setSortable( false );
                 viewer.addColumn( column );
-                first = first.isPresent() ? first : Optional.of( column );
+                TableColumn tableColumn = column.getViewerColumn().getColumn();
+                if (firstColumn == null) {
+                    firstColumn = tableColumn;
+                    firstProp = prop;
+                }
                 
-//                column.getViewerColumn().getColumn().addSelectionListener( new SelectionAdapter() {
-//                    private SortOrder currentOrder = SortOrder.ASCENDING;
-//                    @Override
-//                    public void widgetSelected( SelectionEvent ev ) {
-//                        // with selection RAP produces huge JS which fails in browser
-//                        viewer.setSelection( StructuredSelection.EMPTY );
-//                        currentOrder = currentOrder.equals( ASCENDING ) ? DESCENDING : ASCENDING;
-//                        contentProvider.sort( column, currentOrder );
-//                    }
-//                });
+                tableColumn.addSelectionListener( selectionListener( ev -> {
+                    Table table = viewer.getTable();
+                    int direction = table.getSortColumn() == tableColumn && table.getSortDirection() == SWT.UP 
+                            ? SWT.DOWN : SWT.UP;
+                    // with selection RAP produces huge JS which fails in browser
+                    viewer.setSelection( StructuredSelection.EMPTY );
+                    sort( tableColumn, prop, direction );
+                }));
             }
         }
         
         // it is important to sort any column; otherwise preserving selection during refresh()
         // always selects a new element, which causes an event, which causes a refresh() ...
-        first.ifPresent( column -> column.sort( SWT.UP ) );
+        if (firstColumn != null) {
+            sort( firstColumn, firstProp, SWT.UP );
+        }
         
         //
         viewer.setInput( fs );
@@ -208,6 +217,18 @@ public abstract class FeatureSelectionTable {
     }
     
 
+    /**
+     * Sorts the rows on the backend.
+     *
+     * @param direction {@link SWT#UP} or {@link SWT#DOWN}
+     */
+    protected void sort( TableColumn tableColumn, PropertyDescriptor prop, int direction ) {
+        viewer.getTable().setSortColumn( tableColumn );
+        viewer.getTable().setSortDirection( direction );
+        contentProvider.sort( prop.getName().getLocalPart(), direction == SWT.UP ? SortOrder.ASCENDING : SortOrder.DESCENDING );
+    }
+
+
     @EventHandler( display=true )
     protected void onFeatureClick( FeatureClickEvent ev ) throws IOException {
         if (!viewer.getTable().isDisposed()) {
@@ -216,8 +237,10 @@ public abstract class FeatureSelectionTable {
             if (selected.length != 1 || !selected[0].fid().equals( clickedFid )) {
                 // viewer.setSelection() does not work with LazyContentProvider
                 int index = contentProvider.indexOfFid( clickedFid );
-                viewer.getTable().select( index );
-                viewer.getTable().showSelection();
+                if (index >= 0) {
+                    viewer.getTable().select( index );
+                    viewer.getTable().showSelection();
+                }
             }
         }
         else {
@@ -231,7 +254,7 @@ public abstract class FeatureSelectionTable {
         if (!viewer.getTable().isDisposed()) {
             // XXX this tries to preserve selection; this is index based; it causes
             // a selection event; if sort has changed, another element ist selected!
-            viewer.refresh();
+            contentProvider.refresh();
         }
         else {
             EventManager.instance().unsubscribe( this );
@@ -255,6 +278,27 @@ public abstract class FeatureSelectionTable {
     }
     
     
+    /**
+     * Searches the {@link AttributeIndexes attribute index} of the layer.
+     *
+     * @return The found features, or {@link Optional#empty()} if the index is
+     *         disabled, not yet built or finds too many features; the like
+     *         filter is used then.
+     */
+    protected Optional<FidSet> searchIndex( String s ) {
+        if (AttributeIndexes.ENABLED) {
+            try {
+                return AttributeIndexes.instance().search( featureLayer.layer(), s )
+                        .map( fids -> featureLayer.fidSet( fids ) );
+            }
+            catch (Exception e) {
+                log.warn( "Searching attribute index failed.", e );
+            }
+        }
+        return Optional.empty();
+    }
+
+
     protected void doSearch() {
         Filter filter = featureLayer.filter();
         String s = searchText.getText().getText();
@@ -262,10 +306,17 @@ public abstract class FeatureSelectionTable {
             if (!s.contains( "*" ) && !s.contains( "?" ) ) {
                 s = s + "*";
             }
-            for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
-                if (String.class.isAssignableFrom( prop.getType().getBinding() )) {
-                    PropertyIsLike isLike = ff.like( ff.property( prop.getName() ), s, "*", "?", "\\" );
-                    filter = filter == Filter.INCLUDE ? isLike : ff.or( filter, isLike ); 
+            Optional<FidSet> found = searchIndex( s );
+            if (found.isPresent()) {
+                filter = featureLayer.selected().map( selected -> selected.and( found.get() ) )
+                        .orElse( found.get() ).toFilter( ff );
+            }
+            else {
+                for (PropertyDescriptor prop : fs.getSchema().getDescriptors()) {
+                    if (String.class.isAssignableFrom( prop.getType().getBinding() )) {
+                        PropertyIsLike isLike = ff.like( ff.property( prop.getName() ), s, "*", "?", "\\" );
+                        filter = filter == Filter.INCLUDE ? isLike : ff.or( filter, isLike ); 
+                    }
                 }
             }
         }
@@ -0,0 +1,71 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps feature ids to dense ordinals, so that sets of features can be stored as
+ * {@link FidSet}s. Ordinals are assigned in the order the ids are first seen
+ * and never change; the index only grows.
+ *
+ * @author Falko Bräutigam
+ */
+public class FidIndex {
+
+    private Map<String,Integer>     ordinals = new ConcurrentHashMap( 1024 );
+
+    private List<String>            fids = new ArrayList( 1024 );
+
+
+    /**
+     * The ordinal of the given feature id. Assigns a new ordinal if the id was
+     * not seen before.
+     */
+    public int ordinal( String fid ) {
+        Integer result = ordinals.get( fid );
+        if (result == null) {
+            synchronized (this) {
+                result = ordinals.computeIfAbsent( fid, key -> {
+                    fids.add( key );
+                    return fids.size() - 1;
+                });
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The ordinal of the given feature id, or -1 if the id was not seen before.
+     */
+    public int ordinalIfPresent( String fid ) {
+        return ordinals.getOrDefault( fid, -1 );
+    }
+
+
+    public synchronized String fid( int ordinal ) {
+        return fids.get( ordinal );
+    }
+
+
+    public int size() {
+        return ordinals.size();
+    }
+
+}
@@ -0,0 +1,518 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.Identifier;
+
+/**
+ * Compact set of features, stored as the ordinals of their ids in a
+ * {@link FidIndex}. The ordinals are split into chunks of 2^16 by their high
+ * bits. Sparse chunks hold a sorted array of the low bits, dense chunks a bitmap
+ * (like a roaring bitmap). Set operations run chunk by chunk, in time
+ * proportional to the size of the sets.
+ * <p/>
+ * A set can be {@link #isNegated() negated}: it then holds all features except
+ * the ones of its chunks. So the difference of all features and a small set is
+ * small too, without knowing all the features. Its {@link #toFilter(FilterFactory2)}
+ * is a <code>Not(Id)</code> filter.
+ * <p/>
+ * Instances are immutable; the set operations return new sets.
+ *
+ * @author Falko Bräutigam
+ */
+public class FidSet {
+
+    /** Chunks with more values are stored as bitmap. */
+    static final int                ARRAY_MAX = 4096;
+
+    private FidIndex                index;
+
+    /** The chunks by the high 16 bits of the ordinals. */
+    private TreeMap<Integer,Chunk>  chunks;
+
+    private int                     size;
+
+    /** True if this set holds all features except the ones of the {@link #chunks}. */
+    private boolean                 negated;
+
+
+    public FidSet( FidIndex index ) {
+        this( index, new TreeMap(), false );
+    }
+
+
+    protected FidSet( FidIndex index, TreeMap<Integer,Chunk> chunks, boolean negated ) {
+        this.index = index;
+        this.chunks = chunks;
+        this.negated = negated;
+        this.size = chunks.values().stream().mapToInt( chunk -> chunk.cardinality() ).sum();
+    }
+
+
+    /**
+     * Creates a new set of the given feature ids.
+     */
+    public static FidSet of( FidIndex index, Iterable<String> fids ) {
+        TreeMap<Integer,Chunk> chunks = new TreeMap();
+        for (String fid : fids) {
+            int ordinal = index.ordinal( fid );
+            Chunk chunk = chunks.computeIfAbsent( ordinal >>> 16, key -> new ArrayChunk() );
+            Chunk added = chunk.add( (char)ordinal );
+            if (added != chunk) {
+                chunks.put( ordinal >>> 16, added );
+            }
+        }
+        return new FidSet( index, chunks, false );
+    }
+
+
+    /**
+     * The number of features of this set; the number of excluded features if
+     * this set is {@link #isNegated() negated}.
+     */
+    public int size() {
+        return size;
+    }
+
+
+    public boolean isEmpty() {
+        return !negated && size == 0;
+    }
+
+
+    /**
+     * True if this set holds all features except {@link #size()} ones.
+     */
+    public boolean isNegated() {
+        return negated;
+    }
+
+
+    /**
+     * True if this set holds all features.
+     */
+    public boolean isAll() {
+        return negated && size == 0;
+    }
+
+
+    /**
+     * The complement of this set: all features that are not in this set.
+     */
+    public FidSet negate() {
+        return new FidSet( index, chunks, !negated );
+    }
+
+
+    public boolean contains( String fid ) {
+        int ordinal = index.ordinalIfPresent( fid );
+        if (ordinal < 0) {
+            return negated;
+        }
+        Chunk chunk = chunks.get( ordinal >>> 16 );
+        return negated ^ (chunk != null && chunk.contains( (char)ordinal ));
+    }
+
+
+    /**
+     * Passes the feature ids of this set to the given consumer, in the order of
+     * their ordinals.
+     *
+     * @throws IllegalStateException If this set is {@link #isNegated() negated}.
+     */
+    public void forEach( Consumer<String> consumer ) {
+        if (negated) {
+            throw new IllegalStateException( "Negated set cannot be iterated." );
+        }
+        for (Map.Entry<Integer,Chunk> entry : chunks.entrySet()) {
+            int high = entry.getKey() << 16;
+            entry.getValue().forEach( low -> consumer.accept( index.fid( high | low ) ) );
+        }
+    }
+
+
+    /**
+     * The union of this and the given set.
+     */
+    public FidSet or( FidSet other ) {
+        checkIndex( other );
+        if (!negated) {
+            return !other.negated ? union( chunks, other.chunks, false ) : difference( other.chunks, chunks, true );
+        }
+        else {
+            return !other.negated ? difference( chunks, other.chunks, true ) : intersection( chunks, other.chunks, true );
+        }
+    }
+
+
+    /**
+     * The intersection of this and the given set.
+     */
+    public FidSet and( FidSet other ) {
+        checkIndex( other );
+        if (!negated) {
+            return !other.negated ? intersection( chunks, other.chunks, false ) : difference( chunks, other.chunks, false );
+        }
+        else {
+            return !other.negated ? difference( other.chunks, chunks, false ) : union( chunks, other.chunks, true );
+        }
+    }
+
+
+    /**
+     * The elements of this set that are not in the given set.
+     */
+    public FidSet andNot( FidSet other ) {
+        checkIndex( other );
+        return and( other.negate() );
+    }
+
+
+    protected FidSet union( TreeMap<Integer,Chunk> chunks1, TreeMap<Integer,Chunk> chunks2, boolean negate ) {
+        TreeMap<Integer,Chunk> result = new TreeMap( chunks1 );
+        for (Map.Entry<Integer,Chunk> entry : chunks2.entrySet()) {
+            result.merge( entry.getKey(), entry.getValue(), (c1, c2) -> c1.or( c2 ) );
+        }
+        return new FidSet( index, result, negate );
+    }
+
+
+    protected FidSet intersection( TreeMap<Integer,Chunk> chunks1, TreeMap<Integer,Chunk> chunks2, boolean negate ) {
+        TreeMap<Integer,Chunk> result = new TreeMap();
+        for (Map.Entry<Integer,Chunk> entry : chunks1.entrySet()) {
+            Chunk otherChunk = chunks2.get( entry.getKey() );
+            if (otherChunk != null) {
+                Chunk chunk = entry.getValue().and( otherChunk );
+                if (chunk.cardinality() > 0) {
+                    result.put( entry.getKey(), chunk );
+                }
+            }
+        }
+        return new FidSet( index, result, negate );
+    }
+
+
+    protected FidSet difference( TreeMap<Integer,Chunk> chunks1, TreeMap<Integer,Chunk> chunks2, boolean negate ) {
+        TreeMap<Integer,Chunk> result = new TreeMap();
+        for (Map.Entry<Integer,Chunk> entry : chunks1.entrySet()) {
+            Chunk otherChunk = chunks2.get( entry.getKey() );
+            Chunk chunk = otherChunk != null ? entry.getValue().andNot( otherChunk ) : entry.getValue();
+            if (chunk.cardinality() > 0) {
+                result.put( entry.getKey(), chunk );
+            }
+        }
+        return new FidSet( index, result, negate );
+    }
+
+
+    /**
+     * An {@link org.opengis.filter.Id} filter of the features of this set, or
+     * {@link Filter#EXCLUDE} if this set is empty. A <code>Not(Id)</code> filter,
+     * or {@link Filter#INCLUDE}, if this set is {@link #isNegated() negated}.
+     */
+    public Filter toFilter( FilterFactory2 ff ) {
+        if (size == 0) {
+            return negated ? Filter.INCLUDE : Filter.EXCLUDE;
+        }
+        Set<Identifier> ids = new HashSet( (int)(size * 1.5) );
+        for (Map.Entry<Integer,Chunk> entry : chunks.entrySet()) {
+            int high = entry.getKey() << 16;
+            entry.getValue().forEach( low -> ids.add( ff.featureId( index.fid( high | low ) ) ) );
+        }
+        return negated ? ff.not( ff.id( ids ) ) : ff.id( ids );
+    }
+
+
+    protected void checkIndex( FidSet other ) {
+        if (other.index != index) {
+            throw new IllegalArgumentException( "Sets of different indexes." );
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder( "FidSet[" ).append( negated ? "not " : "" ).append( size );
+        Iterator<Chunk> it = chunks.values().iterator();
+        for (int i=0; it.hasNext() && i<10; i++) {
+            result.append( i == 0 ? ": " : ", " ).append( it.next().getClass().getSimpleName() );
+        }
+        return result.append( "]" ).toString();
+    }
+
+
+    // chunks *********************************************
+
+    /**
+     * The low 16 bits of the ordinals of one chunk.
+     */
+    protected static abstract class Chunk {
+
+        public abstract int cardinality();
+
+        public abstract boolean contains( char low );
+
+        /** Adds the given value, in place if possible; returns the chunk that holds it. */
+        public abstract Chunk add( char low );
+
+        public abstract void forEach( IntConsumer consumer );
+
+        public Chunk or( Chunk other ) {
+            return toBitmap().orInPlace( other ).shrink();
+        }
+
+        public Chunk and( Chunk other ) {
+            return toBitmap().andInPlace( other ).shrink();
+        }
+
+        public Chunk andNot( Chunk other ) {
+            return toBitmap().andNotInPlace( other ).shrink();
+        }
+
+        /** A new bitmap of the values of this chunk. */
+        protected BitmapChunk toBitmap() {
+            BitmapChunk result = new BitmapChunk();
+            forEach( low -> result.set( low ) );
+            return result;
+        }
+
+        protected Chunk shrink() {
+            return this;
+        }
+    }
+
+
+    /**
+     * Sorted array of the values of a sparse chunk.
+     */
+    protected static class ArrayChunk
+            extends Chunk {
+
+        char[]      values = new char[4];
+
+        int         size;
+
+        @Override
+        public int cardinality() {
+            return size;
+        }
+
+        @Override
+        public boolean contains( char low ) {
+            return Arrays.binarySearch( values, 0, size, low ) >= 0;
+        }
+
+        @Override
+        public Chunk add( char low ) {
+            int pos = Arrays.binarySearch( values, 0, size, low );
+            if (pos >= 0) {
+                return this;
+            }
+            if (size >= ARRAY_MAX) {
+                BitmapChunk result = toBitmap();
+                result.set( low );
+                return result;
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf( values, Math.min( ARRAY_MAX, size * 2 ) );
+            }
+            System.arraycopy( values, pos, values, pos + 1, size - pos );
+            values[pos] = low;
+            size ++;
+            return this;
+        }
+
+        @Override
+        public void forEach( IntConsumer consumer ) {
+            for (int i=0; i<size; i++) {
+                consumer.accept( values[i] );
+            }
+        }
+
+        @Override
+        public Chunk or( Chunk other ) {
+            if (other instanceof ArrayChunk && size + ((ArrayChunk)other).size <= ARRAY_MAX) {
+                return merge( (ArrayChunk)other, true, true, true );
+            }
+            return super.or( other );
+        }
+
+        @Override
+        public Chunk and( Chunk other ) {
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[size];
+            forEach( low -> {
+                if (other.contains( (char)low )) {
+                    result.values[result.size++] = (char)low;
+                }
+            });
+            return result;
+        }
+
+        @Override
+        public Chunk andNot( Chunk other ) {
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[size];
+            forEach( low -> {
+                if (!other.contains( (char)low )) {
+                    result.values[result.size++] = (char)low;
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Merges the sorted values of this and the other chunk.
+         *
+         * @param onlyThis Keep values that are only in this chunk.
+         * @param onlyOther Keep values that are only in the other chunk.
+         * @param both Keep values that are in both chunks.
+         */
+        protected ArrayChunk merge( ArrayChunk other, boolean onlyThis, boolean onlyOther, boolean both ) {
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[Math.max( 1, size + other.size )];
+            int i = 0, j = 0;
+            while (i < size || j < other.size) {
+                if (j >= other.size || (i < size && values[i] < other.values[j])) {
+                    if (onlyThis) { result.values[result.size++] = values[i]; }
+                    i ++;
+                }
+                else if (i >= size || other.values[j] < values[i]) {
+                    if (onlyOther) { result.values[result.size++] = other.values[j]; }
+                    j ++;
+                }
+                else {
+                    if (both) { result.values[result.size++] = values[i]; }
+                    i ++;
+                    j ++;
+                }
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     * Bitmap of the values of a dense chunk.
+     */
+    protected static class BitmapChunk
+            extends Chunk {
+
+        long[]      words = new long[1 << 10];
+
+        int         cardinality;
+
+        protected void set( int low ) {
+            long before = words[low >>> 6];
+            words[low >>> 6] |= 1L << low;
+            cardinality += words[low >>> 6] != before ? 1 : 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public boolean contains( char low ) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        public Chunk add( char low ) {
+            set( low );
+            return this;
+        }
+
+        @Override
+        public void forEach( IntConsumer consumer ) {
+            for (int w=0; w<words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    consumer.accept( (w << 6) + Long.numberOfTrailingZeros( word ) );
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        protected BitmapChunk toBitmap() {
+            BitmapChunk result = new BitmapChunk();
+            result.words = words.clone();
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        protected BitmapChunk orInPlace( Chunk other ) {
+            if (other instanceof BitmapChunk) {
+                long[] otherWords = ((BitmapChunk)other).words;
+                for (int w=0; w<words.length; w++) {
+                    words[w] |= otherWords[w];
+                }
+                return recount();
+            }
+            other.forEach( low -> set( low ) );
+            return this;
+        }
+
+        protected BitmapChunk andInPlace( Chunk other ) {
+            BitmapChunk bitmap = other instanceof BitmapChunk ? (BitmapChunk)other : other.toBitmap();
+            for (int w=0; w<words.length; w++) {
+                words[w] &= bitmap.words[w];
+            }
+            return recount();
+        }
+
+        protected BitmapChunk andNotInPlace( Chunk other ) {
+            BitmapChunk bitmap = other instanceof BitmapChunk ? (BitmapChunk)other : other.toBitmap();
+            for (int w=0; w<words.length; w++) {
+                words[w] &= ~bitmap.words[w];
+            }
+            return recount();
+        }
+
+        protected BitmapChunk recount() {
+            cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount( word );
+            }
+            return this;
+        }
+
+        @Override
+        protected Chunk shrink() {
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            ArrayChunk result = new ArrayChunk();
+            result.values = new char[Math.max( 1, cardinality )];
+            forEach( low -> result.values[result.size++] = (char)low );
+            return result;
+        }
+    }
+
+}
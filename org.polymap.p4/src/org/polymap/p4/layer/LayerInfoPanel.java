@@ -110,6 +110,8 @@ public class LayerInfoPanel
         dashboard = new Dashboard( getSite(), DASHBOARD_ID ).defaultExpandable.put( true );
         dashboard.addDashlet( new LayerInfoDashlet( layer.get() )
                 .addConstraint( new PriorityConstraint( 100 ) ) );
+        dashboard.addDashlet( new LayerStatisticsDashlet( layer.get() )
+                .addConstraint( new PriorityConstraint( 40 ) ).setExpanded( false ) );
         dashboard.addDashlet( new LayerStyleDashlet( site() )
                 .addConstraint( new PriorityConstraint( 30 ) ).setExpanded( false ) );
         dashboard.addDashlet( new LayerProcessorsDashlet()
@@ -14,6 +14,9 @@
  */
 package org.polymap.p4.layer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -25,7 +28,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Label;
@@ -72,6 +78,7 @@ import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.p4.P4Panel;
 import org.polymap.p4.P4Plugin;
 import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.map.LayerRenderParams;
 
 /**
  * 
@@ -141,7 +148,12 @@ public class LayerProcessorPanel
         
         AtomicBoolean isFirst = new AtomicBoolean( true );
         Class cl = ext.getProcessorType();
-        for (Field f : cl.getDeclaredFields()) {
+        List<Field> fields = new ArrayList( Arrays.asList( cl.getDeclaredFields() ) );
+        // render params of the ProjectWmsServer
+        if (LayerRenderParams.HOLDER.isAssignableFrom( cl )) {
+            fields.addAll( Arrays.asList( LayerRenderParams.class.getDeclaredFields() ) );
+        }
+        for (Field f : fields) {
             Param.UI a = f.getAnnotation( Param.UI.class );
             if (a != null) {
                 try {
@@ -202,6 +214,9 @@ public class LayerProcessorPanel
         else if (Duration.class.isAssignableFrom( param.type() )) {
             supplier = new DurationSupplier();
         }
+        else if (Boolean.class.isAssignableFrom( param.type() )) {
+            supplier = new CheckboxSupplier();
+        }
         else {
             throw new RuntimeException( "Unsupported Param type: " + param.type() );
         }
@@ -270,6 +285,28 @@ public class LayerProcessorPanel
     }
     
 
+    /**
+     * 
+     */
+    class CheckboxSupplier
+            implements Param.UISupplier<Boolean> {
+
+        @Override
+        public Control createContents( Composite parent, Param<Boolean> param, PipelineProcessorSite site ) {
+            Button control = tk().createButton( parent, "", SWT.CHECK );
+            control.setSelection( param.opt( site.params() ).orElse( param.defaultValue().orElse( false ) ) );
+            control.addSelectionListener( new SelectionAdapter() {
+                @Override
+                public void widgetSelected( SelectionEvent ev ) {
+                    param.put( site.params(), control.getSelection() );
+                    notifyChange( CheckboxSupplier.this );
+                }
+            });
+            return control;
+        }
+    }
+    
+    
     /**
      * 
      */
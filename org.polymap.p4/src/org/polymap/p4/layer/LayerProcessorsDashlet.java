@@ -17,6 +17,7 @@ package org.polymap.p4.layer;
 import static org.polymap.core.runtime.event.TypeEventFilter.isType;
 
 import java.util.List;
+import java.util.Optional;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -24,11 +25,18 @@ import org.apache.commons.logging.LogFactory;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Text;
 
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.jface.viewers.ViewerCell;
 import org.eclipse.jface.viewers.ViewerComparator;
 
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.core.data.image.cache304.ImageCacheProcessor;
+
 import org.polymap.core.data.pipeline.Pipeline;
 import org.polymap.core.data.pipeline.PipelineProcessor;
 import org.polymap.core.data.pipeline.ProcessorExtension;
@@ -40,6 +48,7 @@ import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.runtime.i18n.IMessages;
 import org.polymap.core.ui.FormDataFactory;
 import org.polymap.core.ui.FormLayoutFactory;
+import org.polymap.core.ui.StatusDispatcher;
 import org.polymap.core.ui.UIUtils;
 
 import org.polymap.rhei.batik.BatikApplication;
@@ -50,6 +59,7 @@ import org.polymap.rhei.batik.app.SvgImageRegistryHelper;
 import org.polymap.rhei.batik.dashboard.DashletSite;
 import org.polymap.rhei.batik.dashboard.DefaultDashlet;
 import org.polymap.rhei.batik.toolkit.MinWidthConstraint;
+import org.polymap.rhei.batik.toolkit.Snackbar.Appearance;
 import org.polymap.rhei.batik.toolkit.md.ActionProvider;
 import org.polymap.rhei.batik.toolkit.md.FunctionalLabelProvider;
 import org.polymap.rhei.batik.toolkit.md.ListTreeContentProvider;
@@ -59,6 +69,7 @@ import org.polymap.rhei.batik.toolkit.md.MdToolkit;
 import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.p4.Messages;
 import org.polymap.p4.P4Plugin;
+import org.polymap.p4.map.TileSeeder;
 
 /**
  * Configuration of additional {@link PipelineProcessor}s of the render
@@ -91,6 +102,8 @@ public class LayerProcessorsDashlet
     
     private Button                      clearBtn;
     
+    private Button                      seedBtn;
+    
 
     @Override
     public void init( DashletSite site ) {
@@ -109,12 +122,15 @@ public class LayerProcessorsDashlet
         updateEnables();
         
         FormDataFactory.on( list.getTree() ).fill().noBottom().height( 200 );
-        FormDataFactory.on( addBtn ).top( list.getTree() ).left( 5 ).right( 35, -3 ).bottom( 100 );
-        FormDataFactory.on( removeBtn ).top( list.getTree() ).left( 35, 3 ).right( 65, -3 ).bottom( 100 );
-        FormDataFactory.on( clearBtn ).top( list.getTree() ).left( 65, 3 ).right( 95 ).bottom( 100 );
+        FormDataFactory.on( addBtn ).top( list.getTree() ).left( 5 ).right( 35, -3 );
+        FormDataFactory.on( removeBtn ).top( list.getTree() ).left( 35, 3 ).right( 65, -3 );
+        FormDataFactory.on( clearBtn ).top( list.getTree() ).left( 65, 3 ).right( 95 );
+        FormDataFactory.on( seedBtn ).top( addBtn ).left( 5 ).right( 95 ).bottom( 100 );
         
         EventManager.instance().subscribe( this, isType( ProjectNodeCommittedEvent.class, ev ->
                 true /*XXX ev.getEntityId().equals( layer.get().id() )*/ ) );
+        EventManager.instance().subscribe( this, isType( TileSeeder.ProgressEvent.class, ev ->
+                ev.getSource() == TileSeeder.of( layer.get().id() ).orElse( null ) ) );
     }
     
     
@@ -127,6 +143,32 @@ public class LayerProcessorsDashlet
 
     protected void updateEnables() {
         removeBtn.setEnabled( UIUtils.selection( list.getSelection() ).size() > 0 );
+        seedBtn.setEnabled( layer.get().processorConfigs.stream()
+                .anyMatch( config -> config.ext.get()
+                        .map( ext -> ImageCacheProcessor.class.isAssignableFrom( ext.getProcessorType() ) )
+                        .orElse( false ) ) );
+        updateSeedBtn();
+    }
+    
+    
+    protected void updateSeedBtn() {
+        Optional<TileSeeder> seeder = TileSeeder.of( layer.get().id() );
+        if (seeder.isPresent() && seeder.get().getState() != Job.NONE) {
+            seedBtn.setText( "Seeding... " + seeder.get().completed() + "%" );
+            seedBtn.setToolTipText( seeder.get().rendered() + " of " + seeder.get().total() + " tiles rendered. Click to cancel." );
+        }
+        else {
+            seedBtn.setText( "Seed cache..." );
+            seedBtn.setToolTipText( "Pre-render the tiles of this layer in the background" );
+        }
+    }
+    
+    
+    @EventHandler( display=true )
+    protected void onSeedProgress( TileSeeder.ProgressEvent ev ) {
+        if (!seedBtn.isDisposed()) {
+            updateSeedBtn();
+        }
     }
     
     
@@ -135,6 +177,7 @@ public class LayerProcessorsDashlet
         if (!list.getControl().isDisposed()) {
             list.setInput( layer.get().processorConfigs );
             list.refresh();
+            updateEnables();
         }
     }
     
@@ -206,9 +249,124 @@ public class LayerProcessorsDashlet
         clearBtn.addSelectionListener( UIUtils.selectionListener( ev -> {
             clearProcessors();
         }));
+
+        seedBtn = tk.createButton( parent, "Seed cache...", SWT.PUSH );
+        seedBtn.setImage( P4Plugin.images().svgImage( "download-network.svg", SvgImageRegistryHelper.WHITE24 ) );
+        seedBtn.addSelectionListener( UIUtils.selectionListener( ev -> {
+            Optional<TileSeeder> seeder = TileSeeder.of( layer.get().id() );
+            if (seeder.isPresent() && seeder.get().getState() != Job.NONE) {
+                seeder.get().cancel();
+            }
+            else {
+                openSeedDialog();
+            }
+        }));
     }
     
     
+    protected void openSeedDialog() {
+        Text[] zooms = new Text[2];
+        Button[] resume = new Button[1];
+        Label[] error = new Label[1];
+        Runnable validate = () -> {
+            String msg = "";
+            try {
+                if (!resume[0].getSelection()) {
+                    zoomRange( zooms );
+                }
+            }
+            catch (IllegalArgumentException e) {
+                msg = e.getMessage();
+            }
+            error[0].setText( msg );
+            // the OK button is created by the dialog after the contents
+            findButton( error[0].getShell(), "SEED" ).ifPresent( btn -> btn.setEnabled( error[0].getText().isEmpty() ) );
+        };
+        tk.createSimpleDialog( "Seed tile cache" )
+            .setContents( parent -> {
+                parent.setLayout( FormLayoutFactory.defaults().margins( 6 ).spacing( 6 ).create() );
+                Label msg = tk.createLabel( parent, "Pre-renders the tiles of the entire map extent "
+                        + "for the given zoom levels. Tiles are rendered in the background.", SWT.WRAP );
+                Label minLabel = tk.createLabel( parent, "From zoom level" );
+                zooms[0] = tk.createText( parent, "0", SWT.BORDER );
+                Label maxLabel = tk.createLabel( parent, "To zoom level" );
+                zooms[1] = tk.createText( parent, "12", SWT.BORDER );
+                resume[0] = tk.createButton( parent, "Continue last (canceled) seeding", SWT.CHECK );
+                error[0] = tk.createLabel( parent, "", SWT.WRAP );
+                error[0].setForeground( UIUtils.getColor( 0xd0, 0x00, 0x00 ) );
+
+                zooms[0].addModifyListener( ev -> validate.run() );
+                zooms[1].addModifyListener( ev -> validate.run() );
+                resume[0].addSelectionListener( UIUtils.selectionListener( ev -> validate.run() ) );
+
+                FormDataFactory.on( msg ).fill().noBottom().width( 330 );
+                FormDataFactory.on( minLabel ).top( msg ).left( 0 ).right( 50 );
+                FormDataFactory.on( zooms[0] ).top( minLabel ).left( 0 ).right( 50 );
+                FormDataFactory.on( maxLabel ).top( msg ).left( 50 ).right( 100 );
+                FormDataFactory.on( zooms[1] ).top( maxLabel ).left( 50 ).right( 100 );
+                FormDataFactory.on( resume[0] ).top( zooms[0] ).left( 0 ).right( 100 );
+                FormDataFactory.on( error[0] ).top( resume[0] ).left( 0 ).right( 100 ).bottom( 100 );
+            })
+            .addCancelAction()
+            .addOkAction( "SEED", () -> {
+                try {
+                    if (resume[0].getSelection()) {
+                        if (!TileSeeder.resume( layer.get() ).isPresent()) {
+                            tk.createSnackbar( Appearance.FadeIn, "No unfinished seeding for this layer" );
+                        }
+                    }
+                    else {
+                        int[] range = zoomRange( zooms );
+                        TileSeeder.start( layer.get(), layer.get().parentMap.get().maxExtent(), range[0], range[1] );
+                    }
+                    updateSeedBtn();
+                }
+                catch (IllegalArgumentException e) {
+                    StatusDispatcher.handleError( e.getMessage(), e );
+                }
+                return true;
+            })
+            .open();
+    }
+    
+    
+    /**
+     * The min and max zoom level of the given fields.
+     *
+     * @throws IllegalArgumentException If the fields are not numbers or not a
+     *         valid range, see {@link TileSeeder#checkZoomRange(int, int)}.
+     */
+    protected int[] zoomRange( Text[] zooms ) {
+        int[] result = new int[2];
+        for (int i=0; i<2; i++) {
+            try {
+                result[i] = Integer.parseInt( zooms[i].getText().trim() );
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException( "Zoom level is not a number." );
+            }
+        }
+        TileSeeder.checkZoomRange( result[0], result[1] );
+        return result;
+    }
+
+
+    protected Optional<Button> findButton( Composite parent, String text ) {
+        for (Control child : parent.getChildren()) {
+            if (child instanceof Button && text.equalsIgnoreCase( ((Button)child).getText() )) {
+                return Optional.of( (Button)child );
+            }
+            if (child instanceof Composite) {
+                Optional<Button> result = findButton( (Composite)child, text );
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+
     protected void openDialog() {
         tk.createSimpleDialog( "Pipeline processors" )
             .setContents( parent -> {
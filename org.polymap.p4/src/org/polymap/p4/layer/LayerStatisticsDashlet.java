@@ -0,0 +1,118 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.widgets.Composite;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.UIJob;
+import org.polymap.core.runtime.UIThreadExecutor;
+
+import org.polymap.rhei.batik.dashboard.DashletSite;
+import org.polymap.rhei.batik.dashboard.DefaultDashlet;
+import org.polymap.rhei.batik.toolkit.MinWidthConstraint;
+
+import org.polymap.p4.data.FeatureStatistics;
+import org.polymap.p4.data.FeatureStatistics.AttributeStatistics;
+import org.polymap.p4.data.LayerStatistics;
+
+/**
+ * Shows the {@link LayerStatistics} of a layer: the number of features, their
+ * bounds and the value range of every attribute. Waits for the statistics if
+ * they are being computed.
+ *
+ * @author Falko Bräutigam
+ */
+public class LayerStatisticsDashlet
+        extends DefaultDashlet {
+
+    private static final Log log = LogFactory.getLog( LayerStatisticsDashlet.class );
+
+    /** The interval to check if the statistics are computed. */
+    public static final int     POLL_MILLIS = 1000;
+
+    private ILayer              layer;
+
+
+    public LayerStatisticsDashlet( ILayer layer ) {
+        this.layer = layer;
+    }
+
+
+    @Override
+    public void init( DashletSite site ) {
+        super.init( site );
+        site.title.set( "Statistics" );
+        site.constraints.get().add( new MinWidthConstraint( 350, 1 ) );
+    }
+
+
+    @Override
+    public void createContents( Composite parent ) {
+        parent.setLayout( new FillLayout() );
+        new UIJob( "Statistics" ) {
+            @Override
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                LayerStatistics service = LayerStatistics.instance();
+                FeatureStatistics stats = service.statistics( layer ).orElse( null );
+                while (stats == null && service.isComputing( layer ) && !monitor.isCanceled()
+                        && !parent.isDisposed()) {
+                    Thread.sleep( POLL_MILLIS );
+                    stats = service.statistics( layer ).orElse( null );
+                }
+                String text = stats != null ? text( stats ) : "No statistics available for this layer.";
+                UIThreadExecutor.async( () -> {
+                    if (!parent.isDisposed()) {
+                        site().toolkit().createFlowText( parent, text );
+                        parent.layout( true );
+                    }
+                    return null;
+                });
+            }
+        }.scheduleWithUIUpdate();
+    }
+
+
+    protected String text( FeatureStatistics stats ) {
+        StringBuilder result = new StringBuilder( 1024 );
+        result.append( "**Features:** " ).append( stats.count ).append( "\n\n" );
+        if (stats.bounds != null) {
+            result.append( "**Bounds:** " )
+                    .append( stats.bounds.getMinX() ).append( " .. " ).append( stats.bounds.getMaxX() ).append( ", " )
+                    .append( stats.bounds.getMinY() ).append( " .. " ).append( stats.bounds.getMaxY() ).append( "\n\n" );
+        }
+        for (AttributeStatistics attribute : stats.attributes()) {
+            result.append( "* **" ).append( attribute.name ).append( ":** " )
+                    .append( attribute.distinct() ).append( attribute.isTopExact() ? "" : " (ca.)" )
+                    .append( " distinct values" );
+            if (attribute.min != null) {
+                result.append( ", " ).append( attribute.min ).append( " .. " ).append( attribute.max );
+            }
+            if (attribute.nulls > 0) {
+                result.append( ", " ).append( attribute.nulls ).append( " empty" );
+            }
+            result.append( "\n" );
+        }
+        log.debug( "Statistics of " + layer.label.get() + ": " + stats );
+        return result.toString();
+    }
+
+}
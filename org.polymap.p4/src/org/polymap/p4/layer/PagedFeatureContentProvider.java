@@ -0,0 +1,196 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.layer;
+
+import java.util.Optional;
+
+import java.io.IOException;
+
+import org.geotools.data.FeatureSource;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortOrder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.jface.viewers.ILazyContentProvider;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import org.polymap.core.runtime.UIJob;
+
+import org.polymap.rhei.table.IFeatureTableElement;
+
+/**
+ * Lazy content provider of a {@link FeatureSource} that pages through the
+ * features sorted on the backend via {@link FeaturePager}. Just the visible
+ * rows are fetched; the {@link FeaturePager#scanKeys(IProgressMonitor) keys} of
+ * the sort property are scanned in the background.
+ *
+ * @author Falko Bräutigam
+ */
+public class PagedFeatureContentProvider
+        implements ILazyContentProvider {
+
+    private static final Log log = LogFactory.getLog( PagedFeatureContentProvider.class );
+
+    private TableViewer         viewer;
+
+    private FeatureSource       fs;
+
+    private Filter              filter = Filter.INCLUDE;
+
+    private String              sortProp;
+
+    private SortOrder           sortOrder = SortOrder.ASCENDING;
+
+    private FeaturePager        pager;
+
+    private UIJob               scan;
+
+
+    @Override
+    public void inputChanged( Viewer newViewer, Object oldInput, Object newInput ) {
+        this.viewer = (TableViewer)newViewer;
+        this.fs = (FeatureSource)newInput;
+        refresh();
+    }
+
+
+    @Override
+    public void dispose() {
+        if (scan != null) {
+            scan.cancel();
+        }
+    }
+
+
+    public void filter( Filter newFilter ) {
+        this.filter = newFilter;
+        refresh();
+    }
+
+
+    public void sort( String newSortProp, SortOrder newSortOrder ) {
+        this.sortProp = newSortProp;
+        this.sortOrder = newSortOrder;
+        refresh();
+    }
+
+
+    /**
+     * Re-reads the features from the backend.
+     */
+    public void refresh() {
+        if (viewer == null || fs == null || sortProp == null) {
+            return;
+        }
+        if (scan != null) {
+            scan.cancel();
+        }
+        try {
+            pager = new FeaturePager( fs, filter, sortProp, sortOrder );
+        }
+        catch (IOException e) {
+            throw new RuntimeException( e );
+        }
+        FeaturePager scanned = pager;
+        scan = new UIJob( "Table keys" ) {
+            @Override
+            protected void runWithException( IProgressMonitor monitor ) throws Exception {
+                scanned.scanKeys( monitor );
+            }
+        };
+        scan.schedule();
+
+        viewer.setItemCount( pager.size() );
+        viewer.refresh();
+    }
+
+
+    @Override
+    public void updateElement( int index ) {
+        try {
+            viewer.replace( new FeatureElement( pager.row( index ) ), index );
+        }
+        catch (IOException e) {
+            log.warn( "", e );
+        }
+    }
+
+
+    /**
+     * The row of the feature with the given id, or -1 if there is no such
+     * feature.
+     */
+    public int indexOfFid( String fid ) throws IOException {
+        return pager != null ? pager.rowOf( fid ) : -1;
+    }
+
+
+    /**
+     * Element of the table. Elements are equal if their features have the same
+     * id, so that the selection is preserved across refreshs.
+     */
+    protected static class FeatureElement
+            implements IFeatureTableElement {
+
+        private Feature     feature;
+
+        public FeatureElement( Feature feature ) {
+            this.feature = feature;
+        }
+
+        @Override
+        public Object getValue( String name ) {
+            Property prop = feature.getProperty( name );
+            return prop != null ? prop.getValue() : null;
+        }
+
+        @Override
+        public void setValue( String name, Object value ) {
+            feature.getProperty( name ).setValue( value );
+        }
+
+        @Override
+        public String fid() {
+            return feature.getIdentifier().getID();
+        }
+
+        @Override
+        public <T> Optional<T> unwrap( Class<T> targetClass ) {
+            return targetClass.isInstance( feature ) ? Optional.of( (T)feature ) : Optional.empty();
+        }
+
+        @Override
+        public int hashCode() {
+            return fid().hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            return obj instanceof FeatureElement && ((FeatureElement)obj).fid().equals( fid() );
+        }
+
+        @Override
+        public String toString() {
+            return "FeatureElement[" + fid() + "]";
+        }
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.RadialGradientPaint;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.operation.MathTransform;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.data.PointCountIndex;
+import org.polymap.p4.data.PointCountIndexes;
+import org.polymap.p4.data.PointCountIndexes.Indexed;
+
+/**
+ * Renders the points of a layer aggregated into screen space cells, out of the
+ * {@link PointCountIndex} of the layer, without reading the features. The cost
+ * depends on the number of cells of a tile only, not on the number of points.
+ * <p/>
+ * Cells are aligned to a global pixel grid of the zoom level, so that cells
+ * do not change between tiles. Modes ({@link LayerRenderParams#AGGREGATION}):
+ * <ul>
+ * <li>{@link #CLUSTERS}: a circle with the number of points per square cell</li>
+ * <li>{@link #HEXBINS}: hexagonal cells filled by the number of points</li>
+ * <li>{@link #HEATMAP}: smooth density of the points</li>
+ * </ul>
+ *
+ * @author Falko Bräutigam
+ */
+public class AggregationRenderer {
+
+    public static final String      NONE = "none";
+
+    public static final String      CLUSTERS = "clusters";
+
+    public static final String      HEXBINS = "hexbins";
+
+    public static final String      HEATMAP = "heatmap";
+
+    /** Number of points of a cell that gets the last color of the ramp. */
+    public static final int         SATURATION = 10000;
+
+    private static final Color[]    RAMP = {
+            new Color( 0x31, 0x82, 0xbd ), new Color( 0x41, 0xb6, 0xc4 ),
+            new Color( 0xfe, 0xd9, 0x76 ), new Color( 0xf0, 0x3b, 0x20 ) };
+
+
+    /**
+     * The aggregation mode of the given layer for the given request.
+     *
+     * @return The mode, or {@link Optional#empty()} if the points are rendered
+     *         as they are.
+     */
+    public static Optional<String> mode( ILayer layer, TileRequest request ) {
+        String mode = LayerRenderParams.value( LayerRenderParams.AGGREGATION, layer );
+        if (mode == null || NONE.equals( mode )) {
+            return Optional.empty();
+        }
+        int minScale = LayerRenderParams.value( LayerRenderParams.AGGREGATION_SCALE, layer );
+        return request.scaleDenominator() >= minScale ? Optional.of( mode ) : Optional.empty();
+    }
+
+
+    /**
+     * Renders the aggregated points of the given layer.
+     *
+     * @return The image, or {@link Optional#empty()} if the index of the layer is
+     *         not yet available or if it is too coarse for the request.
+     */
+    public static Optional<BufferedImage> render( ILayer layer, TileRequest request, String mode ) throws Exception {
+        Optional<Indexed> indexed = PointCountIndexes.instance().index( layer );
+        if (!indexed.isPresent()) {
+            return Optional.empty();
+        }
+        int cellSize = (int)Math.round( LayerRenderParams.value( LayerRenderParams.AGGREGATION_CELL_SIZE, layer )
+                * request.pixelRatio() );
+        return new AggregationRenderer( indexed.get(), request, mode, Math.max( 4, cellSize ) ).render();
+    }
+
+
+    /**
+     * One cell of the screen.
+     */
+    protected static class Bin {
+
+        /** Sum of the global pixel coordinates of the points. */
+        double      sumX, sumY;
+
+        long        count;
+    }
+
+
+    // instance *******************************************
+
+    private Indexed             indexed;
+
+    private TileRequest         request;
+
+    private String              mode;
+
+    /** The side of a cell, in pixels of the image. */
+    private int                 cellSize;
+
+    private double              resolution;
+
+
+    protected AggregationRenderer( Indexed indexed, TileRequest request, String mode, int cellSize ) {
+        this.indexed = indexed;
+        this.request = request;
+        this.mode = mode;
+        this.cellSize = HEATMAP.equals( mode ) ? Math.max( 2, cellSize / 4 ) : cellSize;
+        this.resolution = request.resolution();
+    }
+
+
+    protected Optional<BufferedImage> render() throws Exception {
+        PointCountIndex index = indexed.index;
+
+        // the cells of the tile and the cells of the neighbours that reach into it
+        ReferencedEnvelope area = request.bounds();
+        int buffer = HEATMAP.equals( mode ) ? cellSize * 4 : cellSize;
+        area.expandBy( buffer * resolution );
+        boolean transform = indexed.crs != null && !CRS.equalsIgnoreMetadata( indexed.crs, area.getCoordinateReferenceSystem() );
+        ReferencedEnvelope dataArea = transform ? area.transform( indexed.crs, true ) : area;
+
+        // index level with cells of at most half a screen cell
+        double cells = area.getWidth() / resolution / cellSize;
+        int level = index.level( dataArea.getWidth() / cells / 2 );
+        if (level < 0) {
+            return Optional.empty();
+        }
+
+        // bin
+        MathTransform toRequest = transform
+                ? CRS.findMathTransform( indexed.crs, area.getCoordinateReferenceSystem(), true ) : null;
+        Map<Long,Bin> bins = new HashMap( 1024 );
+        double[] point = new double[2];
+        Exception[] failed = new Exception[1];
+        index.query( dataArea, level, cell -> {
+            point[0] = cell.x;
+            point[1] = cell.y;
+            if (toRequest != null) {
+                try {
+                    toRequest.transform( point, 0, point, 0, 1 );
+                }
+                catch (Exception e) {
+                    failed[0] = e;
+                    return;
+                }
+            }
+            double gx = point[0] / resolution, gy = point[1] / resolution;
+            Bin bin = bins.computeIfAbsent( binKey( gx, gy ), k -> new Bin() );
+            bin.sumX += gx * cell.count;
+            bin.sumY += gy * cell.count;
+            bin.count += cell.count;
+        });
+        if (failed[0] != null && bins.isEmpty()) {
+            throw failed[0];
+        }
+
+        // draw
+        BufferedImage result = new BufferedImage( request.width(), request.height(), BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setRenderingHint( RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON );
+            g.setRenderingHint( RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON );
+            double originX = request.bounds().getMinX() / resolution;
+            double originY = request.bounds().getMaxY() / resolution;
+            if (HEATMAP.equals( mode )) {
+                drawHeatmap( g, bins, originX, originY );
+                colorize( result );
+            }
+            else {
+                for (Map.Entry<Long,Bin> entry : bins.entrySet()) {
+                    Bin bin = entry.getValue();
+                    if (HEXBINS.equals( mode )) {
+                        Point2D center = hexCenter( entry.getKey() );
+                        drawHex( g, center.getX() - originX, originY - center.getY(), bin.count );
+                    }
+                    else {
+                        drawCluster( g, bin.sumX / bin.count - originX, originY - bin.sumY / bin.count, bin.count );
+                    }
+                }
+            }
+        }
+        finally {
+            g.dispose();
+        }
+        return Optional.of( result );
+    }
+
+
+    /**
+     * The key of the cell of the given global pixel position.
+     */
+    protected long binKey( double gx, double gy ) {
+        long col, row;
+        if (HEXBINS.equals( mode )) {
+            // pointy top hexagons, axial coordinates
+            double size = cellSize / Math.sqrt( 3 );
+            double q = (Math.sqrt( 3 ) / 3 * gx - 1d / 3 * gy) / size;
+            double r = (2d / 3 * gy) / size;
+            double s = -q - r;
+            long rq = Math.round( q ), rr = Math.round( r ), rs = Math.round( s );
+            double dq = Math.abs( rq - q ), dr = Math.abs( rr - r ), ds = Math.abs( rs - s );
+            if (dq > dr && dq > ds) {
+                rq = -rr - rs;
+            }
+            else if (dr > ds) {
+                rr = -rq - rs;
+            }
+            col = rq;
+            row = rr;
+        }
+        else {
+            col = (long)Math.floor( gx / cellSize );
+            row = (long)Math.floor( gy / cellSize );
+        }
+        return (col << 32) ^ (row & 0xffffffffL);
+    }
+
+
+    /**
+     * The global pixel position of the center of the given hexagon.
+     */
+    protected Point2D hexCenter( long key ) {
+        long q = key >> 32;
+        long r = (int)key;
+        double size = cellSize / Math.sqrt( 3 );
+        return new Point2D.Double( size * Math.sqrt( 3 ) * (q + r / 2d), size * 1.5 * r );
+    }
+
+
+    protected void drawCluster( Graphics2D g, double x, double y, long count ) {
+        double radius = Math.min( cellSize / 2d, cellSize / 8d + Math.log10( count ) * cellSize / 10d );
+        g.setColor( color( count, 220 ) );
+        g.fill( new Ellipse2D.Double( x - radius, y - radius, radius * 2, radius * 2 ) );
+        g.setColor( Color.WHITE );
+        g.setStroke( new BasicStroke( (float)Math.max( 1, cellSize / 32d ) ) );
+        g.draw( new Ellipse2D.Double( x - radius, y - radius, radius * 2, radius * 2 ) );
+        if (count > 1) {
+            String label = count < 10000 ? String.valueOf( count ) : (count / 1000) + "k";
+            g.setFont( new Font( Font.SANS_SERIF, Font.BOLD, Math.max( 8, cellSize / 5 ) ) );
+            FontMetrics metrics = g.getFontMetrics();
+            g.drawString( label, (float)(x - metrics.stringWidth( label ) / 2d), (float)(y + metrics.getAscent() / 2d - 1) );
+        }
+    }
+
+
+    protected void drawHex( Graphics2D g, double x, double y, long count ) {
+        double size = cellSize / Math.sqrt( 3 );
+        Polygon hex = new Polygon();
+        for (int i=0; i<6; i++) {
+            double angle = Math.toRadians( 60 * i - 30 );
+            hex.addPoint( (int)Math.round( x + size * Math.cos( angle ) ), (int)Math.round( y + size * Math.sin( angle ) ) );
+        }
+        g.setColor( color( count, 180 ) );
+        g.fill( hex );
+    }
+
+
+    /**
+     * Draws the density of the bins into the alpha channel.
+     */
+    protected void drawHeatmap( Graphics2D g, Map<Long,Bin> bins, double originX, double originY ) {
+        float radius = cellSize * 3;
+        for (Bin bin : bins.values()) {
+            double x = bin.sumX / bin.count - originX;
+            double y = originY - bin.sumY / bin.count;
+            float intensity = (float)Math.min( 1, 0.15 + Math.log10( bin.count ) / Math.log10( SATURATION ) );
+            g.setComposite( AlphaComposite.getInstance( AlphaComposite.SRC_OVER, intensity ) );
+            g.setPaint( new RadialGradientPaint( (float)x, (float)y, radius, new float[] {0f, 1f},
+                    new Color[] {Color.BLACK, new Color( 0, 0, 0, 0 )} ) );
+            g.fill( new Ellipse2D.Double( x - radius, y - radius, radius * 2, radius * 2 ) );
+        }
+    }
+
+
+    /**
+     * Maps the alpha of every pixel to the color ramp.
+     */
+    protected void colorize( BufferedImage image ) {
+        int[] pixels = image.getRGB( 0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth() );
+        for (int i=0; i<pixels.length; i++) {
+            int alpha = pixels[i] >>> 24;
+            if (alpha > 0) {
+                Color color = ramp( alpha / 255d );
+                pixels[i] = (Math.min( 255, alpha * 2 ) << 24) | (color.getRGB() & 0xffffff);
+            }
+        }
+        image.setRGB( 0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth() );
+    }
+
+
+    protected Color color( long count, int alpha ) {
+        Color color = ramp( Math.min( 1, Math.log10( count ) / Math.log10( SATURATION ) ) );
+        return new Color( color.getRed(), color.getGreen(), color.getBlue(), alpha );
+    }
+
+
+    /**
+     * The color of the given fraction (0..1) of the ramp.
+     */
+    protected static Color ramp( double fraction ) {
+        double pos = Math.max( 0, Math.min( 1, fraction ) ) * (RAMP.length - 1);
+        int i = Math.min( RAMP.length - 2, (int)pos );
+        double f = pos - i;
+        Color c1 = RAMP[i], c2 = RAMP[i + 1];
+        return new Color(
+                (int)Math.round( c1.getRed() + (c2.getRed() - c1.getRed()) * f ),
+                (int)Math.round( c1.getGreen() + (c2.getGreen() - c1.getGreen()) * f ),
+                (int)Math.round( c1.getBlue() + (c2.getBlue() - c1.getBlue()) * f ) );
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+
+import com.google.common.base.Throwables;
+import com.vividsolutions.jts.geom.Envelope;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.PipelinePool;
+
+/**
+ * JVM wide cache of the extents of layers: the bounds of the data and the range
+ * of scales the style draws anything at. The {@link TileRenderer} uses this to
+ * answer requests that cannot show anything with an empty tile, without asking
+ * the pipeline.
+ * <p/>
+ * Extents are keyed by {@link PipelinePool#fingerprint(ILayer)}, so changing the
+ * style or the pipeline creates a new extent. The bounds are dropped when features
+ * are committed.
+ *
+ * @author Falko Bräutigam
+ */
+public class LayerExtents {
+
+    private static final Log log = LogFactory.getLog( LayerExtents.class );
+
+    /**
+     * Symbols and labels may be drawn outside the data bounds; this many pixels
+     * around a tile are checked too.
+     */
+    public static final int             SYMBOL_BUFFER = 64;
+
+    private static final LayerExtents   instance = new LayerExtents();
+
+    public static LayerExtents instance() {
+        return instance;
+    }
+
+
+    /**
+     * The extent of one layer.
+     */
+    public static class Extent {
+
+        /** The bounds of the data, or null if unknown (no features, no bounds). */
+        public ReferencedEnvelope       bounds;
+
+        /** The bounds transformed into the CRS of requests, by SRS. */
+        protected Map<String,Optional<ReferencedEnvelope>> transformed = new ConcurrentHashMap();
+
+        /** The min scale denominator the style draws at, inclusive. */
+        public double                   minScale = 0;
+
+        /** The max scale denominator the style draws at, exclusive. */
+        public double                   maxScale = Double.POSITIVE_INFINITY;
+
+        /**
+         * True if a tile of the given request certainly shows nothing.
+         */
+        public boolean isEmpty( TileRequest request ) {
+            double scale = request.scaleDenominator();
+            if (scale < minScale || scale >= maxScale) {
+                return true;
+            }
+            if (bounds == null) {
+                return false;
+            }
+            Optional<ReferencedEnvelope> dataBounds = transformed.computeIfAbsent( request.srs(), srs -> {
+                try {
+                    return Optional.of( bounds.transform( request.bounds().getCoordinateReferenceSystem(), true ) );
+                }
+                catch (Exception e) {
+                    log.debug( "Unable to transform bounds into: " + srs );
+                    return Optional.empty();
+                }
+            });
+            if (!dataBounds.isPresent()) {
+                return false;
+            }
+            ReferencedEnvelope tile = request.bounds();
+            tile.expandBy( SYMBOL_BUFFER * request.pixelRatio() * request.resolution() );
+            return !tile.intersects( (Envelope)dataBounds.get() );
+        }
+    }
+
+
+    // instance *******************************************
+
+    /** Extents by {@link PipelinePool#fingerprint(ILayer)}. */
+    private Map<String,Extent>          extents = new ConcurrentHashMap();
+
+    /** The extents currently being computed. */
+    private SingleFlight<String,Extent> computing = new SingleFlight();
+
+    /** Incremented when the {@link #extents} are dropped. */
+    private AtomicLong                  commits = new AtomicLong();
+
+
+    protected LayerExtents() {
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev ->
+                ev.getType() == Type.COMMIT ) );
+    }
+
+
+    /**
+     * Features have been committed. We don't know which layers are affected, so
+     * all extents are dropped.
+     */
+    @EventHandler
+    protected void onFeatureCommit( FeatureEvent ev ) {
+        commits.incrementAndGet();
+        extents.clear();
+    }
+
+
+    /**
+     * True if a tile of the given request of the given layer certainly shows
+     * nothing.
+     */
+    public boolean isEmpty( ILayer layer, TileRequest request ) {
+        String key = PipelinePool.fingerprint( layer );
+        Extent extent = extents.get( key );
+        if (extent == null) {
+            // concurrent requests wait for one computation
+            try {
+                extent = computing.execute( key, () -> {
+                    Extent computed = extents.get( key );
+                    if (computed == null) {
+                        long before = commits.get();
+                        computed = extent( layer );
+                        // not if features have been committed while computing
+                        if (commits.get() == before) {
+                            extents.put( key, computed );
+                        }
+                    }
+                    return computed;
+                });
+            }
+            catch (Exception e) {
+                throw Throwables.propagate( e );
+            }
+        }
+        return extent.isEmpty( request );
+    }
+
+
+    protected Extent extent( ILayer layer ) {
+        Extent result = new Extent();
+        try {
+            // scale range of the style
+            Style style = layer.styleIdentifier.opt()
+                    .flatMap( styleId -> P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class ) )
+                    .orElse( null );
+            if (style != null) {
+                double min = Double.POSITIVE_INFINITY, max = 0;
+                for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+                    for (Rule rule : fts.rules()) {
+                        if (!rule.symbolizers().isEmpty()) {
+                            min = Math.min( min, rule.getMinScaleDenominator() );
+                            max = Math.max( max, rule.getMaxScaleDenominator() );
+                        }
+                    }
+                }
+                if (min <= max) {
+                    result.minScale = min;
+                    result.maxScale = max;
+                }
+            }
+
+            // bounds of the features
+            DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, new NullProgressMonitor() ).orElse( null );
+            if (dsd != null && dsd.service.get() instanceof DataAccess) {
+                FeatureSource fs = ((DataAccess)dsd.service.get()).getFeatureSource( new NameImpl( dsd.resourceName.get() ) );
+                ReferencedEnvelope bounds = fs.getBounds();
+                result.bounds = bounds != null && !bounds.isEmpty() ? bounds : null;
+            }
+            log.debug( "Extent of " + layer.label.get() + ": " + result.bounds + ", scale: " + result.minScale + " - " + result.maxScale );
+        }
+        catch (Exception e) {
+            log.warn( "Unable to compute extent of: " + layer.label.get(), e );
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.time.Duration;
+
+import org.polymap.core.data.image.cache304.ImageCacheProcessor;
+import org.polymap.core.data.pipeline.Param;
+import org.polymap.core.data.pipeline.PipelineProcessorSite.Params;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.ILayer.ProcessorConfig;
+
+import org.polymap.p4.layer.LayerProcessorPanel;
+
+/**
+ * Render params of a layer that are handled by the {@link ProjectWmsServer} and
+ * the {@link TileRenderer} rather than by a processor of the pipeline.
+ * <p/>
+ * The params are stored along with the params of the {@link ImageCacheProcessor}
+ * of the layer, as they are meaningful for tiled/cached layers only. The
+ * {@link LayerProcessorPanel} shows them in the UI of this processor.
+ *
+ * @author Falko Bräutigam
+ */
+public class LayerRenderParams {
+
+    @Param.UI( description="Number of tiles per side of a metatile. A metatile is rendered in one pass and then sliced into tiles. 1 disables metatiling." )
+    public static final Param<Integer>  METATILES = new Param( "metatiles", Integer.class, 1 );
+
+    @Param.UI( description="How long browsers may use a tile without asking the server. After that, an unchanged tile costs a short \"304 Not Modified\" response. Default: 0 (always ask)" )
+    public static final Param<Duration> MAX_AGE = new Param( "maxAge", Duration.class, Duration.ZERO );
+
+    @Param.UI( description="Number of precomputed generalization levels of the geometries, used to render low zoom levels. Levels are built in the background on first use. 0 disables generalization." )
+    public static final Param<Integer>  GENERALIZATION_LEVELS = new Param( "generalizationLevels", Integer.class, 0 );
+
+    @Param.UI( description="The image format of the tiles: \"auto\" (choose by style), \"image/png\", \"image/png8\" (palette, for flat colors), \"image/webp\" (if supported), \"image/jpeg\". Default: auto" )
+    public static final Param<String>   FORMAT = new Param( "format", String.class, TileEncoder.AUTO );
+
+    @Param.UI( description="Answer tiles that are not cached yet with a fast draft (coarse, no labels) first. The full tile is rendered in the background and the map is refreshed when it is ready." )
+    public static final Param<Boolean>  PROGRESSIVE = new Param( "progressive", Boolean.class, false );
+
+    @Param.UI( description="Render the points of the layer aggregated at low zoom levels: \"none\", \"clusters\", \"hexbins\" or \"heatmap\". Aggregates are computed from a count index that is built in the background on first use. Default: none" )
+    public static final Param<String>   AGGREGATION = new Param( "aggregation", String.class, AggregationRenderer.NONE );
+
+    @Param.UI( description="Points are aggregated at this scale (1:n) and smaller scales." )
+    public static final Param<Integer>  AGGREGATION_SCALE = new Param( "aggregationScale", Integer.class, 100000 );
+
+    @Param.UI( description="The size of the cells points are aggregated into, in pixels." )
+    public static final Param<Integer>  AGGREGATION_CELL_SIZE = new Param( "aggregationCellSize", Integer.class, 64 );
+
+    /** The processor which holds the params in its config. */
+    public static final Class<?>        HOLDER = ImageCacheProcessor.class;
+
+
+    /**
+     * All params of all {@link ILayer#processorConfigs} of the given layer.
+     */
+    public static Params of( ILayer layer ) {
+        Params result = new Params();
+        for (ProcessorConfig config : layer.processorConfigs) {
+            result.putAll( config.params() );
+        }
+        return result;
+    }
+
+
+    /**
+     * The value of the given param, or its default value.
+     */
+    public static <T> T value( Param<T> param, Params params ) {
+        return param.opt( params ).orElse( param.defaultValue().orElse( null ) );
+    }
+
+
+    /**
+     * The value of the given param of the given layer, or its default value.
+     */
+    public static <T> T value( Param<T> param, ILayer layer ) {
+        return value( param, of( layer ) );
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.core.data.util.Geometries;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.project.ProjectRepository;
+
+/**
+ * Background job that exports a map extent as a (big) GeoTIFF image, for
+ * printing. The image is split into tiles of {@link #TILE_SIZE} pixels. Tiles
+ * are rendered in parallel on {@link #THREADS} threads, each layer through the
+ * {@link TileRenderer} and the pipeline of the layer, and are then composed
+ * bottom layer first.
+ * <p/>
+ * Rendered tiles are buffered in temporary files; the GeoTIFF writer reads them
+ * tile by tile while rendering goes on. So neither the full raster nor all tiles
+ * are in memory at any time. Tiles are rendered via the {@link RenderScheduler}
+ * under their own user, so that interactive clients still get their share.
+ * <p/>
+ * The job publishes {@link ProgressEvent}s about once per second.
+ *
+ * @author Falko Bräutigam
+ */
+public class MapExport
+        extends Job {
+
+    private static final Log log = LogFactory.getLog( MapExport.class );
+
+    /** The size of the rendered tiles, in pixels. */
+    public static final int         TILE_SIZE = 1024;
+
+    /** The size of the tiles of the GeoTIFF, in pixels. */
+    public static final int         TIFF_TILE_SIZE = 512;
+
+    /** Max number of tiles that are rendered concurrently by one job. */
+    public static final int         THREADS = TileSeeder.THREADS;
+
+    /** The user of the {@link RenderScheduler} exports are rendered for. */
+    public static final String      SCHEDULER_USER = "MapExport";
+
+    /**
+     * Fired while a {@link MapExport} is running and when it has finished.
+     */
+    public static class ProgressEvent
+            extends EventObject {
+
+        public ProgressEvent( MapExport source ) {
+            super( source );
+        }
+
+        @Override
+        public MapExport getSource() {
+            return (MapExport)super.getSource();
+        }
+    }
+
+
+    /**
+     * Starts a new export.
+     *
+     * @param layers The layers to render, bottom layer first.
+     * @param bounds The area to export.
+     * @param width The width of the image, in pixels.
+     * @param dpi The resolution of the print; symbols and labels are scaled
+     *        accordingly.
+     * @param target The GeoTIFF file to write.
+     * @return The newly created and scheduled job.
+     */
+    public static MapExport start( List<ILayer> layers, ReferencedEnvelope bounds, int width, int dpi, File target ) {
+        int height = (int)Math.round( width * bounds.getHeight() / bounds.getWidth() );
+        MapExport result = new MapExport( layers, bounds, width, height, (double)dpi / TileRequest.DEFAULT_DPI, target );
+        result.schedule();
+        return result;
+    }
+
+
+    // instance *******************************************
+
+    private List<String>        layerIds = new ArrayList();
+
+    private ReferencedEnvelope  bounds;
+
+    private int                 width, height;
+
+    private double              pixelRatio;
+
+    private File                target;
+
+    private AtomicInteger       rendered = new AtomicInteger();
+
+    private volatile int        total;
+
+    private Timer               updated = new Timer();
+
+
+    protected MapExport( List<ILayer> layers, ReferencedEnvelope bounds, int width, int height,
+            double pixelRatio, File target ) {
+        super( "Exporting map: " + target.getName() );
+        layers.forEach( layer -> layerIds.add( (String)layer.id() ) );
+        this.bounds = bounds;
+        this.width = width;
+        this.height = height;
+        this.pixelRatio = pixelRatio;
+        this.target = target;
+        setPriority( Job.LONG );
+        setSystem( false );
+    }
+
+
+    public File target() {
+        return target;
+    }
+
+    /**
+     * Percent of tiles that have been rendered so far.
+     */
+    public int completed() {
+        return total > 0 ? 100 * rendered.get() / total : 0;
+    }
+
+
+    @Override
+    protected IStatus run( IProgressMonitor monitor ) {
+        Timer timer = new Timer();
+        UnitOfWork uow = ProjectRepository.newUnitOfWork();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS, r -> {
+            Thread thread = new Thread( r, "MapExport-" + threadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+            return thread;
+        });
+        File tmpDir = null;
+        try {
+            tmpDir = Files.createTempDirectory( "p4-export" ).toFile();
+            List<ILayer> layers = new ArrayList();
+            layerIds.forEach( id -> layers.add( uow.entity( ILayer.class, id ) ) );
+
+            // render tiles in the order the writer reads them
+            int cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            total = cols * rows;
+            monitor.beginTask( getName(), total );
+            Future<File>[][] tiles = new Future[rows][cols];
+            for (int row=0; row<rows; row++) {
+                for (int col=0; col<cols; col++) {
+                    File file = new File( tmpDir, col + "-" + row + ".png" );
+                    TileRequest request = tileRequest( col, row );
+                    tiles[row][col] = executor.submit( () -> {
+                        if (monitor.isCanceled()) {
+                            throw new CancellationException( "Export was canceled." );
+                        }
+                        renderTile( layers, request, file );
+                        monitor.worked( 1 );
+                        rendered.incrementAndGet();
+                        update( true );
+                        return file;
+                    });
+                }
+            }
+
+            // write while tiles are rendering
+            GridCoverage2D coverage = new GridCoverageFactory().create( target.getName(),
+                    new TilesImage( tiles, width, height ), bounds );
+            writeGeotiff( coverage, target );
+            log.info( getName() + ": " + width + "x" + height + " pixels, " + total + " tiles, " + timer.elapsedTime() + "ms" );
+            return Status.OK_STATUS;
+        }
+        catch (Exception e) {
+            target.delete();
+            if (monitor.isCanceled() || Throwables.getRootCause( e ) instanceof CancellationException) {
+                return Status.CANCEL_STATUS;
+            }
+            log.warn( "", e );
+            return new Status( IStatus.ERROR, P4Plugin.ID, "Exporting map failed.", Throwables.getRootCause( e ) );
+        }
+        finally {
+            executor.shutdownNow();
+            uow.close();
+            FileUtils.deleteQuietly( tmpDir );
+            monitor.done();
+            update( false );
+        }
+    }
+
+
+    /**
+     * The request of the given tile, with the layer and the style set per layer
+     * by {@link #renderTile(List, TileRequest, File)}.
+     */
+    protected TileRequest tileRequest( int col, int row ) {
+        double resX = bounds.getWidth() / width;
+        double resY = bounds.getHeight() / height;
+        double minX = bounds.getMinX() + col * TILE_SIZE * resX;
+        double maxY = bounds.getMaxY() - row * TILE_SIZE * resY;
+        return new TileRequest( "", "", Geometries.srs( bounds.getCoordinateReferenceSystem() ),
+                TileRequest.DEFAULT_FORMAT, TILE_SIZE, TILE_SIZE,
+                minX, maxY - TILE_SIZE * resY, minX + TILE_SIZE * resX, maxY, pixelRatio );
+    }
+
+
+    /**
+     * Renders the given layers and writes the composed tile into the given file.
+     */
+    protected void renderTile( List<ILayer> layers, TileRequest request, File file ) throws Exception {
+        BufferedImage result = new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR );
+        Graphics2D g = result.createGraphics();
+        try {
+            for (ILayer layer : layers) {
+                TileRequest layerRequest = request.withLayer( (String)layer.id(), ProjectLayerProvider.styleHash( layer ) );
+                byte[] encoded = RenderScheduler.instance().execute( SCHEDULER_USER, () ->
+                        TileRenderer.instance().render( layer, layerRequest ) );
+                BufferedImage image = ImageIO.read( new ByteArrayInputStream( encoded ) );
+                if (image != null) {
+                    g.drawImage( image, 0, 0, null );
+                }
+            }
+        }
+        finally {
+            g.dispose();
+        }
+        ImageIO.write( result, "png", file );
+    }
+
+
+    protected void writeGeotiff( GridCoverage2D coverage, File toFile ) throws Exception {
+        GeoTiffFormat format = new GeoTiffFormat();
+        GeoTiffWriteParams wp = new GeoTiffWriteParams();
+        wp.setCompressionMode( GeoTiffWriteParams.MODE_EXPLICIT );
+        wp.setCompressionType( "Deflate" );
+        wp.setTilingMode( GeoToolsWriteParams.MODE_EXPLICIT );
+        wp.setTiling( TIFF_TILE_SIZE, TIFF_TILE_SIZE );
+        ParameterValueGroup paramWrite = format.getWriteParameters();
+        paramWrite.parameter( AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString() ).setValue( wp );
+        GeoTiffWriter gtw = (GeoTiffWriter)format.getWriter( toFile );
+        try {
+            gtw.write( coverage, (GeneralParameterValue[])paramWrite.values().toArray( new GeneralParameterValue[1] ) );
+        }
+        finally {
+            gtw.dispose();
+        }
+    }
+
+
+    protected void update( boolean throttle ) {
+        if (throttle && updated.elapsedTime() < 1000) {
+            return;
+        }
+        updated.start();
+        EventManager.instance().publish( new ProgressEvent( this ) );
+    }
+
+
+    /**
+     * The tiled image of the export. A tile is read from its file when the
+     * writer requests it, waiting for it to be rendered if necessary.
+     */
+    protected static class TilesImage
+            extends PlanarImage {
+
+        private static final BufferedImage PROTOTYPE = new BufferedImage( 1, 1, BufferedImage.TYPE_4BYTE_ABGR );
+
+        private Future<File>[][]    tiles;
+
+        public TilesImage( Future<File>[][] tiles, int width, int height ) {
+            super( new ImageLayout( 0, 0, width, height, 0, 0, TILE_SIZE, TILE_SIZE,
+                    PROTOTYPE.getSampleModel().createCompatibleSampleModel( TILE_SIZE, TILE_SIZE ),
+                    PROTOTYPE.getColorModel() ), null, null );
+            this.tiles = tiles;
+        }
+
+        @Override
+        public Raster getTile( int tileX, int tileY ) {
+            try {
+                BufferedImage image = ImageIO.read( tiles[tileY][tileX].get() );
+                if (image.getType() != BufferedImage.TYPE_4BYTE_ABGR) {
+                    BufferedImage converted = new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR );
+                    Graphics2D g = converted.createGraphics();
+                    g.drawImage( image, 0, 0, null );
+                    g.dispose();
+                    image = converted;
+                }
+                return image.getRaster().createTranslatedChild( tileXToX( tileX ), tileYToY( tileY ) );
+            }
+            catch (ExecutionException e) {
+                throw Throwables.propagate( e.getCause() );
+            }
+            catch (InterruptedException | IOException e) {
+                throw Throwables.propagate( e );
+            }
+        }
+    }
+
+}
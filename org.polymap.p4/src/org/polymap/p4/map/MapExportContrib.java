@@ -0,0 +1,166 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.polymap.core.runtime.UIThreadExecutor.asyncFast;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import java.io.File;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.eclipse.rap.rwt.RWT;
+import org.eclipse.rap.rwt.client.service.UrlLauncher;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
+
+import org.polymap.core.CorePlugin;
+import org.polymap.core.mapeditor.MapViewer;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.project.IMap;
+import org.polymap.core.ui.StatusDispatcher;
+
+import org.polymap.rhei.batik.Context;
+import org.polymap.rhei.batik.Mandatory;
+import org.polymap.rhei.batik.Scope;
+import org.polymap.rhei.batik.contribution.IContributionSite;
+import org.polymap.rhei.batik.contribution.IToolbarContribution;
+import org.polymap.rhei.batik.toolkit.ActionItem;
+import org.polymap.rhei.batik.toolkit.Snackbar.Appearance;
+import org.polymap.rhei.batik.toolkit.md.MdToolbar2;
+import org.polymap.rhei.batik.toolkit.md.MdToolkit;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.layer.FeatureSelectionTable;
+
+/**
+ * Contributes a button to the toolbar of the {@link ProjectMapPanel} that
+ * exports the current extent of the map as a GeoTIFF via a {@link MapExport},
+ * and offers the file for download when it is done.
+ *
+ * @author Falko Bräutigam
+ */
+public class MapExportContrib
+        implements IToolbarContribution {
+
+    private static final Log log = LogFactory.getLog( MapExportContrib.class );
+
+    /** The resolution of the exported image. */
+    public static final int     DPI = 300;
+
+    /** Exported files are deleted after this many hours. */
+    public static final int     KEEP_HOURS = 24;
+
+    /**
+     * The directory of the exported files.
+     */
+    public static File exportDir() {
+        File result = new File( CorePlugin.getCacheLocation( P4Plugin.instance() ), "exports" );
+        result.mkdirs();
+        return result;
+    }
+
+
+    // instance *******************************************
+
+    @Mandatory
+    @Scope( P4Plugin.Scope )
+    protected Context<IMap>                 map;
+
+    @Mandatory
+    @Scope( P4Plugin.Scope )
+    protected Context<MapViewer<ILayer>>    mainMapViewer;
+
+
+    @Override
+    public void fillToolbar( IContributionSite site, MdToolbar2 toolbar ) {
+        if (site.panel() instanceof ProjectMapPanel
+                && !site.tagsContain( FeatureSelectionTable.TOOLBAR_TAG )) {
+            ActionItem item = new ActionItem( toolbar );
+            item.text.set( "" );
+            item.icon.set( P4Plugin.images().svgImage( "file.svg", P4Plugin.TOOLBAR_ICON_CONFIG ) );
+            item.tooltip.set( "Export the map as GeoTIFF image" );
+            item.action.set( ev -> {
+                try {
+                    export( site );
+                }
+                catch (Exception e) {
+                    StatusDispatcher.handleError( "Unable to export the map.", e );
+                }
+            });
+        }
+    }
+
+
+    protected void export( IContributionSite site ) throws Exception {
+        MapExportServlet.register();
+        deleteOutdated();
+
+        MapViewer<ILayer> mapViewer = mainMapViewer.get();
+        ReferencedEnvelope bounds = mapViewer.mapExtent.get();
+        int width = (int)Math.round( mapViewer.getControl().getSize().x * DPI / TileRequest.DEFAULT_DPI );
+        List<ILayer> layers = map.get().layers.stream()
+                .filter( l -> l.userSettings.get().visible.get() )
+                .sorted( Comparator.comparing( l -> l.orderKey.get() ) )
+                .collect( Collectors.toList() );
+        File target = new File( exportDir(), UUID.randomUUID() + ".tif" );
+
+        MdToolkit tk = (MdToolkit)site.toolkit();
+        tk.createSnackbar( Appearance.FadeIn, "Exporting map..." );
+        MapExport job = MapExport.start( layers, bounds, width, DPI, target );
+        job.addJobChangeListener( new JobChangeAdapter() {
+            @Override
+            public void done( IJobChangeEvent ev ) {
+                asyncFast( () -> {
+                    if (ev.getResult().isOK()) {
+                        tk.createSnackbar( Appearance.FadeIn, "Map has been exported", new ActionItem( null )
+                                .text.put( "Download" )
+                                .action.put( ev2 -> {
+                                    RWT.getClient().getService( UrlLauncher.class ).openURL( MapExportServlet.url( target ) );
+                                }));
+                    }
+                    else if (ev.getResult().getSeverity() != IStatus.CANCEL) {
+                        StatusDispatcher.handleError( "Unable to export the map.", ev.getResult().getException() );
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Deletes exported files older than {@link #KEEP_HOURS}.
+     */
+    protected void deleteOutdated() {
+        long outdated = System.currentTimeMillis() - TimeUnit.HOURS.toMillis( KEEP_HOURS );
+        for (File f : exportDir().listFiles()) {
+            if (f.lastModified() < outdated) {
+                log.info( "Deleting outdated export: " + f.getName() );
+                f.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * Serves the GeoTIFF files of {@link MapExport}s for download:
+ * <code>{alias}/{file name}</code>. The names of the files are random, so just
+ * the client that started an export knows the URL.
+ *
+ * @author Falko Bräutigam
+ */
+public class MapExportServlet
+        extends HttpServlet {
+
+    private static final Log log = LogFactory.getLog( MapExportServlet.class );
+
+    public static final String      ALIAS = "/p4export";
+
+    private static boolean          registered;
+
+    /**
+     * Registers the servlet at {@link #ALIAS}, if not yet done.
+     */
+    public static synchronized void register() throws Exception {
+        if (!registered) {
+            P4Plugin.instance().httpService().registerServlet( ALIAS, new MapExportServlet(), null, null );
+            registered = true;
+        }
+    }
+
+
+    /**
+     * The URL of the given export file.
+     */
+    public static String url( File file ) {
+        return ALIAS + "/" + file.getName();
+    }
+
+
+    // instance *******************************************
+
+    @Override
+    protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+        String name = StringUtils.removeStart( StringUtils.defaultString( req.getPathInfo() ), "/" );
+        File file = new File( MapExportContrib.exportDir(), name );
+        if (name.isEmpty() || name.contains( "/" ) || name.contains( "\\" ) || name.startsWith( "." ) || !file.isFile()) {
+            resp.sendError( HttpServletResponse.SC_NOT_FOUND );
+            return;
+        }
+        log.info( "Download: " + file.getName() + " (" + file.length() + " bytes)" );
+        resp.setContentType( "image/tiff" );
+        resp.setContentLengthLong( file.length() );
+        resp.setHeader( "Content-Disposition", "attachment; filename=\"map.tif\"" );
+        Files.copy( file.toPath(), resp.getOutputStream() );
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.io.ByteArrayOutputStream;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Encodes features of one tile into the
+ * <a href="https://github.com/mapbox/vector-tile-spec/tree/master/2.1">Mapbox
+ * Vector Tile</a> (MVT) protobuf format. Geometries are clipped to the (buffered)
+ * tile bounds and quantized to the integer grid of the tile {@link #extent}.
+ * <p/>
+ * This is a minimal, dependency free implementation of the spec. It is not
+ * thread-safe; use one instance per tile.
+ *
+ * @author Falko Bräutigam
+ */
+public class MvtEncoder {
+
+    public static final String      MIME_TYPE = "application/vnd.mapbox-vector-tile";
+
+    public static final int         DEFAULT_EXTENT = 4096;
+
+    public static final int         DEFAULT_BUFFER = 64;
+
+    /** The geometry types of the spec. */
+    static final int                POINT = 1, LINESTRING = 2, POLYGON = 3;
+
+    /** The geometry commands of the spec. */
+    static final int                MOVE_TO = 1, LINE_TO = 2, CLOSE_PATH = 7;
+
+    /** The kinds of coordinate sequences handled by {@link #encodeLine}. */
+    static final int                LINE = 0, EXTERIOR_RING = 1, INTERIOR_RING = 2;
+
+    private static final GeometryFactory gf = new GeometryFactory();
+
+
+    // instance *******************************************
+
+    private Envelope                tileBounds;
+
+    private int                     extent;
+
+    private Geometry                clip;
+
+    private Map<String,LayerBuilder> layers = new LinkedHashMap();
+
+
+    /**
+     * Creates an encoder with {@link #DEFAULT_EXTENT} and {@link #DEFAULT_BUFFER}.
+     *
+     * @param tileBounds The bounds of the tile in the CRS of the geometries to be
+     *        {@link #addFeature(String, Long, Map, Geometry) added}.
+     */
+    public MvtEncoder( Envelope tileBounds ) {
+        this( tileBounds, DEFAULT_EXTENT, DEFAULT_BUFFER );
+    }
+
+
+    /**
+     * @param tileBounds The bounds of the tile in the CRS of the geometries.
+     * @param extent The size of the integer grid of the tile.
+     * @param buffer The number of grid units to keep around the tile in order to
+     *        avoid rendering artifacts at the tile borders.
+     */
+    public MvtEncoder( Envelope tileBounds, int extent, int buffer ) {
+        this.tileBounds = tileBounds;
+        this.extent = extent;
+        Envelope buffered = new Envelope( tileBounds );
+        buffered.expandBy( tileBounds.getWidth() * buffer / extent, tileBounds.getHeight() * buffer / extent );
+        this.clip = gf.toGeometry( buffered );
+    }
+
+
+    /**
+     * Adds a feature to the given layer of the tile. The geometry is clipped to the
+     * tile bounds. Features that do not intersect the tile or that collapse after
+     * quantization are silently skipped.
+     *
+     * @param layerName The name of the layer in the tile.
+     * @param id The id of the feature, or null. The id should be stable across
+     *        tiles, so that clients can match the parts of a feature.
+     * @param attributes Attributes of the feature. Values are encoded as String,
+     *        Number or Boolean; null values are skipped.
+     * @param geom The geometry in the CRS of the tile bounds.
+     * @return True if the feature was actually added.
+     */
+    public boolean addFeature( String layerName, Long id, Map<String,Object> attributes, Geometry geom ) {
+        if (geom == null || geom.isEmpty() || !clip.getEnvelopeInternal().intersects( geom.getEnvelopeInternal() )) {
+            return false;
+        }
+        if (!clip.getEnvelopeInternal().contains( geom.getEnvelopeInternal() )) {
+            geom = clip.intersection( geom );
+        }
+
+        List<Integer> commands = new ArrayList( 64 );
+        List<Point> points = new ArrayList();
+        int type = 0;
+        Cursor cursor = new Cursor();
+        for (int i=0; i<geom.getNumGeometries(); i++) {
+            Geometry part = geom.getGeometryN( i );
+            if (part instanceof Point && (type == 0 || type == POINT)) {
+                type = POINT;
+                points.add( (Point)part );
+            }
+            else if (part instanceof LineString && (type == 0 || type == LINESTRING)) {
+                type = LINESTRING;
+                encodeLine( part.getCoordinates(), LINE, cursor, commands );
+            }
+            else if (part instanceof Polygon && (type == 0 || type == POLYGON)) {
+                type = POLYGON;
+                Polygon polygon = (Polygon)part;
+                // holes without exterior ring are not valid
+                if (!encodeLine( polygon.getExteriorRing().getCoordinates(), EXTERIOR_RING, cursor, commands )) {
+                    continue;
+                }
+                for (int j=0; j<polygon.getNumInteriorRing(); j++) {
+                    encodeLine( polygon.getInteriorRingN( j ).getCoordinates(), INTERIOR_RING, cursor, commands );
+                }
+            }
+        }
+        if (!points.isEmpty()) {
+            encodePoints( points, cursor, commands );
+        }
+        if (commands.isEmpty()) {
+            return false;
+        }
+
+        LayerBuilder layer = layers.computeIfAbsent( layerName, LayerBuilder::new );
+        layer.addFeature( id, attributes, type, commands );
+        return true;
+    }
+
+
+    /**
+     * Returns the encoded tile.
+     */
+    public byte[] encode() {
+        ProtoWriter tile = new ProtoWriter();
+        for (LayerBuilder layer : layers.values()) {
+            tile.writeMessage( 3, layer.encode() );
+        }
+        return tile.toByteArray();
+    }
+
+
+    public boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+
+    protected int quantizeX( double x ) {
+        return (int)Math.round( (x - tileBounds.getMinX()) * extent / tileBounds.getWidth() );
+    }
+
+
+    protected int quantizeY( double y ) {
+        // tile coordinates: y axis points down
+        return (int)Math.round( (tileBounds.getMaxY() - y) * extent / tileBounds.getHeight() );
+    }
+
+
+    /**
+     * Points of a feature are encoded as one MOVE_TO command.
+     */
+    protected void encodePoints( List<Point> points, Cursor cursor, List<Integer> commands ) {
+        commands.add( command( MOVE_TO, points.size() ) );
+        for (Point point : points) {
+            int x = quantizeX( point.getX() );
+            int y = quantizeY( point.getY() );
+            commands.add( zigzag( x - cursor.x ) );
+            commands.add( zigzag( y - cursor.y ) );
+            cursor.x = x;
+            cursor.y = y;
+        }
+    }
+
+
+    /**
+     * Encodes a line or a ring.
+     *
+     * @return False if the line collapsed after quantization and nothing was
+     *         encoded.
+     */
+    protected boolean encodeLine( Coordinate[] coords, int kind, Cursor cursor, List<Integer> commands ) {
+        boolean ring = kind != LINE;
+        // quantize and remove duplicate points
+        int[] xs = new int[coords.length];
+        int[] ys = new int[coords.length];
+        int count = 0;
+        for (Coordinate coord : coords) {
+            int x = quantizeX( coord.x );
+            int y = quantizeY( coord.y );
+            if (count == 0 || x != xs[count-1] || y != ys[count-1]) {
+                xs[count] = x;
+                ys[count] = y;
+                count ++;
+            }
+        }
+        // rings are closed by CLOSE_PATH
+        if (ring && count > 1 && xs[0] == xs[count-1] && ys[0] == ys[count-1]) {
+            count --;
+        }
+        if (ring ? count < 3 : count < 2) {
+            return false;
+        }
+        // exterior rings are clockwise, interior rings counter-clockwise (in tile coordinates)
+        if (ring) {
+            boolean clockwise = signedArea( xs, ys, count ) > 0;
+            if ((kind == EXTERIOR_RING) != clockwise) {
+                reverse( xs, count );
+                reverse( ys, count );
+            }
+        }
+        commands.add( command( MOVE_TO, 1 ) );
+        commands.add( zigzag( xs[0] - cursor.x ) );
+        commands.add( zigzag( ys[0] - cursor.y ) );
+        commands.add( command( LINE_TO, count - 1 ) );
+        for (int i=1; i<count; i++) {
+            commands.add( zigzag( xs[i] - xs[i-1] ) );
+            commands.add( zigzag( ys[i] - ys[i-1] ) );
+        }
+        cursor.x = xs[count-1];
+        cursor.y = ys[count-1];
+        if (ring) {
+            commands.add( command( CLOSE_PATH, 1 ) );
+        }
+        return true;
+    }
+
+
+    /**
+     * Twice the signed area in tile coordinates; positive for clockwise rings
+     * (since the y axis points down).
+     */
+    static long signedArea( int[] xs, int[] ys, int count ) {
+        long area = 0;
+        for (int i=0; i<count; i++) {
+            int j = (i + 1) % count;
+            area += (long)xs[i] * ys[j] - (long)xs[j] * ys[i];
+        }
+        return area;
+    }
+
+
+    static void reverse( int[] values, int count ) {
+        for (int i=0, j=count-1; i<j; i++, j--) {
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+
+    static int command( int id, int count ) {
+        return (id & 0x7) | (count << 3);
+    }
+
+
+    static int zigzag( int n ) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+
+    /**
+     * The current position of the pen while encoding the geometry of one feature.
+     */
+    static class Cursor {
+        int         x, y;
+    }
+
+
+    /**
+     * Collects the features, keys and values of one layer of the tile.
+     */
+    class LayerBuilder {
+
+        private String                  name;
+
+        private Map<String,Integer>     keys = new LinkedHashMap();
+
+        private Map<Object,Integer>     values = new LinkedHashMap();
+
+        private ProtoWriter             features = new ProtoWriter();
+
+
+        public LayerBuilder( String name ) {
+            this.name = name;
+        }
+
+
+        public void addFeature( Long id, Map<String,Object> attributes, int type, List<Integer> commands ) {
+            ProtoWriter feature = new ProtoWriter();
+            if (id != null) {
+                feature.writeVarintField( 1, id );
+            }
+            List<Integer> tags = new ArrayList( attributes.size() * 2 );
+            for (Map.Entry<String,Object> entry : attributes.entrySet()) {
+                Object value = normalize( entry.getValue() );
+                if (value != null) {
+                    tags.add( keys.computeIfAbsent( entry.getKey(), k -> keys.size() ) );
+                    tags.add( values.computeIfAbsent( value, v -> values.size() ) );
+                }
+            }
+            feature.writePacked( 2, tags );
+            feature.writeVarintField( 3, type );
+            feature.writePacked( 4, commands );
+            features.writeMessage( 2, feature.toByteArray() );
+        }
+
+
+        protected Object normalize( Object value ) {
+            if (value == null || value instanceof String || value instanceof Boolean) {
+                return value;
+            }
+            else if (value instanceof Float || value instanceof Double) {
+                return ((Number)value).doubleValue();
+            }
+            else if (value instanceof Number) {
+                return ((Number)value).longValue();
+            }
+            else {
+                return value.toString();
+            }
+        }
+
+
+        public byte[] encode() {
+            ProtoWriter layer = new ProtoWriter();
+            layer.writeVarintField( 15, 2 );
+            layer.writeString( 1, name );
+            layer.writeRaw( features.toByteArray() );
+            for (String key : keys.keySet()) {
+                layer.writeString( 3, key );
+            }
+            for (Object value : values.keySet()) {
+                ProtoWriter encoded = new ProtoWriter();
+                if (value instanceof String) {
+                    encoded.writeString( 1, (String)value );
+                }
+                else if (value instanceof Double) {
+                    encoded.writeDouble( 3, (Double)value );
+                }
+                else if (value instanceof Long) {
+                    encoded.writeVarintField( 6, ((Long)value << 1) ^ ((Long)value >> 63) );
+                }
+                else if (value instanceof Boolean) {
+                    encoded.writeVarintField( 7, (Boolean)value ? 1 : 0 );
+                }
+                layer.writeMessage( 4, encoded.toByteArray() );
+            }
+            layer.writeVarintField( 5, extent );
+            return layer.toByteArray();
+        }
+    }
+
+
+    /**
+     * Minimal protobuf wire format writer.
+     */
+    static class ProtoWriter {
+
+        private ByteArrayOutputStream   out = new ByteArrayOutputStream( 256 );
+
+
+        public void writeVarint( long value ) {
+            while ((value & ~0x7FL) != 0) {
+                out.write( (int)((value & 0x7F) | 0x80) );
+                value >>>= 7;
+            }
+            out.write( (int)value );
+        }
+
+
+        public void writeTag( int field, int wireType ) {
+            writeVarint( (field << 3) | wireType );
+        }
+
+
+        public void writeVarintField( int field, long value ) {
+            writeTag( field, 0 );
+            writeVarint( value );
+        }
+
+
+        public void writeDouble( int field, double value ) {
+            writeTag( field, 1 );
+            long bits = Double.doubleToLongBits( value );
+            for (int i=0; i<8; i++) {
+                out.write( (int)(bits >>> (i * 8)) & 0xFF );
+            }
+        }
+
+
+        public void writeBytes( int field, byte[] bytes ) {
+            writeTag( field, 2 );
+            writeVarint( bytes.length );
+            out.write( bytes, 0, bytes.length );
+        }
+
+
+        public void writeString( int field, String value ) {
+            writeBytes( field, value.getBytes( UTF_8 ) );
+        }
+
+
+        public void writeMessage( int field, byte[] message ) {
+            writeBytes( field, message );
+        }
+
+
+        public void writePacked( int field, List<Integer> values ) {
+            if (!values.isEmpty()) {
+                ProtoWriter packed = new ProtoWriter();
+                for (int value : values) {
+                    packed.writeVarint( value & 0xFFFFFFFFL );
+                }
+                writeBytes( field, packed.toByteArray() );
+            }
+        }
+
+
+        public void writeRaw( byte[] bytes ) {
+            out.write( bytes, 0, bytes.length );
+        }
+
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.polymap.core.data.DataPlugin.ff;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Cache;
+import com.google.common.hash.Hashing;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.polymap.core.data.PipelineDataStore;
+import org.polymap.core.data.PipelineFeatureSource;
+import org.polymap.core.data.feature.FeaturesProducer;
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.data.util.Geometries;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.P4PipelineBuilder;
+import org.polymap.p4.data.PipelinePool;
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ * Serves <a href="https://github.com/mapbox/vector-tile-spec">Mapbox Vector
+ * Tiles</a> of feature layers. Features are read through the same
+ * {@link P4PipelineBuilder} feature pipeline that is used for the
+ * {@link FeatureLayer}, clipped to the tile and quantized by {@link MvtEncoder}.
+ * <p/>
+ * Tiles are requested via the XYZ scheme of the EPSG:3857 world grid:
+ * <pre>
+ *     {alias}/{token}/{layerId}/{z}/{x}/{y}.pbf
+ * </pre>
+ * There is one server per {@link ProjectWmsServer}, shared by all users. The
+ * token is the one of the {@link ProjectWmsServer.Client}; a client can request
+ * only the layers it has registered.
+ * <p/>
+ * Encoding a tile is admitted by the {@link RenderScheduler} for the user of the
+ * client, so vector tiles count against the same render cap as the WMS tiles.
+ * The response is written after the render slot was released.
+ *
+ * @author Falko Bräutigam
+ */
+public class MvtTileServer
+        extends HttpServlet {
+
+    private static final Log log = LogFactory.getLog( MvtTileServer.class );
+
+    private BiFunction<String,String,ILayer> layers;
+
+    private Function<String,String> users;
+
+    private CoordinateReferenceSystem tileCrs;
+
+    private TileGrid                grid;
+
+    /** The feature sources of the pooled pipelines. */
+    private Cache<Pipeline,PipelineFeatureSource> featureSources = CacheBuilder.newBuilder().weakKeys().build();
+
+
+    /**
+     * @param layers Finds the layer for a given client token and layer id, or
+     *        returns null if the token is not known or the layer is not
+     *        accessible for the client.
+     * @param users Finds the name of the user of the client with the given token,
+     *        see {@link RenderScheduler}; null if the token is not known.
+     */
+    public MvtTileServer( BiFunction<String,String,ILayer> layers, Function<String,String> users ) {
+        this.layers = layers;
+        this.users = users;
+        try {
+            this.tileCrs = Geometries.crs( "EPSG:3857" );
+            this.grid = TileGrid.forSrs( "EPSG:3857" );
+        }
+        catch (Exception e) {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    @Override
+    protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+        // {token}/{layerId}/{z}/{x}/{y}.pbf
+        String[] path = StringUtils.split( StringUtils.removeEnd( StringUtils.defaultString( req.getPathInfo() ), ".pbf" ), '/' );
+        if (path.length != 5) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "Expected: {token}/{layerId}/{z}/{x}/{y}.pbf" );
+            return;
+        }
+        ILayer layer = layers.apply( path[0], path[1] );
+        String user = users.apply( path[0] );
+        if (layer == null || user == null) {
+            resp.sendError( HttpServletResponse.SC_FORBIDDEN );
+            return;
+        }
+        int z, x, y;
+        try {
+            z = Integer.parseInt( path[2] );
+            x = Integer.parseInt( path[3] );
+            y = Integer.parseInt( path[4] );
+        }
+        catch (NumberFormatException e) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+            return;
+        }
+        if (z < 0 || z > TileGrid.MAX_ZOOM || x < 0 || x >= (1 << z) || y < 0 || y >= (1 << z)) {
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "Tile out of range: " + z + "/" + x + "/" + y );
+            return;
+        }
+
+        try {
+            Timer timer = new Timer();
+            ReferencedEnvelope bounds = tileBounds( z, x, y );
+            byte[] tile = RenderScheduler.instance().execute( user, () -> encodeTile( layer, bounds ) );
+            log.debug( "Tile " + z + "/" + x + "/" + y + ": " + tile.length + " bytes (" + timer.elapsedTime() + "ms)" );
+
+            resp.setContentType( MvtEncoder.MIME_TYPE );
+            boolean gzip = StringUtils.containsIgnoreCase( req.getHeader( "Accept-Encoding" ), "gzip" );
+            if (gzip) {
+                resp.setHeader( "Content-Encoding", "gzip" );
+            }
+            try (
+                OutputStream out = gzip ? new GZIPOutputStream( resp.getOutputStream() ) : resp.getOutputStream();
+            ){
+                out.write( tile );
+            }
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage() );
+        }
+    }
+
+
+    /**
+     * The bounds of the given XYZ tile in EPSG:3857.
+     */
+    public ReferencedEnvelope tileBounds( int z, int x, int y ) {
+        return grid.bounds( new TileIndex( grid.span( z ), x, y ) );
+    }
+
+
+    protected byte[] encodeTile( ILayer layer, ReferencedEnvelope bounds ) throws Exception {
+        PipelineFeatureSource fs = featureSource( layer );
+        CoordinateReferenceSystem dataCrs = fs.getSchema().getCoordinateReferenceSystem();
+        GeometryDescriptor geomDesc = fs.getSchema().getGeometryDescriptor();
+
+        // query (slightly larger than the tile, see MvtEncoder#DEFAULT_BUFFER)
+        ReferencedEnvelope queryBounds = new ReferencedEnvelope( bounds );
+        queryBounds.expandBy( bounds.getWidth() * MvtEncoder.DEFAULT_BUFFER / MvtEncoder.DEFAULT_EXTENT );
+        queryBounds = queryBounds.transform( dataCrs, true );
+        Filter filter = ff.bbox( ff.property( geomDesc.getLocalName() ), queryBounds );
+        Query query = new Query( fs.getSchema().getName().getLocalPart(), filter );
+
+        MathTransform transform = CRS.findMathTransform( dataCrs, tileCrs, true );
+        MvtEncoder encoder = new MvtEncoder( bounds );
+        String layerName = layer.label.get();
+        FeatureCollection features = fs.getFeatures( query );
+        try (
+            FeatureIterator it = features.features();
+        ){
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                Geometry geom = (Geometry)feature.getDefaultGeometryProperty().getValue();
+                if (geom != null) {
+                    Map<String,Object> attributes = new LinkedHashMap();
+                    for (Property prop : feature.getProperties()) {
+                        if (!(prop.getValue() instanceof Geometry)) {
+                            attributes.put( prop.getName().getLocalPart(), prop.getValue() );
+                        }
+                    }
+                    encoder.addFeature( layerName, featureId( feature ), attributes, JTS.transform( geom, transform ) );
+                }
+            }
+        }
+        return encoder.encode();
+    }
+
+
+    /**
+     * The id of the given feature in the tiles: the hash of its FID, so that the
+     * parts of a feature in different tiles have the same id.
+     */
+    protected static long featureId( Feature feature ) {
+        return Hashing.murmur3_128().hashString( feature.getIdentifier().getID(), UTF_8 ).asLong() & Long.MAX_VALUE;
+    }
+
+
+    protected PipelineFeatureSource featureSource( ILayer layer ) throws Exception {
+        Pipeline pipeline = PipelinePool.instance().get( layer, FeaturesProducer.class, () -> {
+            DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, new NullProgressMonitor() )
+                    .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
+            return P4PipelineBuilder.forLayer( layer ).createPipeline( FeaturesProducer.class, dsd )
+                    .orElseThrow( () -> new RuntimeException( "Layer has no features: " + layer.label.get() ) );
+        });
+        return featureSources.get( pipeline, () -> new PipelineDataStore( pipeline ).getFeatureSource() );
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Converts an ARGB image into an 8 bit palette image, which is encoded as PNG8
+ * by ImageIO.
+ * <p/>
+ * Images with up to {@link #MAX_COLORS} distinct colors (flat styles without
+ * antialiasing) get an exact palette. Otherwise the palette is computed by median
+ * cut over a histogram of the colors reduced to {@link #BITS} bits per channel,
+ * alpha included. Fully transparent pixels share one palette entry. There is no
+ * dithering, which keeps flat areas flat and the result well compressible.
+ *
+ * @author Falko Bräutigam
+ */
+public class PaletteQuantizer {
+
+    public static final int     MAX_COLORS = 256;
+
+    /** Bits per channel of the histogram. */
+    public static final int     BITS = 5;
+
+    private static final int    TRANSPARENT = 0;
+
+
+    /**
+     * Creates a palette image out of the given image.
+     */
+    public static BufferedImage quantize( BufferedImage image ) {
+        return new PaletteQuantizer().apply( image );
+    }
+
+
+    /**
+     * A box of the median cut: a range of the histogram entries.
+     */
+    protected static class Box {
+
+        int     from, to;
+
+        long    count;
+
+        int     channel;
+
+        int     range;
+
+        Box( int[] colors, int[] counts, int from, int to ) {
+            this.from = from;
+            this.to = to;
+            int[] min = {255, 255, 255, 255}, max = {0, 0, 0, 0};
+            for (int i=from; i<to; i++) {
+                count += counts[i];
+                for (int c=0; c<4; c++) {
+                    int v = channel( colors[i], c );
+                    min[c] = Math.min( min[c], v );
+                    max[c] = Math.max( max[c], v );
+                }
+            }
+            for (int c=0; c<4; c++) {
+                if (max[c] - min[c] > range) {
+                    range = max[c] - min[c];
+                    channel = c;
+                }
+            }
+        }
+
+        /** Boxes with a wide range and many pixels are split first. */
+        long priority() {
+            return to - from > 1 ? range * count : -1;
+        }
+    }
+
+
+    protected static int channel( int argb, int c ) {
+        return (argb >>> (24 - c * 8)) & 0xff;
+    }
+
+
+    // instance *******************************************
+
+    protected BufferedImage apply( BufferedImage image ) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB( 0, 0, width, height, null, 0, width );
+
+        // exact palette?
+        Map<Integer,Integer> exact = new HashMap( MAX_COLORS * 2 );
+        exact.put( TRANSPARENT, 0 );
+        for (int i=0; i<pixels.length && exact.size() <= MAX_COLORS; i++) {
+            exact.putIfAbsent( normalize( pixels[i] ), exact.size() );
+        }
+        int[] palette;
+        if (exact.size() <= MAX_COLORS) {
+            palette = new int[exact.size()];
+            exact.forEach( (argb, index) -> palette[index] = argb );
+        }
+        else {
+            palette = medianCut( pixels );
+        }
+
+        // map pixels
+        Map<Integer,Integer> indexes = new HashMap( 1024 );
+        byte[] data = new byte[pixels.length];
+        for (int i=0; i<pixels.length; i++) {
+            int argb = normalize( pixels[i] );
+            Integer index = indexes.get( argb );
+            if (index == null) {
+                index = nearest( palette, argb );
+                indexes.put( argb, index );
+            }
+            data[i] = (byte)index.intValue();
+        }
+
+        byte[] r = new byte[palette.length], g = new byte[palette.length];
+        byte[] b = new byte[palette.length], a = new byte[palette.length];
+        for (int i=0; i<palette.length; i++) {
+            a[i] = (byte)channel( palette[i], 0 );
+            r[i] = (byte)channel( palette[i], 1 );
+            g[i] = (byte)channel( palette[i], 2 );
+            b[i] = (byte)channel( palette[i], 3 );
+        }
+        IndexColorModel colorModel = new IndexColorModel( 8, palette.length, r, g, b, a );
+        BufferedImage result = new BufferedImage( width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel );
+        WritableRaster raster = result.getRaster();
+        raster.setDataElements( 0, 0, width, height, data );
+        return result;
+    }
+
+
+    /**
+     * All fully transparent colors are the same.
+     */
+    protected int normalize( int argb ) {
+        return (argb >>> 24) == 0 ? TRANSPARENT : argb;
+    }
+
+
+    /**
+     * Computes a palette with {@link #MAX_COLORS} entries by median cut. Entry 0
+     * is transparent.
+     */
+    protected int[] medianCut( int[] pixels ) {
+        // histogram of reduced colors
+        int shift = 8 - BITS;
+        int mask = (0xff >> shift) << shift;
+        int reduceMask = (mask << 24) | (mask << 16) | (mask << 8) | mask;
+        Map<Integer,int[]> histogram = new HashMap( 4096 );
+        for (int pixel : pixels) {
+            int argb = normalize( pixel );
+            if (argb != TRANSPARENT) {
+                histogram.computeIfAbsent( argb & reduceMask, k -> new int[1] )[0] ++;
+            }
+        }
+        int[] colors = new int[histogram.size()];
+        int[] counts = new int[histogram.size()];
+        int n = 0;
+        for (Map.Entry<Integer,int[]> entry : histogram.entrySet()) {
+            colors[n] = entry.getKey();
+            counts[n++] = entry.getValue()[0];
+        }
+
+        // split boxes
+        PriorityQueue<Box> boxes = new PriorityQueue<>( MAX_COLORS, Comparator.comparingLong( (Box box) -> box.priority() ).reversed() );
+        boxes.add( new Box( colors, counts, 0, colors.length ) );
+        while (boxes.size() < MAX_COLORS - 1 && boxes.peek().priority() > 0) {
+            Box box = boxes.poll();
+            int median = sortAndMedian( colors, counts, box );
+            boxes.add( new Box( colors, counts, box.from, median ) );
+            boxes.add( new Box( colors, counts, median, box.to ) );
+        }
+
+        // average color of each box
+        List<Integer> result = new ArrayList( MAX_COLORS );
+        result.add( TRANSPARENT );
+        for (Box box : boxes) {
+            long[] sum = new long[4];
+            for (int i=box.from; i<box.to; i++) {
+                for (int c=0; c<4; c++) {
+                    // center of the reduced range
+                    sum[c] += (long)(channel( colors[i], c ) | ((1 << shift) >> 1)) * counts[i];
+                }
+            }
+            int argb = 0;
+            for (int c=0; c<4; c++) {
+                argb |= (int)Math.min( 255, sum[c] / box.count ) << (24 - c * 8);
+            }
+            result.add( argb );
+        }
+        return result.stream().mapToInt( i -> i ).toArray();
+    }
+
+
+    /**
+     * Sorts the entries of the given box by its widest channel.
+     *
+     * @return The index of the weighted median, strictly inside the box.
+     */
+    protected int sortAndMedian( int[] colors, int[] counts, Box box ) {
+        int size = box.to - box.from;
+        long[] sorted = new long[size];
+        for (int i=0; i<size; i++) {
+            // channel value in the high bits, index in the low bits
+            sorted[i] = ((long)channel( colors[box.from + i], box.channel ) << 32) | (box.from + i);
+        }
+        Arrays.sort( sorted );
+        int[] sortedColors = new int[size];
+        int[] sortedCounts = new int[size];
+        for (int i=0; i<size; i++) {
+            int index = (int)sorted[i];
+            sortedColors[i] = colors[index];
+            sortedCounts[i] = counts[index];
+        }
+        System.arraycopy( sortedColors, 0, colors, box.from, size );
+        System.arraycopy( sortedCounts, 0, counts, box.from, size );
+
+        long half = box.count / 2, sum = 0;
+        for (int i=box.from; i<box.to - 1; i++) {
+            sum += counts[i];
+            if (sum >= half) {
+                return i + 1;
+            }
+        }
+        return box.to - 1;
+    }
+
+
+    protected int nearest( int[] palette, int argb ) {
+        if (argb == TRANSPARENT) {
+            return 0;
+        }
+        int result = 0;
+        long min = Long.MAX_VALUE;
+        for (int i=0; i<palette.length; i++) {
+            long dist = 0;
+            for (int c=0; c<4; c++) {
+                long d = channel( palette[i], c ) - channel( argb, c );
+                dist += d * d;
+            }
+            if (dist < min) {
+                min = dist;
+                result = i;
+                if (dist == 0) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+}
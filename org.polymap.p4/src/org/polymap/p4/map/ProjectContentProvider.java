@@ -16,6 +16,7 @@ package org.polymap.p4.map;
 
 import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 
@@ -33,11 +34,16 @@ import org.polymap.core.project.ILayer.LayerUserSettings;
 import org.polymap.core.project.IMap;
 import org.polymap.core.project.ProjectNode;
 import org.polymap.core.project.ProjectNode.ProjectNodeCommittedEvent;
+import org.polymap.core.runtime.config.Config2;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.DefaultBoolean;
 import org.polymap.core.runtime.event.EventHandler;
 import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.style.model.FeatureStyleCommitedEvent;
 import org.polymap.core.ui.StatusDispatcher;
 
+import org.polymap.p4.map.ProjectLayerProvider.TilesRefinedEvent;
+
 /**
  * Provides the content of an {@link IMap}.
  * <p/>
@@ -61,6 +67,21 @@ public class ProjectContentProvider
 
     private StyleListener       styleListener;
 
+    private RefineListener      refineListener;
+
+    /**
+     * Provide just one (the top most visible) layer, which the
+     * {@link ProjectLayerProvider} in composite mode renders together with all other
+     * visible layers. Defaults to false.
+     */
+    @DefaultBoolean( false )
+    public Config2<ProjectContentProvider,Boolean> composite;
+
+    
+    public ProjectContentProvider() {
+        ConfigurationFactory.inject( this );
+    }
+
     
     @Override
     public void inputChanged( @SuppressWarnings("hiding") Viewer viewer, Object oldInput, Object newInput ) {
@@ -99,16 +120,37 @@ public class ProjectContentProvider
                     .filter( l -> Objects.equals( l.styleIdentifier.get(), ev.getSource().id() )  )
                     .findAny().isPresent();
         }));
+
+        refineListener = new RefineListener();
+        EventManager.instance().subscribe( refineListener, ifType( TilesRefinedEvent.class, ev -> 
+                ev.getSource() == this.viewer.layerProvider.get() ) );
     }
 
     
     @Override
     public Object[] getElements( Object inputElement ) {
+        if (composite.get()) {
+            return map.layers.stream()
+                    .filter( l -> l.userSettings.get().visible.get() )
+                    .max( Comparator.comparing( l -> l.orderKey.get() ) )
+                    .map( l -> new Object[] {l} ).orElse( new Object[0] );
+        }
         return map.layers.stream()
                 .filter( l -> l.userSettings.get().visible.get() ).toArray();
     }
 
 
+    /**
+     * In composite mode the one element stands for all visible layers; it has to
+     * be refreshed whenever one of them has changed.
+     */
+    protected void refreshComposite() {
+        for (Object elm : getElements( map )) {
+            viewer.refresh( elm, true );
+        }
+    }
+
+
     @Override
     public void dispose() {
         log.info( "..." );
@@ -116,6 +158,7 @@ public class ProjectContentProvider
         EventManager.instance().unsubscribe( projectNodeListener );
         EventManager.instance().unsubscribe( propertyListener );
         EventManager.instance().unsubscribe( styleListener );
+        EventManager.instance().unsubscribe( refineListener );
     }
 
     /**
@@ -125,6 +168,9 @@ public class ProjectContentProvider
         @EventHandler( display=true, delay=100 )
         protected void onCommit( List<ProjectNodeCommittedEvent> evs ) {
             viewer.refresh( true );
+            if (composite.get()) {
+                refreshComposite();
+            }
         }
     }
 
@@ -134,6 +180,10 @@ public class ProjectContentProvider
     class StyleListener {
         @EventHandler( display=true, delay=100 )
         protected void onCommit( List<FeatureStyleCommitedEvent> evs ) {
+            if (composite.get()) {
+                refreshComposite();
+                return;
+            }
             try {
                 for (FeatureStyleCommitedEvent ev : evs) {
                     for (ILayer layer : map.layers) {
@@ -150,6 +200,24 @@ public class ProjectContentProvider
         }
     }
 
+    /**
+     * Drafts of progressive layers have been replaced by the full tiles on the
+     * server; makes the client request the tiles again.
+     */
+    class RefineListener {
+        @EventHandler( display=true, delay=1000 )
+        protected void onRefined( List<TilesRefinedEvent> evs ) {
+            if (map == null) {
+                return;
+            }
+            evs.stream().map( ev -> ev.layerId ).distinct().forEach( layerId -> {
+                map.layers.stream()
+                        .filter( l -> l.id().equals( layerId ) && l.userSettings.get().visible.get() )
+                        .findAny().ifPresent( layer -> viewer.refresh( layer, true ) );
+            });
+        }
+    }
+
     /**
      * 
      */
@@ -158,6 +226,9 @@ public class ProjectContentProvider
         protected void onPropertyChange( List<PropertyChangeEvent> evs ) {
             // layer set visble
             viewer.refresh( true );
+            if (composite.get()) {
+                refreshComposite();
+            }
             
             // FIXME check if layer was just created and onCommit() did it already
 //            for (PropertyChangeEvent ev : evs) {
@@ -14,47 +14,42 @@
  */
 package org.polymap.p4.map;
 
+import java.util.Comparator;
+import java.util.EventObject;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Supplier;
-
-import org.geotools.styling.Style;
-import org.osgi.service.http.NamespaceException;
+import java.util.stream.Collectors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.google.common.base.Throwables;
-
-import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.NullProgressMonitor;
-
-import org.polymap.core.data.feature.DefaultStyles;
-import org.polymap.core.data.feature.FeatureRenderProcessor2;
-import org.polymap.core.data.image.EncodedImageProducer;
-import org.polymap.core.data.pipeline.DataSourceDescriptor;
-import org.polymap.core.data.pipeline.Pipeline;
 import org.polymap.core.mapeditor.ILayerProvider;
 import org.polymap.core.mapeditor.MapViewer;
-import org.polymap.core.mapeditor.services.SimpleWmsServer;
 import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.config.Config2;
+import org.polymap.core.runtime.config.ConfigurationFactory;
+import org.polymap.core.runtime.config.DefaultBoolean;
+import org.polymap.core.runtime.config.DefaultInt;
+import org.polymap.core.runtime.event.EventManager;
 import org.polymap.core.security.SecurityContext;
 
 import org.polymap.p4.P4Plugin;
-import org.polymap.p4.catalog.AllResolver;
-import org.polymap.p4.data.P4PipelineBuilder;
+import org.polymap.p4.data.PipelinePool;
 import org.polymap.rap.openlayers.layer.ImageLayer;
 import org.polymap.rap.openlayers.layer.Layer;
 import org.polymap.rap.openlayers.layer.TileLayer;
 import org.polymap.rap.openlayers.source.ImageWMSSource;
 import org.polymap.rap.openlayers.source.TileWMSSource;
 import org.polymap.rap.openlayers.source.WMSRequestParams;
+import org.polymap.rap.openlayers.types.Size;
 
 /**
  * Builds OpenLayers {@link Layer} objects for the {@link MapViewer} of the
  * {@link ProjectMapPanel} out of {@link ILayer} instances.
  * <p/>
- * Registers a {@link SimpleWmsServer} <b>servlet</b> with the given /alias.
+ * Uses the shared {@link ProjectWmsServer} <b>servlet</b> of the given /alias and
+ * its {@link MvtTileServer} as a {@link ProjectWmsServer.Client client}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -63,39 +58,71 @@ public class ProjectLayerProvider
 
     private static final Log log = LogFactory.getLog( ProjectLayerProvider.class );
 
-    protected String                    alias;
-    
-    private SimpleWmsServer             wms;
-    
+    /**
+     * Fired when full tiles of a {@link LayerRenderParams#PROGRESSIVE} layer are
+     * ready, which were sent as drafts before. The tiles of the layer should be
+     * requested again.
+     */
+    public static class TilesRefinedEvent
+            extends EventObject {
+
+        public final String     layerId;
+
+        public TilesRefinedEvent( ProjectLayerProvider source, String layerId ) {
+            super( source );
+            this.layerId = layerId;
+        }
+
+        @Override
+        public ProjectLayerProvider getSource() {
+            return (ProjectLayerProvider)super.getSource();
+        }
+    }
+
+    private ProjectWmsServer            wms;
+
+    /** This provider as client of the shared {@link #wms}. */
+    private ProjectWmsServer.Client     client;
+
+    /** The registered layers by id; the layers the {@link #client} can access. */
     protected Map<String,ILayer>        layers = new ConcurrentHashMap();
 
+    /** The {@link PipelinePool#fingerprint(ILayer)} of the {@link #layers}. */
+    private Map<String,String>          fingerprints = new ConcurrentHashMap();
+
+    /**
+     * Render all visible layers into one image on the server. The
+     * {@link ProjectContentProvider} has to be in composite mode too. Defaults to
+     * false.
+     */
+    @DefaultBoolean( false )
+    public Config2<ProjectLayerProvider,Boolean> composite;
+
+    /**
+     * The size of the tiles in CSS pixels. Bigger tiles mean less requests and
+     * less queries against the data sources per viewport. Defaults to
+     * {@link TileGrid#DEFAULT_TILE_SIZE}.
+     */
+    @DefaultInt( TileGrid.DEFAULT_TILE_SIZE )
+    public Config2<ProjectLayerProvider,Integer> tileSize;
+
+    /**
+     * Request tiles in the pixel ratio of the device (2x on HiDPI screens)
+     * instead of always 1x. Defaults to false.
+     */
+    @DefaultBoolean( false )
+    public Config2<ProjectLayerProvider,Boolean> hidpi;
+
     
     public ProjectLayerProvider( String servletAlias ) {
+        ConfigurationFactory.inject( this );
         try {
-            // register WMS servlet
-            wms = new SimpleWmsServer() {
-                @Override
-                protected String[] layerNames() {
-                    throw new RuntimeException( "not yet implemented." );
-                }
-                @Override
-                protected Pipeline createPipeline( String layerName ) {
-                    return ProjectLayerProvider.this.createPipeline( layerName );
-                }
-            };
-            // there is one servlet per instance; in order to make sure that the user
-            // sees its content (all recent changes) *and* make HTTP caches work -> the
-            // alias is persistent between sessions *and* specific for the user
-            int userHash = SecurityContext.instance().getUser().getName().hashCode();
-            alias = servletAlias + "-" + Integer.toHexString( userHash );
-            try {
-                P4Plugin.instance().httpService().registerServlet( alias, wms , null, null );
-            }
-            catch (NamespaceException e) {
-                log.warn( "Servlet already/still registered: " + alias );
-                P4Plugin.instance().httpService().unregister( alias );
-                P4Plugin.instance().httpService().registerServlet( alias, wms , null, null );
-            }
+            // shared WMS servlet; tiles are rendered and cached once for all users,
+            // access is checked per client
+            String user = SecurityContext.instance().getUser().getName();
+            wms = ProjectWmsServer.forAlias( servletAlias );
+            client = wms.newClient( user, layerId -> layers.get( layerId ) )
+                    .onRefined( layerId -> EventManager.instance().publish( new TilesRefinedEvent( this, layerId ) ) );
         }
         catch (Exception e) {
             throw new RuntimeException( e );
@@ -104,60 +131,83 @@ public class ProjectLayerProvider
 
     
     public void dispose() {
-        if (alias != null) {
-            P4Plugin.instance().httpService().unregister( alias );
-            alias = null;
+        if (client != null) {
+            client.dispose();
+            client = null;
         }
     }
 
 
-    protected Pipeline createPipeline( String layerName ) {
-        try {
-            ILayer layer = layers.get( layerName );
-            
-            // resolve service
-            IProgressMonitor monitor = new NullProgressMonitor();  //.monitorOfThread();
-            DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor )
-                    .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
-
-            // feature style
-            Supplier<Style> styleSupplier = () -> {
-                String styleId = layer.styleIdentifier.get();
-                return styleId != null
-                    ? P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class )
-                            .orElse( DefaultStyles.createAllStyle() )
-                    : DefaultStyles.createAllStyle();
-            };
-
-            // create pipeline for it
-            P4PipelineBuilder builder = P4PipelineBuilder.forLayer( layer );
-            FeatureRenderProcessor2.STYLE_SUPPLIER.rawput( builder, styleSupplier );
-            return builder.createPipeline( EncodedImageProducer.class, dsd )
-                    .orElseThrow( () -> new RuntimeException( "Unable to build pipeline for: " + dsd ) );
-        }
-        catch (Exception e) {
-            log.warn( "", e );
-            throw Throwables.propagate( e );
-        }
+    /**
+     * The URL template of the Mapbox Vector Tiles of the given layer, served by
+     * {@link MvtTileServer}. The layer must have been {@link #getLayer(ILayer)
+     * requested} before.
+     */
+    public String vectorTileUrl( ILayer layer ) {
+        return client.vectorTileUrl() + "/" + layer.id() + "/{z}/{x}/{y}.pbf";
     }
 
 
-    @Override
-    public Layer getLayer( ILayer elm ) {
-        String layerName = elm.label.get();
-        String styleHash = "defaultStyle";
+    /**
+     * The STYLES param of the WMS requests of the given layer. It changes
+     * whenever the style is modified, which makes clients and HTTP caches
+     * request new tiles.
+     */
+    public static String styleHash( ILayer layer ) {
         try {
-            styleHash = elm.styleIdentifier.opt().map( styleId ->
+            return layer.styleIdentifier.opt().map( styleId ->
                     "#" + P4Plugin.styleRepo().serializedFeatureStyle( styleId, String.class ).get().hashCode() )
                     .orElse( "defaultStyle" );
         }
         catch (Throwable e) {
             log.error( "", e );
+            return "defaultStyle";
+        }
+    }
+
+
+    @Override
+    public Layer getLayer( ILayer elm ) {
+        if (composite.get()) {
+            return getCompositeLayer( elm );
+        }
+        String layerId = (String)elm.id();
+        String styleHash = styleHash( elm );
+        register( elm );
+        return buildTiledLayer( layerId, styleHash, TileEncoder.format( elm ) );
+    }
+    
+
+    /**
+     * Builds one layer that renders all visible layers of the map of the given
+     * layer. The layers are requested comma separated in z-order (bottom layer
+     * first) and composed by the {@link ProjectWmsServer}.
+     */
+    protected Layer getCompositeLayer( ILayer elm ) {
+        List<ILayer> visible = elm.parentMap.get().layers.stream()
+                .filter( l -> l.userSettings.get().visible.get() )
+                .sorted( Comparator.comparing( l -> l.orderKey.get() ) )
+                .collect( Collectors.toList() );
+        visible.forEach( l -> register( l ) );
+        
+        String layerIds = visible.stream().map( l -> (String)l.id() ).collect( Collectors.joining( "," ) );
+        String styleHashes = visible.stream().map( l -> styleHash( l ) ).collect( Collectors.joining( "," ) );
+        return buildTiledLayer( layerIds, styleHashes, TileEncoder.format( visible ) );
+    }
+    
+    
+    protected void register( ILayer elm ) {
+        String layerId = (String)elm.id();
+        layers.put( layerId, elm );
+        
+        // the WMS keeps its pipeline until the layer actually has changed;
+        // cached tiles are keyed by fingerprint, tiles of the previous fingerprint
+        // may still be used by other users and are just evicted eventually
+        String fingerprint = PipelinePool.fingerprint( elm );
+        String previous = fingerprints.put( layerId, fingerprint );
+        if (previous != null && !previous.equals( fingerprint )) {
+            wms.disposePipeline( layerId );
         }
-                
-        layers.put( layerName, elm );
-        wms.disposePipeline( layerName );
-        return buildTiledLayer( layerName, styleHash );
     }
     
 
@@ -167,7 +217,7 @@ public class ProjectLayerProvider
     protected Layer buildLayer( String layerName, String styleHash ) {
         return new ImageLayer()
                  .source.put( new ImageWMSSource()
-                         .url.put( "." + alias )
+                         .url.put( client.url() )
                          .params.put( new WMSRequestParams()
                                  .version.put( "1.1.1" )  // send "SRS" param
                                  .layers.put( layerName )
@@ -176,16 +226,32 @@ public class ProjectLayerProvider
     }
     
     
-    protected Layer buildTiledLayer( String layerName, String styleHash ) {
-        return new TileLayer()
-                .source.put( new TileWMSSource()
-                        //.tileGrid.put( new TileGrid( "ol.tilegrid.TileGrid" ) {}.tileSize.put( new Size( 1024, 1024 ) ) )
-                        .url.put( "." + alias )
-                        .params.put( new WMSRequestParams()
-                                .version.put( "1.1.1" )  // send "SRS" param
-                                .layers.put( layerName )
-                                .styles.put( styleHash )
-                                .format.put( "image/png" ) ) );
+    /**
+     * Builds a tiled layer with tiles of {@link #tileSize}. With {@link #hidpi}
+     * the source sends the DPI of the device GeoServer style, which makes the
+     * {@link ProjectWmsServer} render tiles of the {@link TileRequest#pixelRatio()}
+     * of the device.
+     *
+     * @param format The image format of the tiles, see {@link TileEncoder}.
+     */
+    protected Layer buildTiledLayer( String layerName, String styleHash, String format ) {
+        TileWMSSource source = new TileWMSSource()
+                .url.put( client.url() )
+                .params.put( new WMSRequestParams()
+                        .version.put( "1.1.1" )  // send "SRS" param
+                        .layers.put( layerName )
+                        .styles.put( styleHash )
+                        .format.put( format ) );
+        if (tileSize.get() != TileGrid.DEFAULT_TILE_SIZE) {
+            int size = tileSize.get();
+            source.tileGrid.put( new org.polymap.rap.openlayers.tilegrid.TileGrid( "ol.tilegrid.TileGrid" ) {}
+                    .tileSize.put( new Size( size, size ) ) );
+        }
+        source.hidpi.put( hidpi.get() );
+        if (hidpi.get()) {
+            source.serverType.put( "geoserver" );
+        }
+        return new TileLayer().source.put( source );
     }
     
     
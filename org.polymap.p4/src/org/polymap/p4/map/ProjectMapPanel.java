@@ -18,14 +18,19 @@ import static org.polymap.core.runtime.event.TypeEventFilter.isType;
 import static org.polymap.core.ui.FormDataFactory.on;
 import static org.polymap.p4.layer.FeatureLayer.ff;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.function.Consumer;
 
 import org.geotools.data.FeatureStore;
-import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.apache.commons.logging.Log;
@@ -33,13 +38,13 @@ import org.apache.commons.logging.LogFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
 
-import org.polymap.core.data.Features;
 import org.polymap.core.data.util.Geometries;
 import org.polymap.core.mapeditor.MapViewer;
 import org.polymap.core.project.ILayer;
@@ -93,6 +98,30 @@ public class ProjectMapPanel
 
     private static final IMessages      i18n = Messages.forPrefix( "ProjectPanel" );
 
+    /**
+     * Render all visible layers into one image on the server instead of one tile
+     * stream per layer. Set system property
+     * <code>org.polymap.p4.map.composite=true</code> to enable.
+     */
+    public static final boolean         COMPOSITE = Boolean.getBoolean( "org.polymap.p4.map.composite" );
+
+    /**
+     * The size of the tiles of the map. Set system property
+     * <code>org.polymap.p4.map.tileSize=512</code> to change.
+     */
+    public static final int             TILE_SIZE = Integer.getInteger( "org.polymap.p4.map.tileSize", TileGrid.DEFAULT_TILE_SIZE );
+
+    /**
+     * Render tiles in the pixel ratio of HiDPI devices. Set system property
+     * <code>org.polymap.p4.map.hidpi=true</code> to enable.
+     */
+    public static final boolean         HIDPI = Boolean.getBoolean( "org.polymap.p4.map.hidpi" );
+
+    /**
+     * The distance in pixels in which a click in the map hits a feature.
+     */
+    public static final int             CLICK_TOLERANCE = 5;
+
     /**
      * The map of this P4 instance. This instance belongs to
      * {@link ProjectRepository#unitOfWork()}.
@@ -189,8 +218,14 @@ public class ProjectMapPanel
             mapViewer = new MapViewer( parent );
             mainMapViewer.set( mapViewer );
             // triggers {@link MapViewer#refresh()} on {@link ProjectNodeCommittedEvent} 
-            mapViewer.contentProvider.set( new ProjectContentProvider() );
-            mapViewer.layerProvider.set( new ProjectLayerProvider( "/p4mapviewer" ) );
+            ProjectContentProvider contentProvider = new ProjectContentProvider();
+            contentProvider.composite.set( COMPOSITE );
+            mapViewer.contentProvider.set( contentProvider );
+            ProjectLayerProvider layerProvider = new ProjectLayerProvider( "/p4mapviewer" );
+            layerProvider.composite.set( COMPOSITE );
+            layerProvider.tileSize.set( TILE_SIZE );
+            layerProvider.hidpi.set( HIDPI );
+            mapViewer.layerProvider.set( layerProvider );
             
             ReferencedEnvelope maxExtent = map.get().maxExtent();
             log.info( "maxExtent: " + maxExtent );
@@ -246,33 +281,69 @@ public class ProjectMapPanel
     
     protected void clickFeature( FeatureStore fs, Coordinate clicked ) throws Exception {
         CoordinateReferenceSystem mapCrs = Geometries.crs( map.get().srsCode.get() );
-        GeometryFactory gf = new GeometryFactory();
+        CoordinateReferenceSystem dataCrs = fs.getSchema().getCoordinateReferenceSystem();
 
-        Point point = gf.createPoint( clicked );
+        Point point = Geometries.transform( new GeometryFactory().createPoint( clicked ), mapCrs, dataCrs );
+        ReferencedEnvelope area = clickArea( clicked, mapCrs ).transform( dataCrs, true );
+        double tolerance = Math.max( area.getWidth(), area.getHeight() ) / 2;
+
+        // candidates: from the spatial index if ready, otherwise query
+        Optional<List<String>> indexed = featureLayer.get().spatialIndex().flatMap( index -> index.query( area ) );
+        Filter filter = null;
+        if (indexed.isPresent()) {
+            if (indexed.get().isEmpty()) {
+                return; // nothing found
+            }
+            Set<FeatureId> ids = new HashSet( indexed.get().size() * 2 );
+            indexed.get().forEach( fid -> ids.add( ff.featureId( fid ) ) );
+            filter = ff.id( ids );
+        }
+        else {
+            filter = ff.intersects( ff.property( "" ), ff.literal( JTS.toGeometry( (Envelope)area ) ) );
+        }
+
+        // nearest
+        Feature nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        try (FeatureIterator it = fs.getFeatures( filter ).features()) {
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                Object geom = feature.getDefaultGeometryProperty().getValue();
+                double distance = geom instanceof Geometry ? ((Geometry)geom).distance( point ) : Double.MAX_VALUE;
+                if (distance <= tolerance && distance < nearestDistance) {
+                    nearest = feature;
+                    nearestDistance = distance;
+                }
+            }
+        }
+        if (nearest != null) {
+            featureLayer.get().setClicked( nearest );
+            log.info( "clicked: " + nearest.getIdentifier() + " (distance: " + nearestDistance + ")" );
+        }
+    }
 
-        // buffer: 50m
-        double buffer = 50;
-        Point norm = Geometries.transform( point, mapCrs, Geometries.crs( "EPSG:3857" ) );
-        ReferencedEnvelope buffered = new ReferencedEnvelope(
-                norm.getX()-buffer, norm.getX()+buffer, norm.getY()-buffer, norm.getY()+buffer,
-                Geometries.crs( "EPSG:3857" ) );
-        
-        // transform -> dataCrs
-        CoordinateReferenceSystem dataCrs = fs.getSchema().getCoordinateReferenceSystem();
-        buffered = buffered.transform( dataCrs, true );
 
-        // get feature
-        Filter filter = ff.intersects( ff.property( "" ), ff.literal( JTS.toGeometry( (Envelope)buffered ) ) );
-        FeatureCollection selected = fs.getFeatures( filter );
-        if (selected.isEmpty()) {
-            return; // nothing found
+    /**
+     * The area around the clicked coordinate that hits features:
+     * {@link #CLICK_TOLERANCE} pixels in the current scale of the map, or 50m if
+     * the extent of the map is not known.
+     */
+    protected ReferencedEnvelope clickArea( Coordinate clicked, CoordinateReferenceSystem mapCrs ) throws Exception {
+        ReferencedEnvelope extent = mapViewer.mapExtent.get();
+        int width = mapViewer.getControl().getSize().x;
+        if (extent != null && !extent.isEmpty() && width > 0) {
+            double buffer = extent.getWidth() / width * CLICK_TOLERANCE;
+            return new ReferencedEnvelope( 
+                    clicked.x-buffer, clicked.x+buffer, clicked.y-buffer, clicked.y+buffer, mapCrs );
         }
-        if (selected.size() > 1) {
-            log.info( "Multiple features found: " + selected.size() );
+        else {
+            double buffer = 50;
+            Point norm = Geometries.transform( new GeometryFactory().createPoint( clicked ), mapCrs, Geometries.crs( "EPSG:3857" ) );
+            ReferencedEnvelope buffered = new ReferencedEnvelope(
+                    norm.getX()-buffer, norm.getX()+buffer, norm.getY()-buffer, norm.getY()+buffer,
+                    Geometries.crs( "EPSG:3857" ) );
+            return buffered.transform( mapCrs, true );
         }
-        Feature any = (Feature)Features.stream( selected ).findAny().get();
-        featureLayer.get().setClicked( any );
-        log.info( "clicked: " + any );
     }
 
     
@@ -0,0 +1,511 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.service.http.NamespaceException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.mapeditor.services.SimpleWmsServer;
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.data.PipelinePool;
+import org.polymap.p4.map.RenderQueue.Ticket;
+
+/**
+ * The WMS of the {@link ProjectLayerProvider}s. There is just one server per
+ * servlet alias, shared by all users and sessions. Every
+ * {@link ProjectLayerProvider} is a {@link Client} of the server with its own
+ * random {@link Client#token token}, which is part of the URL
+ * ({@code /alias/token}). A client can request only the layers it has registered;
+ * requests with an unknown token or an unknown layer are answered with 403.
+ * <p/>
+ * Layers are requested by their id. GetMap requests are rendered by the
+ * {@link TileRenderer}, which keys the {@link TileCache} by layer id and
+ * {@link PipelinePool#fingerprint(ILayer) fingerprint} only. So users that see the
+ * same layer with the same style and pipeline share the rendered tiles. All
+ * other requests are handled by the {@link SimpleWmsServer} and the pooled
+ * pipeline of the layer.
+ * <p/>
+ * GetMap responses carry an {@link #etag(List, TileRequest, byte[]) ETag} and a
+ * Cache-Control header with the {@link LayerRenderParams#MAX_AGE} of the layer.
+ * Requests with a matching If-None-Match header are answered with 304 without
+ * rendering.
+ * <p/>
+ * Requests with more than one layer (composite mode of the
+ * {@link ProjectLayerProvider}) are rendered and composed by the
+ * {@link TileRenderer}.
+ * <p/>
+ * Tiles of {@link LayerRenderParams#PROGRESSIVE} layers that are not cached yet
+ * are answered with an uncacheable draft. The full tile is rendered in the
+ * background; the client is {@link Client#onRefined(Consumer) notified} when it is
+ * ready, and has to request the tile again.
+ * <p/>
+ * The {@link MvtTileServer} of the server is registered with /alias-mvt and
+ * serves vector tiles of the layers of the clients, with the same tokens
+ * ({@code /alias-mvt/token}).
+ * <p/>
+ * After a tile was served, its neighbours are rendered in idle render capacity
+ * by the {@link TilePrefetcher} of the server.
+ * <p/>
+ * Renders are ordered by a {@link RenderQueue} per client: the newest viewport is served
+ * first, and requests of a zoom level the client has left are answered with 503
+ * before they are rendered or, for composite requests, between the layers. All
+ * renders are admitted by the global {@link RenderScheduler}. A client that
+ * disconnects is noticed only when the response is written; its render is not
+ * stopped, see {@link RenderQueue}.
+ *
+ * @author Falko Bräutigam
+ */
+public class ProjectWmsServer
+        extends SimpleWmsServer {
+
+    private static final Log log = LogFactory.getLog( ProjectWmsServer.class );
+
+    /** Appended to the alias of the server to get the alias of the {@link MvtTileServer}. */
+    public static final String      MVT_SUFFIX = "-mvt";
+
+    private static final Map<String,ProjectWmsServer> servers = new ConcurrentHashMap();
+
+    /**
+     * Returns the shared server for the given servlet alias. The server and its
+     * {@link MvtTileServer} are created and registered with the HTTP service on
+     * first use.
+     */
+    public static synchronized ProjectWmsServer forAlias( String alias ) throws Exception {
+        ProjectWmsServer server = servers.get( alias );
+        if (server == null) {
+            server = new ProjectWmsServer( alias );
+            registerServlet( alias, server );
+            registerServlet( alias + MVT_SUFFIX, new MvtTileServer( server::layer, server::user ) );
+            servers.put( alias, server );
+        }
+        return server;
+    }
+
+
+    protected static void registerServlet( String alias, HttpServlet servlet ) throws Exception {
+        try {
+            P4Plugin.instance().httpService().registerServlet( alias, servlet, null, null );
+        }
+        catch (NamespaceException e) {
+            log.warn( "Servlet already/still registered: " + alias );
+            P4Plugin.instance().httpService().unregister( alias );
+            P4Plugin.instance().httpService().registerServlet( alias, servlet, null, null );
+        }
+    }
+
+
+    /**
+     * A client of the server, usually one {@link ProjectLayerProvider}.
+     */
+    public class Client {
+
+        /** Random, unguessable id of this client; part of the URL. */
+        public final String         token = UUID.randomUUID().toString();
+
+        /** The name of the user this client renders for, see {@link RenderScheduler}. */
+        public final String         user;
+
+        private Function<String,ILayer> layers;
+
+        private RenderQueue         queue = new RenderQueue( RenderQueue.DEFAULT_SLOTS );
+
+        private Consumer<String>    refined = layerId -> {};
+
+        protected Client( String user, Function<String,ILayer> layers ) {
+            this.user = user;
+            this.layers = layers;
+        }
+
+        /**
+         * The URL of the WMS for this client, relative to the application.
+         */
+        public String url() {
+            return "." + alias + "/" + token;
+        }
+
+        /**
+         * The URL of the {@link MvtTileServer} for this client, relative to the
+         * application.
+         */
+        public String vectorTileUrl() {
+            return "." + alias + MVT_SUFFIX + "/" + token;
+        }
+
+        /**
+         * Sets the callback that is called, in a background thread, when the full
+         * tile of a draft sent to this client is ready.
+         *
+         * @param onRefined Accepts the id of the layer.
+         */
+        public Client onRefined( Consumer<String> onRefined ) {
+            this.refined = onRefined;
+            return this;
+        }
+
+        /**
+         * Renders the full tile of a draft in the background.
+         */
+        protected void refine( ILayer layer, TileRequest request ) {
+            String layerId = (String)layer.id();
+            TileRenderer.instance().refine( layer, request, user ).whenComplete( (result, e) -> {
+                if (e != null) {
+                    log.warn( "Refining " + request + ": " + e );
+                }
+                else if (clients.containsKey( token )) {
+                    refined.accept( layerId );
+                }
+            });
+        }
+
+        /**
+         * Removes this client from the server. Subsequent requests are rejected.
+         */
+        public void dispose() {
+            clients.remove( token );
+            if (prefetcher != null) {
+                prefetcher.remove( token );
+            }
+        }
+    }
+
+
+    // instance *******************************************
+
+    private String                  alias;
+
+    private Map<String,Client>      clients = new ConcurrentHashMap();
+
+    /** The client of the request handled by the current thread. */
+    private ThreadLocal<Client>     current = new ThreadLocal();
+
+    /** Null if {@link TilePrefetcher#ENABLED} is false. */
+    private TilePrefetcher          prefetcher;
+
+
+    protected ProjectWmsServer( String alias ) {
+        this.alias = alias;
+        this.prefetcher = TilePrefetcher.ENABLED ? new TilePrefetcher( StringUtils.removeStart( alias, "/" ) ) : null;
+    }
+
+
+    /**
+     * Creates a new client.
+     *
+     * @param user The name of the user the client renders for.
+     * @param layers Finds the layer for a given layer id, or returns null if the
+     *        layer is not accessible for the client.
+     */
+    public Client newClient( String user, Function<String,ILayer> layers ) {
+        Client client = new Client( user, layers );
+        clients.put( client.token, client );
+        return client;
+    }
+
+
+    /**
+     * The layer with the given id of the client with the given token.
+     *
+     * @return The layer, or null if the token is not known or the layer is not
+     *         accessible for the client.
+     */
+    protected ILayer layer( String token, String layerId ) {
+        Client client = clients.get( token );
+        return client != null ? client.layers.apply( layerId ) : null;
+    }
+
+
+    /**
+     * The name of the user of the client with the given token.
+     *
+     * @return The user, or null if the token is not known.
+     */
+    protected String user( String token ) {
+        Client client = clients.get( token );
+        return client != null ? client.user : null;
+    }
+
+
+    @Override
+    protected String[] layerNames() {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+
+    @Override
+    protected Pipeline createPipeline( String layerName ) {
+        try {
+            ILayer layer = current.get().layers.apply( layerName );
+            if (layer == null) {
+                throw new IllegalArgumentException( "Unknown layer: " + layerName );
+            }
+            return TileRenderer.pipeline( layer );
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            throw Throwables.propagate( e );
+        }
+    }
+
+
+    @Override
+    protected void service( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException {
+        Client client = clients.get( StringUtils.removeStart( StringUtils.defaultString( req.getPathInfo() ), "/" ) );
+        if (client == null) {
+            resp.sendError( HttpServletResponse.SC_FORBIDDEN );
+            return;
+        }
+        // WebP only for clients that accept it
+        Optional<TileRequest> parsed = TileRequest.parse( req );
+        Optional<TileRequest> request = parsed.map( r -> 
+                r.withFormat( TileEncoder.negotiate( r.format(), req.getHeader( "Accept" ) ) ) );
+        if (parsed.isPresent() && parsed.get().format().equals( TileEncoder.WEBP )) {
+            resp.setHeader( "Vary", "Accept" );
+        }
+        List<ILayer> requested = request.map( r -> resolve( client, r ) ).orElse( Collections.EMPTY_LIST );
+
+        if (request.isPresent() && requested.isEmpty()) {
+            resp.sendError( HttpServletResponse.SC_FORBIDDEN );
+            return;
+        }
+        // not known before rendering if a cascaded tile is not stored
+        Optional<String> etag = Optional.empty();
+        if (!requested.isEmpty()) {
+            etag = etag( requested, request.get(), null );
+            etag.ifPresent( value -> resp.setHeader( "ETag", value ) );
+            resp.setHeader( "Cache-Control", cacheControl( requested ) );
+            if (etag.isPresent() && matches( req.getHeader( "If-None-Match" ), etag.get() )) {
+                resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+            }
+        }
+
+        if (requested.isEmpty()) {
+            current.set( client );
+            try {
+                super.service( req, resp );
+            }
+            finally {
+                current.remove();
+            }
+            return;
+        }
+
+        // newest viewport first; drop superseded
+        RenderQueue queue = client.queue;
+        Ticket ticket = queue.enqueue( request.get() );
+        try {
+            if (!queue.acquire( ticket )) {
+                superseded( resp );
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            superseded( resp );
+            return;
+        }
+        
+        try {
+            byte[] tile;
+            AtomicBoolean draft = new AtomicBoolean();
+            if (requested.size() > 1) {
+                // the layers are admitted by the RenderScheduler one by one
+                tile = TileRenderer.instance().renderComposite( requested, request.get(), client.user, ticket::isSuperseded );
+            }
+            else {
+                // render in the slot but write outside, so that a slow client does not hold the slot
+                ILayer layer = requested.get( 0 );
+                tile = RenderScheduler.instance().execute( client.user, () -> {
+                    if (ticket.isSuperseded()) {
+                        throw new CancellationException( "Request was superseded." );
+                    }
+                    Optional<byte[]> rendered = TileRenderer.instance().renderDraft( layer, request.get() );
+                    draft.set( rendered.isPresent() );
+                    return rendered.isPresent() ? rendered.get() : TileRenderer.instance().render( layer, request.get() );
+                });
+            }
+
+            if (draft.get()) {
+                client.refine( requested.get( 0 ), request.get() );
+                writeDraft( tile, request.get(), resp );
+            }
+            else {
+                if (!etag.isPresent()) {
+                    etag( requested, request.get(), tile ).ifPresent( value -> resp.setHeader( "ETag", value ) );
+                }
+                resp.setContentType( TileEncoder.contentType( request.get().format() ) );
+                resp.setContentLength( tile.length );
+                resp.getOutputStream().write( tile );
+                if (prefetcher != null) {
+                    prefetcher.served( client.token, requested, request.get() );
+                }
+            }
+        }
+        catch (CancellationException|InterruptedException e) {
+            superseded( resp );
+        }
+        catch (IOException e) {
+            // client has gone
+            log.debug( "Writing response: " + e );
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage() );
+        }
+        finally {
+            queue.release( ticket );
+        }
+    }
+
+
+    /**
+     * Writes the draft of a tile of a {@link LayerRenderParams#PROGRESSIVE}
+     * layer, see {@link TileRenderer#renderDraft(ILayer, TileRequest)}. Drafts
+     * are never stored by the client.
+     */
+    protected void writeDraft( byte[] draft, TileRequest request, HttpServletResponse resp ) throws IOException {
+        resp.setHeader( "Cache-Control", "no-store" );
+        resp.setHeader( "ETag", "W/\"draft-" + System.nanoTime() + "\"" );
+        resp.setContentType( TileEncoder.contentType( request.format() ) );
+        resp.setContentLength( draft.length );
+        resp.getOutputStream().write( draft );
+    }
+
+
+    /**
+     * The client has requested tiles of another zoom level in the meantime;
+     * OpenLayers has discarded this request already.
+     */
+    protected void superseded( HttpServletResponse resp ) {
+        if (!resp.isCommitted()) {
+            resp.reset();
+            resp.setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            resp.setHeader( "Cache-Control", "no-store" );
+        }
+    }
+
+
+    /**
+     * The layers of the {@link TileRequest#layerNames()} of the given request.
+     *
+     * @return The layers, or an empty list if one of the layers is not known to
+     *         (not accessible for) the given client.
+     */
+    protected List<ILayer> resolve( Client client, TileRequest request ) {
+        List<ILayer> result = new ArrayList();
+        for (String layerName : request.layerNames()) {
+            ILayer layer = client.layers.apply( layerName );
+            if (layer == null) {
+                return Collections.EMPTY_LIST;
+            }
+            result.add( layer );
+        }
+        return result;
+    }
+
+
+    /**
+     * The ETag of the response to the given request. It changes whenever the
+     * pipeline, the style or the {@link TileCache#generation(String)} of one of
+     * the layers change. For layers that are {@link WmsCascade cascaded} it
+     * changes with the {@link WmsCascade#validator(ILayer, TileRequest) content}
+     * of the tile.
+     *
+     * @param tile The rendered tile of a request of one layer, or null if not yet
+     *        rendered.
+     * @return The ETag, or {@link Optional#empty()} if the tile of a cascaded
+     *         layer is not stored and not yet rendered.
+     */
+    protected Optional<String> etag( List<ILayer> requested, TileRequest request, byte[] tile ) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (ILayer layer : requested) {
+            hasher.putString( PipelinePool.fingerprint( layer ), UTF_8 );
+            hasher.putLong( TileCache.instance().generation( (String)layer.id() ) );
+            if (WmsCascade.instance().isCascaded( layer )) {
+                Optional<String> validator = tile != null && requested.size() == 1
+                        ? Optional.of( WmsCascade.validator( tile ) )
+                        : WmsCascade.instance().validator( layer, request );
+                if (!validator.isPresent()) {
+                    return Optional.empty();
+                }
+                hasher.putString( validator.get(), UTF_8 );
+            }
+        }
+        return Optional.of( "\"" + hasher
+                .putString( request.key(), UTF_8 )
+                .hash().toString() + "\"" );
+    }
+
+
+    /**
+     * The Cache-Control header of the given layers: the min
+     * {@link LayerRenderParams#MAX_AGE} of all layers.
+     */
+    protected String cacheControl( List<ILayer> requested ) {
+        long maxAge = requested.stream()
+                .map( layer -> LayerRenderParams.value( LayerRenderParams.MAX_AGE, layer ) )
+                .mapToLong( duration -> duration != null ? duration.getSeconds() : 0 )
+                .min().orElse( 0 );
+        return "private, max-age=" + maxAge;
+    }
+
+
+    /**
+     * True if the given If-None-Match header contains the given ETag.
+     */
+    protected static boolean matches( String ifNoneMatch, String etag ) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : StringUtils.split( ifNoneMatch, ',' )) {
+            candidate = StringUtils.removeStart( candidate.trim(), "W/" );
+            if (candidate.equals( etag ) || candidate.equals( "*" )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
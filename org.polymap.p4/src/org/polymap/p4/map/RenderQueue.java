@@ -0,0 +1,155 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Orders the renders of one client (one {@link ProjectWmsServer}) so that the
+ * tiles of the newest viewport are rendered first, and drops renders that were
+ * superseded by the client.
+ * <p/>
+ * Every request gets a {@link Ticket}. At most {@link #slots} tickets are
+ * rendered at the same time; waiting tickets are started newest first. A ticket
+ * is superseded if a newer request of another resolution (zoom level) has
+ * arrived: OpenLayers has discarded the tiles of the old zoom level already, so
+ * rendering them just delays the tiles of the current viewport. Running tickets
+ * can check {@link Ticket#isSuperseded()} between render steps, as composite
+ * requests do between their layers. A running render of one layer is not
+ * aborted: the renderer of the pipeline cannot be interrupted, other clients
+ * may wait for the same metatile, and the result is cached for later requests
+ * anyway.
+ * <p/>
+ * Renders are <b>not</b> stopped when the client disconnects. The servlet API
+ * reports a closed connection only when the response is written or flushed, and
+ * flushing before the render would commit the response before its status
+ * (503, 304) and its ETag are known. Superseded tickets are a heuristic for the
+ * common case: OpenLayers aborts the pending tiles of a zoom level it has left.
+ * Tiles that were aborted because the viewport was panned at the same zoom
+ * level are still rendered, and cached.
+ *
+ * @author Falko Bräutigam
+ */
+public class RenderQueue {
+
+    private static final Log log = LogFactory.getLog( RenderQueue.class );
+
+    public static final int     DEFAULT_SLOTS = Runtime.getRuntime().availableProcessors();
+
+    /** Max relative difference of resolutions that are considered to be the same zoom level. */
+    public static final double  RESOLUTION_TOLERANCE = 0.01;
+
+    /**
+     * The position of one request in the {@link RenderQueue}.
+     */
+    public class Ticket {
+
+        public final long       seq;
+
+        public final double     resolution;
+
+        protected Ticket( long seq, double resolution ) {
+            this.seq = seq;
+            this.resolution = resolution;
+        }
+
+        /**
+         * True if a newer request with another resolution has arrived.
+         */
+        public boolean isSuperseded() {
+            synchronized (RenderQueue.this) {
+                return seq < latestSeq
+                        && Math.abs( resolution - latestResolution ) > latestResolution * RESOLUTION_TOLERANCE;
+            }
+        }
+    }
+
+
+    // instance *******************************************
+
+    private int                     slots;
+
+    private int                     running;
+
+    private long                    latestSeq;
+
+    private double                  latestResolution;
+
+    /** Newest first. */
+    private PriorityQueue<Ticket>   waiting = new PriorityQueue<>( 64, (t1, t2) -> Long.compare( t2.seq, t1.seq ) );
+
+
+    public RenderQueue( int slots ) {
+        this.slots = slots;
+    }
+
+
+    /**
+     * Creates a new ticket for the given request. This is the newest request of
+     * the client from now on.
+     */
+    public synchronized Ticket enqueue( TileRequest request ) {
+        Ticket result = new Ticket( ++latestSeq, request.resolution() );
+        latestResolution = result.resolution;
+        waiting.add( result );
+        notifyAll();
+        return result;
+    }
+
+
+    /**
+     * Waits until the given ticket can be rendered.
+     *
+     * @return False if the ticket was superseded while waiting. The caller must
+     *         not render and must not {@link #release(Ticket)}.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     *         The ticket is removed from the queue; the caller must not
+     *         {@link #release(Ticket)}.
+     */
+    public synchronized boolean acquire( Ticket ticket ) throws InterruptedException {
+        while (true) {
+            if (ticket.isSuperseded()) {
+                waiting.remove( ticket );
+                notifyAll();
+                log.debug( "Superseded: " + ticket.seq + " (latest: " + latestSeq + ")" );
+                return false;
+            }
+            if (running < slots && waiting.peek() == ticket) {
+                waiting.poll();
+                running ++;
+                return true;
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                // don't block the tickets behind this one
+                waiting.remove( ticket );
+                notifyAll();
+                throw e;
+            }
+        }
+    }
+
+
+    public synchronized void release( Ticket ticket ) {
+        running --;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.mapeditor.services.SimpleWmsServer;
+
+/**
+ * JVM wide admission control for renders of the WMS servlets of all users
+ * ({@link ProjectWmsServer}, {@link SimpleWmsServer} of the preview map).
+ * <p/>
+ * At most {@link #capacity} renders run at the same time. Every user has its
+ * own FIFO queue of waiting renders. If a render slot gets free, the users with
+ * waiting renders take turns (round robin), so one user that requests lots of
+ * tiles cannot starve all others.
+ * <p/>
+ * Background renders (prefetching) are {@link #executeIfIdle(Render) admitted}
+ * only if no render is waiting and more than {@link #IDLE_RESERVE} slots are
+ * free; they never wait.
+ * <p/>
+ * The scheduler records {@link Metrics} about queue depth and wait time.
+ *
+ * @author Falko Bräutigam
+ */
+public class RenderScheduler {
+
+    private static final Log log = LogFactory.getLog( RenderScheduler.class );
+
+    public static final int                 DEFAULT_CAPACITY = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+
+    /** The number of slots that background renders leave free for users. */
+    public static final int                 IDLE_RESERVE = 1;
+
+    /** Waits longer than this are logged. */
+    public static final long                SLOW_WAIT_MILLIS = 2000;
+
+    private static final RenderScheduler    instance = new RenderScheduler( DEFAULT_CAPACITY );
+
+    public static RenderScheduler instance() {
+        return instance;
+    }
+
+
+    /**
+     * Snapshot of the state and the statistics of a {@link RenderScheduler}.
+     */
+    public static class Metrics {
+
+        public int          running;
+
+        public int          waiting;
+
+        public int          waitingUsers;
+
+        public long         admitted;
+
+        public long         idleAdmitted;
+
+        public long         totalWaitMillis;
+
+        public long         maxWaitMillis;
+
+        public long avgWaitMillis() {
+            return admitted > 0 ? totalWaitMillis / admitted : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "RenderScheduler.Metrics[running=%d, waiting=%d (%d users), admitted=%d, idle=%d, avgWait=%dms, maxWait=%dms]",
+                    running, waiting, waitingUsers, admitted, idleAdmitted, avgWaitMillis(), maxWaitMillis );
+        }
+    }
+
+
+    /**
+     * Executes a render.
+     */
+    @FunctionalInterface
+    public interface Render<T> {
+        public T render() throws Exception;
+    }
+
+
+    // instance *******************************************
+
+    private int                         capacity;
+
+    private int                         running;
+
+    /** Waiting renders per user. */
+    private Map<String,Deque<Waiter>>   queues = new HashMap();
+
+    /** The users with waiting renders, in the order they get their next turn. */
+    private Deque<String>               turns = new ArrayDeque();
+
+    private long                        admitted;
+
+    private long                        idleAdmitted;
+
+    private long                        totalWaitNanos;
+
+    private long                        maxWaitNanos;
+
+
+    public RenderScheduler( int capacity ) {
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * Waits until the given user is admitted to render, executes the render and
+     * frees the slot afterwards.
+     *
+     * @param user The name of the user that has requested the render.
+     * @param render The render to execute.
+     * @return The result of the render.
+     */
+    public <T> T execute( String user, Render<T> render ) throws Exception {
+        acquire( user );
+        try {
+            return render.render();
+        }
+        finally {
+            release();
+        }
+    }
+
+
+    /**
+     * Executes the given background render if the scheduler is idle; see
+     * {@link #tryAcquireIdle()}.
+     *
+     * @return The result of the render, or {@link Optional#empty()} if the
+     *         render was not admitted.
+     */
+    public <T> Optional<T> executeIfIdle( Render<T> render ) throws Exception {
+        if (!tryAcquireIdle()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable( render.render() );
+        }
+        finally {
+            release();
+        }
+    }
+
+
+    /**
+     * Admits a background render if no render is waiting and more than
+     * {@link #IDLE_RESERVE} slots are free. Does not wait.
+     *
+     * @return True if the render was admitted; {@link #release()} has to be
+     *         called afterwards.
+     */
+    public synchronized boolean tryAcquireIdle() {
+        if (turns.isEmpty() && running < capacity - IDLE_RESERVE) {
+            running ++;
+            idleAdmitted ++;
+            return true;
+        }
+        return false;
+    }
+
+
+    public synchronized void acquire( String user ) throws InterruptedException {
+        Waiter waiter = new Waiter();
+        queues.computeIfAbsent( user, key -> new ArrayDeque() ).addLast( waiter );
+        if (!turns.contains( user )) {
+            turns.addLast( user );
+        }
+        dispatch();
+        try {
+            while (!waiter.admitted) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            if (waiter.admitted) {
+                release();
+            }
+            else {
+                Deque<Waiter> queue = queues.get( user );
+                queue.remove( waiter );
+                if (queue.isEmpty()) {
+                    queues.remove( user );
+                    turns.remove( user );
+                }
+            }
+            throw e;
+        }
+
+        long waitNanos = System.nanoTime() - waiter.enqueued;
+        admitted ++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max( maxWaitNanos, waitNanos );
+        if (TimeUnit.NANOSECONDS.toMillis( waitNanos ) > SLOW_WAIT_MILLIS) {
+            log.info( "Slow admission: " + user + " waited " + TimeUnit.NANOSECONDS.toMillis( waitNanos ) + "ms - " + metrics() );
+        }
+    }
+
+
+    public synchronized void release() {
+        running --;
+        dispatch();
+    }
+
+
+    /**
+     * Admits waiting renders as long as there are free slots, one render per
+     * user and turn.
+     */
+    protected void dispatch() {
+        boolean changed = false;
+        while (running < capacity && !turns.isEmpty()) {
+            String user = turns.pollFirst();
+            Deque<Waiter> queue = queues.get( user );
+            queue.pollFirst().admitted = true;
+            running ++;
+            changed = true;
+            if (queue.isEmpty()) {
+                queues.remove( user );
+            }
+            else {
+                turns.addLast( user );
+            }
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+
+    public synchronized Metrics metrics() {
+        Metrics result = new Metrics();
+        result.running = running;
+        result.waiting = queues.values().stream().mapToInt( queue -> queue.size() ).sum();
+        result.waitingUsers = queues.size();
+        result.admitted = admitted;
+        result.idleAdmitted = idleAdmitted;
+        result.totalWaitMillis = TimeUnit.NANOSECONDS.toMillis( totalWaitNanos );
+        result.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis( maxWaitNanos );
+        return result;
+    }
+
+
+    /**
+     * The number of renders of the given user that are waiting.
+     */
+    public synchronized int queueDepth( String user ) {
+        Deque<Waiter> queue = queues.get( user );
+        return queue != null ? queue.size() : 0;
+    }
+
+
+    /**
+     * A render waiting for admission.
+     */
+    protected static class Waiter {
+
+        public long         enqueued = System.nanoTime();
+
+        public boolean      admitted;
+    }
+
+}
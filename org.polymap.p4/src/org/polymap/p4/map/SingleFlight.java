@@ -0,0 +1,155 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Coalesces concurrent executions of identical tasks. The first caller for a
+ * given key executes the task; callers with the same key that arrive while the
+ * task is running wait for it and share its result (or its exception).
+ * <p/>
+ * If the task of the first caller was canceled ({@link CancellationException}),
+ * then the waiting callers do not share this but try again themselves.
+ * <p/>
+ * {@link #submit(Object, Callable, Executor)} coalesces tasks before they are
+ * queued, so that identical tasks do not occupy the queue of an executor.
+ *
+ * @author Falko Bräutigam
+ */
+public class SingleFlight<K,V> {
+
+    private ConcurrentMap<K,CompletableFuture<V>> running = new ConcurrentHashMap();
+
+    private AtomicLong              executed = new AtomicLong();
+
+    private AtomicLong              coalesced = new AtomicLong();
+
+
+    /**
+     * Executes the given task, or waits for the running task with the same key.
+     *
+     * @param key Identifies the result of the task.
+     * @param task Computes the result.
+     * @return The result of the task.
+     */
+    public V execute( K key, Callable<V> task ) throws Exception {
+        while (true) {
+            CompletableFuture<V> created = new CompletableFuture();
+            CompletableFuture<V> pending = running.putIfAbsent( key, created );
+            if (pending != null) {
+                coalesced.incrementAndGet();
+                try {
+                    return pending.get();
+                }
+                catch (CancellationException e) {
+                    // the first caller was canceled, not us -> try again
+                    continue;
+                }
+                catch (ExecutionException e) {
+                    Throwables.propagateIfPossible( e.getCause(), Exception.class );
+                    throw e;
+                }
+            }
+            try {
+                executed.incrementAndGet();
+                V result = task.call();
+                created.complete( result );
+                return result;
+            }
+            catch (Throwable e) {
+                created.completeExceptionally( e );
+                throw e;
+            }
+            finally {
+                running.remove( key, created );
+            }
+        }
+    }
+
+
+    /**
+     * Executes the given task asynchronously in the given executor, or returns
+     * the pending result of the task with the same key.
+     *
+     * @param key Identifies the result of the task.
+     * @param task Computes the result.
+     * @param executor Executes the task.
+     * @return The result of the task.
+     * @throws RejectedExecutionException If the executor does not accept the
+     *         task.
+     */
+    public CompletableFuture<V> submit( K key, Callable<V> task, Executor executor ) {
+        CompletableFuture<V> created = new CompletableFuture();
+        CompletableFuture<V> pending = running.putIfAbsent( key, created );
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            return pending;
+        }
+        try {
+            executor.execute( () -> {
+                try {
+                    created.complete( task.call() );
+                }
+                catch (Throwable e) {
+                    created.completeExceptionally( e );
+                }
+                finally {
+                    running.remove( key, created );
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            running.remove( key, created );
+            created.completeExceptionally( e );
+            throw e;
+        }
+        executed.incrementAndGet();
+        return created;
+    }
+
+
+    /**
+     * The number of tasks that were executed.
+     */
+    public long executed() {
+        return executed.get();
+    }
+
+
+    /**
+     * The number of calls that waited for and shared the result of another call.
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+
+    @Override
+    public String toString() {
+        return "SingleFlight[running=" + running.size() + ", executed=" + executed + ", coalesced=" + coalesced + "]";
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static org.polymap.core.runtime.event.TypeEventFilter.ifType;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureEvent.Type;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.polymap.core.runtime.event.EventHandler;
+import org.polymap.core.runtime.event.EventManager;
+
+/**
+ * JVM wide memory cache of encoded tiles that were rendered by the
+ * {@link TileRenderer}, keyed by the {@link TileRequest#key()} of the
+ * {@link TileRenderer#sharedRequest(java.util.List, TileRequest) shared request},
+ * so tiles are shared between all users. The size of the cache
+ * is limited by the number of bytes of the encoded images.
+ * <p/>
+ * The {@link #generation(String)} of a layer is incremented whenever its tiles
+ * are invalidated, either explicitly or because features of its resource were
+ * committed. It is part of the ETag of the tiles served by
+ * {@link ProjectWmsServer}. Generations start at the time of startup, so they
+ * are never reused after a restart.
+ * <p/>
+ * A render captures the {@link #generation(TileRequest)} of its request before
+ * it starts and passes it to {@link #put(TileRequest, byte[], long)}. A tile
+ * whose layers were invalidated while it was rendering is not stored.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileCache {
+
+    /** Max size of all cached tiles in bytes. */
+    public static final long        MAX_WEIGHT = 64 * 1024 * 1024;
+
+    private static final TileCache  instance = new TileCache();
+
+    public static TileCache instance() {
+        return instance;
+    }
+
+
+    // instance *******************************************
+
+    private Cache<String,byte[]>    tiles = CacheBuilder.newBuilder()
+            .maximumWeight( MAX_WEIGHT )
+            .weigher( (String key, byte[] value) -> key.length() + value.length )
+            .recordStats()
+            .build();
+
+    /** The time of startup, the first generation of all layers. */
+    private long                    startup = System.currentTimeMillis();
+
+    /** The number of invalidations of the layers since startup, by layer id. */
+    private Map<String,Long>        generations = new ConcurrentHashMap();
+
+    /** The ids of the layers by the feature types they render. */
+    private Map<String,Set<String>> layerIds = new ConcurrentHashMap();
+
+
+    protected TileCache() {
+        EventManager.instance().subscribe( this, ifType( FeatureEvent.class, ev -> 
+                ev.getType() == Type.COMMIT ) );
+    }
+
+
+    /**
+     * Features have been committed. The tiles of all layers that render this
+     * feature type are invalidated.
+     */
+    @EventHandler
+    protected void onFeatureCommit( FeatureEvent ev ) {
+        String typeName = ev.getFeatureSource().getSchema().getName().getLocalPart();
+        for (String layerId : layerIds.getOrDefault( typeName, Collections.EMPTY_SET )) {
+            invalidate( layerId );
+        }
+    }
+
+
+    /**
+     * Registers the feature type that is rendered by the given layer. Tiles of
+     * the layer are invalidated when features of this type are committed.
+     */
+    public void register( String layerId, String typeName ) {
+        layerIds.computeIfAbsent( typeName, k -> ConcurrentHashMap.newKeySet() ).add( layerId );
+    }
+
+
+    /**
+     * The current generation of the tiles of the given layer.
+     */
+    public long generation( String layerId ) {
+        return startup + generations.getOrDefault( layerId, 0L );
+    }
+
+
+    /**
+     * The generation of the tiles of the given request. This changes whenever one
+     * of the layers of the request is invalidated.
+     */
+    public long generation( TileRequest request ) {
+        long result = 0;
+        for (String layerId : request.layerNames()) {
+            result += generation( layerId );
+        }
+        return result;
+    }
+
+
+    public Optional<byte[]> get( TileRequest request ) {
+        return Optional.ofNullable( tiles.getIfPresent( request.key() ) );
+    }
+
+
+    /**
+     * Stores the given tile, unless one of its layers was invalidated since the
+     * given generation was captured.
+     *
+     * @param generation The {@link #generation(TileRequest)} of the request,
+     *        captured before the tile was rendered.
+     */
+    public void put( TileRequest request, byte[] tile, long generation ) {
+        if (generation( request ) == generation) {
+            tiles.put( request.key(), tile );
+            // invalidated while we were storing? the generation is incremented
+            // before the tiles are removed, so this catches it
+            if (generation( request ) != generation) {
+                tiles.asMap().remove( request.key(), tile );
+            }
+        }
+    }
+
+
+    /**
+     * Removes all tiles of the given layer, including composite tiles that
+     * contain the layer.
+     */
+    public void invalidate( String layerId ) {
+        generations.merge( layerId, 1L, Long::sum );
+        tiles.asMap().keySet().removeIf( key -> 
+                ArrayUtils.contains( StringUtils.split( StringUtils.substringBefore( key, "|" ), ',' ), layerId ) );
+    }
+
+
+    @Override
+    public String toString() {
+        return "TileCache[size=" + tiles.size() + ", " + tiles.stats() + "]";
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.List;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Fill;
+import org.geotools.styling.Graphic;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.PolygonSymbolizer;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Stroke;
+import org.geotools.styling.Style;
+import org.geotools.styling.Symbolizer;
+import org.geotools.styling.TextSymbolizer;
+import org.opengis.style.ExternalGraphic;
+import org.opengis.style.GraphicalSymbol;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.P4Plugin;
+
+/**
+ * Encodes the tiles rendered by the {@link TileRenderer}. Besides the formats of
+ * ImageIO this supports {@link #PNG8} (palette PNG, see {@link PaletteQuantizer})
+ * and {@link #WEBP}, if a WebP writer is installed.
+ * <p/>
+ * The format of the tiles of a layer is set by {@link LayerRenderParams#FORMAT}.
+ * The default {@link #AUTO} chooses the format from the style of the layer:
+ * {@link #PNG8} for flat colors (polygons, lines, marks, labels), {@link #WEBP}
+ * (or {@link #PNG}) for images (raster, WMS, external graphics).
+ * <p/>
+ * Pipelines always produce {@link #PNG}; PNG8 and WebP are encoded from the
+ * rendered image. WebP is sent only to clients that accept it, see
+ * {@link #negotiate(String, String)}.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileEncoder {
+
+    private static final Log log = LogFactory.getLog( TileEncoder.class );
+
+    public static final String      PNG = TileRequest.DEFAULT_FORMAT;
+
+    public static final String      PNG8 = "image/png8";
+
+    public static final String      WEBP = "image/webp";
+
+    public static final String      AUTO = "auto";
+
+    /** True if ImageIO has a WebP writer installed. */
+    public static final boolean     WEBP_SUPPORTED = ImageIO.getImageWritersByMIMEType( WEBP ).hasNext();
+
+
+    /**
+     * The tile format of the given layer.
+     */
+    public static String format( ILayer layer ) {
+        String result = LayerRenderParams.value( LayerRenderParams.FORMAT, layer );
+        if (result == null || result.equals( AUTO )) {
+            result = autoFormat( layer );
+        }
+        return result.equals( WEBP ) && !WEBP_SUPPORTED ? PNG : result;
+    }
+
+
+    /**
+     * The tile format of a composite of the given layers: the format of all
+     * layers if they have the same format, otherwise {@link #PNG}.
+     */
+    public static String format( List<ILayer> layers ) {
+        return layers.stream().map( l -> format( l ) ).distinct().reduce( (f1, f2) -> PNG ).orElse( PNG );
+    }
+
+
+    protected static String autoFormat( ILayer layer ) {
+        try {
+            if (!layer.styleIdentifier.opt().isPresent()) {
+                return WEBP_SUPPORTED ? WEBP : PNG;
+            }
+            Style style = P4Plugin.styleRepo().serializedFeatureStyle( layer.styleIdentifier.get(), Style.class )
+                    .orElse( null );
+            return style == null || isFlat( style ) ? PNG8 : (WEBP_SUPPORTED ? WEBP : PNG);
+        }
+        catch (Throwable e) {
+            log.warn( "Unable to check style of: " + layer.label.get(), e );
+            return PNG;
+        }
+    }
+
+
+    /**
+     * True if the given style renders just a few flat colors, which can be
+     * encoded by a palette without visible loss.
+     */
+    protected static boolean isFlat( Style style ) {
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            for (Rule rule : fts.rules()) {
+                for (Symbolizer symbolizer : rule.symbolizers()) {
+                    if (symbolizer instanceof PolygonSymbolizer) {
+                        PolygonSymbolizer ps = (PolygonSymbolizer)symbolizer;
+                        if (!isFlat( ps.getFill() ) || !isFlat( ps.getStroke() )) {
+                            return false;
+                        }
+                    }
+                    else if (symbolizer instanceof LineSymbolizer) {
+                        if (!isFlat( ((LineSymbolizer)symbolizer).getStroke() )) {
+                            return false;
+                        }
+                    }
+                    else if (symbolizer instanceof PointSymbolizer) {
+                        if (!isFlat( ((PointSymbolizer)symbolizer).getGraphic() )) {
+                            return false;
+                        }
+                    }
+                    else if (!(symbolizer instanceof TextSymbolizer)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    protected static boolean isFlat( Fill fill ) {
+        return fill == null || isFlat( fill.getGraphicFill() );
+    }
+
+
+    protected static boolean isFlat( Stroke stroke ) {
+        return stroke == null || (isFlat( stroke.getGraphicFill() ) && isFlat( stroke.getGraphicStroke() ));
+    }
+
+
+    /**
+     * Marks are flat, external graphics (icons, images) are not.
+     */
+    protected static boolean isFlat( Graphic graphic ) {
+        if (graphic != null) {
+            for (GraphicalSymbol symbol : graphic.graphicalSymbols()) {
+                if (symbol instanceof ExternalGraphic) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The format that is actually sent to a client: {@link #WEBP} only if the
+     * client accepts it, otherwise {@link #PNG}.
+     *
+     * @param format The requested format.
+     * @param accept The Accept header of the request, or null.
+     */
+    public static String negotiate( String format, String accept ) {
+        return format.equals( WEBP ) && !StringUtils.containsIgnoreCase( accept, WEBP ) ? PNG : format;
+    }
+
+
+    /**
+     * The format the pipeline has to produce for the given tile format.
+     */
+    public static String pipelineFormat( String format ) {
+        return format.equals( PNG8 ) || format.equals( WEBP ) ? PNG : format;
+    }
+
+
+    /**
+     * The Content-Type of tiles of the given format.
+     */
+    public static String contentType( String format ) {
+        return format.equals( PNG8 ) ? PNG : format;
+    }
+
+
+    /**
+     * Encodes the given image in the given format.
+     */
+    public static byte[] encode( BufferedImage image, String format ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 16 * 1024 );
+        if (format.equals( PNG8 )) {
+            ImageIO.write( PaletteQuantizer.quantize( image ), "png", out );
+        }
+        else if (format.equals( WEBP )) {
+            if (!ImageIO.write( image, "webp", out )) {
+                throw new IOException( "No ImageIO writer for WebP." );
+            }
+        }
+        else {
+            String imageIOFormat = TileRequest.imageIOFormat( format );
+            if (!ImageIO.write( image, imageIOFormat, out )) {
+                throw new IOException( "No ImageIO writer for: " + imageIOFormat );
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Converts an image produced by a pipeline in the
+     * {@link #pipelineFormat(String)} into the given format.
+     */
+    public static byte[] transcode( byte[] encoded, String format ) throws IOException {
+        if (pipelineFormat( format ).equals( format )) {
+            return encoded;
+        }
+        BufferedImage image = ImageIO.read( new ByteArrayInputStream( encoded ) );
+        if (image == null) {
+            throw new IOException( "Unable to decode image." );
+        }
+        return encode( image, format );
+    }
+
+}
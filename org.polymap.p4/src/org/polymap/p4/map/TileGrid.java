@@ -0,0 +1,199 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import org.polymap.core.data.util.Geometries;
+
+/**
+ * The tile grid that the OpenLayers tile sources use by default for a given
+ * projection: the origin is the top-left corner of the extent of the projection,
+ * the resolution of zoom level 0 fits the extent into one tile and every further
+ * level halves the resolution.
+ * <p/>
+ * This is used to find the position of a requested tile in the grid (metatiles,
+ * prefetching) and to enumerate the tiles of an area (seeding).
+ *
+ * @author Falko Bräutigam
+ */
+public class TileGrid {
+
+    public static final int         DEFAULT_TILE_SIZE = 256;
+
+    /** Half of the side of the EPSG:3857 world square. */
+    public static final double      WORLD_HALF = 20037508.342789244;
+
+    /** Max tolerated offset of a requested tile from the grid, in tiles. */
+    public static final double      SNAP_TOLERANCE = 0.01;
+
+    /** The highest zoom level of a grid; there are 2^zoom tiles per side. */
+    public static final int         MAX_ZOOM = 24;
+
+
+    private static ConcurrentMap<String,TileGrid> grids = new ConcurrentHashMap();
+
+    /**
+     * The default grid of the given projection.
+     *
+     * @param srs The SRS code of the projection, for example "EPSG:3857".
+     */
+    public static TileGrid forSrs( String srs ) throws Exception {
+        TileGrid result = grids.get( srs );
+        if (result == null) {
+            CoordinateReferenceSystem crs = Geometries.crs( srs );
+            if ("EPSG:3857".equalsIgnoreCase( srs ) || "EPSG:900913".equalsIgnoreCase( srs )) {
+                result = new TileGrid( new ReferencedEnvelope( -WORLD_HALF, WORLD_HALF, -WORLD_HALF, WORLD_HALF, crs ) );
+            }
+            else {
+                result = new TileGrid( new ReferencedEnvelope( CRS.getEnvelope( crs ) ) );
+            }
+            grids.putIfAbsent( srs, result );
+        }
+        return result;
+    }
+
+
+    /**
+     * The position of one tile in a {@link TileGrid}.
+     */
+    public static class TileIndex {
+
+        /** The side of the tile in map units. */
+        public final double     span;
+
+        public final int        col;
+
+        public final int        row;
+
+        public TileIndex( double span, int col, int row ) {
+            this.span = span;
+            this.col = col;
+            this.row = row;
+        }
+
+        public TileIndex neighbour( int dcol, int drow ) {
+            return new TileIndex( span, col + dcol, row + drow );
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%.6g:%d:%d", span, col, row );
+        }
+    }
+
+
+    // instance *******************************************
+
+    private ReferencedEnvelope      extent;
+
+
+    public TileGrid( ReferencedEnvelope extent ) {
+        this.extent = extent;
+    }
+
+
+    public ReferencedEnvelope extent() {
+        return extent;
+    }
+
+
+    /**
+     * The side of a tile of the given zoom level in map units.
+     *
+     * @param zoom The zoom level, 0 to {@link #MAX_ZOOM}.
+     */
+    public double span( int zoom ) {
+        assert zoom >= 0 && zoom <= MAX_ZOOM : "Zoom out of range: " + zoom;
+        return Math.max( extent.getWidth(), extent.getHeight() ) / (1 << zoom);
+    }
+
+
+    /**
+     * The zoom level whose tiles match the given span best.
+     */
+    public int zoom( double span ) {
+        double level0 = Math.max( extent.getWidth(), extent.getHeight() );
+        return (int)Math.min( MAX_ZOOM, Math.max( 0, Math.round( Math.log( level0 / span ) / Math.log( 2 ) ) ) );
+    }
+
+
+    /**
+     * Finds the position of the given bounds in this grid.
+     *
+     * @return The index of the tile, or {@link Optional#empty()} if the bounds
+     *         are not aligned with this grid.
+     */
+    public Optional<TileIndex> index( ReferencedEnvelope bounds ) {
+        double span = bounds.getWidth();
+        if (Math.abs( bounds.getHeight() - span ) > span * SNAP_TOLERANCE) {
+            return Optional.empty();
+        }
+        double col = (bounds.getMinX() - extent.getMinX()) / span;
+        double row = (extent.getMaxY() - bounds.getMaxY()) / span;
+        if (Math.abs( col - Math.round( col ) ) > SNAP_TOLERANCE
+                || Math.abs( row - Math.round( row ) ) > SNAP_TOLERANCE) {
+            return Optional.empty();
+        }
+        return Optional.of( new TileIndex( span, (int)Math.round( col ), (int)Math.round( row ) ) );
+    }
+
+
+    /**
+     * The bounds of the given tile.
+     */
+    public ReferencedEnvelope bounds( TileIndex index ) {
+        return bounds( index, 1 );
+    }
+
+
+    /**
+     * The bounds of the block of n x n tiles starting at the given tile.
+     */
+    public ReferencedEnvelope bounds( TileIndex index, int n ) {
+        double minX = extent.getMinX() + index.col * index.span;
+        double maxY = extent.getMaxY() - index.row * index.span;
+        return new ReferencedEnvelope( minX, minX + n * index.span, maxY - n * index.span, maxY,
+                extent.getCoordinateReferenceSystem() );
+    }
+
+
+    /**
+     * The first and last tile of the given zoom level that cover the given bounds.
+     *
+     * @return Array of two indexes: top-left and bottom-right.
+     */
+    public TileIndex[] range( ReferencedEnvelope bounds, int zoom ) {
+        double span = span( zoom );
+        int max = (1 << zoom) - 1;
+        int minCol = clamp( (int)Math.floor( (bounds.getMinX() - extent.getMinX()) / span ), 0, max );
+        int maxCol = clamp( (int)Math.ceil( (bounds.getMaxX() - extent.getMinX()) / span ) - 1, 0, max );
+        int minRow = clamp( (int)Math.floor( (extent.getMaxY() - bounds.getMaxY()) / span ), 0, max );
+        int maxRow = clamp( (int)Math.ceil( (extent.getMaxY() - bounds.getMinY()) / span ) - 1, 0, max );
+        return new TileIndex[] { new TileIndex( span, minCol, minRow ), new TileIndex( span, maxCol, maxRow ) };
+    }
+
+
+    protected static int clamp( int value, int min, int max ) {
+        return Math.min( max, Math.max( min, value ) );
+    }
+
+}
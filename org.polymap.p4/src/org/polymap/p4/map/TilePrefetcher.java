@@ -0,0 +1,290 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.core.project.ILayer;
+
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ * Prefetches the tiles a user probably requests next: after a tile was served,
+ * its neighbours on the same zoom level and its children on the next zoom level
+ * are rendered into the {@link TileCache}.
+ * <p/>
+ * Prefetches are rendered by one low priority thread, and only if the
+ * {@link RenderScheduler} is {@link RenderScheduler#executeIfIdle(RenderScheduler.Render)
+ * idle}; otherwise the thread backs off. Every client has a queue of at most
+ * {@link #MAX_QUEUE} prefetches, newest first; clients take turns. The queue of
+ * a client that has not requested a tile for {@link #IDLE_MILLIS} is dropped.
+ *
+ * @author Falko Bräutigam
+ */
+public class TilePrefetcher {
+
+    private static final Log log = LogFactory.getLog( TilePrefetcher.class );
+
+    /**
+     * Prefetching is enabled by default. Set system property
+     * <code>org.polymap.p4.map.prefetch=false</code> to disable.
+     */
+    public static final boolean     ENABLED = !"false".equalsIgnoreCase( System.getProperty( "org.polymap.p4.map.prefetch" ) );
+
+    /** Max number of prefetches queued per client; the oldest are dropped. */
+    public static final int         MAX_QUEUE = 64;
+
+    /** Clients that have not requested a tile for this long are not prefetched for. */
+    public static final long        IDLE_MILLIS = 30_000;
+
+    /** How long the thread waits if the {@link RenderScheduler} is busy. */
+    public static final long        BACKOFF_MILLIS = 200;
+
+
+    /**
+     * One tile to prefetch.
+     */
+    protected static class Prefetch {
+
+        public final List<ILayer>   layers;
+
+        public final TileRequest    request;
+
+        public Prefetch( List<ILayer> layers, TileRequest request ) {
+            this.layers = layers;
+            this.request = request;
+        }
+    }
+
+
+    /**
+     * The prefetches and the last activity of a client.
+     */
+    protected static class ClientQueue {
+
+        public Deque<Prefetch>      prefetches = new ArrayDeque();
+
+        public volatile long        lastSeen = System.currentTimeMillis();
+
+        public boolean isIdle() {
+            return System.currentTimeMillis() - lastSeen > IDLE_MILLIS;
+        }
+    }
+
+
+    // instance *******************************************
+
+    /** Queues by client token. */
+    private Map<String,ClientQueue> queues = new HashMap();
+
+    /** The clients with queued prefetches, in the order they get their next turn. */
+    private Deque<String>           turns = new ArrayDeque();
+
+    private Thread                  thread;
+
+    private volatile long           prefetched;
+
+
+    public TilePrefetcher( String name ) {
+        thread = new Thread( () -> run(), "TilePrefetcher-" + name );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+
+    /**
+     * Stops the thread of this prefetcher.
+     */
+    public void dispose() {
+        thread.interrupt();
+    }
+
+
+    /**
+     * The number of tiles that were rendered by this prefetcher.
+     */
+    public long prefetched() {
+        return prefetched;
+    }
+
+
+    /**
+     * A tile was served to the given client. Queues the neighbours and the
+     * children of the tile that are not cached yet.
+     *
+     * @param token The token of the client.
+     * @param layers The layers of the request.
+     * @param request A grid aligned request; other requests are ignored.
+     */
+    public void served( String token, List<ILayer> layers, TileRequest request ) {
+        Optional<TileIndex> index = request.index();
+        if (!index.isPresent()) {
+            return;
+        }
+        List<Prefetch> candidates = new ArrayList();
+        for (TileRequest candidate : candidates( request, index.get() )) {
+            if (!TileCache.instance().get( TileRenderer.sharedRequest( layers, candidate ) ).isPresent()) {
+                candidates.add( new Prefetch( layers, candidate ) );
+            }
+        }
+        synchronized (this) {
+            ClientQueue queue = queues.computeIfAbsent( token, key -> new ClientQueue() );
+            queue.lastSeen = System.currentTimeMillis();
+            for (Prefetch candidate : candidates) {
+                queue.prefetches.addFirst( candidate );
+                if (queue.prefetches.size() > MAX_QUEUE) {
+                    queue.prefetches.pollLast();
+                }
+            }
+            if (!queue.prefetches.isEmpty() && !turns.contains( token )) {
+                turns.addLast( token );
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Drops the queue of the given client.
+     */
+    public synchronized void remove( String token ) {
+        queues.remove( token );
+        turns.remove( token );
+    }
+
+
+    /**
+     * The tiles next to the given tile on the same zoom level, and the four
+     * tiles that cover it on the next zoom level.
+     */
+    protected List<TileRequest> candidates( TileRequest request, TileIndex index ) {
+        List<TileRequest> result = new ArrayList( 8 );
+        try {
+            TileGrid grid = TileGrid.forSrs( request.srs() );
+            int max = (1 << grid.zoom( index.span )) - 1;
+            int[][] offsets = { {-1, 0}, {1, 0}, {0, -1}, {0, 1} };
+            for (int[] offset : offsets) {
+                TileIndex neighbour = index.neighbour( offset[0], offset[1] );
+                if (neighbour.col >= 0 && neighbour.col <= max && neighbour.row >= 0 && neighbour.row <= max) {
+                    result.add( request.withBounds( grid.bounds( neighbour ), request.width(), request.height() ) );
+                }
+            }
+            TileIndex child = new TileIndex( index.span / 2, index.col * 2, index.row * 2 );
+            for (int col=0; col<2; col++) {
+                for (int row=0; row<2; row++) {
+                    TileIndex index2 = child.neighbour( col, row );
+                    result.add( request.withBounds( grid.bounds( index2 ), request.width(), request.height() ) );
+                }
+            }
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+        }
+        return result;
+    }
+
+
+    /**
+     * Waits for the next prefetch; clients take turns.
+     */
+    protected synchronized Prefetch next() throws InterruptedException {
+        while (true) {
+            String token = turns.pollFirst();
+            if (token == null) {
+                wait();
+                continue;
+            }
+            ClientQueue queue = queues.get( token );
+            if (queue == null) {
+                continue;
+            }
+            if (queue.isIdle()) {
+                log.debug( "Client is idle, dropping " + queue.prefetches.size() + " prefetches." );
+                queues.remove( token );
+                continue;
+            }
+            Prefetch result = queue.prefetches.pollFirst();
+            if (!queue.prefetches.isEmpty()) {
+                turns.addLast( token );
+            }
+            if (result != null) {
+                return result;
+            }
+        }
+    }
+
+
+    protected void run() {
+        try {
+            while (!Thread.interrupted()) {
+                Prefetch prefetch = next();
+                // wait until there is idle capacity; give up if the tile is old
+                boolean done = false;
+                for (int i=0; !done && i<20; i++) {
+                    try {
+                        done = render( prefetch );
+                    }
+                    catch (InterruptedException e) {
+                        throw e;
+                    }
+                    catch (CancellationException e) {
+                        // not idle
+                    }
+                    catch (Exception e) {
+                        log.debug( "Prefetching " + prefetch.request + ": " + e );
+                        done = true;
+                    }
+                    if (!done) {
+                        Thread.sleep( BACKOFF_MILLIS );
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            log.debug( "Interrupted." );
+        }
+    }
+
+
+    /**
+     * Renders the given prefetch if the {@link RenderScheduler} is idle. The
+     * layers of composites are admitted one by one.
+     *
+     * @return False if the render was not admitted.
+     */
+    protected boolean render( Prefetch prefetch ) throws Exception {
+        if (prefetch.layers.size() > 1) {
+            TileRenderer.instance().renderComposite( prefetch.layers, prefetch.request, null, () -> false );
+        }
+        else if (!RenderScheduler.instance().executeIfIdle( () -> 
+                TileRenderer.instance().render( prefetch.layers.get( 0 ), prefetch.request ) ).isPresent()) {
+            return false;
+        }
+        prefetched ++;
+        return true;
+    }
+
+}
@@ -0,0 +1,704 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.styling.TextSymbolizer;
+import org.geotools.styling.visitor.DuplicatingStyleVisitor;
+import org.geotools.styling.visitor.RescaleStyleVisitor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+import org.polymap.core.data.feature.DefaultStyles;
+import org.polymap.core.data.feature.FeatureRenderProcessor2;
+import org.polymap.core.data.image.EncodedImageProducer;
+import org.polymap.core.data.image.EncodedImageResponse;
+import org.polymap.core.data.image.GetMapRequest;
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.data.pipeline.Pipeline;
+import org.polymap.core.data.pipeline.ProcessorResponse;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.AllResolver;
+import org.polymap.p4.data.GeneralizedLevels;
+import org.polymap.p4.data.GeneralizedLevels.Level;
+import org.polymap.p4.data.P4PipelineBuilder;
+import org.polymap.p4.data.PipelinePool;
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ * Renders the tiles of a layer through its pooled {@link EncodedImageProducer}
+ * pipeline.
+ * <p/>
+ * If the {@link LayerRenderParams#METATILES} param of the layer is set, then a
+ * grid aligned tile is rendered as part of a metatile of n x n tiles plus a
+ * gutter. The metatile is rendered in one pass, which avoids labels and symbols
+ * being cut at tile borders, and which reduces the number of queries against the
+ * data source. The metatile is sliced into tiles which are stored in the
+ * {@link TileCache}. Concurrent requests for tiles of the same metatile wait for
+ * the one rendering.
+ * <p/>
+ * Identical concurrent requests are coalesced ({@link SingleFlight}): the first
+ * request renders, the others wait for it and share its encoded image. This
+ * avoids rendering a tile several times if many clients show the same map, or if
+ * a client re-requests a tile before the first render has finished.
+ * <p/>
+ * {@link #renderComposite(List, TileRequest, String, BooleanSupplier) Composite} requests are rendered
+ * layer by layer in parallel and then composed into one image.
+ * <p/>
+ * Requests that are outside the data bounds or the scale range of the style of a
+ * layer (see {@link LayerExtents}) are answered with a shared, pre-encoded
+ * {@link #emptyTile(TileRequest) empty tile}, without asking the pipeline.
+ * <p/>
+ * Layers with {@link LayerRenderParams#PROGRESSIVE} answer tiles that are not
+ * cached yet with a {@link #renderDraft(ILayer, TileRequest) draft} first; the
+ * full tile is {@link #refine(ILayer, TileRequest, String) rendered in the
+ * background}.
+ * <p/>
+ * Tiles of layers that are backed by a remote WMS are fetched and cached by the
+ * {@link WmsCascade}, which honours the caching headers of the upstream server.
+ * Composites that contain such a layer are not stored in the {@link TileCache}.
+ * <p/>
+ * Tiles are cached by their {@link #sharedRequest(List, TileRequest) shared
+ * request}, which identifies a tile by layer id and fingerprint, regardless of
+ * the user and the session that has requested it.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileRenderer {
+
+    private static final Log log = LogFactory.getLog( TileRenderer.class );
+
+    /** Border around a metatile, in CSS pixels. */
+    public static final int             GUTTER = 32;
+
+    /** Max number of layers of composite requests that are rendered concurrently. */
+    public static final int             COMPOSITE_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** Drafts are rendered with 1/DRAFT_SCALE of the resolution of the tile. */
+    public static final int             DRAFT_SCALE = 2;
+
+    /** Max number of full tiles of progressive layers that are rendered concurrently. */
+    public static final int             REFINE_THREADS = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+    /** Max number of full tiles of progressive layers that wait to be rendered. */
+    public static final int             REFINE_QUEUE = 1000;
+
+    private static final TileRenderer   instance = new TileRenderer();
+
+    public static TileRenderer instance() {
+        return instance;
+    }
+
+
+    /**
+     * Returns the pooled render pipeline of the given layer from
+     * {@link PipelinePool}. A new pipeline is built only if the processors or the
+     * style of the layer have changed.
+     */
+    public static Pipeline pipeline( ILayer layer ) throws Exception {
+        return PipelinePool.instance().get( layer, EncodedImageProducer.class, () -> newPipeline( layer ) );
+    }
+
+
+    /**
+     * Returns the pooled render pipeline for the given request of the given
+     * layer. If the layer has {@link LayerRenderParams#GENERALIZATION_LEVELS} and
+     * a level is {@link GeneralizedLevels#level(ILayer, int, ReferencedEnvelope, int)
+     * available} for the scale of the request, then the pipeline reads the
+     * generalized and clipped features of this level.
+     * <p/>
+     * HiDPI requests ({@link TileRequest#pixelRatio()} != 1) get a pipeline of
+     * their own, with the style {@link #rescale(Style, double) rescaled} by the
+     * pixel ratio.
+     */
+    public static Pipeline pipeline( ILayer layer, TileRequest request ) throws Exception {
+        return pipeline( layer, request, false );
+    }
+
+
+    /**
+     * Returns the pooled render pipeline for the given request of the given
+     * layer; see {@link #pipeline(ILayer, TileRequest)}. The pipeline of a draft
+     * does not render labels.
+     */
+    protected static Pipeline pipeline( ILayer layer, TileRequest request, boolean draft ) throws Exception {
+        int count = LayerRenderParams.value( LayerRenderParams.GENERALIZATION_LEVELS, layer );
+        Optional<Level> level = count > 0
+                ? GeneralizedLevels.instance().level( layer, count, request.bounds(), request.width() )
+                : Optional.empty();
+        double pixelRatio = request.pixelRatio();
+        if (!level.isPresent() && pixelRatio == 1 && !draft) {
+            return pipeline( layer );
+        }
+        String key = layer.id() 
+                + (level.isPresent() ? "@" + level.get().typeName : "")
+                + (pixelRatio != 1 ? "@" + pixelRatio + "x" : "")
+                + (draft ? "@draft" : "");
+        return PipelinePool.instance().get( key, EncodedImageProducer.class, PipelinePool.fingerprint( layer ), () -> {
+            DataSourceDescriptor dsd = dataSource( layer );
+            return newPipeline( layer, level.isPresent() ? level.get().dsd() : dsd, pixelRatio, draft );
+        });
+    }
+
+
+    protected static Pipeline newPipeline( ILayer layer ) throws Exception {
+        return newPipeline( layer, dataSource( layer ), 1, false );
+    }
+
+
+    /**
+     * The data source of the given layer. Registers its resource with the
+     * {@link TileCache}, so that the tiles of the layer are invalidated when
+     * features of the resource are committed.
+     */
+    protected static DataSourceDescriptor dataSource( ILayer layer ) throws Exception {
+        IProgressMonitor monitor = new NullProgressMonitor();  //.monitorOfThread();
+        DataSourceDescriptor dsd = AllResolver.instance().connectLayer( layer, monitor )
+                .orElseThrow( () -> new RuntimeException( "No data source for layer: " + layer ) );
+        TileCache.instance().register( (String)layer.id(), dsd.resourceName.get() );
+        return dsd;
+    }
+
+
+    protected static Pipeline newPipeline( ILayer layer, DataSourceDescriptor dsd, double pixelRatio, boolean draft ) 
+            throws Exception {
+
+        // feature style; the pipeline is shared between sessions, so
+        // don't keep a reference to the (session bound) layer entity
+        String styleId = layer.styleIdentifier.get();
+        Supplier<Style> styleSupplier = () -> {
+            Style style = styleId != null
+                ? P4Plugin.styleRepo().serializedFeatureStyle( styleId, Style.class )
+                        .orElse( DefaultStyles.createAllStyle() )
+                : DefaultStyles.createAllStyle();
+            style = draft ? withoutLabels( style ) : style;
+            return pixelRatio != 1 ? rescale( style, pixelRatio ) : style;
+        };
+
+        // create pipeline for it
+        P4PipelineBuilder builder = P4PipelineBuilder.forLayer( layer );
+        FeatureRenderProcessor2.STYLE_SUPPLIER.rawput( builder, styleSupplier );
+        return builder.createPipeline( EncodedImageProducer.class, dsd )
+                .orElseThrow( () -> new RuntimeException( "Unable to build pipeline for: " + dsd ) );
+    }
+
+
+    /**
+     * Creates a copy of the given style for HiDPI tiles: sizes, widths and
+     * fonts are multiplied by the given pixel ratio; the scale ranges of the
+     * rules are divided by it, as the renderer computes the scale from the
+     * device pixels.
+     */
+    protected static Style rescale( Style style, double pixelRatio ) {
+        RescaleStyleVisitor visitor = new RescaleStyleVisitor( pixelRatio );
+        style.accept( visitor );
+        Style result = (Style)visitor.getCopy();
+        for (FeatureTypeStyle fts : result.featureTypeStyles()) {
+            for (Rule rule : fts.rules()) {
+                rule.setMinScaleDenominator( rule.getMinScaleDenominator() / pixelRatio );
+                rule.setMaxScaleDenominator( rule.getMaxScaleDenominator() / pixelRatio );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates a copy of the given style without {@link TextSymbolizer}s.
+     */
+    protected static Style withoutLabels( Style style ) {
+        DuplicatingStyleVisitor visitor = new DuplicatingStyleVisitor();
+        style.accept( visitor );
+        Style result = (Style)visitor.getCopy();
+        for (FeatureTypeStyle fts : result.featureTypeStyles()) {
+            for (Rule rule : fts.rules()) {
+                rule.symbolizers().removeIf( symbolizer -> symbolizer instanceof TextSymbolizer );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Renders the given request through the given pipeline. Formats the pipeline
+     * cannot produce are {@link TileEncoder#transcode(byte[], String) transcoded}.
+     *
+     * @return The encoded image.
+     */
+    public static byte[] renderImage( Pipeline pipeline, TileRequest request ) throws Exception {
+        GetMapRequest pipeRequest = new GetMapRequest( null, null, request.srs(), request.bounds(),
+                TileEncoder.pipelineFormat( request.format() ), request.width(), request.height(), -1 );
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 32 * 1024 );
+        pipeline.process( pipeRequest, (ProcessorResponse response) -> {
+            EncodedImageResponse chunk = (EncodedImageResponse)response;
+            out.write( chunk.getChunk(), 0, chunk.getChunkSize() );
+        });
+        return TileEncoder.transcode( out.toByteArray(), request.format() );
+    }
+
+
+    /**
+     * Creates a copy of the given request that identifies the rendered image
+     * independent of the user and the session. Layer names are replaced by the
+     * layer ids and styles are replaced by the
+     * {@link PipelinePool#fingerprint(ILayer) fingerprints} of the layers, which
+     * cover the style and the pipeline (resource and processor configs). Used as
+     * key of the {@link TileCache}.
+     */
+    public static TileRequest sharedRequest( List<ILayer> layers, TileRequest request ) {
+        return request.withLayer( 
+                layers.stream().map( l -> (String)l.id() ).collect( Collectors.joining( "," ) ), 
+                layers.stream().map( l -> PipelinePool.fingerprint( l ) ).collect( Collectors.joining( "," ) ) );
+    }
+
+
+    // instance *******************************************
+
+    /** The tiles and composites currently being rendered, by shared request key. */
+    private SingleFlight<String,byte[]> rendering = new SingleFlight();
+
+    /** The metatiles currently being rendered. */
+    private SingleFlight<String,Void>   renderingMetatiles = new SingleFlight();
+
+    /** Renders the layers of composite requests in parallel. */
+    private ExecutorService             compositeExecutor;
+
+    /** Renders the full tiles of progressive layers in the background. */
+    private ExecutorService             refineExecutor;
+
+    /** The pending renders of {@link #refineExecutor}, by shared request key. */
+    private ConcurrentMap<String,CompletableFuture<Void>> refining = new ConcurrentHashMap();
+
+    /** Encoded transparent tiles by format and size. */
+    private ConcurrentMap<String,byte[]> emptyTiles = new ConcurrentHashMap();
+
+
+    protected TileRenderer() {
+        AtomicInteger threadCount = new AtomicInteger();
+        compositeExecutor = Executors.newFixedThreadPool( COMPOSITE_THREADS, r -> {
+            Thread thread = new Thread( r, "TileRenderer-composite-" + threadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        AtomicInteger refineCount = new AtomicInteger();
+        refineExecutor = new ThreadPoolExecutor( REFINE_THREADS, REFINE_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue( REFINE_QUEUE ), r -> {
+                    Thread thread = new Thread( r, "TileRenderer-refine-" + refineCount.getAndIncrement() );
+                    thread.setDaemon( true );
+                    thread.setPriority( Thread.MIN_PRIORITY );
+                    return thread;
+                });
+    }
+
+
+    /**
+     * True if the given request is rendered by this renderer, false if it should
+     * be handled by the WMS of the pipeline directly.
+     */
+    public boolean isMetatiled( ILayer layer, TileRequest request ) {
+        return LayerRenderParams.value( LayerRenderParams.METATILES, layer ) > 1
+                && request.width() == request.height()
+                && request.index().isPresent();
+    }
+
+
+    /**
+     * Renders the given tile request of the given layer. Grid aligned tiles are
+     * taken from and stored in the {@link TileCache}.
+     *
+     * @return The encoded image.
+     */
+    public byte[] render( ILayer layer, TileRequest request ) throws Exception {
+        if (LayerExtents.instance().isEmpty( layer, request )) {
+            return emptyTile( request );
+        }
+        request = sharedRequest( Collections.singletonList( layer ), request );
+        Optional<String> aggregation = AggregationRenderer.mode( layer, request );
+        if (aggregation.isPresent()) {
+            Optional<byte[]> aggregated = renderAggregated( layer, request, aggregation.get() );
+            if (aggregated.isPresent()) {
+                return aggregated.get();
+            }
+        }
+        if (request.index().isPresent() && WmsCascade.instance().isCascaded( layer )) {
+            return WmsCascade.instance().render( layer, request );
+        }
+        if (!isMetatiled( layer, request )) {
+            if (!request.index().isPresent()) {
+                return renderCoalesced( layer, request, false );
+            }
+            Optional<byte[]> cached = TileCache.instance().get( request );
+            return cached.isPresent() ? cached.get() : renderCoalesced( layer, request, true );
+        }
+        Optional<byte[]> cached = TileCache.instance().get( request );
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        int n = LayerRenderParams.value( LayerRenderParams.METATILES, layer );
+        renderMetatile( layer, request, metatileOrigin( request.index().get(), n ), n );
+
+        // evicted in the meantime? -> render just this tile
+        cached = TileCache.instance().get( request );
+        return cached.isPresent() ? cached.get() : renderCoalesced( layer, request, false );
+    }
+
+
+    /**
+     * Renders the points of the given layer aggregated by the given
+     * {@link LayerRenderParams#AGGREGATION} mode. Aggregated tiles are cached
+     * separately from the tiles rendered by the pipeline.
+     *
+     * @return The encoded tile, or {@link Optional#empty()} if the point index of
+     *         the layer is not built yet or too coarse for the request.
+     */
+    protected Optional<byte[]> renderAggregated( ILayer layer, TileRequest request, String mode ) throws Exception {
+        TileRequest aggregated = request.withLayer( request.layerName(), request.styles() + "@" + mode );
+        Optional<byte[]> cached = TileCache.instance().get( aggregated );
+        if (cached.isPresent()) {
+            return cached;
+        }
+        byte[] encoded = rendering.execute( aggregated.key(), () -> {
+            long generation = TileCache.instance().generation( aggregated );
+            Optional<BufferedImage> image = AggregationRenderer.render( layer, request, mode );
+            if (!image.isPresent()) {
+                return null;
+            }
+            byte[] result = TileEncoder.encode( image.get(), request.format() );
+            if (request.index().isPresent()) {
+                TileCache.instance().put( aggregated, result, generation );
+            }
+            return result;
+        });
+        return Optional.ofNullable( encoded );
+    }
+
+
+    /**
+     * Renders the given shared request through the pipeline of the given layer.
+     * Waits for and shares the result if an identical request is rendering
+     * already.
+     *
+     * @param cache True if the result is to be stored in the {@link TileCache}.
+     */
+    protected byte[] renderCoalesced( ILayer layer, TileRequest request, boolean cache ) throws Exception {
+        return rendering.execute( request.key(), () -> {
+            // rendered by another request right before we came in?
+            Optional<byte[]> cached = cache ? TileCache.instance().get( request ) : Optional.empty();
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+            long generation = TileCache.instance().generation( request );
+            byte[] encoded = renderImage( pipeline( layer, request ), request );
+            if (cache) {
+                TileCache.instance().put( request, encoded, generation );
+            }
+            return encoded;
+        });
+    }
+
+
+    /**
+     * Renders a draft of the given tile request of a
+     * {@link LayerRenderParams#PROGRESSIVE} layer: with 1/{@link #DRAFT_SCALE}
+     * of the resolution, from the coarser generalization level that fits this
+     * resolution, without labels, and scaled up without interpolation. Drafts are
+     * not cached.
+     *
+     * @return The encoded draft, or {@link Optional#empty()} if the layer is not
+     *         progressive or if the full tile is cached or certainly empty.
+     *         Aggregated and cascaded layers never get drafts: their tiles are
+     *         not cached by the shared request, so the full tile would never be
+     *         found and the draft would be sent again and again.
+     */
+    public Optional<byte[]> renderDraft( ILayer layer, TileRequest request ) throws Exception {
+        if (!LayerRenderParams.value( LayerRenderParams.PROGRESSIVE, layer )
+                || !request.index().isPresent()
+                || WmsCascade.instance().isCascaded( layer )
+                || LayerExtents.instance().isEmpty( layer, request )) {
+            return Optional.empty();
+        }
+        TileRequest shared = sharedRequest( Collections.singletonList( layer ), request );
+        if (AggregationRenderer.mode( layer, shared ).isPresent()
+                || TileCache.instance().get( shared ).isPresent()) {
+            return Optional.empty();
+        }
+        // half the pixels and half the pixel ratio: same scale, smaller symbols
+        TileRequest draftRequest = shared
+                .withBounds( shared.bounds(), Math.max( 1, shared.width() / DRAFT_SCALE ), Math.max( 1, shared.height() / DRAFT_SCALE ) )
+                .withPixelRatio( shared.pixelRatio() / DRAFT_SCALE )
+                .withFormat( TileRequest.DEFAULT_FORMAT );
+        return Optional.of( rendering.execute( "draft|" + shared.key(), () -> {
+            Timer timer = new Timer();
+            byte[] encoded = renderImage( pipeline( layer, draftRequest, true ), draftRequest );
+            BufferedImage draft = ImageIO.read( new ByteArrayInputStream( encoded ) );
+            if (draft == null) {
+                throw new IOException( "Unable to decode draft: " + draftRequest );
+            }
+            int type = shared.imageIOFormat().startsWith( "jp" ) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+            BufferedImage result = new BufferedImage( shared.width(), shared.height(), type );
+            Graphics2D g = result.createGraphics();
+            try {
+                g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR );
+                g.drawImage( draft, 0, 0, shared.width(), shared.height(), null );
+            }
+            finally {
+                g.dispose();
+            }
+            log.debug( "Draft " + shared.index().get() + ": " + timer.elapsedTime() + "ms" );
+            return TileEncoder.encode( result, shared.format() );
+        }));
+    }
+
+
+    /**
+     * Renders the full tile of the given request in the background, with low
+     * priority, and stores it in the {@link TileCache}. The render is admitted by
+     * the {@link RenderScheduler} for the given user, like the requests of the
+     * user. Requests for a tile that is already pending share its render. At most
+     * {@link #REFINE_QUEUE} renders are pending; more are rejected.
+     *
+     * @return Completed when the tile is cached.
+     */
+    public CompletableFuture<Void> refine( ILayer layer, TileRequest request, String user ) {
+        String key = sharedRequest( Collections.singletonList( layer ), request ).key();
+        CompletableFuture<Void> created = new CompletableFuture();
+        CompletableFuture<Void> pending = refining.putIfAbsent( key, created );
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            refineExecutor.execute( () -> {
+                try {
+                    RenderScheduler.instance().execute( user, () -> render( layer, request ) );
+                    created.complete( null );
+                }
+                catch (Throwable e) {
+                    created.completeExceptionally( e );
+                }
+                finally {
+                    refining.remove( key, created );
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            refining.remove( key, created );
+            created.completeExceptionally( e );
+        }
+        return created;
+    }
+
+
+    /**
+     * Renders the given layers in parallel and composes them in the given order,
+     * bottom layer first. The result is stored in the {@link TileCache}.
+     * Identical concurrent requests share one rendering; if this is canceled, then
+     * the waiting requests render themselves.
+     *
+     * @param layers The layers of the {@link TileRequest#layerNames()}.
+     * @param request A {@link TileRequest#isComposite() composite} request.
+     * @param user The user the layers are admitted for by the
+     *        {@link RenderScheduler}, or null for background renders, which are
+     *        admitted only {@link RenderScheduler#executeIfIdle(RenderScheduler.Render) if idle}.
+     * @param canceled Checked before each layer is rendered.
+     * @return The encoded image.
+     * @throws CancellationException If rendering was canceled or a background
+     *         render was not admitted.
+     */
+    public byte[] renderComposite( List<ILayer> layers, TileRequest request, String user, BooleanSupplier canceled ) 
+            throws Exception {
+        TileRequest shared = sharedRequest( layers, request );
+        Optional<byte[]> cached = TileCache.instance().get( shared );
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        return rendering.execute( shared.key(), () -> {
+            Optional<byte[]> rendered = TileCache.instance().get( shared );
+            return rendered.isPresent() ? rendered.get() : doRenderComposite( layers, request, shared, user, canceled );
+        });
+    }
+
+
+    protected byte[] doRenderComposite( List<ILayer> layers, TileRequest request, TileRequest shared, 
+            String user, BooleanSupplier canceled ) throws Exception {
+        Timer timer = new Timer();
+        long generation = TileCache.instance().generation( shared );
+        List<Future<byte[]>> images = new ArrayList( layers.size() );
+        for (ILayer layer : layers) {
+            if (LayerExtents.instance().isEmpty( layer, request )) {
+                continue;
+            }
+            // always PNG, to keep transparency of the layers
+            TileRequest layerRequest = request.withFormat( TileRequest.DEFAULT_FORMAT );
+            images.add( compositeExecutor.submit( () -> {
+                if (canceled.getAsBoolean()) {
+                    throw new CancellationException( "Composite request was canceled." );
+                }
+                if (user != null) {
+                    return RenderScheduler.instance().execute( user, () -> render( layer, layerRequest ) );
+                }
+                return RenderScheduler.instance().executeIfIdle( () -> render( layer, layerRequest ) )
+                        .orElseThrow( () -> new CancellationException( "Background render was not admitted." ) );
+            }));
+        }
+
+        if (images.isEmpty()) {
+            return emptyTile( request );
+        }
+
+        BufferedImage result = new BufferedImage( request.width(), request.height(), BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = result.createGraphics();
+        try {
+            for (Future<byte[]> image : images) {
+                if (canceled.getAsBoolean()) {
+                    throw new CancellationException( "Composite request was canceled." );
+                }
+                BufferedImage decoded = ImageIO.read( new ByteArrayInputStream( getUnchecked( image ) ) );
+                if (decoded != null) {
+                    g.drawImage( decoded, 0, 0, null );
+                }
+            }
+        }
+        finally {
+            g.dispose();
+            images.forEach( image -> image.cancel( true ) );
+        }
+        byte[] encoded = TileEncoder.encode( result, request.format() );
+        // cascaded tiles expire
+        if (layers.stream().noneMatch( layer -> WmsCascade.instance().isCascaded( layer ) )) {
+            TileCache.instance().put( shared, encoded, generation );
+        }
+        log.debug( "Composite of " + layers.size() + " layers: " + timer.elapsedTime() + "ms" );
+        return encoded;
+    }
+
+
+    /**
+     * A transparent tile of the format and size of the given request. The result
+     * is shared and must not be modified.
+     */
+    public byte[] emptyTile( TileRequest request ) throws IOException {
+        String key = request.format() + "|" + request.width() + "x" + request.height();
+        byte[] result = emptyTiles.get( key );
+        if (result == null) {
+            int type = request.imageIOFormat().startsWith( "jp" ) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+            result = TileEncoder.encode( new BufferedImage( request.width(), request.height(), type ), request.format() );
+            emptyTiles.put( key, result );
+        }
+        return result;
+    }
+
+
+    protected <T> T getUnchecked( Future<T> future ) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible( e.getCause(), Exception.class );
+            throw e;
+        }
+    }
+
+
+    /**
+     * The top-left tile of the metatile that contains the given tile.
+     */
+    protected TileIndex metatileOrigin( TileIndex index, int n ) {
+        return new TileIndex( index.span, Math.floorDiv( index.col, n ) * n, Math.floorDiv( index.row, n ) * n );
+    }
+
+
+    /**
+     * Renders the metatile starting at the given origin and stores its slices in
+     * the {@link TileCache}. Waits if another thread is rendering this metatile
+     * already.
+     */
+    protected void renderMetatile( ILayer layer, TileRequest request, TileIndex origin, int n ) throws Exception {
+        TileGrid grid = TileGrid.forSrs( request.srs() );
+        int tileSize = request.width();
+        // symbols of HiDPI tiles are bigger
+        int gutter = (int)Math.ceil( GUTTER * request.pixelRatio() );
+
+        ReferencedEnvelope bounds = grid.bounds( origin, n );
+        bounds.expandBy( gutter * request.resolution() );
+        int size = n * tileSize + 2 * gutter;
+        TileRequest metaRequest = request.withBounds( bounds, size, size );
+
+        renderingMetatiles.execute( metaRequest.key(), () -> {
+            Timer timer = new Timer();
+            // the slices have the layers of the request
+            long generation = TileCache.instance().generation( request );
+            // sliced and encoded below
+            TileRequest pipeRequest = metaRequest.withFormat( TileEncoder.pipelineFormat( request.format() ) );
+            byte[] encoded = renderImage( pipeline( layer, pipeRequest ), pipeRequest );
+            BufferedImage image = ImageIO.read( new ByteArrayInputStream( encoded ) );
+            if (image == null) {
+                throw new IOException( "Unable to decode metatile: " + metaRequest );
+            }
+            for (int col=0; col<n; col++) {
+                for (int row=0; row<n; row++) {
+                    BufferedImage slice = image.getSubimage( gutter + col * tileSize, gutter + row * tileSize, tileSize, tileSize );
+                    TileIndex index = origin.neighbour( col, row );
+                    TileRequest sliceRequest = request.withBounds( grid.bounds( index ), tileSize, tileSize );
+                    TileCache.instance().put( sliceRequest, TileEncoder.encode( slice, request.format() ), generation );
+                }
+            }
+            log.debug( "Metatile " + origin + " (" + n + "x" + n + "): " + timer.elapsedTime() + "ms" );
+            return null;
+        });
+    }
+
+}
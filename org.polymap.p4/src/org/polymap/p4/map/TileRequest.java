@@ -0,0 +1,327 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.Map;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.renderer.lite.RendererUtilities;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.polymap.core.data.util.Geometries;
+
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ * The params of one WMS GetMap request as sent by the OpenLayers WMS sources of the
+ * {@link ProjectLayerProvider}. Immutable.
+ * <p/>
+ * HiDPI clients request tiles with {@link #pixelRatio()} &gt; 1: the
+ * {@link #width()} and {@link #height()} are device pixels, the DPI is sent
+ * GeoServer style as <code>FORMAT_OPTIONS=dpi:180</code>, or as
+ * <code>DPI=180</code>.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileRequest {
+
+    public static final String      DEFAULT_FORMAT = "image/png";
+
+    /** The DPI of a pixel ratio of 1, as OpenLayers and GeoServer assume. */
+    public static final double      DEFAULT_DPI = 90;
+
+    /**
+     * Parses the params of the given request.
+     *
+     * @return Newly created instance, or {@link Optional#empty()} if the given
+     *         request is not a GetMap request.
+     */
+    public static Optional<TileRequest> parse( HttpServletRequest req ) {
+        Map<String,String[]> params = req.getParameterMap();
+        if (!"GetMap".equalsIgnoreCase( param( params, "REQUEST" ) )) {
+            return Optional.empty();
+        }
+        String[] bbox = StringUtils.split( param( params, "BBOX" ), ',' );
+        if (bbox == null || bbox.length != 4) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of( new TileRequest(
+                    param( params, "LAYERS" ),
+                    StringUtils.defaultString( param( params, "STYLES" ) ),
+                    param( params, "SRS" ) != null ? param( params, "SRS" ) : param( params, "CRS" ),
+                    StringUtils.defaultIfBlank( param( params, "FORMAT" ), DEFAULT_FORMAT ),
+                    Integer.parseInt( param( params, "WIDTH" ) ),
+                    Integer.parseInt( param( params, "HEIGHT" ) ),
+                    Double.parseDouble( bbox[0] ), Double.parseDouble( bbox[1] ),
+                    Double.parseDouble( bbox[2] ), Double.parseDouble( bbox[3] ),
+                    pixelRatio( params ) ) );
+        }
+        catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * The pixel ratio of the DPI sent by the client, or 1.
+     */
+    protected static double pixelRatio( Map<String,String[]> params ) {
+        String dpi = param( params, "DPI" );
+        for (String option : StringUtils.split( StringUtils.defaultString( param( params, "FORMAT_OPTIONS" ) ), ';' )) {
+            if (StringUtils.startsWithIgnoreCase( option, "dpi:" )) {
+                dpi = StringUtils.substringAfter( option, ":" );
+            }
+        }
+        if (dpi == null) {
+            return 1;
+        }
+        // OpenLayers sends a rounded DPI
+        double result = Math.round( Double.parseDouble( dpi ) / DEFAULT_DPI * 4 ) / 4d;
+        return result > 0 ? result : 1;
+    }
+
+
+    /**
+     * Case insensitive lookup of a request param.
+     */
+    protected static String param( Map<String,String[]> params, String name ) {
+        for (Map.Entry<String,String[]> entry : params.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase( name ) && entry.getValue().length > 0) {
+                return entry.getValue()[0];
+            }
+        }
+        return null;
+    }
+
+
+    // instance *******************************************
+
+    private String          layerName;
+
+    private String          styles;
+
+    private String          srs;
+
+    private String          format;
+
+    private int             width;
+
+    private int             height;
+
+    private double          minX, minY, maxX, maxY;
+
+    private double          pixelRatio;
+
+
+    public TileRequest( String layerName, String styles, String srs, String format, int width, int height,
+            double minX, double minY, double maxX, double maxY ) {
+        this( layerName, styles, srs, format, width, height, minX, minY, maxX, maxY, 1 );
+    }
+
+
+    public TileRequest( String layerName, String styles, String srs, String format, int width, int height,
+            double minX, double minY, double maxX, double maxY, double pixelRatio ) {
+        this.layerName = layerName;
+        this.styles = styles;
+        this.srs = srs;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.pixelRatio = pixelRatio;
+    }
+
+
+    /**
+     * Creates a copy of this request with the given bounds and image size.
+     */
+    public TileRequest withBounds( ReferencedEnvelope bounds, int newWidth, int newHeight ) {
+        return new TileRequest( layerName, styles, srs, format, newWidth, newHeight,
+                bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), pixelRatio );
+    }
+
+
+    /**
+     * Creates a copy of this request for another layer.
+     */
+    public TileRequest withLayer( String newLayerName, String newStyles ) {
+        return new TileRequest( newLayerName, newStyles, srs, format, width, height, minX, minY, maxX, maxY, pixelRatio );
+    }
+
+
+    /**
+     * Creates a copy of this request with another image format.
+     */
+    public TileRequest withFormat( String newFormat ) {
+        return new TileRequest( layerName, styles, srs, newFormat, width, height, minX, minY, maxX, maxY, pixelRatio );
+    }
+
+
+    /**
+     * Creates a copy of this request with another pixel ratio.
+     */
+    public TileRequest withPixelRatio( double newPixelRatio ) {
+        return new TileRequest( layerName, styles, srs, format, width, height, minX, minY, maxX, maxY, newPixelRatio );
+    }
+
+
+    public String layerName() {
+        return layerName;
+    }
+
+    /**
+     * The names of the layers of a composite request. WMS clients send the
+     * layers (and their styles) comma separated, bottom layer first.
+     */
+    public String[] layerNames() {
+        return StringUtils.split( layerName, ',' );
+    }
+
+    /**
+     * The style of each of the {@link #layerNames()}.
+     */
+    public String[] styleNames() {
+        String[] result = new String[layerNames().length];
+        String[] split = StringUtils.splitPreserveAllTokens( styles, ',' );
+        for (int i=0; i<result.length; i++) {
+            result[i] = i < split.length ? split[i] : "";
+        }
+        return result;
+    }
+
+    public boolean isComposite() {
+        return layerNames().length > 1;
+    }
+
+    public String styles() {
+        return styles;
+    }
+
+    public String srs() {
+        return srs;
+    }
+
+    public String format() {
+        return format;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * The number of device pixels per CSS pixel of the client; 2 for HiDPI
+     * tiles. Symbols are drawn this much bigger.
+     */
+    public double pixelRatio() {
+        return pixelRatio;
+    }
+
+
+    public ReferencedEnvelope bounds() {
+        try {
+            return new ReferencedEnvelope( minX, maxX, minY, maxY, Geometries.crs( srs ) );
+        }
+        catch (Exception e) {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /**
+     * The size of one pixel in map units.
+     */
+    public double resolution() {
+        return (maxX - minX) / width;
+    }
+
+
+    /**
+     * The OGC scale denominator of this request, as used by the scale ranges of
+     * styles. Independent of the {@link #pixelRatio()}.
+     */
+    public double scaleDenominator() {
+        try {
+            return RendererUtilities.calculateOGCScale( bounds(), (int)Math.round( width / pixelRatio ), null );
+        }
+        catch (Exception e) {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /**
+     * The ImageIO format name of the requested mime type.
+     */
+    public String imageIOFormat() {
+        return imageIOFormat( format );
+    }
+
+
+    /**
+     * The ImageIO format name of the given mime type.
+     */
+    public static String imageIOFormat( String format ) {
+        String result = StringUtils.substringAfter( format, "/" ).toLowerCase();
+        return StringUtils.defaultIfBlank( StringUtils.substringBefore( result, ";" ), "png" );
+    }
+
+
+    /**
+     * A key that identifies the result of this request. Requests that are aligned
+     * with the {@link TileGrid} are identified by their {@link TileIndex}, so that
+     * the keys of tiles computed on the server and on the client match exactly.
+     * The key includes the size and the {@link #pixelRatio()} of the tile.
+     */
+    public String key() {
+        String location = index()
+                .map( index -> index.toString() )
+                .orElse( String.format( "%.9g,%.9g,%.9g,%.9g", minX, minY, maxX, maxY ) );
+        String size = pixelRatio != 1 ? String.format( "%dx%d@%sx", width, height, pixelRatio ) : width + "x" + height;
+        return String.format( "%s|%s|%s|%s|%s|%s", layerName, styles, srs, format, size, location );
+    }
+
+
+    /**
+     * The position of this request in the default {@link TileGrid} of its SRS.
+     */
+    public Optional<TileIndex> index() {
+        try {
+            return TileGrid.forSrs( srs ).index( bounds() );
+        }
+        catch (Exception e) {
+            return Optional.empty();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "TileRequest[" + key() + "]";
+    }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import org.polymap.core.CorePlugin;
+import org.polymap.core.data.util.Geometries;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+import org.polymap.core.runtime.event.EventManager;
+
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.map.TileGrid.TileIndex;
+import org.polymap.p4.project.ProjectRepository;
+
+/**
+ * Background job that pre-renders the tiles of a layer for a bounding box and a
+ * range of zoom levels. Tiles are rendered by the {@link TileRenderer} through
+ * the pooled pipeline of the layer, so they end up in the image cache of the
+ * pipeline (and the {@link TileCache} for metatiled layers) exactly as if a client
+ * had requested them. Tiles have the {@link ProjectMapPanel#TILE_SIZE} of the
+ * project map, at a pixel ratio of 1.
+ * <p/>
+ * Tiles are rendered row by row on a thread pool of {@link #THREADS} threads.
+ * Every tile is rendered in idle capacity of the {@link RenderScheduler} only;
+ * while users are rendering, the seeder waits {@link #BACKOFF_MILLIS} and tries
+ * again.
+ * After every row the position of the job is stored in the data dir of the
+ * bundle. A job that was canceled, that failed or that was interrupted by a
+ * restart continues at this position when it is {@link #resume(ILayer) resumed}.
+ * <p/>
+ * The job publishes {@link ProgressEvent}s about once per second.
+ *
+ * @author Falko Bräutigam
+ */
+public class TileSeeder
+        extends Job {
+
+    private static final Log log = LogFactory.getLog( TileSeeder.class );
+
+    /** Max number of tiles that are rendered concurrently by one job. */
+    public static final int         THREADS = Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 );
+
+    /** Time to wait before a tile is tried again while the {@link RenderScheduler} is busy. */
+    public static final long        BACKOFF_MILLIS = 200;
+
+    private static Map<String,TileSeeder> seeders = new ConcurrentHashMap();
+
+    /**
+     * Fired while a {@link TileSeeder} is running and when it has finished.
+     */
+    public static class ProgressEvent
+            extends EventObject {
+
+        public ProgressEvent( TileSeeder source ) {
+            super( source );
+        }
+
+        @Override
+        public TileSeeder getSource() {
+            return (TileSeeder)super.getSource();
+        }
+    }
+
+
+    /**
+     * The currently running or last seeder of the given layer in this JVM.
+     */
+    public static Optional<TileSeeder> of( String layerId ) {
+        return Optional.ofNullable( seeders.get( layerId ) );
+    }
+
+
+    /**
+     * Starts a new seeder for the given layer. A seeder that is currently running
+     * for this layer is canceled.
+     *
+     * @param layer
+     * @param bounds The area to seed.
+     * @param minZoom The first zoom level of the {@link TileGrid}.
+     * @param maxZoom The last zoom level, inclusive.
+     * @return The newly created and scheduled job.
+     * @throws IllegalArgumentException If the zoom levels are not a valid range,
+     *         see {@link #checkZoomRange(int, int)}.
+     */
+    public static TileSeeder start( ILayer layer, ReferencedEnvelope bounds, int minZoom, int maxZoom ) {
+        checkZoomRange( minZoom, maxZoom );
+        of( layer.id() ).ifPresent( running -> running.cancel() );
+        TileSeeder seeder = new TileSeeder( layer.id(), layer.label.get() );
+        seeder.init( bounds, minZoom, maxZoom );
+        seeders.put( layer.id(), seeder );
+        seeder.schedule();
+        return seeder;
+    }
+
+
+    /**
+     * Checks that the given zoom levels are within 0 and
+     * {@link TileGrid#MAX_ZOOM} and that min is not greater than max.
+     *
+     * @throws IllegalArgumentException With a message for the user.
+     */
+    public static void checkZoomRange( int minZoom, int maxZoom ) {
+        if (minZoom < 0 || maxZoom > TileGrid.MAX_ZOOM) {
+            throw new IllegalArgumentException( "Zoom levels must be between 0 and " + TileGrid.MAX_ZOOM + "." );
+        }
+        if (minZoom > maxZoom) {
+            throw new IllegalArgumentException( "From zoom level must not be greater than to zoom level." );
+        }
+    }
+
+
+    /**
+     * Resumes the last seeder of the given layer from its stored position.
+     *
+     * @return The scheduled job, the currently running job, or
+     *         {@link Optional#empty()} if there is no unfinished seeder for this
+     *         layer.
+     */
+    public static Optional<TileSeeder> resume( ILayer layer ) {
+        Optional<TileSeeder> running = of( layer.id() ).filter( job -> job.getState() != Job.NONE );
+        if (running.isPresent()) {
+            return running;
+        }
+        TileSeeder seeder = new TileSeeder( layer.id(), layer.label.get() );
+        if (seeder.load() && !seeder.isDone()) {
+            seeders.put( layer.id(), seeder );
+            seeder.schedule();
+            return Optional.of( seeder );
+        }
+        return Optional.empty();
+    }
+
+
+    // instance *******************************************
+
+    private String              layerId;
+
+    private File                stateFile;
+
+    private String              srs;
+
+    private double[]            bounds;
+
+    private int                 minZoom, maxZoom;
+
+    /** The zoom level of the next row to render. */
+    private int                 zoom;
+
+    /** The next row to render, or -1 if the zoom level has not been started yet. */
+    private int                 row = -1;
+
+    private volatile long       rendered, total;
+
+    private AtomicLong          failed = new AtomicLong();
+
+    private Timer               updated = new Timer();
+
+
+    protected TileSeeder( String layerId, String layerLabel ) {
+        super( "Seeding tiles: " + layerLabel );
+        this.layerId = layerId;
+        File dir = new File( CorePlugin.getDataLocation( P4Plugin.instance() ), "tileseeds" );
+        dir.mkdirs();
+        this.stateFile = new File( dir, layerId + ".properties" );
+        setPriority( Job.DECORATE );
+        setSystem( false );
+    }
+
+
+    protected void init( ReferencedEnvelope area, int minZoom, int maxZoom ) {
+        this.srs = Geometries.srs( area.getCoordinateReferenceSystem() );
+        this.bounds = new double[] { area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY() };
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.zoom = minZoom;
+        this.row = -1;
+        this.rendered = 0;
+        store();
+    }
+
+
+    /**
+     * Percent of tiles that have been rendered so far.
+     */
+    public int completed() {
+        return total > 0 ? (int)(100 * rendered / total) : 0;
+    }
+
+    public long rendered() {
+        return rendered;
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public boolean isDone() {
+        return zoom > maxZoom;
+    }
+
+
+    @Override
+    protected IStatus run( IProgressMonitor monitor ) {
+        UnitOfWork uow = ProjectRepository.newUnitOfWork();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS, r -> {
+            Thread thread = new Thread( r, "TileSeeder-" + threadCount.getAndIncrement() );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+            return thread;
+        });
+        try {
+            ILayer layer = uow.entity( ILayer.class, layerId );
+            TileGrid grid = TileGrid.forSrs( srs );
+            ReferencedEnvelope area = new ReferencedEnvelope( bounds[0], bounds[2], bounds[1], bounds[3],
+                    grid.extent().getCoordinateReferenceSystem() );
+            TileRequest prototype = new TileRequest( (String)layer.id(), ProjectLayerProvider.styleHash( layer ),
+                    srs, TileEncoder.format( layer ), ProjectMapPanel.TILE_SIZE, ProjectMapPanel.TILE_SIZE,
+                    bounds[0], bounds[1], bounds[2], bounds[3] );
+
+            // one request per metatile is enough
+            int step = Math.max( 1, LayerRenderParams.value( LayerRenderParams.METATILES, layer ) );
+            total = 0;
+            for (int z=minZoom; z<=maxZoom; z++) {
+                TileIndex[] range = range( grid, area, z, step );
+                total += (long)((range[1].col - range[0].col) / step + 1) * ((range[1].row - range[0].row) / step + 1);
+            }
+            monitor.beginTask( getName(), (int)Math.min( total, Integer.MAX_VALUE ) );
+            monitor.worked( (int)rendered );
+
+            while (zoom <= maxZoom) {
+                TileIndex[] range = range( grid, area, zoom, step );
+                row = Math.max( row, range[0].row );
+                while (row <= range[1].row) {
+                    List<Callable<Boolean>> tasks = new ArrayList();
+                    for (int col=range[0].col; col <= range[1].col; col += step) {
+                        TileIndex index = new TileIndex( range[0].span, col, row );
+                        TileRequest request = prototype.withBounds( grid.bounds( index ),
+                                ProjectMapPanel.TILE_SIZE, ProjectMapPanel.TILE_SIZE );
+                        tasks.add( () -> {
+                            if (monitor.isCanceled()) {
+                                return false;
+                            }
+                            try {
+                                while (!RenderScheduler.instance().executeIfIdle( () -> TileRenderer.instance().render( layer, request ) ).isPresent()) {
+                                    if (monitor.isCanceled()) {
+                                        return false;
+                                    }
+                                    Thread.sleep( BACKOFF_MILLIS );
+                                }
+                            }
+                            catch (InterruptedException e) {
+                                throw e;
+                            }
+                            catch (Exception e) {
+                                log.warn( "Seeding " + request + ": " + e );
+                                failed.incrementAndGet();
+                            }
+                            return true;
+                        });
+                    }
+                    for (Future<Boolean> result : executor.invokeAll( tasks )) {
+                        result.get();
+                    }
+                    if (monitor.isCanceled()) {
+                        // the current row is repeated on resume
+                        return Status.CANCEL_STATUS;
+                    }
+                    rendered += tasks.size();
+                    monitor.worked( tasks.size() );
+                    // store the next row, so that this row is not rendered again on resume
+                    row += step;
+                    store();
+                    update( true );
+                }
+                zoom ++;
+                row = -1;
+            }
+            // a finished seeder is loaded with isDone()
+            store();
+            log.info( getName() + ": " + rendered + " tiles, " + failed + " failed" );
+            return Status.OK_STATUS;
+        }
+        catch (InterruptedException e) {
+            return Status.CANCEL_STATUS;
+        }
+        catch (Exception e) {
+            log.warn( "", e );
+            return new Status( IStatus.ERROR, P4Plugin.ID, "Seeding tiles failed.", Throwables.getRootCause( e ) );
+        }
+        finally {
+            executor.shutdownNow();
+            uow.close();
+            monitor.done();
+            update( false );
+        }
+    }
+
+
+    /**
+     * The tiles of the given zoom level that are covered by the given area,
+     * aligned to metatiles of the given size.
+     */
+    protected TileIndex[] range( TileGrid grid, ReferencedEnvelope area, int z, int step ) {
+        TileIndex[] range = grid.range( area, z );
+        range[0] = new TileIndex( range[0].span, (range[0].col / step) * step, (range[0].row / step) * step );
+        return range;
+    }
+
+
+    protected void update( boolean throttle ) {
+        if (throttle && updated.elapsedTime() < 1000) {
+            return;
+        }
+        updated.start();
+        EventManager.instance().publish( new ProgressEvent( this ) );
+    }
+
+
+    /**
+     * Stores the params and the current position of this job.
+     */
+    protected void store() {
+        Properties props = new Properties();
+        props.setProperty( "srs", srs );
+        props.setProperty( "bounds", bounds[0] + "," + bounds[1] + "," + bounds[2] + "," + bounds[3] );
+        props.setProperty( "minZoom", String.valueOf( minZoom ) );
+        props.setProperty( "maxZoom", String.valueOf( maxZoom ) );
+        props.setProperty( "zoom", String.valueOf( zoom ) );
+        props.setProperty( "row", String.valueOf( row ) );
+        props.setProperty( "rendered", String.valueOf( rendered ) );
+        try (
+            OutputStream out = new FileOutputStream( stateFile );
+        ){
+            props.store( out, "TileSeeder state of layer " + layerId );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to store state: " + stateFile, e );
+        }
+    }
+
+
+    /**
+     * Loads the params and the position of the last job of this layer.
+     *
+     * @return False if there is no stored state.
+     */
+    protected boolean load() {
+        if (!stateFile.exists()) {
+            return false;
+        }
+        Properties props = new Properties();
+        try (
+            InputStream in = new FileInputStream( stateFile );
+        ){
+            props.load( in );
+            srs = props.getProperty( "srs" );
+            String[] coords = props.getProperty( "bounds" ).split( "," );
+            bounds = new double[4];
+            for (int i=0; i<4; i++) {
+                bounds[i] = Double.parseDouble( coords[i] );
+            }
+            minZoom = Integer.parseInt( props.getProperty( "minZoom" ) );
+            maxZoom = Integer.parseInt( props.getProperty( "maxZoom" ) );
+            zoom = Integer.parseInt( props.getProperty( "zoom" ) );
+            row = Integer.parseInt( props.getProperty( "row" ) );
+            rendered = Long.parseLong( props.getProperty( "rendered" ) );
+            return true;
+        }
+        catch (Exception e) {
+            log.warn( "Unable to load state: " + stateFile, e );
+            return false;
+        }
+    }
+
+}
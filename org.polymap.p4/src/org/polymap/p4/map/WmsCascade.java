@@ -0,0 +1,625 @@
+/*
+ * polymap.org
+ * Copyright (C) 2018, the @authors. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 3.0 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.p4.map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.data.ows.HTTPClient;
+import org.geotools.data.ows.HTTPResponse;
+import org.geotools.data.ows.Layer;
+import org.geotools.data.wms.WebMapServer;
+import org.geotools.data.wms.request.GetMapRequest;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+
+import org.polymap.core.CorePlugin;
+import org.polymap.core.data.pipeline.DataSourceDescriptor;
+import org.polymap.core.project.ILayer;
+import org.polymap.core.runtime.Timer;
+
+import org.polymap.p4.P4Plugin;
+import org.polymap.p4.catalog.HttpClientService;
+import org.polymap.p4.data.PipelinePool;
+import org.polymap.p4.map.TileGrid.TileIndex;
+
+/**
+ * Cascading cache of the tiles of layers that are backed by a remote WMS. Tiles
+ * are fetched from the upstream server in metatiles of {@link #METATILES} x
+ * {@link #METATILES} tiles, so that one upstream request serves many client
+ * tiles. The slices are stored on disk together with their expiration time,
+ * which is taken from the <code>Cache-Control</code> and <code>Expires</code>
+ * headers of the upstream response.
+ * <p/>
+ * Expired tiles are refetched. If the upstream server fails, then the expired
+ * (stale) tile is served. If the upstream server does not answer within
+ * {@link #STALE_DEADLINE_MILLIS}, then the stale tile is served and the fetch
+ * goes on in the background. Without a stale tile a request waits
+ * {@link #FETCH_TIMEOUT_MILLIS} at most and fails then.
+ * <p/>
+ * Upstream requests run on a pool of {@link #FETCH_THREADS} threads. Requests for
+ * the same metatile are coalesced before they are queued; if more than
+ * {@link #FETCH_QUEUE} metatiles are waiting, then the stale tile is served or
+ * the request fails.
+ * <p/>
+ * The store is limited to {@link #MAX_STORE_MB}; the least recently used tiles
+ * are evicted when it grows beyond, in a thread of its own.
+ * <p/>
+ * The {@link #validator(ILayer, TileRequest) validator} of a tile is the hash of
+ * its content, so refetching a metatile changes the ETags of just the tiles whose
+ * content has changed. The {@link #generation(ILayer)} of a layer changes only if
+ * its tiles are {@link #invalidate(ILayer) invalidated} explicitly.
+ *
+ * @author Falko Bräutigam
+ */
+public class WmsCascade {
+
+    private static final Log log = LogFactory.getLog( WmsCascade.class );
+
+    /** Number of tiles per side of the metatiles fetched from upstream. */
+    public static final int         METATILES = Integer.getInteger( "org.polymap.p4.map.wms.metatiles", 4 );
+
+    /** Seconds a tile is fresh if the upstream response has no caching headers. */
+    public static final int         DEFAULT_MAX_AGE = Integer.getInteger( "org.polymap.p4.map.wms.maxAge", 3600 );
+
+    /** How long a request waits for upstream before a stale tile is served. */
+    public static final long        STALE_DEADLINE_MILLIS = 2000;
+
+    /** How long a request without a stale tile waits for upstream. */
+    public static final long        FETCH_TIMEOUT_MILLIS = Long.getLong( "org.polymap.p4.map.wms.fetchTimeout", 20000 );
+
+    /** Max number of concurrent requests to upstream servers. */
+    public static final int         FETCH_THREADS = Integer.getInteger( "org.polymap.p4.map.wms.fetchThreads", 8 );
+
+    /** Max number of metatiles that wait for a {@link #FETCH_THREADS fetch thread}. */
+    public static final int         FETCH_QUEUE = Integer.getInteger( "org.polymap.p4.map.wms.fetchQueue", 64 );
+
+    /** Max size of the store on disk, in MB. */
+    public static final long        MAX_STORE_MB = Long.getLong( "org.polymap.p4.map.wms.maxStoreMB", 1024 );
+
+    /** Eviction reduces the size of the store to this fraction of {@link #MAX_STORE_MB}. */
+    public static final double      EVICT_TO = 0.8;
+
+    /** How long the upstream of a layer that failed to connect is not asked again. */
+    public static final long        FAILED_TTL_MILLIS = 60 * 1000;
+
+    public static final String      GENERATIONS_FILE = "generations.properties";
+
+    private static final Pattern    MAX_AGE = Pattern.compile( "(?:s-maxage|max-age)\\s*=\\s*(\\d+)" );
+
+    private static WmsCascade       instance;
+
+    public static synchronized WmsCascade instance() {
+        if (instance == null) {
+            instance = new WmsCascade( new File( CorePlugin.getDataLocation( P4Plugin.instance() ), "wms-cascade" ) );
+        }
+        return instance;
+    }
+
+
+    /**
+     * The expiration time of a response with the given headers.
+     *
+     * @param cacheControl The <code>Cache-Control</code> header, or null.
+     * @param expires The <code>Expires</code> header, or 0.
+     * @param date The <code>Date</code> header, or 0.
+     * @param now The current time.
+     */
+    public static long expires( String cacheControl, long expires, long date, long now ) {
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase();
+            if (directives.contains( "no-cache" ) || directives.contains( "no-store" )) {
+                return now;
+            }
+            Matcher matcher = MAX_AGE.matcher( directives );
+            if (matcher.find()) {
+                return now + Long.parseLong( matcher.group( 1 ) ) * 1000;
+            }
+        }
+        if (expires > 0) {
+            // relative to the clock of the server
+            return now + Math.max( 0, expires - (date > 0 ? date : now) );
+        }
+        return now + DEFAULT_MAX_AGE * 1000L;
+    }
+
+
+    /**
+     * A tile of the store.
+     */
+    public static class Entry {
+
+        public final byte[]     data;
+
+        public final long       expires;
+
+        public Entry( byte[] data, long expires ) {
+            this.data = data;
+            this.expires = expires;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+    }
+
+
+    /**
+     * The response of the upstream server.
+     */
+    public static class Fetched {
+
+        public final byte[]     data;
+
+        public final long       expires;
+
+        public Fetched( byte[] data, long expires ) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * Fetches the given URL. Fails if the response is not an image.
+     */
+    public static Fetched fetch( HTTPClient client, URL url ) throws IOException {
+        HTTPResponse response = client.get( url );
+        try (InputStream in = response.getResponseStream()) {
+            byte[] data = IOUtils.toByteArray( in );
+            String contentType = StringUtils.defaultString( response.getContentType() );
+            if (!contentType.startsWith( "image/" )) {
+                throw new IOException( "Upstream: no image but " + contentType + ": "
+                        + StringUtils.abbreviate( new String( data, UTF_8 ), 200 ) );
+            }
+            long expires = expires( response.getResponseHeader( "Cache-Control" ),
+                    httpDate( response.getResponseHeader( "Expires" ) ),
+                    httpDate( response.getResponseHeader( "Date" ) ), System.currentTimeMillis() );
+            return new Fetched( data, expires );
+        }
+        finally {
+            response.dispose();
+        }
+    }
+
+
+    /**
+     * The validator of a tile with the given content: its hash.
+     */
+    public static String validator( byte[] data ) {
+        return Hashing.murmur3_128().hashBytes( data ).toString();
+    }
+
+
+    /**
+     * Parses the given HTTP date header.
+     *
+     * @return The time, 0 if the header is missing, or 1 (long ago) if it is
+     *         invalid.
+     */
+    protected static long httpDate( String value ) {
+        if (StringUtils.isBlank( value )) {
+            return 0;
+        }
+        try {
+            return ZonedDateTime.parse( value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME ).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return 1;
+        }
+    }
+
+
+    /**
+     * The remote WMS layer of a cascaded {@link ILayer}.
+     */
+    protected static class Upstream {
+
+        public final WebMapServer   wms;
+
+        public final Layer          layer;
+
+        public Upstream( WebMapServer wms, Layer layer ) {
+            this.wms = wms;
+            this.layer = layer;
+        }
+    }
+
+
+    /**
+     * The result of connecting the upstream of a layer. Failures expire after
+     * {@link #FAILED_TTL_MILLIS}.
+     */
+    protected static class Connected {
+
+        public final Optional<Upstream> upstream;
+
+        public final long           expires;
+
+        public Connected( Optional<Upstream> upstream, long expires ) {
+            this.upstream = upstream;
+            this.expires = expires;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private File                    dir;
+
+    private HTTPClient              client = HttpClientService.instance().newClient();
+
+    /** The upstream of the layers, by {@link PipelinePool#fingerprint(ILayer)}. */
+    private ConcurrentMap<String,Connected> upstreams = new ConcurrentHashMap();
+
+    /** The metatiles being fetched or waiting for a fetch thread. */
+    private SingleFlight<String,Void> fetching = new SingleFlight();
+
+    private ExecutorService         executor;
+
+    /** Evicts tiles, independent of the fetches. */
+    private ExecutorService         evictor;
+
+    /**
+     * The generations of the layers, by {@link PipelinePool#fingerprint(ILayer)}.
+     * Stored in {@link #GENERATIONS_FILE}.
+     */
+    private Properties              generations = new Properties();
+
+    private AtomicLong              stale = new AtomicLong();
+
+    /** The size of the store in bytes; -1 until the store was scanned. */
+    private AtomicLong              size = new AtomicLong( -1 );
+
+    private AtomicBoolean           evicting = new AtomicBoolean();
+
+
+    protected WmsCascade( File dir ) {
+        this.dir = dir;
+        dir.mkdirs();
+        File f = new File( dir, GENERATIONS_FILE );
+        if (f.exists()) {
+            try (InputStream in = new FileInputStream( f )) {
+                generations.load( in );
+            }
+            catch (IOException e) {
+                log.warn( "Unable to load: " + f, e );
+            }
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor( FETCH_THREADS, FETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue( FETCH_QUEUE ), r -> {
+                    Thread thread = new Thread( r, "WmsCascade-" + threadCount.getAndIncrement() );
+                    thread.setDaemon( true );
+                    return thread;
+                });
+        this.evictor = Executors.newSingleThreadExecutor( r -> {
+            Thread thread = new Thread( r, "WmsCascade-evict" );
+            thread.setDaemon( true );
+            thread.setPriority( Thread.MIN_PRIORITY );
+            return thread;
+        });
+        evictAsync();
+    }
+
+
+    /**
+     * Incremented whenever the tiles of the given layer are
+     * {@link #invalidate(ILayer) invalidated}.
+     */
+    public long generation( ILayer layer ) {
+        return Long.parseLong( generations.getProperty( PipelinePool.fingerprint( layer ), "0" ) );
+    }
+
+
+    /**
+     * Invalidates all stored tiles of the given layer; they are fetched again on
+     * next request. The tiles are evicted from the store eventually.
+     */
+    public synchronized void invalidate( ILayer layer ) {
+        generations.setProperty( PipelinePool.fingerprint( layer ), String.valueOf( generation( layer ) + 1 ) );
+        File f = new File( dir, GENERATIONS_FILE );
+        try (OutputStream out = new FileOutputStream( f )) {
+            generations.store( out, "Generations of the layers" );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to store: " + f, e );
+        }
+    }
+
+
+    /**
+     * The {@link #validator(byte[]) validator} of the stored tile of the given
+     * request, if the tile is fresh.
+     *
+     * @param request A grid aligned request of the given layer.
+     * @return The validator, or {@link Optional#empty()} if the tile is not
+     *         stored or expired, or if the layer is not cascaded.
+     */
+    public Optional<String> validator( ILayer layer, TileRequest request ) {
+        if (!request.index().isPresent() || !isCascaded( layer )) {
+            return Optional.empty();
+        }
+        TileRequest shared = TileRenderer.sharedRequest( Collections.singletonList( layer ), request );
+        return get( shared, generation( layer ) )
+                .filter( entry -> entry.isFresh() )
+                .map( entry -> validator( entry.data ) );
+    }
+
+
+    /**
+     * The number of stale tiles that were served.
+     */
+    public long stale() {
+        return stale.get();
+    }
+
+
+    /**
+     * True if the given layer is backed by a remote WMS.
+     */
+    public boolean isCascaded( ILayer layer ) {
+        return upstream( layer ).isPresent();
+    }
+
+
+    protected Optional<Upstream> upstream( ILayer layer ) {
+        String key = PipelinePool.fingerprint( layer );
+        Connected connected = upstreams.get( key );
+        if (connected != null && connected.expires < System.currentTimeMillis()) {
+            upstreams.remove( key, connected );
+        }
+        return upstreams.computeIfAbsent( key, k -> {
+            try {
+                DataSourceDescriptor dsd = TileRenderer.dataSource( layer );
+                Optional<Upstream> result = Optional.empty();
+                if (dsd.service.get() instanceof WebMapServer) {
+                    WebMapServer wms = (WebMapServer)dsd.service.get();
+                    result = wms.getCapabilities().getLayerList().stream()
+                            .filter( l -> dsd.resourceName.get().equals( l.getName() ) )
+                            .findFirst().map( l -> new Upstream( wms, l ) );
+                }
+                return new Connected( result, Long.MAX_VALUE );
+            }
+            catch (Exception e) {
+                log.warn( "Unable to connect layer: " + layer.label.get(), e );
+                return new Connected( Optional.empty(), System.currentTimeMillis() + FAILED_TTL_MILLIS );
+            }
+        }).upstream;
+    }
+
+
+    /**
+     * Returns the tile of the given grid aligned, shared request of a
+     * {@link #isCascaded(ILayer) cascaded} layer.
+     *
+     * @return The encoded tile.
+     * @throws IOException If upstream failed, did not answer within
+     *         {@link #FETCH_TIMEOUT_MILLIS}, or too many fetches are waiting, and
+     *         there is no stale tile.
+     */
+    public byte[] render( ILayer layer, TileRequest request ) throws Exception {
+        Upstream upstream = upstream( layer ).orElseThrow( () -> new IllegalStateException( "Not cascaded: " + layer ) );
+        long generation = generation( layer );
+        Optional<Entry> entry = get( request, generation );
+        if (entry.isPresent() && entry.get().isFresh()) {
+            return entry.get().data;
+        }
+
+        TileIndex origin = TileRenderer.instance().metatileOrigin( request.index().get(), METATILES );
+        TileGrid grid = TileGrid.forSrs( request.srs() );
+        ReferencedEnvelope bounds = grid.bounds( origin, METATILES );
+        int size = METATILES * request.width();
+        TileRequest metaRequest = request.withBounds( bounds, size, size );
+        try {
+            CompletableFuture<Void> fetched = fetching.submit( metaRequest.key() + "@" + generation, () -> {
+                fetchMetatile( upstream, request, metaRequest, origin, generation );
+                return null;
+            }, executor );
+            fetched.get( entry.isPresent() ? STALE_DEADLINE_MILLIS : FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+        }
+        catch (TimeoutException | ExecutionException | RejectedExecutionException e) {
+            String cause = e instanceof TimeoutException ? "is slow"
+                    : e instanceof RejectedExecutionException ? "is busy" : "failed";
+            if (entry.isPresent()) {
+                log.info( "Upstream " + cause + ", serving stale tile: " + request + " (" + e.getMessage() + ")" );
+                stale.incrementAndGet();
+                return entry.get().data;
+            }
+            throw new IOException( "Upstream " + cause + ": " + request, Throwables.getRootCause( e ) );
+        }
+        Optional<Entry> result = get( request, generation );
+        if (!result.isPresent()) {
+            throw new IOException( "Fetched tile is not stored: " + request );
+        }
+        return result.get().data;
+    }
+
+
+    protected void fetchMetatile( Upstream upstream, TileRequest request, TileRequest metaRequest, TileIndex origin,
+            long generation ) throws Exception {
+        Timer timer = new Timer();
+        GetMapRequest getMap = upstream.wms.createGetMapRequest();
+        getMap.addLayer( upstream.layer );
+        getMap.setSRS( metaRequest.srs() );
+        getMap.setBBox( metaRequest.bounds() );
+        getMap.setDimensions( metaRequest.width(), metaRequest.height() );
+        getMap.setFormat( "image/png" );
+        getMap.setTransparent( true );
+        Fetched fetched = fetch( client, getMap.getFinalURL() );
+
+        BufferedImage image = ImageIO.read( new ByteArrayInputStream( fetched.data ) );
+        if (image == null) {
+            throw new IOException( "Unable to decode upstream metatile: " + metaRequest );
+        }
+        TileGrid grid = TileGrid.forSrs( request.srs() );
+        int tileSize = request.width();
+        for (int col=0; col<METATILES; col++) {
+            for (int row=0; row<METATILES; row++) {
+                BufferedImage slice = image.getSubimage( col * tileSize, row * tileSize, tileSize, tileSize );
+                TileRequest sliceRequest = request.withBounds( grid.bounds( origin.neighbour( col, row ) ), tileSize, tileSize );
+                put( sliceRequest, generation, new Entry( TileEncoder.encode( slice, request.format() ), fetched.expires ) );
+            }
+        }
+        log.debug( "Upstream metatile " + origin + ": " + timer.elapsedTime() + "ms" );
+    }
+
+
+    // store **********************************************
+
+    protected File file( TileRequest request, long generation ) {
+        String hash = Hashing.murmur3_128().hashString( request.key() + "@" + generation, UTF_8 ).toString();
+        return new File( new File( dir, hash.substring( 0, 2 ) ), hash + ".tile" );
+    }
+
+
+    protected Optional<Entry> get( TileRequest request, long generation ) {
+        File f = file( request, generation );
+        if (!f.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream( new FileInputStream( f ) )) {
+            long expires = in.readLong();
+            byte[] data = IOUtils.toByteArray( in );
+            // recently used, see evict()
+            f.setLastModified( System.currentTimeMillis() );
+            return Optional.of( new Entry( data, expires ) );
+        }
+        catch (IOException e) {
+            log.warn( "Unable to read: " + f, e );
+            return Optional.empty();
+        }
+    }
+
+
+    protected void put( TileRequest request, long generation, Entry entry ) throws IOException {
+        File f = file( request, generation );
+        f.getParentFile().mkdirs();
+        // write and rename, so that readers never see a partial file
+        File tmp = new File( f.getParentFile(), f.getName() + "." + Thread.currentThread().getId() );
+        try (DataOutputStream out = new DataOutputStream( new FileOutputStream( tmp ) )) {
+            out.writeLong( entry.expires );
+            out.write( entry.data );
+        }
+        long replaced = f.length();
+        if (!tmp.renameTo( f )) {
+            f.delete();
+            if (!tmp.renameTo( f )) {
+                tmp.delete();
+                throw new IOException( "Unable to store: " + f );
+            }
+        }
+        if (size.get() >= 0 && size.addAndGet( f.length() - replaced ) > MAX_STORE_MB * 1024 * 1024) {
+            evictAsync();
+        }
+    }
+
+
+    protected void evictAsync() {
+        if (evicting.compareAndSet( false, true )) {
+            evictor.execute( () -> {
+                try {
+                    evict();
+                }
+                catch (Exception e) {
+                    log.warn( "Eviction failed.", e );
+                }
+                finally {
+                    evicting.set( false );
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Computes the size of the store and deletes the least recently used tiles if
+     * it exceeds {@link #MAX_STORE_MB}.
+     */
+    protected void evict() throws IOException {
+        Timer timer = new Timer();
+        List<File> files = new ArrayList();
+        try (Stream<Path> paths = Files.walk( dir.toPath() )) {
+            paths.filter( path -> path.toString().endsWith( ".tile" ) ).forEach( path -> files.add( path.toFile() ) );
+        }
+        long total = files.stream().mapToLong( File::length ).sum();
+        long max = MAX_STORE_MB * 1024 * 1024;
+        int deleted = 0;
+        if (total > max) {
+            files.sort( Comparator.comparing( File::lastModified ) );
+            for (Iterator<File> it = files.iterator(); it.hasNext() && total > max * EVICT_TO; ) {
+                File f = it.next();
+                long length = f.length();
+                if (f.delete()) {
+                    total -= length;
+                    deleted ++;
+                }
+            }
+        }
+        size.set( total );
+        log.info( "Store: " + total / 1024 + "KB, evicted " + deleted + " tiles: " + timer.elapsedTime() + "ms" );
+    }
+
+}